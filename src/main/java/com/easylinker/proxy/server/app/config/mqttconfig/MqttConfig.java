@@ -1,20 +1,27 @@
 package com.easylinker.proxy.server.app.config.mqttconfig;
 
 import com.easylinker.proxy.server.app.config.mqttconfig.adapter.EMqttPahoMessageDrivenChannelAdapter;
+import com.easylinker.proxy.server.app.config.mqttconfig.adapter.InboundRoute;
+import com.easylinker.proxy.server.app.config.mqttconfig.adapter.OverloadPolicy;
+import com.easylinker.proxy.server.app.config.mqttconfig.adapter.PriorityLaneDispatcher;
 import com.easylinker.proxy.server.app.config.mqttconfig.handler.*;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestClass;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.integration.channel.NullChannel;
 import org.springframework.integration.dsl.IntegrationFlow;
 import org.springframework.integration.dsl.IntegrationFlows;
-import org.springframework.integration.endpoint.MessageProducerSupport;
 import org.springframework.integration.mqtt.core.DefaultMqttPahoClientFactory;
 import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
 import org.springframework.integration.mqtt.support.DefaultPahoMessageConverter;
 
+import javax.annotation.PostConstruct;
+
 /**
  * mqtt核心配置
  * Created by wwhai on 2018/3/14.
@@ -27,6 +34,60 @@ public class MqttConfig {
     private String LOCALHOST_EMQ_USERNAME;
     @Value("${emq.password}")
     private String LOCALHOST_EMQ_PASSWORD;
+    /**
+     * 每个adapter的分道数目、每条道的队列长度和满载策略，分道数为0时在Paho回调线程上同步处理
+     * 上下线事件默认阻塞不丢，ECHO数据满了丢最老的，保证数据洪峰不会饿死上下线事件
+     */
+    @Value("${ingest.dispatch.presence.lanes:0}")
+    private int presenceLanes;
+    @Value("${ingest.dispatch.presence.queue-capacity:10000}")
+    private int presenceLaneQueueCapacity;
+    @Value("${ingest.dispatch.presence.overload-policy:BLOCK}")
+    private OverloadPolicy presenceOverloadPolicy;
+    @Value("${ingest.dispatch.echo.lanes:0}")
+    private int echoLanes;
+    @Value("${ingest.dispatch.echo.queue-capacity:10000}")
+    private int echoLaneQueueCapacity;
+    @Value("${ingest.dispatch.echo.overload-policy:DROP_OLDEST}")
+    private OverloadPolicy echoOverloadPolicy;
+    @Value("${ingest.dispatch.echo.sample-rate:10}")
+    private int echoSampleRate;
+    @Value("${ingest.dispatch.cmd.lanes:0}")
+    private int cmdLanes;
+    @Value("${ingest.dispatch.cmd.queue-capacity:10000}")
+    private int cmdLaneQueueCapacity;
+    @Value("${ingest.dispatch.cmd.overload-policy:BLOCK}")
+    private OverloadPolicy cmdOverloadPolicy;
+    /**
+     * 共用连接模式下上下线、CMD、ECHO三条路由共用的道数，道线程按 IngestClass 的优先级先处理上下线和指令回复，
+     * 0表示每条路由用自己的道(各自的 lanes 配置)
+     */
+    @Value("${ingest.dispatch.shared-lanes:0}")
+    private int sharedLanes;
+    @Value("${ingest.priority.weights:}")
+    private int[] priorityWeights;
+    /**
+     * 手动确认:ECHO、CMD消息在数据提交以后才确认，同时使用持久会话，断线期间未确认的消息重连以后Broker重发
+     */
+    @Value("${ingest.ack.manual:false}")
+    private boolean manualAcks;
+    /**
+     * 原始载荷直通:ECHO、CMD消息的载荷保持 byte[]，只做流式JSON格式检查，原样写库
+     */
+    @Value("${ingest.payload.raw:false}")
+    private boolean rawPayload;
+    /**
+     * 共享订阅组:多个EasyLinker实例配置同一个组名，EMQ把上下线、ECHO、CMD消息只分给其中一个实例，
+     * 为空表示普通订阅(单实例)
+     */
+    @Value("${emq.shared.group:}")
+    private String sharedSubscriptionGroup;
+    /**
+     * 实例ID，多实例的时候拼在MQTT clientId后面避免互相踢下线
+     * 必须每次启动都一样：clientId变了的话持久会话(手动确认)里没确认的消息留在旧会话里，Broker上的旧会话也不会释放
+     */
+    @Value("${emq.instance.id:}")
+    private String instanceId;
     Logger logger = LoggerFactory.getLogger(MqttConfig.class);
 
     @Autowired
@@ -39,6 +100,41 @@ public class MqttConfig {
     RealTimeMessageHandler realTimeMessageHandler;
 
 
+    /**
+     * 共享订阅的时候clientId要拼上实例ID，没有配置的话不能启动
+     * 单实例的clientId是固定的名字，手动确认的持久会话重启以后也能接上
+     */
+    @PostConstruct
+    public void checkInstanceId() {
+        if (!sharedSubscriptionGroup.trim().isEmpty() && instanceId.trim().isEmpty()) {
+            throw new IllegalStateException("配置了 emq.shared.group 的多实例部署必须给每个实例配置固定的 emq.instance.id");
+        }
+    }
+
+    /**
+     * 生成MQTT clientId，共享订阅的时候每个实例的clientId必须不同
+     *
+     * @param name
+     * @return
+     */
+    private String clientId(String name) {
+        if (sharedSubscriptionGroup.trim().isEmpty()) {
+            return name;
+        }
+        return name + "_" + instanceId.trim();
+    }
+
+    /**
+     * 数据类消息的转换器，直通模式下载荷保持 byte[]
+     *
+     * @return
+     */
+    private DefaultPahoMessageConverter ingestConverter() {
+        DefaultPahoMessageConverter converter = new DefaultPahoMessageConverter();
+        converter.setPayloadAsBytes(rawPayload);
+        return converter;
+    }
+
     /**
      * mqtt 的工厂  用来创建mqtt连接
      *
@@ -51,6 +147,7 @@ public class MqttConfig {
         factory.setServerURIs(LOCALHOST_EMQ_URL);
         factory.setUserName(LOCALHOST_EMQ_USERNAME);
         factory.setPassword(LOCALHOST_EMQ_PASSWORD);
+        factory.setCleanSession(!manualAcks);
         return factory;
     }
 
@@ -60,14 +157,19 @@ public class MqttConfig {
      * @return
      */
     @Bean("MqttClientOnOrOffLineMessageListenerInbound")
-    public MessageProducerSupport getMqttClientOnOrOffLineMessageListener() {
+    @ConditionalOnProperty(value = "emq.multiplexed", havingValue = "false", matchIfMissing = true)
+    public EMqttPahoMessageDrivenChannelAdapter getMqttClientOnOrOffLineMessageListener() {
         EMqttPahoMessageDrivenChannelAdapter adapter = new EMqttPahoMessageDrivenChannelAdapter(
-                "MqttClientOnOrOffLineMessageListenerInbound",
+                clientId("MqttClientOnOrOffLineMessageListenerInbound"),
                 mqttClientFactory());
         adapter.addTopic("$SYS/brokers/+/clients/+/#");//监控设备消息上下线
         adapter.setCompletionTimeout(5000);
         adapter.setConverter(new DefaultPahoMessageConverter());
         adapter.setQos(1);
+        adapter.setDispatchLanes(presenceLanes);
+        adapter.setLaneQueueCapacity(presenceLaneQueueCapacity);
+        adapter.setOverloadPolicy(presenceOverloadPolicy);
+        adapter.setSharedSubscriptionGroup(sharedSubscriptionGroup);
         return adapter;
     }
 
@@ -78,6 +180,7 @@ public class MqttConfig {
      * @return
      */
     @Bean("MqttClientOnOrOffLineMessageListener")
+    @ConditionalOnProperty(value = "emq.multiplexed", havingValue = "false", matchIfMissing = true)
     public IntegrationFlow mqttClientOnOrOffLineMessageListenerInFlow() {
         return IntegrationFlows.from(getMqttClientOnOrOffLineMessageListener())
                 .handle(clientOnAndOfflineWillMessageHandler)
@@ -91,15 +194,22 @@ public class MqttConfig {
      * @return
      */
     @Bean("MqttClientInMessageListenerInbound")
-    public MessageProducerSupport getMqttClientInMessageListener() {
+    @ConditionalOnProperty(value = "emq.multiplexed", havingValue = "false", matchIfMissing = true)
+    public EMqttPahoMessageDrivenChannelAdapter getMqttClientInMessageListener() {
         EMqttPahoMessageDrivenChannelAdapter adapter = new EMqttPahoMessageDrivenChannelAdapter(
-                "MqttClientInMessageListenerInbound",
+                clientId("MqttClientInMessageListenerInbound"),
                 mqttClientFactory());
         //OUT/DEVICE/DEFAULT_USER/DEFAULT_GROUP/ID  为客户端SUB的TOPIC
         adapter.addTopic("IN/ECHO/+/+/#");//监控设备publish的消息
         adapter.setCompletionTimeout(5000);
-        adapter.setConverter(new DefaultPahoMessageConverter());
+        adapter.setConverter(ingestConverter());
+        adapter.setManualAcks(manualAcks);
         adapter.setQos(1);
+        adapter.setDispatchLanes(echoLanes);
+        adapter.setLaneQueueCapacity(echoLaneQueueCapacity);
+        adapter.setOverloadPolicy(echoOverloadPolicy);
+        adapter.setSharedSubscriptionGroup(sharedSubscriptionGroup);
+        adapter.setSampleRate(echoSampleRate);
         return adapter;
 
     }
@@ -111,6 +221,7 @@ public class MqttConfig {
      * @return
      */
     @Bean("MqttClientInMessageListenerInFlow")
+    @ConditionalOnProperty(value = "emq.multiplexed", havingValue = "false", matchIfMissing = true)
     public IntegrationFlow mqttClientInMessageListenerInFlow() {
         return IntegrationFlows.from(getMqttClientInMessageListener())
                 .handle(inMessageHandler)
@@ -125,15 +236,21 @@ public class MqttConfig {
      */
 
     @Bean("ClientCmdReplyMessageHandler")
+    @ConditionalOnProperty(value = "emq.multiplexed", havingValue = "false", matchIfMissing = true)
     public EMqttPahoMessageDrivenChannelAdapter getClientCmdReplyMessageHandler() {
         EMqttPahoMessageDrivenChannelAdapter adapter = new EMqttPahoMessageDrivenChannelAdapter(
-                "ClientCmdReplyMessageHandler",
+                clientId("ClientCmdReplyMessageHandler"),
                 mqttClientFactory());
         //CMD/IN/所有命令回复
         adapter.addTopic("CMD/IN/#");//监控设备接到命令回复的消息
         adapter.setCompletionTimeout(5000);
-        adapter.setConverter(new DefaultPahoMessageConverter());
+        adapter.setConverter(ingestConverter());
+        adapter.setManualAcks(manualAcks);
         adapter.setQos(1);
+        adapter.setDispatchLanes(cmdLanes);
+        adapter.setLaneQueueCapacity(cmdLaneQueueCapacity);
+        adapter.setOverloadPolicy(cmdOverloadPolicy);
+        adapter.setSharedSubscriptionGroup(sharedSubscriptionGroup);
         return adapter;
     }
 
@@ -143,6 +260,7 @@ public class MqttConfig {
      * @return
      */
     @Bean("clientCmdReplyMessageInflow")
+    @ConditionalOnProperty(value = "emq.multiplexed", havingValue = "false", matchIfMissing = true)
     public IntegrationFlow mqttClientCmdReplyMessageInflow() {
         return IntegrationFlows.from(getClientCmdReplyMessageHandler())
                 .handle(clientCmdReplyMessageHandler)
@@ -157,9 +275,10 @@ public class MqttConfig {
      */
 
     @Bean("RealTimeMessageHandler")
+    @ConditionalOnProperty(value = "emq.multiplexed", havingValue = "false", matchIfMissing = true)
     public EMqttPahoMessageDrivenChannelAdapter getRealTimeMessageHandler() {
         EMqttPahoMessageDrivenChannelAdapter adapter = new EMqttPahoMessageDrivenChannelAdapter(
-                "RealTimeMessageHandler",
+                clientId("RealTimeMessageHandler"),
                 mqttClientFactory());
         adapter.addTopic("OUT/REAL_TIME/#");//实时消息
         adapter.setCompletionTimeout(5000);
@@ -174,6 +293,7 @@ public class MqttConfig {
      */
 
     @Bean("mqttRealTimeMessageInflow")
+    @ConditionalOnProperty(value = "emq.multiplexed", havingValue = "false", matchIfMissing = true)
     public IntegrationFlow mqttRealTimeMessageInflow() {
         return IntegrationFlows.from(getRealTimeMessageHandler())
                 .handle(realTimeMessageHandler)
@@ -181,4 +301,62 @@ public class MqttConfig {
     }
 
 
+    /**
+     * 共用连接模式(emq.multiplexed=true):
+     * 一个MQTT连接订阅上下线、ECHO、CMD、实时消息四类Topic，在连接内部按Topic派发给各自的处理器，
+     * 每个处理器至少一条自己的处理线程，一个处理器慢不会拖住其他处理器，也只有一条重连路径；
+     * 配置了 ingest.dispatch.shared-lanes 的时候上下线、CMD、ECHO共用一组按优先级处理的道
+     *
+     * @return
+     */
+    @Bean("MqttMultiplexedInbound")
+    @ConditionalOnProperty(value = "emq.multiplexed", havingValue = "true")
+    public EMqttPahoMessageDrivenChannelAdapter getMqttMultiplexedInbound() {
+        EMqttPahoMessageDrivenChannelAdapter adapter = new EMqttPahoMessageDrivenChannelAdapter(
+                clientId("MqttMultiplexedInbound"),
+                mqttClientFactory());
+        adapter.setCompletionTimeout(5000);
+        adapter.setConverter(ingestConverter());
+        adapter.setManualAcks(manualAcks);
+        adapter.setSharedSubscriptionGroup(sharedSubscriptionGroup);
+        //消息都交给路由处理，不走outputChannel
+        adapter.setOutputChannel(new NullChannel());
+
+        InboundRoute presenceRoute = new InboundRoute("$SYS/brokers/+/clients/+/#", clientOnAndOfflineWillMessageHandler);
+        presenceRoute.setDispatchLanes(Math.max(1, presenceLanes));
+        presenceRoute.setLaneQueueCapacity(presenceLaneQueueCapacity);
+        presenceRoute.setOverloadPolicy(presenceOverloadPolicy);
+        adapter.addRoute(presenceRoute);
+
+        InboundRoute echoRoute = new InboundRoute("IN/ECHO/+/+/#", inMessageHandler);
+        echoRoute.setDispatchLanes(Math.max(1, echoLanes));
+        echoRoute.setLaneQueueCapacity(echoLaneQueueCapacity);
+        echoRoute.setOverloadPolicy(echoOverloadPolicy);
+        echoRoute.setSampleRate(echoSampleRate);
+        adapter.addRoute(echoRoute);
+
+        InboundRoute cmdRoute = new InboundRoute("CMD/IN/#", clientCmdReplyMessageHandler);
+        cmdRoute.setDispatchLanes(Math.max(1, cmdLanes));
+        cmdRoute.setLaneQueueCapacity(cmdLaneQueueCapacity);
+        cmdRoute.setOverloadPolicy(cmdOverloadPolicy);
+        adapter.addRoute(cmdRoute);
+
+        if (sharedLanes > 0) {
+            PriorityLaneDispatcher sharedDispatcher = new PriorityLaneDispatcher(adapter.getClientId(), sharedLanes,
+                    IngestClass.values().length, priorityWeights);
+            presenceRoute.setSharedDispatcher(sharedDispatcher, IngestClass.PRESENCE.ordinal());
+            cmdRoute.setSharedDispatcher(sharedDispatcher, IngestClass.COMMAND.ordinal());
+            echoRoute.setSharedDispatcher(sharedDispatcher, IngestClass.TELEMETRY.ordinal());
+        }
+
+        //实时消息每个实例都要收到，不参与共享订阅
+        InboundRoute realTimeRoute = new InboundRoute("OUT/REAL_TIME/#", realTimeMessageHandler);
+        realTimeRoute.setDispatchLanes(1);
+        realTimeRoute.setOverloadPolicy(OverloadPolicy.DROP_OLDEST);
+        realTimeRoute.setShared(false);
+        adapter.addRoute(realTimeRoute);
+        return adapter;
+    }
+
+
 }
@@ -1,6 +1,7 @@
 package com.easylinker.proxy.server.app.config.mqttconfig.adapter;
 
 import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.router.TopicRouter;
 import com.easylinker.proxy.server.app.model.EMQInfo;
 import com.easylinker.proxy.server.app.service.EMQInfoService;
 import com.easylinker.proxy.server.app.utils.HttpTool;
@@ -15,14 +16,20 @@ import org.springframework.integration.mqtt.core.MqttPahoClientFactory;
 import org.springframework.integration.mqtt.event.MqttConnectionFailedEvent;
 import org.springframework.integration.mqtt.event.MqttSubscribedEvent;
 import org.springframework.integration.mqtt.inbound.AbstractMqttMessageDrivenChannelAdapter;
+import org.springframework.integration.support.MessageBuilder;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessagingException;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * EMQ定制的MQTT消息处理器
@@ -30,6 +37,10 @@ import java.util.concurrent.ScheduledFuture;
 public class EMqttPahoMessageDrivenChannelAdapter extends AbstractMqttMessageDrivenChannelAdapter implements MqttCallback, ApplicationEventPublisherAware {
     private static final int DEFAULT_COMPLETION_TIMEOUT = 30000;
     private static final int DEFAULT_RECOVERY_INTERVAL = 10000;
+    /**
+     * QoS 1/2 消息的报文ID，Broker在同一个会话里重发的时候不变，重发去重用
+     */
+    public static final String PACKET_ID = "mqtt_packet_id";
     private final MqttPahoClientFactory clientFactory;
     private volatile IMqttClient client;
     private volatile ScheduledFuture<?> reconnectFuture;
@@ -47,6 +58,30 @@ public class EMqttPahoMessageDrivenChannelAdapter extends AbstractMqttMessageDri
     String apiHost;
     @Value("${emq.node.name}")
     String emqNodeName;
+    /**
+     * 分道派发:0表示在Paho回调线程上同步处理
+     */
+    private volatile int dispatchLanes;
+    private volatile int laneQueueCapacity = 10000;
+    private volatile int laneKeySegment = 4;
+    private volatile OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+    private volatile int sampleRate = 10;
+    private volatile OrderedLaneDispatcher dispatcher;
+    /**
+     * 共享订阅的组名，多个EasyLinker实例用同一个组名订阅，EMQ把消息分给其中一个
+     */
+    private volatile String sharedSubscriptionGroup;
+    /**
+     * 手动确认:QoS 1/2消息等数据提交以后再确认
+     */
+    private volatile boolean manualAcks;
+    private final AtomicBoolean redelivering = new AtomicBoolean();
+    /**
+     * 共用连接模式:一个连接订阅所有路由的Topic，按Topic派发给各自的处理器
+     */
+    private final List<InboundRoute> routes = new ArrayList<>();
+    private final TopicRouter routeMatcher = new TopicRouter();
+    private final Set<String> unsharedTopics = new CopyOnWriteArraySet<>();
 
     public EMqttPahoMessageDrivenChannelAdapter(String url, String clientId, MqttPahoClientFactory clientFactory, String... topic) {
         super(url, clientId, topic);
@@ -74,6 +109,154 @@ public class EMqttPahoMessageDrivenChannelAdapter extends AbstractMqttMessageDri
         this.recoveryInterval = recoveryInterval;
     }
 
+    /**
+     * 设置分道数目，同一个设备的消息固定在一条道上按顺序处理，不同设备并行
+     *
+     * @param dispatchLanes
+     */
+    public void setDispatchLanes(int dispatchLanes) {
+        this.dispatchLanes = dispatchLanes;
+    }
+
+    /**
+     * 每条道的队列长度，满了以后阻塞Paho回调线程
+     *
+     * @param laneQueueCapacity
+     */
+    public void setLaneQueueCapacity(int laneQueueCapacity) {
+        this.laneQueueCapacity = laneQueueCapacity;
+    }
+
+    /**
+     * 开启手动确认，消息头里带上 MqttDeliveryAck，数据所在的批次提交以后才给Broker回PUBACK
+     * 需要在连接之前设置
+     *
+     * @param manualAcks
+     */
+    public void setManualAcks(boolean manualAcks) {
+        this.manualAcks = manualAcks;
+    }
+
+    /**
+     * Topic里面设备ID所在的层级，从0开始
+     * IN/ECHO/{user}/{group}/{device}、CMD/IN/{user}/{group}/{device}、$SYS/brokers/{node}/clients/{client}/... 都是4
+     *
+     * @param laneKeySegment
+     */
+    public void setLaneKeySegment(int laneKeySegment) {
+        this.laneKeySegment = laneKeySegment;
+    }
+
+    /**
+     * 分道队列满载时的策略，默认阻塞
+     *
+     * @param overloadPolicy
+     */
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    /**
+     * SAMPLE策略下的抽样比例
+     *
+     * @param sampleRate
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * 增加一条路由，进入共用连接模式
+     * 路由的Topic会加入订阅，消息不再发往outputChannel，而是直接交给路由的处理器
+     *
+     * @param route
+     */
+    public void addRoute(InboundRoute route) {
+        if (!route.isShared()) {
+            this.unsharedTopics.add(route.getTopicFilter());
+        }
+        this.routeMatcher.route(route.getTopicFilter(), (match, message) -> deliver(route, match.getTopic(), message));
+        this.routes.add(route);
+        this.addTopic(route.getTopicFilter(), route.getQos());
+    }
+
+    public List<InboundRoute> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * 分道派发的统计:策略、每道队列深度、接收数和丢弃数
+     *
+     * @return
+     */
+    public JSONObject getDispatchStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("topics", subscriptionTopics(this.getTopic()));
+        data.put("sharedGroup", this.sharedSubscriptionGroup);
+        if (!this.routes.isEmpty()) {
+            JSONObject routeJson = new JSONObject();
+            for (InboundRoute route : this.routes) {
+                routeJson.put(route.getTopicFilter(), dispatcherStatistics(route.getDispatcher()));
+            }
+            data.put("routes", routeJson);
+            return data;
+        }
+        data.putAll(dispatcherStatistics(this.dispatcher));
+        return data;
+    }
+
+    private static JSONObject dispatcherStatistics(LaneDispatcher dispatcher) {
+        JSONObject data = new JSONObject();
+        if (dispatcher == null) {
+            data.put("lanes", 0);
+            return data;
+        }
+        data.put("lanes", dispatcher.getLaneCount());
+        data.put("overloadPolicy", dispatcher.getOverloadPolicy());
+        data.put("queueDepths", dispatcher.getQueueDepths());
+        data.put("accepted", dispatcher.getAcceptedCount());
+        data.put("shed", dispatcher.getShedCount());
+        return data;
+    }
+
+    /**
+     * 设置共享订阅组，为空表示普通订阅
+     * 组名为 $queue 时使用EMQ的 $queue/topic 形式，其他使用 $share/组名/topic
+     *
+     * @param sharedSubscriptionGroup
+     */
+    public void setSharedSubscriptionGroup(String sharedSubscriptionGroup) {
+        this.sharedSubscriptionGroup = sharedSubscriptionGroup == null || sharedSubscriptionGroup.trim().isEmpty()
+                ? null : sharedSubscriptionGroup.trim();
+    }
+
+    public String getSharedSubscriptionGroup() {
+        return sharedSubscriptionGroup;
+    }
+
+    /**
+     * 实际向EMQ订阅的Topic，共享订阅的时候带上 $share/组名/ 前缀
+     *
+     * @param topics
+     * @return
+     */
+    private String[] subscriptionTopics(String... topics) {
+        String group = this.sharedSubscriptionGroup;
+        if (group == null) {
+            return topics;
+        }
+        String prefix = "$queue".equals(group) ? "$queue/" : "$share/" + group + "/";
+        String[] shared = new String[topics.length];
+        for (int i = 0; i < topics.length; i++) {
+            shared[i] = this.unsharedTopics.contains(topics[i]) ? topics[i] : prefix + topics[i];
+        }
+        return shared;
+    }
+
+    public OrderedLaneDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
     public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
         this.applicationEventPublisher = applicationEventPublisher;
     }
@@ -84,6 +267,13 @@ public class EMqttPahoMessageDrivenChannelAdapter extends AbstractMqttMessageDri
     protected void doStart() {
         Assert.state(this.getTaskScheduler() != null, "A 'taskScheduler' is required");
         super.doStart();
+        if (this.dispatchLanes > 0 && this.dispatcher == null) {
+            this.dispatcher = new OrderedLaneDispatcher(this.getClientId(), this.dispatchLanes, this.laneQueueCapacity,
+                    this.overloadPolicy, this.sampleRate);
+        }
+        for (InboundRoute route : this.routes) {
+            route.start(this.getClientId() + "-" + route.getTopicFilter());
+        }
 
         try {
             this.connectAndSubscribe();
@@ -102,7 +292,7 @@ public class EMqttPahoMessageDrivenChannelAdapter extends AbstractMqttMessageDri
         if (this.client != null) {
             try {
                 if (this.consumerStopAction.equals(ConsumerStopAction.UNSUBSCRIBE_ALWAYS) || this.consumerStopAction.equals(ConsumerStopAction.UNSUBSCRIBE_CLEAN) && this.cleanSession) {
-                    this.client.unsubscribe(this.getTopic());
+                    this.client.unsubscribe(subscriptionTopics(this.getTopic()));
                 }
             } catch (MqttException var4) {
                 //this.logger.error("Exception while unsubscribing", var4);
@@ -126,6 +316,13 @@ public class EMqttPahoMessageDrivenChannelAdapter extends AbstractMqttMessageDri
             this.connected = false;
             this.client = null;
         }
+        if (this.dispatcher != null) {
+            this.dispatcher.shutdown();
+            this.dispatcher = null;
+        }
+        for (InboundRoute route : this.routes) {
+            route.stop();
+        }
 
     }
 
@@ -135,7 +332,7 @@ public class EMqttPahoMessageDrivenChannelAdapter extends AbstractMqttMessageDri
         try {
             super.addTopic(topic, qos);
             if (this.client != null && this.client.isConnected()) {
-                this.client.subscribe(topic, qos);
+                this.client.subscribe(subscriptionTopics(topic)[0], qos);
             }
         } catch (MqttException var7) {
             super.removeTopic(new String[]{topic});
@@ -151,7 +348,7 @@ public class EMqttPahoMessageDrivenChannelAdapter extends AbstractMqttMessageDri
 
         try {
             if (this.client != null && this.client.isConnected()) {
-                this.client.unsubscribe(topic);
+                this.client.unsubscribe(subscriptionTopics(topic));
             }
 
             super.removeTopic(topic);
@@ -179,12 +376,13 @@ public class EMqttPahoMessageDrivenChannelAdapter extends AbstractMqttMessageDri
         Assert.state(this.getUrl() != null || connectionOptions.getServerURIs() != null, "If no 'url' provided, connectionOptions.getServerURIs() must not be null");
         this.client = this.clientFactory.getClientInstance(this.getUrl(), this.getClientId());
         this.client.setCallback(this);
+        this.client.setManualAcks(this.manualAcks);
         if (this.client instanceof MqttClient) {
             ((MqttClient) this.client).setTimeToWait((long) this.completionTimeout);
         }
 
         this.topicLock.lock();
-        String[] topics = this.getTopic();
+        String[] topics = subscriptionTopics(this.getTopic());
 
         try {
             this.client.connect(connectionOptions);
@@ -308,14 +506,147 @@ public class EMqttPahoMessageDrivenChannelAdapter extends AbstractMqttMessageDri
      * @throws Exception
      */
     public void messageArrived(String topic, MqttMessage mqttMessage) throws Exception {
-        Message message = this.getConverter().toMessage(topic, mqttMessage);
+        Message<?> converted = this.getConverter().toMessage(topic, mqttMessage);
+        if (mqttMessage.getQos() > 0) {
+            MessageBuilder<?> builder = MessageBuilder.fromMessage(converted).setHeader(PACKET_ID, mqttMessage.getId());
+            if (this.manualAcks) {
+                builder.setHeader(MqttDeliveryAck.HEADER, new MqttDeliveryAck(this.client, mqttMessage.getId(), mqttMessage.getQos(), this::redeliver));
+            }
+            converted = builder.build();
+        }
+        final Message<?> message = converted;
+        if (!this.routes.isEmpty()) {
+            if (!this.routeMatcher.dispatch(message)) {
+                this.logger.warn("没有匹配的路由,丢弃消息:" + topic);
+                MqttDeliveryAck.release(message);
+            }
+            return;
+        }
+        OrderedLaneDispatcher dispatcher = this.dispatcher;
+        if (dispatcher != null) {
+            dispatcher.dispatch(laneKey(topic, this.laneKeySegment), laneTask(message, () -> {
+                try {
+                    this.sendMessage(message);
+                } catch (RuntimeException e) {
+                    this.logger.error("Unhandled exception for " + message.toString(), e);
+                    MqttDeliveryAck.fail(message);
+                }
+            }));
+            return;
+        }
 
         try {
             this.sendMessage(message);
         } catch (RuntimeException var5) {
             this.logger.error("Unhandled exception for " + message.toString(), var5);
+            MqttDeliveryAck.fail(message);
             throw var5;
+        } finally {
+            MqttDeliveryAck.release(message);
+        }
+    }
+
+    /**
+     * 分道任务，执行完或者被丢弃以后释放消息的确认
+     *
+     * @param message
+     * @param action
+     * @return
+     */
+    private static SheddableTask laneTask(Message<?> message, Runnable action) {
+        return new SheddableTask() {
+            @Override
+            public void run() {
+                try {
+                    action.run();
+                } finally {
+                    MqttDeliveryAck.release(message);
+                }
+            }
+
+            @Override
+            public void onShed() {
+                MqttDeliveryAck.release(message);
+            }
+        };
+    }
+
+    /**
+     * 共用连接模式下把消息交给路由的处理器，路由配置了分道就异步处理
+     *
+     * @param route
+     * @param topic
+     * @param message
+     * @throws InterruptedException
+     */
+    private void deliver(InboundRoute route, String topic, Message<?> message) throws InterruptedException {
+        LaneDispatcher dispatcher = route.getDispatcher();
+        if (dispatcher == null) {
+            handle(route, message);
+            MqttDeliveryAck.release(message);
+        } else {
+            dispatcher.dispatch(laneKey(topic, route.getLaneKeySegment()), laneTask(message, () -> handle(route, message)));
+        }
+    }
+
+    private void handle(InboundRoute route, Message<?> message) {
+        try {
+            route.getHandler().handleMessage(message);
+        } catch (RuntimeException e) {
+            this.logger.error("Unhandled exception for " + message.toString(), e);
+            MqttDeliveryAck.fail(message);
+        }
+    }
+
+    /**
+     * 手动确认模式下有消息处理失败没有确认：同一个会话里Broker不会重发，断开连接，
+     * 等 recoveryInterval 以后重连，持久会话里没确认的消息由Broker重发；
+     * 同一次断开之前的多条失败只断开一次，Paho回调线程里不能断开连接，交给调度线程做
+     */
+    private void redeliver() {
+        if (!this.redelivering.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.getTaskScheduler().schedule(() -> {
+                synchronized (this) {
+                    IMqttClient current = this.client;
+                    if (this.connected && current != null) {
+                        this.connected = false;
+                        try {
+                            current.disconnectForcibly((long) this.completionTimeout);
+                            current.close();
+                        } catch (MqttException e) {
+                            this.logger.error("断开连接失败:" + e.getMessage());
+                        }
+                        this.scheduleReconnect();
+                    }
+                    this.redelivering.set(false);
+                }
+            }, new Date());
+        } catch (Exception e) {
+            this.redelivering.set(false);
+            this.logger.error("Failed to schedule redelivery", e);
+        }
+    }
+
+    /**
+     * 取Topic中设备ID那一层作为分道的Key，层级不够的时候用整个Topic
+     *
+     * @param topic
+     * @param laneKeySegment
+     * @return
+     */
+    private static CharSequence laneKey(String topic, int laneKeySegment) {
+        int start = 0;
+        for (int i = 0; i < laneKeySegment; i++) {
+            start = topic.indexOf('/', start) + 1;
+            if (start == 0) {
+                return topic;
+            }
         }
+        int end = topic.indexOf('/', start);
+        return topic.subSequence(start, end < 0 ? topic.length() : end);
     }
 
     public void deliveryComplete(IMqttDeliveryToken token) {
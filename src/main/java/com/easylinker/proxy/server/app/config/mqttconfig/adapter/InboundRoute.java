@@ -0,0 +1,136 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.adapter;
+
+import org.springframework.messaging.MessageHandler;
+
+/**
+ * 共用连接模式下的一条入站路由
+ * 一个Topic过滤器对应一个处理器，每条路由有自己的分道派发器，一个处理器慢不会拖慢其他处理器；
+ * 设置了 PriorityLaneDispatcher 的路由共用它的道，按优先级先后处理
+ */
+public class InboundRoute {
+    private final String topicFilter;
+    private final MessageHandler handler;
+    private int qos = 1;
+    private int dispatchLanes;
+    private int laneQueueCapacity = 10000;
+    private int laneKeySegment = 4;
+    private OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+    private int sampleRate = 10;
+    private boolean shared = true;
+    private PriorityLaneDispatcher sharedDispatcher;
+    private int priority;
+    private volatile LaneDispatcher dispatcher;
+
+    public InboundRoute(String topicFilter, MessageHandler handler) {
+        this.topicFilter = topicFilter;
+        this.handler = handler;
+    }
+
+    void start(String name) {
+        if (sharedDispatcher != null && dispatcher == null) {
+            dispatcher = sharedDispatcher.open(priority, laneQueueCapacity, overloadPolicy, sampleRate);
+        } else if (dispatchLanes > 0 && dispatcher == null) {
+            dispatcher = new OrderedLaneDispatcher(name, dispatchLanes, laneQueueCapacity, overloadPolicy, sampleRate);
+        }
+    }
+
+    void stop() {
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            dispatcher = null;
+        }
+    }
+
+    public String getTopicFilter() {
+        return topicFilter;
+    }
+
+    public MessageHandler getHandler() {
+        return handler;
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    public void setQos(int qos) {
+        this.qos = qos;
+    }
+
+    public int getDispatchLanes() {
+        return dispatchLanes;
+    }
+
+    /**
+     * 分道数目，0表示在Paho回调线程上同步处理
+     *
+     * @param dispatchLanes
+     */
+    public void setDispatchLanes(int dispatchLanes) {
+        this.dispatchLanes = dispatchLanes;
+    }
+
+    public int getLaneQueueCapacity() {
+        return laneQueueCapacity;
+    }
+
+    public void setLaneQueueCapacity(int laneQueueCapacity) {
+        this.laneQueueCapacity = laneQueueCapacity;
+    }
+
+    public int getLaneKeySegment() {
+        return laneKeySegment;
+    }
+
+    public void setLaneKeySegment(int laneKeySegment) {
+        this.laneKeySegment = laneKeySegment;
+    }
+
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * 是否参与共享订阅，只在配置了共享订阅组的时候有效
+     *
+     * @param shared
+     */
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * 和其他路由共用一组按优先级处理的道，设置以后 dispatchLanes 不再使用
+     *
+     * @param sharedDispatcher
+     * @param priority         0最高
+     */
+    public void setSharedDispatcher(PriorityLaneDispatcher sharedDispatcher, int priority) {
+        this.sharedDispatcher = sharedDispatcher;
+        this.priority = priority;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public LaneDispatcher getDispatcher() {
+        return dispatcher;
+    }
+}
@@ -0,0 +1,46 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.adapter;
+
+/**
+ * 按Key分道的派发器，同一个Key的任务按提交顺序执行
+ */
+public interface LaneDispatcher {
+    /**
+     * 派发任务，对应道的队列满了以后按策略阻塞或者丢弃
+     *
+     * @param key
+     * @param task
+     * @return 是否被接收，false表示被丢弃
+     * @throws InterruptedException
+     */
+    boolean dispatch(CharSequence key, Runnable task) throws InterruptedException;
+
+    /**
+     * 停止，已经排队的任务会先执行完
+     */
+    void shutdown();
+
+    int getLaneCount();
+
+    /**
+     * 每条道当前排队的任务数
+     *
+     * @return
+     */
+    int[] getQueueDepths();
+
+    OverloadPolicy getOverloadPolicy();
+
+    /**
+     * 已接收的消息数
+     *
+     * @return
+     */
+    long getAcceptedCount();
+
+    /**
+     * 因为过载被丢弃的消息数
+     *
+     * @return
+     */
+    long getShedCount();
+}
@@ -0,0 +1,110 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.adapter;
+
+import org.eclipse.paho.client.mqttv3.IMqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.messaging.Message;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 手动确认模式下一条QoS 1/2消息的确认
+ * 放在消息头 mqtt_ack 里；处理器先把它挂到数据上(of)，交给写库队列成功以后再认领(claim)，等数据所在的批次提交以后确认
+ * (开启预写日志的时候是预写日志落盘以后确认，见 DeviceDataSpool)；
+ * 处理抛异常或者基础设施故障重试用完的消息标记失败(fail)，不确认，断开重连让Broker重发；
+ * 有意不存的消息(设备不存在、格式错误进了隔离区、被过载策略丢弃)处理完就确认，避免占住Broker的inflight窗口
+ */
+public class MqttDeliveryAck implements Runnable {
+    public static final String HEADER = "mqtt_ack";
+    private static final Logger logger = LoggerFactory.getLogger(MqttDeliveryAck.class);
+    private final IMqttClient client;
+    private final int messageId;
+    private final int qos;
+    /**
+     * 处理失败以后让Broker重发
+     */
+    private final Runnable redeliver;
+    private final AtomicBoolean acked = new AtomicBoolean();
+    private volatile boolean claimed;
+    private volatile boolean failed;
+
+    MqttDeliveryAck(IMqttClient client, int messageId, int qos, Runnable redeliver) {
+        this.client = client;
+        this.messageId = messageId;
+        this.qos = qos;
+        this.redeliver = redeliver;
+    }
+
+    /**
+     * 消息的确认，由调用方在数据提交以后执行；只是取出来，还没有认领
+     * 确认只执行一次，认领之前批次已经提交、确认已经执行也没关系
+     *
+     * @param message
+     * @return 不是手动确认模式返回null
+     */
+    public static Runnable of(Message<?> message) {
+        Object ack = message.getHeaders().get(HEADER);
+        return ack instanceof MqttDeliveryAck ? (MqttDeliveryAck) ack : null;
+    }
+
+    /**
+     * 认领消息的确认，数据成功交给写库队列以后调用，之后处理完不再直接确认
+     *
+     * @param message
+     */
+    public static void claim(Message<?> message) {
+        Object ack = message.getHeaders().get(HEADER);
+        if (ack instanceof MqttDeliveryAck) {
+            ((MqttDeliveryAck) ack).claimed = true;
+        }
+    }
+
+    /**
+     * 消息没有存下来(数据库、预写日志故障重试用完)，处理完不确认，等Broker重发
+     *
+     * @param message
+     */
+    public static void fail(Message<?> message) {
+        Object ack = message.getHeaders().get(HEADER);
+        if (ack instanceof MqttDeliveryAck) {
+            ((MqttDeliveryAck) ack).failed = true;
+        }
+    }
+
+    /**
+     * 消息处理完以后调用，没有被认领就直接确认，处理失败的不确认
+     *
+     * @param message
+     */
+    static void release(Message<?> message) {
+        Object header = message.getHeaders().get(HEADER);
+        if (!(header instanceof MqttDeliveryAck)) {
+            return;
+        }
+        MqttDeliveryAck ack = (MqttDeliveryAck) header;
+        if (ack.claimed) {
+            return;
+        }
+        if (ack.failed) {
+            //不确认的消息一直占着inflight窗口，同一个会话里Broker也不会重发，只有重连以后才重发
+            logger.warn("消息处理失败,不确认[" + ack.messageId + "],断开重连等Broker重发");
+            ack.redeliver.run();
+            return;
+        }
+        ack.run();
+    }
+
+    @Override
+    public void run() {
+        if (!acked.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            client.messageArrivedComplete(messageId, qos);
+        } catch (MqttException e) {
+            //连接已经断开，Broker会在重连以后重发
+            logger.warn("消息确认失败[" + messageId + "]:" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.adapter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按Key分道的消息派发器
+ * 同一个Key(设备ID)永远落到同一条道上，保证单个设备的消息顺序；
+ * 不同设备分散到多条道并行处理，一个慢设备只会拖慢自己所在的道
+ * 每条道的队列是有界的，满了以后按 OverloadPolicy 处理，被丢弃的 SheddableTask 会收到通知
+ */
+public class OrderedLaneDispatcher implements LaneDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(OrderedLaneDispatcher.class);
+    private final String name;
+    private final Lane[] lanes;
+    private final OverloadPolicy overloadPolicy;
+    private final int sampleRate;
+    private final int highWaterMark;
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private volatile boolean running = true;
+
+    public OrderedLaneDispatcher(String name, int laneCount, int queueCapacity) {
+        this(name, laneCount, queueCapacity, OverloadPolicy.BLOCK, 1);
+    }
+
+    /**
+     * @param name
+     * @param laneCount
+     * @param queueCapacity
+     * @param overloadPolicy 队列满载策略
+     * @param sampleRate     SAMPLE策略下超过高水位以后每sampleRate条接收一条
+     */
+    public OrderedLaneDispatcher(String name, int laneCount, int queueCapacity, OverloadPolicy overloadPolicy, int sampleRate) {
+        if (laneCount <= 0 || queueCapacity <= 0 || sampleRate <= 0) {
+            throw new IllegalArgumentException("laneCount, queueCapacity and sampleRate must be positive");
+        }
+        this.name = name;
+        this.overloadPolicy = overloadPolicy;
+        this.sampleRate = sampleRate;
+        this.highWaterMark = Math.max(1, queueCapacity * 4 / 5);
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(name + "-lane-" + i, queueCapacity);
+            lanes[i].start();
+        }
+    }
+
+    /**
+     * 派发任务，对应道的队列满了以后按策略阻塞或者丢弃
+     *
+     * @param key
+     * @param task
+     * @return 是否被接收，false表示被丢弃
+     * @throws InterruptedException
+     */
+    @Override
+    public boolean dispatch(CharSequence key, Runnable task) throws InterruptedException {
+        BlockingQueue<Runnable> queue = lanes[laneOf(key, lanes.length)].queue;
+        boolean accepted;
+        switch (overloadPolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(task)) {
+                    Runnable dropped = queue.poll();
+                    if (dropped != null) {
+                        shedCount.incrementAndGet();
+                        shed(dropped);
+                    }
+                }
+                accepted = true;
+                break;
+            case DROP_NEWEST:
+                accepted = queue.offer(task);
+                break;
+            case SAMPLE:
+                if (queue.size() >= highWaterMark && sampleCounter.incrementAndGet() % sampleRate != 0) {
+                    accepted = false;
+                } else {
+                    accepted = queue.offer(task);
+                }
+                break;
+            default:
+                queue.put(task);
+                accepted = true;
+        }
+        if (accepted) {
+            acceptedCount.incrementAndGet();
+        } else {
+            shedCount.incrementAndGet();
+            shed(task);
+        }
+        return accepted;
+    }
+
+    static void shed(Runnable task) {
+        if (task instanceof SheddableTask) {
+            try {
+                ((SheddableTask) task).onShed();
+            } catch (RuntimeException e) {
+                logger.error("丢弃任务回调出错:" + e.getMessage());
+            }
+        }
+    }
+
+    static int laneOf(CharSequence key, int laneCount) {
+        int h = 0;
+        for (int i = 0; i < key.length(); i++) {
+            h = 31 * h + key.charAt(i);
+        }
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % laneCount;
+    }
+
+    /**
+     * 停止，已经排队的任务会先执行完
+     */
+    @Override
+    public void shutdown() {
+        running = false;
+        for (Lane lane : lanes) {
+            try {
+                lane.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * 每条道当前排队的任务数
+     *
+     * @return
+     */
+    @Override
+    public int[] getQueueDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].queue.size();
+        }
+        return depths;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    /**
+     * 已接收的消息数
+     *
+     * @return
+     */
+    @Override
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /**
+     * 因为过载被丢弃的消息数
+     *
+     * @return
+     */
+    @Override
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    private class Lane extends Thread {
+        private final BlockingQueue<Runnable> queue;
+
+        Lane(String threadName, int queueCapacity) {
+            super(threadName);
+            setDaemon(true);
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                Runnable task;
+                try {
+                    task = queue.poll(500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == null) {
+                    continue;
+                }
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    logger.error("[" + getName() + "]处理消息出错:" + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.adapter;
+
+/**
+ * 分道队列满载时的处理策略
+ */
+public enum OverloadPolicy {
+    /**
+     * 阻塞Paho回调线程，直到队列有空位
+     */
+    BLOCK,
+    /**
+     * 丢掉队列里最老的消息，让新消息进来
+     */
+    DROP_OLDEST,
+    /**
+     * 直接丢掉新消息
+     */
+    DROP_NEWEST,
+    /**
+     * 队列超过高水位以后只按比例抽样接收，满了丢新消息
+     */
+    SAMPLE
+}
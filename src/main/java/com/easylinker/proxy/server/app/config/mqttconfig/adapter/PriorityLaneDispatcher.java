@@ -0,0 +1,291 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.adapter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 多个优先级共用一组道的派发器
+ * 和 OrderedLaneDispatcher 一样，同一个Key永远落到同一条道上；每条道按优先级分成几个有界队列，
+ * 道线程每次先取优先级高的队列，配置了权重的时候按权重轮流取，低优先级不会被饿死
+ * 每个优先级通过 open 拿到自己的 LaneDispatcher，队列容量和满载策略各自独立，
+ * 所有优先级都关闭以后道线程才停止
+ */
+public class PriorityLaneDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(PriorityLaneDispatcher.class);
+    private final String name;
+    private final int laneCount;
+    private final int[] weights;
+    private final Channel[] channels;
+    private volatile Lane[] lanes;
+    private volatile boolean running;
+    private int openChannels;
+
+    /**
+     * @param name
+     * @param laneCount
+     * @param levels    优先级个数，0最高
+     * @param weights   每个优先级的权重，空数组表示严格优先级
+     */
+    public PriorityLaneDispatcher(String name, int laneCount, int levels, int[] weights) {
+        if (laneCount <= 0 || levels <= 0) {
+            throw new IllegalArgumentException("laneCount and levels must be positive");
+        }
+        if (weights.length != 0 && weights.length != levels) {
+            throw new IllegalArgumentException("weights must be empty or have one entry per level");
+        }
+        this.name = name;
+        this.laneCount = laneCount;
+        this.weights = weights;
+        this.channels = new Channel[levels];
+    }
+
+    /**
+     * 打开一个优先级，第一个优先级打开的时候启动道线程
+     *
+     * @param priority
+     * @param queueCapacity  每条道上这个优先级的队列容量
+     * @param overloadPolicy 队列满载策略
+     * @param sampleRate     SAMPLE策略下超过高水位以后每sampleRate条接收一条
+     * @return
+     */
+    public synchronized LaneDispatcher open(int priority, int queueCapacity, OverloadPolicy overloadPolicy, int sampleRate) {
+        if (queueCapacity <= 0 || sampleRate <= 0) {
+            throw new IllegalArgumentException("queueCapacity and sampleRate must be positive");
+        }
+        if (channels[priority] != null) {
+            throw new IllegalStateException("priority " + priority + " is already open");
+        }
+        if (openChannels == 0) {
+            running = true;
+            Lane[] started = new Lane[laneCount];
+            for (int i = 0; i < laneCount; i++) {
+                started[i] = new Lane(name + "-lane-" + i);
+                started[i].start();
+            }
+            lanes = started;
+        }
+        Channel channel = new Channel(priority, queueCapacity, overloadPolicy, sampleRate);
+        channels[priority] = channel;
+        openChannels++;
+        return channel;
+    }
+
+    private synchronized void close(Channel channel) {
+        if (channels[channel.priority] != channel) {
+            return;
+        }
+        channels[channel.priority] = null;
+        if (--openChannels > 0) {
+            return;
+        }
+        running = false;
+        for (Lane lane : lanes) {
+            lane.lock.lock();
+            try {
+                lane.notEmpty.signalAll();
+            } finally {
+                lane.lock.unlock();
+            }
+        }
+        for (Lane lane : lanes) {
+            try {
+                lane.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private class Channel implements LaneDispatcher {
+        private final int priority;
+        private final int queueCapacity;
+        private final OverloadPolicy overloadPolicy;
+        private final int sampleRate;
+        private final int highWaterMark;
+        private final AtomicLong acceptedCount = new AtomicLong();
+        private final AtomicLong shedCount = new AtomicLong();
+        private final AtomicLong sampleCounter = new AtomicLong();
+
+        Channel(int priority, int queueCapacity, OverloadPolicy overloadPolicy, int sampleRate) {
+            this.priority = priority;
+            this.queueCapacity = queueCapacity;
+            this.overloadPolicy = overloadPolicy;
+            this.sampleRate = sampleRate;
+            this.highWaterMark = Math.max(1, queueCapacity * 4 / 5);
+        }
+
+        @Override
+        public boolean dispatch(CharSequence key, Runnable task) throws InterruptedException {
+            Lane[] current = lanes;
+            Lane lane = current[OrderedLaneDispatcher.laneOf(key, current.length)];
+            Runnable dropped = null;
+            boolean accepted;
+            lane.lock.lockInterruptibly();
+            try {
+                ArrayDeque<Runnable> queue = lane.queues[priority];
+                switch (overloadPolicy) {
+                    case DROP_OLDEST:
+                        if (queue.size() >= queueCapacity) {
+                            dropped = queue.poll();
+                        }
+                        accepted = true;
+                        break;
+                    case DROP_NEWEST:
+                        accepted = queue.size() < queueCapacity;
+                        break;
+                    case SAMPLE:
+                        accepted = queue.size() < queueCapacity
+                                && (queue.size() < highWaterMark || sampleCounter.incrementAndGet() % sampleRate == 0);
+                        break;
+                    default:
+                        while (queue.size() >= queueCapacity) {
+                            lane.notFull.await();
+                        }
+                        accepted = true;
+                }
+                if (accepted) {
+                    queue.add(task);
+                    lane.notEmpty.signal();
+                }
+            } finally {
+                lane.lock.unlock();
+            }
+            if (dropped != null) {
+                shedCount.incrementAndGet();
+                OrderedLaneDispatcher.shed(dropped);
+            }
+            if (accepted) {
+                acceptedCount.incrementAndGet();
+            } else {
+                shedCount.incrementAndGet();
+                OrderedLaneDispatcher.shed(task);
+            }
+            return accepted;
+        }
+
+        @Override
+        public void shutdown() {
+            close(this);
+        }
+
+        @Override
+        public int getLaneCount() {
+            return laneCount;
+        }
+
+        @Override
+        public int[] getQueueDepths() {
+            Lane[] current = lanes;
+            int[] depths = new int[current.length];
+            for (int i = 0; i < current.length; i++) {
+                current[i].lock.lock();
+                try {
+                    depths[i] = current[i].queues[priority].size();
+                } finally {
+                    current[i].lock.unlock();
+                }
+            }
+            return depths;
+        }
+
+        @Override
+        public OverloadPolicy getOverloadPolicy() {
+            return overloadPolicy;
+        }
+
+        @Override
+        public long getAcceptedCount() {
+            return acceptedCount.get();
+        }
+
+        @Override
+        public long getShedCount() {
+            return shedCount.get();
+        }
+    }
+
+    private class Lane extends Thread {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final ArrayDeque<Runnable>[] queues;
+        private final int[] credits;
+
+        @SuppressWarnings("unchecked")
+        Lane(String threadName) {
+            super(threadName);
+            setDaemon(true);
+            this.queues = new ArrayDeque[channels.length];
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = new ArrayDeque<>();
+            }
+            this.credits = new int[channels.length];
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                lock.lock();
+                try {
+                    while ((task = next()) == null) {
+                        if (!running) {
+                            return;
+                        }
+                        notEmpty.await(500, TimeUnit.MILLISECONDS);
+                    }
+                    if (lock.hasWaiters(notFull)) {
+                        notFull.signalAll();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    logger.error("[" + getName() + "]处理消息出错:" + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * 严格优先级取第一个非空队列；加权的时候每个优先级一轮最多取权重条，一轮用完或者
+         * 有额度的队列都空了再开始下一轮
+         */
+        private Runnable next() {
+            if (weights.length == 0) {
+                for (ArrayDeque<Runnable> queue : queues) {
+                    if (!queue.isEmpty()) {
+                        return queue.poll();
+                    }
+                }
+                return null;
+            }
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < queues.length; i++) {
+                    if (credits[i] > 0 && !queues[i].isEmpty()) {
+                        credits[i]--;
+                        return queues[i].poll();
+                    }
+                }
+                for (int i = 0; i < queues.length; i++) {
+                    credits[i] = Math.max(1, weights[i]);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.adapter;
+
+/**
+ * 可以感知被过载策略丢弃的任务
+ */
+public interface SheddableTask extends Runnable {
+    /**
+     * 任务被 LaneDispatcher 丢弃的时候调用，不会再执行 run
+     */
+    void onShed();
+}
@@ -2,12 +2,24 @@ package com.easylinker.proxy.server.app.config.mqttconfig.handler;
 
 import com.alibaba.fastjson.JSONObject;
 import com.easylinker.proxy.server.app.config.mqttconfig.MqttMessageSender;
+import com.easylinker.proxy.server.app.config.mqttconfig.adapter.MqttDeliveryAck;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.ActiveDevices;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceDataDeduplicator;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceDataWriteBehindBuffer;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceRegistry;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceTraffic;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.HeavyHitters;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestFailures;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestLatency;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestQuota;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.QuarantineStore;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.Payloads;
+import com.easylinker.proxy.server.app.config.mqttconfig.router.TopicMatch;
+import com.easylinker.proxy.server.app.config.mqttconfig.router.TopicRouter;
 import com.easylinker.proxy.server.app.constants.mqtt.RealTimeType;
-import com.easylinker.proxy.server.app.model.device.Device;
 import com.easylinker.proxy.server.app.model.device.DeviceData;
-import com.easylinker.proxy.server.app.service.DeviceDataService;
-import com.easylinker.proxy.server.app.service.DeviceService;
 import com.easylinker.proxy.server.app.utils.HttpTool;
+import com.easylinker.proxy.server.app.utils.SnowflakeIdGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -17,6 +29,8 @@ import org.springframework.messaging.MessageHandler;
 import org.springframework.messaging.MessagingException;
 import org.springframework.stereotype.Component;
 
+import java.util.Date;
+
 /**
  * IN/CMD
  * 给客户端发送指定的指令，然后返回  在这里处理，暂时打印
@@ -29,9 +43,25 @@ public class ClientCmdReplyMessageHandler implements MessageHandler {
     Logger logger = LoggerFactory.getLogger(ClientCmdReplyMessageHandler.class);
 
     @Autowired
-    DeviceService deviceService;
+    DeviceRegistry deviceRegistry;
+    @Autowired
+    QuarantineStore quarantineStore;
+    @Autowired
+    IngestFailures ingestFailures;
+    @Autowired
+    DeviceDataWriteBehindBuffer deviceDataWriteBehindBuffer;
+    @Autowired
+    SnowflakeIdGenerator snowflakeIdGenerator;
+    @Autowired
+    DeviceDataDeduplicator deviceDataDeduplicator;
     @Autowired
-    DeviceDataService deviceDataService;
+    IngestQuota ingestQuota;
+    @Autowired
+    DeviceTraffic deviceTraffic;
+    @Autowired
+    HeavyHitters heavyHitters;
+    @Autowired
+    ActiveDevices activeDevices;
     @Autowired
     MqttMessageSender mqttMessageSender;
     @Autowired
@@ -39,55 +69,89 @@ public class ClientCmdReplyMessageHandler implements MessageHandler {
     @Value("${emq.api.host}")
     String apiHost;
 
+    /**
+     * CMD/IN/{user}/{group}/{device}
+     */
+    private final TopicRouter router = new TopicRouter()
+            .route("CMD/IN/+/+/+/#", this::handleReply);
+
     @Override
     public void handleMessage(Message<?> message) throws MessagingException {
-        String topic = message.getHeaders().get("mqtt_topic").toString();
         //System.out.println("收到客户端回复命令:" + message.getPayload());
+        ingestFailures.handle(message, attempt -> {
+            if (!router.dispatch(attempt)) {
+                quarantineStore.quarantine(attempt, "Topic层级不对");
+            }
+        });
+    }
 
-
-        try {
-            //存入客户端回应消息
-            if (topic.startsWith("CMD/IN/")) {
-                Long openId = Long.parseLong(topic.split("/")[4]);
-                JSONObject dataJson = JSONObject.parseObject(message.getPayload().toString());
-                Device device = deviceService.findADevice(openId);
-                if (device != null) {
-                    //开始后传输数据
-                    if (device.getAppUser() == null) {
-                        logger.info("默认分组的设备，数据不记录!");
-                    } else {
-                        /**
-                         * 这里AudioData是自定义数据格式
-                         * 数据全部进 DeviceData
-                         */
-                        DeviceData deviceData = new DeviceData();
-                        deviceData.setDevice(device);
-                        deviceData.setData(dataJson.toString());
-                        deviceData.setType("REPLY");
-                        deviceDataService.save(deviceData);
-                        logger.info("数据保存成功!");
-                        JSONObject realTimeJson = new JSONObject();
-                        realTimeJson.put("type", RealTimeType.DATA_RECEIVED);
-                        realTimeJson.put("device", device.getId());
-                        mqttMessageSender.sendRealTimePureMessage(realTimeJson);
-
-                    }
-                } else {
-                    logger.info("设备不存在!");
+    private void handleReply(TopicMatch match, Message<?> message) throws Exception {
+        //存入客户端回应消息
+        long openId = match.getLong(2);
+        long ownerId = deviceRegistry.findOwnerId(openId);
+        if (ownerId != DeviceRegistry.ABSENT) {
+            long bytes = Payloads.byteLength(message.getPayload());
+            deviceTraffic.record(openId, "REPLY", bytes);
+            heavyHitters.record(ownerId, openId, match.getTopic(), bytes);
+            activeDevices.record(openId, ownerId, deviceRegistry.findGroupId(openId));
+            //开始后传输数据
+            if (ownerId == DeviceRegistry.UNBOUND) {
+                logger.info("默认分组的设备，数据不记录!");
+            } else {
+                /**
+                 * 这里AudioData是自定义数据格式
+                 * 数据全部进 DeviceData
+                 */
+                //重试的消息第一次已经扣过令牌
+                if (!IngestFailures.isRetry(message)
+                        && !ingestQuota.tryAcquire(ownerId, deviceRegistry.findGroupId(openId), openId)) {
+                    logger.info("超过限流，数据不记录!");
+                    return;
+                }
+                DeviceData deviceData = new DeviceData();
+                deviceData.setDevice(deviceRegistry.reference(openId));
+                //按MQTT到达的时间记录，不算在分道队列里等待的时间
+                deviceData.setCreateTime(new Date(IngestLatency.arrivedAt(message)));
+                //预写日志重放的时候按主键去重，ID不能重复
+                deviceData.setId(snowflakeIdGenerator.nextId(deviceData.getCreateTime().getTime()));
+                Payloads.setJsonData(deviceData, message.getPayload());
+                //格式检查通过以后再去重，格式错误的照样进隔离区
+                if (deviceDataDeduplicator.isReplay(openId, "REPLY", message)) {
+                    logger.info("重发的消息，已经记录过!");
+                    return;
                 }
+                deviceData.setType("REPLY");
+                //数据提交以后再确认这条MQTT消息，入队成功才认领；入队失败的由 IngestFailures 重试，重试用完不确认
+                deviceData.setAcknowledgement(MqttDeliveryAck.of(message));
+                deviceDataWriteBehindBuffer.offer(ownerId, deviceData);
+                MqttDeliveryAck.claim(message);
+                logger.info("数据已进入写入队列!");
+                JSONObject realTimeJson = new JSONObject();
+                realTimeJson.put("type", RealTimeType.DATA_RECEIVED);
+                realTimeJson.put("device", openId);
+                //数据已经入队，通知和转发失败不能让整条消息重试
+                try {
+                    mqttMessageSender.sendRealTimePureMessage(realTimeJson);
+                } catch (Exception e) {
+                    logger.error("实时消息发送失败:" + e.getMessage());
+                }
+
             }
+        } else {
+            logger.info("设备不存在!");
+        }
 
-            //消息转发
-            JSONObject messageJson = new JSONObject();
-            messageJson.put("topic", "OUT/REAL_TIME/" + message.getHeaders().get("mqtt_topic", String.class).split("/")[2]);
-            messageJson.put("payload", message.getPayload().toString());
-            messageJson.put("retain", false);
-            messageJson.put("qos", 1);
-            messageJson.put("client_id", "SERVER_PROXY");
+        //消息转发
+        JSONObject messageJson = new JSONObject();
+        messageJson.put("topic", "OUT/REAL_TIME/" + match.get(0));
+        messageJson.put("payload", Payloads.asString(message.getPayload()));
+        messageJson.put("retain", false);
+        messageJson.put("qos", 1);
+        messageJson.put("client_id", "SERVER_PROXY");
+        try {
             httpTool.postWithAuthorization(apiHost + "mqtt/publish", messageJson);
-
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("指令回复转发失败:" + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
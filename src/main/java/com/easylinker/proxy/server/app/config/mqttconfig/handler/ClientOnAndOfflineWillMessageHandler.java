@@ -3,11 +3,17 @@ package com.easylinker.proxy.server.app.config.mqttconfig.handler;
 import com.alibaba.fastjson.JSONObject;
 import com.easylinker.proxy.server.app.bean.RealTimeMessage;
 import com.easylinker.proxy.server.app.config.mqttconfig.MqttMessageSender;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceRegistry;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestClass;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestFailures;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestLatency;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.Payloads;
+import com.easylinker.proxy.server.app.config.mqttconfig.router.TopicMatch;
+import com.easylinker.proxy.server.app.config.mqttconfig.router.TopicRouter;
 import com.easylinker.proxy.server.app.constants.DailyLogType;
 import com.easylinker.proxy.server.app.constants.mqtt.RealTimeType;
 import com.easylinker.proxy.server.app.model.daily.DailyLog;
 import com.easylinker.proxy.server.app.model.daily.DeviceOnAndOffLineLog;
-import com.easylinker.proxy.server.app.model.device.Device;
 import com.easylinker.proxy.server.app.service.DailyLogService;
 import com.easylinker.proxy.server.app.service.DeviceOnAndOffLineLogService;
 import com.easylinker.proxy.server.app.service.DeviceService;
@@ -18,7 +24,6 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHandler;
-import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.MessagingException;
 import org.springframework.stereotype.Component;
 
@@ -48,80 +53,81 @@ public class ClientOnAndOfflineWillMessageHandler implements MessageHandler {
     String WEBSOCKET_USERNAME;
     @Autowired
     DeviceOnAndOffLineLogService deviceOnAndOffLineLogService;
+    @Autowired
+    DeviceRegistry deviceRegistry;
+    @Autowired
+    IngestFailures ingestFailures;
+    @Autowired
+    IngestLatency ingestLatency;
+
+    /**
+     * $SYS/brokers/{node}/clients/{clientId}/connected|disconnected
+     */
+    private final TopicRouter router = new TopicRouter()
+            .route("$SYS/brokers/+/clients/+/connected", this::handleConnected)
+            .route("$SYS/brokers/+/clients/+/disconnected", this::handleDisconnected);
 
     @Override
     public void handleMessage(Message<?> message) throws MessagingException {
-        JSONObject mqttMessage;
-        MessageHeaders header = message.getHeaders();
-        String state = header.get("mqtt_topic").toString().
-                substring(header.get("mqtt_topic").toString().lastIndexOf("/") + 1);
-        if (state.equals("connected")) {
-            try {
-                mqttMessage = (JSONObject) JSONObject.parse(message.getPayload().toString());
-                String username = mqttMessage.getString("username");
-                if (username.equals(EMQ_USERNAME) || username.equals(WEBSOCKET_USERNAME)) {
-                    logger.info("内部组件[" + username + "]连接成功!");
-                } else {
-                    try {
-                        Device device = deviceService.findADevice(Long.parseLong(username));
-                        if (device != null) {
-                            device.setOnline(true);
-                            deviceService.save(device);
-                            logger.info("设备:[" + device.getDeviceName() + "]上线");
-                            JSONObject realTimeJson = new JSONObject();
-                            realTimeJson.put("type", RealTimeType.ONLINE);
-                            realTimeJson.put("device", device.getId());
-                            mqttMessageSender.sendRealTimePureMessage(realTimeJson);
-                            //生成日志
-                            DeviceOnAndOffLineLog deviceOnAndOffLineLog = new DeviceOnAndOffLineLog();
-                            deviceOnAndOffLineLog.setDate(new Date());
-                            deviceOnAndOffLineLog.setDevice(device);
-                            deviceOnAndOffLineLog.setEvent("CONNECT");
-                            deviceOnAndOffLineLogService.save(deviceOnAndOffLineLog);
-
-                        }
-                    } catch (Exception e) {
-                        //todo
-                        logger.error(e.getMessage());
-                    }
+        ingestFailures.handle(message, router::dispatch);
+    }
 
+    private void handleConnected(TopicMatch match, Message<?> message) {
+        JSONObject mqttMessage = (JSONObject) JSONObject.parse(Payloads.asString(message.getPayload()));
+        String username = mqttMessage.getString("username");
+        if (username.equals(EMQ_USERNAME) || username.equals(WEBSOCKET_USERNAME)) {
+            logger.info("内部组件[" + username + "]连接成功!");
+        } else {
+            try {
+                long deviceId = Long.parseLong(username);
+                if (deviceRegistry.contains(deviceId)) {
+                    deviceService.updateOnline(deviceId, true, null);
+                    ingestLatency.record(message, IngestClass.PRESENCE);
+                    logger.info("设备:[" + deviceId + "]上线");
+                    JSONObject realTimeJson = new JSONObject();
+                    realTimeJson.put("type", RealTimeType.ONLINE);
+                    realTimeJson.put("device", deviceId);
+                    mqttMessageSender.sendRealTimePureMessage(realTimeJson);
+                    //生成日志
+                    DeviceOnAndOffLineLog deviceOnAndOffLineLog = new DeviceOnAndOffLineLog();
+                    deviceOnAndOffLineLog.setDate(new Date());
+                    deviceOnAndOffLineLog.setDevice(deviceService.findADeviceReference(deviceId));
+                    deviceOnAndOffLineLog.setEvent("CONNECT");
+                    deviceOnAndOffLineLogService.save(deviceOnAndOffLineLog);
 
                 }
             } catch (Exception e) {
-                logger.error("解析消息时出现了格式错误!");
+                //todo
+                logger.error(e.getMessage());
             }
 
 
-        } else if (state.equals("disconnected")) {
-            try {
-                mqttMessage = (JSONObject) JSONObject.parse(message.getPayload().toString());
-                String username = mqttMessage.getString("username");
-                if (username.equals(EMQ_USERNAME) || username.equals(WEBSOCKET_USERNAME)) {
-                    logger.info("内部组件[" + username + "]断开连接!");
-                } else {
-                    Device device = deviceService.findADevice(Long.parseLong(username));
-                    if (device != null) {
-                        device.setOnline(false);
-                        device.setLastActiveDate(new Date());
-                        deviceService.save(device);
-                        logger.info("设备:[" + device.getDeviceName() + "]下线");
-                        JSONObject realTimeJson = new JSONObject();
-                        realTimeJson.put("type", RealTimeType.OFFLINE);
-                        realTimeJson.put("device", device.getId());
-                        mqttMessageSender.sendRealTimePureMessage(realTimeJson);
-                        //生成日志
-                        DeviceOnAndOffLineLog deviceOnAndOffLineLog = new DeviceOnAndOffLineLog();
-                        deviceOnAndOffLineLog.setDate(new Date());
-                        deviceOnAndOffLineLog.setDevice(device);
-                        deviceOnAndOffLineLog.setEvent("DISCONNECT");
-                        deviceOnAndOffLineLogService.save(deviceOnAndOffLineLog);
+        }
+    }
 
-                    }
-                }
-            } catch (Exception e) {
-                logger.error("解析消息时出现了格式错误!");
-            }
+    private void handleDisconnected(TopicMatch match, Message<?> message) throws Exception {
+        JSONObject mqttMessage = (JSONObject) JSONObject.parse(Payloads.asString(message.getPayload()));
+        String username = mqttMessage.getString("username");
+        if (username.equals(EMQ_USERNAME) || username.equals(WEBSOCKET_USERNAME)) {
+            logger.info("内部组件[" + username + "]断开连接!");
+        } else {
+            long deviceId = Long.parseLong(username);
+            if (deviceRegistry.contains(deviceId)) {
+                deviceService.updateOnline(deviceId, false, new Date());
+                ingestLatency.record(message, IngestClass.PRESENCE);
+                logger.info("设备:[" + deviceId + "]下线");
+                JSONObject realTimeJson = new JSONObject();
+                realTimeJson.put("type", RealTimeType.OFFLINE);
+                realTimeJson.put("device", deviceId);
+                mqttMessageSender.sendRealTimePureMessage(realTimeJson);
+                //生成日志
+                DeviceOnAndOffLineLog deviceOnAndOffLineLog = new DeviceOnAndOffLineLog();
+                deviceOnAndOffLineLog.setDate(new Date());
+                deviceOnAndOffLineLog.setDevice(deviceService.findADeviceReference(deviceId));
+                deviceOnAndOffLineLog.setEvent("DISCONNECT");
+                deviceOnAndOffLineLogService.save(deviceOnAndOffLineLog);
 
+            }
         }
     }
 }
@@ -3,12 +3,29 @@ package com.easylinker.proxy.server.app.config.mqttconfig.handler;
 import com.alibaba.fastjson.JSONObject;
 import com.easylinker.proxy.server.app.bean.RealTimeMessage;
 import com.easylinker.proxy.server.app.config.mqttconfig.MqttMessageSender;
+import com.easylinker.proxy.server.app.config.mqttconfig.adapter.MqttDeliveryAck;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.ActiveDevices;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceDataDeduplicator;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceDataFilter;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceDataWriteBehindBuffer;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceRegistry;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceTraffic;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.HeavyHitters;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestFailures;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestLatency;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestQuota;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.QuarantineStore;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.NumericFields;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.PayloadCodec;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.PayloadCodecs;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.Payloads;
+import com.easylinker.proxy.server.app.config.mqttconfig.router.TopicMatch;
+import com.easylinker.proxy.server.app.config.mqttconfig.router.TopicRouter;
 import com.easylinker.proxy.server.app.constants.mqtt.RealTimeType;
-import com.easylinker.proxy.server.app.model.device.Device;
 import com.easylinker.proxy.server.app.model.device.DeviceData;
-import com.easylinker.proxy.server.app.service.DeviceDataService;
-import com.easylinker.proxy.server.app.service.DeviceService;
+import com.easylinker.proxy.server.app.timeseries.DeviceDataRollups;
 import com.easylinker.proxy.server.app.utils.HttpTool;
+import com.easylinker.proxy.server.app.utils.SnowflakeIdGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,6 +35,8 @@ import org.springframework.messaging.MessageHandler;
 import org.springframework.messaging.MessagingException;
 import org.springframework.stereotype.Component;
 
+import java.util.Date;
+
 /**
  * 从客户端ECHO进来的新消息
  */
@@ -26,10 +45,32 @@ public class InMessageHandler implements MessageHandler {
     Logger logger = LoggerFactory.getLogger(InMessageHandler.class);
 
     @Autowired
-    DeviceService deviceService;
+    DeviceRegistry deviceRegistry;
+    @Autowired
+    QuarantineStore quarantineStore;
+    @Autowired
+    IngestFailures ingestFailures;
+    @Autowired
+    PayloadCodecs payloadCodecs;
 
     @Autowired
-    DeviceDataService deviceDataService;
+    DeviceDataWriteBehindBuffer deviceDataWriteBehindBuffer;
+    @Autowired
+    SnowflakeIdGenerator snowflakeIdGenerator;
+    @Autowired
+    DeviceDataDeduplicator deviceDataDeduplicator;
+    @Autowired
+    IngestQuota ingestQuota;
+    @Autowired
+    DeviceDataFilter deviceDataFilter;
+    @Autowired
+    DeviceDataRollups deviceDataRollups;
+    @Autowired
+    DeviceTraffic deviceTraffic;
+    @Autowired
+    HeavyHitters heavyHitters;
+    @Autowired
+    ActiveDevices activeDevices;
     @Autowired
     MqttMessageSender mqttMessageSender;
     @Autowired
@@ -37,52 +78,97 @@ public class InMessageHandler implements MessageHandler {
     @Value("${emq.api.host}")
     String apiHost;
 
+    /**
+     * IN/ECHO/{user}/{group}/{device}[/{编码}]
+     */
+    private final TopicRouter router = new TopicRouter()
+            .route("IN/ECHO/+/+/+/#", this::handleEcho);
+
     @Override
     //mqtt_topic=IN/DEVICE/DEFAULT_USER/DEFAULT_GROUP/1521508320898
     //这里必须这么写，以内ACL控制了Topic
     public void handleMessage(Message<?> message) throws MessagingException {
-        String topic = message.getHeaders().get("mqtt_topic").toString();
-        try {
-            if (topic.startsWith("IN/ECHO/")) {
-                Long openId = Long.parseLong(topic.split("/")[4]);
-                JSONObject dataJson = JSONObject.parseObject(message.getPayload().toString());
-                Device device = deviceService.findADevice(openId);
-                if (device != null) {
-                    //开始后传输数据
-                    if (device.getAppUser() == null) {
-                        logger.info("默认分组的设备，数据不记录!");
-                    } else {
-                        /**
-                         * 这里AudioData是自定义数据格式
-                         * 数据全部进 DeviceData
-                         */
-
-                        DeviceData deviceData = new DeviceData();
-                        deviceData.setDevice(device);
-                        deviceData.setData(dataJson.toString());
-                        deviceData.setType("ECHO");
-                        deviceDataService.save(deviceData);
+        //提交的格式不正确的进隔离区，数据库、预写日志出错的重试
+        //只接受 from:IN/DEVICE/DEFAULT_USER/DEFAULT_GROUP/1521508320898
+        ingestFailures.handle(message, attempt -> {
+            if (!router.dispatch(attempt)) {
+                quarantineStore.quarantine(attempt, "Topic层级不对");
+            }
+        });
 
-                        logger.info("数据保存成功!");
-                        JSONObject realTimeJson = new JSONObject();
-                        realTimeJson.put("type", RealTimeType.DATA_RECEIVED);
-                        realTimeJson.put("device", device.getId());
-                        mqttMessageSender.sendRealTimePureMessage(realTimeJson);
+    }
 
-                    }
+    private void handleEcho(TopicMatch match, Message<?> message) throws Exception {
+        long openId = match.getLong(2);
+        long ownerId = deviceRegistry.findOwnerId(openId);
+        if (ownerId != DeviceRegistry.ABSENT) {
+            long bytes = Payloads.byteLength(message.getPayload());
+            deviceTraffic.record(openId, "ECHO", bytes);
+            heavyHitters.record(ownerId, openId, match.getTopic(), bytes);
+            activeDevices.record(openId, ownerId, deviceRegistry.findGroupId(openId));
+            //开始后传输数据
+            if (ownerId == DeviceRegistry.UNBOUND) {
+                logger.info("默认分组的设备，数据不记录!");
+            } else {
+                /**
+                 * 这里AudioData是自定义数据格式
+                 * 数据全部进 DeviceData
+                 */
+                long groupId = deviceRegistry.findGroupId(openId);
+                //重试的消息第一次已经扣过令牌
+                if (!IngestFailures.isRetry(message) && !ingestQuota.tryAcquire(ownerId, groupId, openId)) {
+                    logger.info("超过限流，数据不记录!");
+                    return;
+                }
+                DeviceData deviceData = new DeviceData();
+                deviceData.setDevice(deviceRegistry.reference(openId));
+                //按MQTT到达的时间记录，不算在分道队列里等待的时间
+                deviceData.setCreateTime(new Date(IngestLatency.arrivedAt(message)));
+                //预写日志重放的时候按主键去重，ID不能重复
+                deviceData.setId(snowflakeIdGenerator.nextId(deviceData.getCreateTime().getTime()));
+                //Topic后缀(enc/{编码})或者设备分组指定了二进制编码的时候原样保存二进制载荷
+                String suffix = match.matches(3, "") ? "" : match.get(3);
+                PayloadCodec codec = payloadCodecs.select(suffix, groupId);
+                if (codec == null) {
+                    Payloads.setJsonData(deviceData, message.getPayload());
                 } else {
-                    logger.info("设备不存在!");
+                    Payloads.setBinaryData(deviceData, codec, message.getPayload());
+                }
+                //格式检查通过以后再去重、按设备/分组的入库策略过滤，格式错误的照样进隔离区
+                if (deviceDataDeduplicator.isReplay(openId, "ECHO", message)) {
+                    logger.info("重发的消息，已经记录过!");
+                    return;
                 }
+                //聚合记录过滤之前的数据，和入库过滤共用一次载荷解析；重试的消息第一次已经记录过
+                NumericFields fields = NumericFields.of(message.getPayload(), codec);
+                if (!IngestFailures.isRetry(message)) {
+                    deviceDataRollups.record(openId, deviceData.getCreateTime().getTime(), fields);
+                }
+                if (!deviceDataFilter.shouldStore(openId, groupId, message.getPayload(), fields)) {
+                    logger.info("按入库策略过滤，数据不记录!");
+                    return;
+                }
+                deviceData.setType("ECHO");
+                //数据提交以后再确认这条MQTT消息，入队成功才认领；入队失败的由 IngestFailures 重试，重试用完不确认
+                deviceData.setAcknowledgement(MqttDeliveryAck.of(message));
+                deviceDataWriteBehindBuffer.offer(ownerId, deviceData);
+                MqttDeliveryAck.claim(message);
 
+                logger.info("数据已进入写入队列!");
+                JSONObject realTimeJson = new JSONObject();
+                realTimeJson.put("type", RealTimeType.DATA_RECEIVED);
+                realTimeJson.put("device", openId);
+                //数据已经入队，通知失败不能让整条消息重试
+                try {
+                    mqttMessageSender.sendRealTimePureMessage(realTimeJson);
+                } catch (Exception e) {
+                    logger.error("实时消息发送失败:" + e.getMessage());
+                }
 
             }
-        } catch (Exception e) {
-            //提交的格式不正确
-            //只接受 from:IN/DEVICE/DEFAULT_USER/DEFAULT_GROUP/1521508320898
-            logger.error("数据格式出错!");
-
+        } else {
+            logger.info("设备不存在!");
         }
-
     }
 
 }
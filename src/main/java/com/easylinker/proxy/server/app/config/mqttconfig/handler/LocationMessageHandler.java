@@ -1,6 +1,14 @@
 package com.easylinker.proxy.server.app.config.mqttconfig.handler;
 
 import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.ActiveDevices;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceRegistry;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceTraffic;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.HeavyHitters;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestFailures;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.Payloads;
+import com.easylinker.proxy.server.app.config.mqttconfig.router.TopicMatch;
+import com.easylinker.proxy.server.app.config.mqttconfig.router.TopicRouter;
 import com.easylinker.proxy.server.app.model.device.Device;
 import com.easylinker.proxy.server.app.model.device.HistoryLocation;
 import com.easylinker.proxy.server.app.model.device.Location;
@@ -36,55 +44,76 @@ public class LocationMessageHandler implements MessageHandler {
     DeviceLocationService deviceLocationService;
     @Autowired
     HistoryLocationService historyLocationService;
+    @Autowired
+    DeviceRegistry deviceRegistry;
+    @Autowired
+    IngestFailures ingestFailures;
+    @Autowired
+    DeviceTraffic deviceTraffic;
+    @Autowired
+    HeavyHitters heavyHitters;
+    @Autowired
+    ActiveDevices activeDevices;
+
+    /**
+     * IN/LOCATION/{device}
+     */
+    private final TopicRouter router = new TopicRouter()
+            .route("IN/LOCATION/+/#", this::handleLocation);
 
     @Override
     public void handleMessage(Message<?> message) throws MessagingException {
+        ingestFailures.handle(message, router::dispatch);
+
 
-        String topic = message.getHeaders().get("mqtt_topic").toString();
-        try {
-            if (topic.startsWith("IN/LOCATION/")) {
-                logger.info("设备:"+topic.split("/")[2]+" 位置发生变化");
-                Long openId = Long.parseLong(topic.split("/")[2]);
-                Device device = deviceService.findADevice(openId);
-                if (device != null) {
-                    JSONObject locationInfoJson = JSONObject.parseObject(message.getPayload().toString());
-                    String latitude = locationInfoJson.getString("latitude");
-                    String longitude = locationInfoJson.getString("longitude");
-                    String locationDescribe = locationInfoJson.getString("locationDescribe");
-                    String mode=locationInfoJson.getString("mode");
-                    if (latitude!=null && longitude!=null && locationDescribe!=null){
-                        //生成一个历史地理位置
-                        Location location = device.getLocation();
-                        //只有消息带上持久化的标记的时候才创建历史位置，否则就是仅仅更新
-                        //persistent
-                        //待定
-                        if (mode.equalsIgnoreCase("persistent")){
-                            HistoryLocation historyLocation = new HistoryLocation();
-                            historyLocation.setLatitude(location.getLatitude());
-                            historyLocation.setLocationDescribe(location.getLocationDescribe());
-                            historyLocation.setLongitude(location.getLongitude());
-                            historyLocation.setDevice(device);
-                            historyLocationService.save(historyLocation);
-                        }
+    }
 
+    private void handleLocation(TopicMatch match, Message<?> message) {
+        logger.info("设备:" + match.get(0) + " 位置发生变化");
+        long openId = match.getLong(0);
+        //不存在的设备直接在注册表里挡掉，不查库
+        if (!deviceRegistry.contains(openId)) {
+            logger.info("设备不存在!");
+            return;
+        }
+        long bytes = Payloads.byteLength(message.getPayload());
+        deviceTraffic.record(openId, "LOCATION", bytes);
+        long ownerId = deviceRegistry.findOwnerId(openId);
+        heavyHitters.record(ownerId, openId, match.getTopic(), bytes);
+        activeDevices.record(openId, ownerId, deviceRegistry.findGroupId(openId));
+        Device device = deviceService.findADevice(openId);
+        if (device != null) {
+            JSONObject locationInfoJson = JSONObject.parseObject(message.getPayload().toString());
+            String latitude = locationInfoJson.getString("latitude");
+            String longitude = locationInfoJson.getString("longitude");
+            String locationDescribe = locationInfoJson.getString("locationDescribe");
+            String mode=locationInfoJson.getString("mode");
+            if (latitude!=null && longitude!=null && locationDescribe!=null){
+                //生成一个历史地理位置
+                Location location = device.getLocation();
+                //只有消息带上持久化的标记的时候才创建历史位置，否则就是仅仅更新
+                //persistent
+                //待定
+                if (mode.equalsIgnoreCase("persistent")){
+                    HistoryLocation historyLocation = new HistoryLocation();
+                    historyLocation.setLatitude(location.getLatitude());
+                    historyLocation.setLocationDescribe(location.getLocationDescribe());
+                    historyLocation.setLongitude(location.getLongitude());
+                    historyLocation.setDevice(device);
+                    historyLocationService.save(historyLocation);
+                }
 
-                        location.setLatitude(latitude);
-                        location.setLongitude(longitude);
-                        location.setLocationDescribe(locationDescribe);
-                        deviceLocationService.save(location);
 
-                        deviceService.save(device);
-                    }else {
-                        logger.error("地理位置参数不全!");
-                    }
+                location.setLatitude(latitude);
+                location.setLongitude(longitude);
+                location.setLocationDescribe(locationDescribe);
+                deviceLocationService.save(location);
 
-                }
+                deviceService.save(device);
+            }else {
+                logger.error("地理位置参数不全!");
             }
-        } catch (Exception e) {
-            //e.printStackTrace();
-            logger.error("消息格式解析出错!", e.getMessage());
-        }
-
 
+        }
     }
 }
@@ -0,0 +1,183 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一段时间内发过数据的设备数(去重)
+ * 全局、每个用户、每个分组各一组 HyperLogLog：最近60分钟每分钟一个，最近24小时每小时一个，
+ * 每条消息只更新固定几个寄存器；查询的时候把窗口内的按寄存器取最大值合并再估计，
+ * 60分钟以内按分钟合并，超过60分钟按小时合并(最多多算不到一个小时)
+ * 全局的精度是 precision，用户和分组的精度是 key-precision；24小时没有数据的用户和分组从内存里移除
+ */
+@Component
+public class ActiveDevices {
+    private static final int MINUTES = 60;
+    private static final int HOURS = 24;
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    @Value("${ingest.active-devices.precision:12}")
+    int precision;
+    @Value("${ingest.active-devices.key-precision:8}")
+    int keyPrecision;
+
+    private Series global;
+    private final Map<Long, Series> users = new ConcurrentHashMap<>();
+    private final Map<Long, Series> groups = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void start() {
+        global = new Series(precision);
+    }
+
+    /**
+     * 记录一条入站消息
+     *
+     * @param deviceId
+     * @param userId   没有绑定的设备不记录用户
+     * @param groupId  没有分组的设备不记录分组
+     */
+    public void record(long deviceId, long userId, long groupId) {
+        long now = System.currentTimeMillis();
+        long hash = HyperLogLog.hash(deviceId);
+        global.add(now, hash);
+        if (userId > 0) {
+            series(users, userId).add(now, hash);
+        }
+        if (groupId > 0) {
+            series(groups, groupId).add(now, hash);
+        }
+    }
+
+    private Series series(Map<Long, Series> map, long key) {
+        Series series = map.get(key);
+        if (series == null) {
+            series = map.computeIfAbsent(key, k -> new Series(keyPrecision));
+        }
+        return series;
+    }
+
+    /**
+     * 最近 minutes 分钟内全局的活跃设备数
+     *
+     * @param minutes 最多 24 * 60
+     * @return
+     */
+    public long countGlobal(int minutes) {
+        return global.count(System.currentTimeMillis(), minutes);
+    }
+
+    public long countByUser(long userId, int minutes) {
+        Series series = users.get(userId);
+        return series == null ? 0 : series.count(System.currentTimeMillis(), minutes);
+    }
+
+    public long countByGroup(long groupId, int minutes) {
+        Series series = groups.get(groupId);
+        return series == null ? 0 : series.count(System.currentTimeMillis(), minutes);
+    }
+
+    /**
+     * 移除24小时没有数据的用户和分组
+     */
+    @Scheduled(fixedDelay = 600000)
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        users.values().removeIf(series -> now - series.lastUpdated > HOURS * HOUR_MILLIS);
+        groups.values().removeIf(series -> now - series.lastUpdated > HOURS * HOUR_MILLIS);
+    }
+
+    /**
+     * 最近5分钟、1小时、1天的全局活跃设备数
+     *
+     * @return
+     */
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject(true);
+        data.put("5m", countGlobal(5));
+        data.put("1h", countGlobal(MINUTES));
+        data.put("1d", countGlobal(HOURS * MINUTES));
+        data.put("trackedUsers", users.size());
+        data.put("trackedGroups", groups.size());
+        return data;
+    }
+
+    /**
+     * 一个范围(全局/用户/分组)的分钟和小时时间片
+     */
+    private static class Series {
+        final int precision;
+        final Bucket[] minutes = new Bucket[MINUTES];
+        final Bucket[] hours = new Bucket[HOURS];
+        volatile long lastUpdated;
+
+        Series(int precision) {
+            this.precision = precision;
+        }
+
+        void add(long now, long hash) {
+            lastUpdated = now;
+            bucket(minutes, now / MINUTE_MILLIS).sketch.add(hash);
+            bucket(hours, now / HOUR_MILLIS).sketch.add(hash);
+        }
+
+        /**
+         * 第一次用到的时候才分配，过期的清空重用
+         */
+        private Bucket bucket(Bucket[] ring, long epoch) {
+            int index = (int) (epoch % ring.length);
+            Bucket bucket = ring[index];
+            if (bucket == null || bucket.epoch != epoch) {
+                synchronized (ring) {
+                    bucket = ring[index];
+                    if (bucket == null) {
+                        bucket = new Bucket(precision);
+                        bucket.epoch = epoch;
+                        ring[index] = bucket;
+                    } else if (bucket.epoch != epoch) {
+                        bucket.sketch.clear();
+                        bucket.epoch = epoch;
+                    }
+                }
+            }
+            return bucket;
+        }
+
+        long count(long now, int minutesBack) {
+            HyperLogLog merged = new HyperLogLog(precision);
+            if (minutesBack <= MINUTES) {
+                merge(merged, minutes, now / MINUTE_MILLIS, minutesBack);
+            } else {
+                merge(merged, hours, now / HOUR_MILLIS, (int) Math.min(HOURS, (minutesBack + MINUTES - 1) / MINUTES));
+            }
+            return merged.estimate();
+        }
+
+        private void merge(HyperLogLog merged, Bucket[] ring, long current, int count) {
+            synchronized (ring) {
+                for (Bucket bucket : ring) {
+                    if (bucket != null && current - bucket.epoch >= 0 && current - bucket.epoch < count) {
+                        merged.merge(bucket.sketch);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Bucket {
+        final HyperLogLog sketch;
+        volatile long epoch;
+
+        Bucket(int precision) {
+            sketch = new HyperLogLog(precision);
+        }
+    }
+}
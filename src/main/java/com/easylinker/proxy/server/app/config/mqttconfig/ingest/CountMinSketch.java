@@ -0,0 +1,78 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import java.util.Arrays;
+
+/**
+ * Count-Min 计数草图，depth 行 width 列，内存固定
+ * 每个键在每行落一个格子，估计值取各行的最小值，只会偏大，不是线程安全的
+ * 同样大小的草图可以逐格相加，相当于合并两个数据流
+ */
+class CountMinSketch {
+    private final int depth;
+    private final int width;
+    private final long[] cells;
+
+    CountMinSketch(int depth, int width) {
+        this(depth, width, new long[depth * width]);
+    }
+
+    private CountMinSketch(int depth, int width, long[] cells) {
+        this.depth = depth;
+        this.width = width;
+        this.cells = cells;
+    }
+
+    void add(long hash, long weight) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < depth; i++) {
+            cells[i * width + ((h1 + i * h2) & Integer.MAX_VALUE) % width] += weight;
+        }
+    }
+
+    long estimate(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, cells[i * width + ((h1 + i * h2) & Integer.MAX_VALUE) % width]);
+        }
+        return min;
+    }
+
+    /**
+     * 把另一个同样大小的草图加进来
+     *
+     * @param other
+     */
+    void merge(CountMinSketch other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException("sketch dimensions differ");
+        }
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] += other.cells[i];
+        }
+    }
+
+    CountMinSketch copy() {
+        return new CountMinSketch(depth, width, cells.clone());
+    }
+
+    /**
+     * 整数键的哈希(SplitMix64)，不用转成字符串
+     *
+     * @param key
+     * @return
+     */
+    static long hash(long key) {
+        return HyperLogLog.hash(key);
+    }
+
+    static long hash(String key) {
+        return DeviceDataDeduplicator.hashPayload(0, key);
+    }
+
+    void clear() {
+        Arrays.fill(cells, 0);
+    }
+}
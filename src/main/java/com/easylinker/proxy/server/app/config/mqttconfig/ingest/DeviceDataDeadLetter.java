@@ -0,0 +1,100 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.model.device.DeviceData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 写不进数据库的 DeviceData 的死信文件
+ * 单条写库也失败的数据(设备已删除、字段超长、表结构不对)不再重试，按天追加到本地文件(每行一个JSON，数据Base64)，
+ * 排查以后可以手工导回；写文件马上落盘，不经过内存缓冲
+ */
+@Component
+public class DeviceDataDeadLetter {
+    private static final String FILE_PREFIX = "device-data-";
+    private static final String FILE_SUFFIX = ".jsonl";
+    Logger logger = LoggerFactory.getLogger(DeviceDataDeadLetter.class);
+
+    @Value("${ingest.dead-letter.dir:./dead-letter}")
+    String dir;
+
+    private File directory;
+    private RateLimitedLog rateLimitedLog;
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong lostCount = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        rateLimitedLog = new RateLimitedLog(logger, 60000, 1000);
+        directory = new File(dir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.error("死信目录创建失败:" + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @param rows
+     * @param reason 失败原因
+     */
+    public synchronized void write(List<DeviceData> rows, String reason) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        File file = new File(directory, FILE_PREFIX + new SimpleDateFormat("yyyyMMdd").format(new Date()) + FILE_SUFFIX);
+        StringBuilder lines = new StringBuilder();
+        for (DeviceData deviceData : rows) {
+            lines.append(toJson(deviceData, reason).toJSONString()).append('\n');
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+            writtenCount.addAndGet(rows.size());
+        } catch (IOException e) {
+            lostCount.addAndGet(rows.size());
+            logger.error("死信写文件失败,丢弃[" + rows.size() + "]条:" + e.getMessage());
+            return;
+        }
+        rateLimitedLog.error("dead-letter", "[" + rows.size() + "]条设备数据写库失败,已转入死信文件[" + file.getName() + "]:" + reason);
+    }
+
+    private static JSONObject toJson(DeviceData deviceData, String reason) {
+        byte[] data;
+        if (deviceData.getEncoding() != null) {
+            data = deviceData.getPayload();
+        } else if (deviceData.getRawData() != null) {
+            data = deviceData.getRawData();
+        } else {
+            data = deviceData.getData().getBytes(StandardCharsets.UTF_8);
+        }
+        JSONObject json = new JSONObject(true);
+        json.put("id", deviceData.getId());
+        json.put("deviceId", deviceData.getDevice().getId());
+        json.put("createTime", deviceData.getCreateTime().getTime());
+        json.put("type", deviceData.getType());
+        json.put("encoding", deviceData.getEncoding());
+        json.put("data", Base64.getEncoder().encodeToString(data));
+        json.put("reason", reason);
+        return json;
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("written", writtenCount.get());
+        data.put("lost", lostCount.get());
+        return data;
+    }
+}
@@ -0,0 +1,204 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.adapter.EMqttPahoMessageDrivenChannelAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.integration.mqtt.support.MqttHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * QoS 1 重发去重
+ * 断线重连、Broker切换以后重发的消息带 mqtt_duplicate=true，不去重的话会按新ID再存一遍
+ * 用两代轮换的布隆过滤器记录最近写入的 (设备, 类型, 报文ID, 载荷) 指纹：每条消息都记录，只有带重发标记的消息才查，
+ * 查到就在入库之前丢掉；当前一代写满或者超过 window 毫秒以后整体轮换，最老的一代直接丢弃，内存固定为 memory-bytes
+ * 布隆过滤器只会误判"见过"，误判率按每代容量控制在1%左右，而且只影响带重发标记的消息；
+ * 指纹里带上报文ID，设备反复上报同样内容(比如开关状态)的时候，不同报文的重发不会互相误判
+ */
+@Component
+public class DeviceDataDeduplicator {
+    private static final int HASHES = 7;
+    //每个指纹10位，7个哈希函数，误判率约1%
+    private static final int BITS_PER_ENTRY = 10;
+    Logger logger = LoggerFactory.getLogger(DeviceDataDeduplicator.class);
+
+    @Value("${ingest.dedup.enabled:true}")
+    boolean enabled;
+    @Value("${ingest.dedup.memory-bytes:4194304}")
+    long memoryBytes;
+    @Value("${ingest.dedup.window:600000}")
+    long window;
+
+    private int bits;
+    private int capacity;
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    private final AtomicLong recordedCount = new AtomicLong();
+    private final AtomicLong checkedCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong rotationCount = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        //两代平分内存，位数取64的整数倍
+        long words = Math.max(1, Math.min(Integer.MAX_VALUE / 64, memoryBytes / 2 / 8));
+        bits = (int) (words * 64);
+        capacity = Math.max(1, bits / BITS_PER_ENTRY);
+        current = new Generation((int) words);
+        previous = new Generation((int) words);
+        logger.info("重发去重" + (enabled ? "开启" : "关闭") + ",每代[" + capacity + "]条 window=[" + window + "ms]");
+    }
+
+    /**
+     * 记录一条将要入库的消息，带重发标记并且最近已经记录过的返回true
+     *
+     * @param deviceId
+     * @param type      ECHO/REPLY
+     * @param packetId  MQTT报文ID，QoS 0 没有报文ID，传0
+     * @param payload   MQTT载荷，String或者byte[]
+     * @param duplicate mqtt_duplicate 消息头
+     * @return true表示重发，调用方直接丢弃
+     */
+    public boolean isReplay(long deviceId, String type, int packetId, Object payload, boolean duplicate) {
+        if (!enabled) {
+            return false;
+        }
+        long hash = fingerprint(deviceId, type, packetId, payload);
+        if (duplicate) {
+            checkedCount.incrementAndGet();
+            if (current.mightContain(hash, bits) || previous.mightContain(hash, bits)) {
+                hitCount.incrementAndGet();
+                return true;
+            }
+        }
+        Generation generation = current;
+        if (generation.count.get() >= capacity || System.currentTimeMillis() - generation.createdAt >= window) {
+            generation = rotate(generation);
+        }
+        generation.put(hash, bits);
+        recordedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * 报文ID和重发标记从MQTT消息头里取；处理失败重试的消息第一次已经记录过，不再检查
+     *
+     * @param deviceId
+     * @param type
+     * @param message
+     * @return true表示重发，调用方直接丢弃
+     */
+    public boolean isReplay(long deviceId, String type, Message<?> message) {
+        if (IngestFailures.isRetry(message)) {
+            return false;
+        }
+        Object packetId = message.getHeaders().get(EMqttPahoMessageDrivenChannelAdapter.PACKET_ID);
+        return isReplay(deviceId, type, packetId instanceof Integer ? (Integer) packetId : 0, message.getPayload(),
+                Boolean.TRUE.equals(message.getHeaders().get(MqttHeaders.DUPLICATE)));
+    }
+
+    private synchronized Generation rotate(Generation full) {
+        if (current != full) {
+            return current;
+        }
+        previous = full;
+        current = new Generation(bits / 64);
+        rotationCount.incrementAndGet();
+        return current;
+    }
+
+    private static long fingerprint(long deviceId, String type, int packetId, Object payload) {
+        return hashPayload(mix(deviceId ^ 0x9E3779B97F4A7C15L) ^ type.hashCode() ^ ((long) packetId << 32), payload);
+    }
+
+    /**
+     * 载荷的64位哈希(FNV-1a + 混淆)，String按字符、byte[]按字节计算
+     *
+     * @param seed
+     * @param payload
+     * @return
+     */
+    static long hashPayload(long seed, Object payload) {
+        long hash = seed;
+        if (payload instanceof byte[]) {
+            for (byte b : (byte[]) payload) {
+                hash = (hash ^ (b & 0xff)) * 0x100000001B3L;
+            }
+        } else {
+            String text = payload instanceof String ? (String) payload : String.valueOf(payload);
+            for (int i = 0; i < text.length(); i++) {
+                hash = (hash ^ text.charAt(i)) * 0x100000001B3L;
+            }
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("enabled", enabled);
+        data.put("memoryBytes", (long) bits / 8 * 2);
+        data.put("capacityPerGeneration", capacity);
+        data.put("currentGenerationSize", current == null ? 0 : current.count.get());
+        data.put("recorded", recordedCount.get());
+        data.put("checked", checkedCount.get());
+        data.put("hits", hitCount.get());
+        data.put("misses", checkedCount.get() - hitCount.get());
+        data.put("rotations", rotationCount.get());
+        return data;
+    }
+
+    private static class Generation {
+        final AtomicLongArray words;
+        final AtomicInteger count = new AtomicInteger();
+        final long createdAt = System.currentTimeMillis();
+
+        Generation(int words) {
+            this.words = new AtomicLongArray(words);
+        }
+
+        void put(long hash, int bits) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < HASHES; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+                long mask = 1L << bit;
+                int index = bit >>> 6;
+                long word = words.get(index);
+                while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                    word = words.get(index);
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        boolean mightContain(long hash, int bits) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < HASHES; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+                if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
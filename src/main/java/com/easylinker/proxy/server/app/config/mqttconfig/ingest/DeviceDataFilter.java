@@ -0,0 +1,298 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.NumericFields;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按入库策略(IngestPolicy)过滤遥测数据
+ * 设备上的策略优先于分组上的策略，都没有配置的设备不做任何处理；
+ * 每台配置了策略的设备在内存里保存 上一条入库的时间、载荷哈希、死区字段的值 和 收到的条数，入库之前在内存里判断，不查库
+ * 本实例保存设备、分组的时候马上生效，别的实例改的策略等下一次定时重新加载
+ */
+@Component
+public class DeviceDataFilter {
+    Logger logger = LoggerFactory.getLogger(DeviceDataFilter.class);
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Value("${ingest.policy.refresh:true}")
+    boolean refreshEnabled;
+
+    private final Map<Long, IngestPolicy> devicePolicies = new ConcurrentHashMap<>();
+    private final Map<Long, IngestPolicy> groupPolicies = new ConcurrentHashMap<>();
+    /**
+     * 上一次从数据库加载的 ID -> 策略原文，重新加载的时候只处理有变化的
+     */
+    private Map<Long, String> loadedDevicePolicies = new HashMap<>();
+    private Map<Long, String> loadedGroupPolicies = new HashMap<>();
+    /**
+     * 加载期间本地改过的设备、分组ID，以本地为准，不用加载到的旧值覆盖；不在加载的时候为null
+     */
+    private volatile Set<Long> modifiedDevices;
+    private volatile Set<Long> modifiedGroups;
+    private final Map<Long, State> states = new ConcurrentHashMap<>();
+    private final LongAdder evaluatedCount = new LongAdder();
+    private final LongAdder droppedCount = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        load();
+        logger.info("入库策略:设备[" + devicePolicies.size() + "] 分组[" + groupPolicies.size() + "]");
+    }
+
+    /**
+     * 重新加载，同步别的实例修改的策略
+     */
+    @Scheduled(fixedDelayString = "${ingest.policy.refresh-interval:60000}", initialDelayString = "${ingest.policy.refresh-interval:60000}")
+    public void refresh() {
+        if (refreshEnabled) {
+            load();
+        }
+    }
+
+    synchronized void load() {
+        Map<Long, String> groups = new HashMap<>();
+        Map<Long, String> devices = new HashMap<>();
+        modifiedGroups = ConcurrentHashMap.newKeySet();
+        modifiedDevices = ConcurrentHashMap.newKeySet();
+        try {
+            jdbcTemplate.query("SELECT id, ingest_policy FROM device_group WHERE ingest_policy IS NOT NULL",
+                    (RowCallbackHandler) rs -> groups.put(rs.getLong(1), rs.getString(2)));
+            jdbcTemplate.query("SELECT id, ingest_policy FROM device WHERE ingest_policy IS NOT NULL",
+                    (RowCallbackHandler) rs -> devices.put(rs.getLong(1), rs.getString(2)));
+            for (Long groupId : changed(loadedGroupPolicies, groups, modifiedGroups)) {
+                applyGroupPolicy(groupId, groups.get(groupId));
+            }
+            for (Long deviceId : changed(loadedDevicePolicies, devices, modifiedDevices)) {
+                applyDevicePolicy(deviceId, devices.get(deviceId));
+            }
+            loadedGroupPolicies = groups;
+            loadedDevicePolicies = devices;
+        } catch (Exception e) {
+            logger.error("加载入库策略失败:" + e.getMessage());
+        } finally {
+            modifiedGroups = null;
+            modifiedDevices = null;
+        }
+    }
+
+    /**
+     * 和上一次加载相比新增、修改、删除的ID，去掉加载期间本地改过的
+     */
+    private static Set<Long> changed(Map<Long, String> previous, Map<Long, String> current, Set<Long> modified) {
+        Set<Long> ids = new HashSet<>();
+        for (Map.Entry<Long, String> entry : current.entrySet()) {
+            if (!Objects.equals(previous.get(entry.getKey()), entry.getValue())) {
+                ids.add(entry.getKey());
+            }
+        }
+        for (Long id : previous.keySet()) {
+            if (!current.containsKey(id)) {
+                ids.add(id);
+            }
+        }
+        ids.removeAll(modified);
+        return ids;
+    }
+
+    /**
+     * 判断一条遥测数据要不要入库，要入库的同时更新设备的状态
+     *
+     * @param deviceId
+     * @param groupId
+     * @param payload  已经校验过格式的MQTT载荷
+     * @param fields   载荷里的数值字段，只有配置了死区的时候才用到
+     * @return false表示按策略丢弃
+     */
+    public boolean shouldStore(long deviceId, long groupId, Object payload, NumericFields fields) {
+        return shouldStore(deviceId, groupId, payload, fields, System.currentTimeMillis());
+    }
+
+    boolean shouldStore(long deviceId, long groupId, Object payload, NumericFields fields, long now) {
+        if (devicePolicies.isEmpty() && groupPolicies.isEmpty()) {
+            return true;
+        }
+        IngestPolicy policy = devicePolicies.get(deviceId);
+        if (policy == null) {
+            policy = groupPolicies.get(groupId);
+            if (policy == null) {
+                return true;
+            }
+        }
+        evaluatedCount.increment();
+        State state = states.get(deviceId);
+        if (state == null) {
+            state = states.computeIfAbsent(deviceId, k -> new State());
+        }
+        boolean store;
+        //同一台设备的消息总在同一条道上，这里基本没有竞争
+        synchronized (state) {
+            store = evaluate(policy, state, payload, fields, now);
+        }
+        if (!store) {
+            droppedCount.increment();
+        }
+        return store;
+    }
+
+    private static boolean evaluate(IngestPolicy policy, State state, Object payload, NumericFields fields, long now) {
+        long sample = state.samples++;
+        if (policy.getEvery() > 1 && sample % policy.getEvery() != 0) {
+            return false;
+        }
+        if (state.stored && policy.getInterval() > 0 && now - state.lastStoredTime < policy.getInterval()) {
+            return false;
+        }
+        long hash = 0;
+        double[] values = null;
+        if (policy.hasDeadband()) {
+            values = extract(policy.getDeadbandFields(), fields.get());
+        } else if (policy.isOnChange()) {
+            hash = DeviceDataDeduplicator.hashPayload(0, payload);
+        }
+        boolean heartbeatDue = policy.getHeartbeat() > 0 && now - state.lastStoredTime >= policy.getHeartbeat();
+        if (state.stored && !heartbeatDue) {
+            if (values != null && withinDeadband(values, state.lastValues, policy.getDeadbands())) {
+                return false;
+            }
+            if (values == null && policy.isOnChange() && hash == state.lastHash) {
+                return false;
+            }
+        }
+        state.stored = true;
+        state.lastStoredTime = now;
+        state.lastHash = hash;
+        state.lastValues = values;
+        return true;
+    }
+
+    private static boolean withinDeadband(double[] values, double[] lastValues, double[] deadbands) {
+        for (int i = 0; i < values.length; i++) {
+            //字段缺失或者不是数值的时候是NaN，两次都缺失算没变，只有一次缺失算变化
+            if (Double.isNaN(values[i]) || Double.isNaN(lastValues[i])) {
+                if (Double.isNaN(values[i]) != Double.isNaN(lastValues[i])) {
+                    return false;
+                }
+            } else if (Math.abs(values[i] - lastValues[i]) > deadbands[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static double[] extract(String[] names, Map<String, Double> fields) {
+        double[] values = new double[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Double value = fields.get(names[i]);
+            values[i] = value == null ? Double.NaN : value;
+        }
+        return values;
+    }
+
+    /**
+     * 设备保存的时候同步
+     *
+     * @param deviceId
+     * @param policy   为空表示使用分组的策略
+     */
+    public void setDevicePolicy(long deviceId, String policy) {
+        markModified(modifiedDevices, deviceId);
+        applyDevicePolicy(deviceId, policy);
+    }
+
+    private void applyDevicePolicy(long deviceId, String policy) {
+        IngestPolicy parsed = parse("设备", deviceId, policy);
+        if (parsed == null) {
+            devicePolicies.remove(deviceId);
+        } else {
+            devicePolicies.put(deviceId, parsed);
+        }
+        states.remove(deviceId);
+    }
+
+    /**
+     * 分组保存的时候同步
+     *
+     * @param groupId
+     * @param policy  为空表示不过滤
+     */
+    public void setGroupPolicy(long groupId, String policy) {
+        markModified(modifiedGroups, groupId);
+        applyGroupPolicy(groupId, policy);
+    }
+
+    private void applyGroupPolicy(long groupId, String policy) {
+        IngestPolicy parsed = parse("分组", groupId, policy);
+        IngestPolicy previous = parsed == null ? groupPolicies.remove(groupId) : groupPolicies.put(groupId, parsed);
+        if (previous != null) {
+            //不知道分组里有哪些设备，状态全部重新开始
+            states.clear();
+        }
+    }
+
+    public void removeDevice(long deviceId) {
+        markModified(modifiedDevices, deviceId);
+        devicePolicies.remove(deviceId);
+        states.remove(deviceId);
+    }
+
+    public void removeGroup(long groupId) {
+        markModified(modifiedGroups, groupId);
+        if (groupPolicies.remove(groupId) != null) {
+            states.clear();
+        }
+    }
+
+    private static void markModified(Set<Long> modified, long id) {
+        if (modified != null) {
+            modified.add(id);
+        }
+    }
+
+    private IngestPolicy parse(String owner, long id, String policy) {
+        if (policy == null || policy.isEmpty()) {
+            return null;
+        }
+        try {
+            return IngestPolicy.parse(policy);
+        } catch (IllegalArgumentException e) {
+            logger.error(owner + "[" + id + "]" + e.getMessage() + "，不过滤");
+            return null;
+        }
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("devicePolicies", devicePolicies.size());
+        data.put("groupPolicies", groupPolicies.size());
+        data.put("trackedDevices", states.size());
+        data.put("evaluated", evaluatedCount.sum());
+        data.put("dropped", droppedCount.sum());
+        return data;
+    }
+
+    private static class State {
+        long samples;
+        boolean stored;
+        long lastStoredTime;
+        long lastHash;
+        double[] lastValues;
+    }
+}
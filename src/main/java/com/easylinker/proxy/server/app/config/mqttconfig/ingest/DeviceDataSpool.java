@@ -0,0 +1,508 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.model.device.Device;
+import com.easylinker.proxy.server.app.model.device.DeviceData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * DeviceData 本地预写日志(write-ahead spool)
+ * 数据先追加到内存映射的分段文件里，再由 DeviceDataWriteBehindBuffer 异步读出来批量写库，
+ * 写库成功以后推进检查点；数据库慢或者不可用的时候数据留在本地，恢复以后接着写，重启以后从检查点重放。
+ * <p>
+ * 记录格式: [int 长度][int CRC32][long id][long createTime][long deviceId][short typeLength][type]([short encodingLength][encoding])[data]
+ * typeLength 最高位为1表示后面带编码名，data是二进制载荷
+ * 长度为0表示该分段已经写完，读取方切到下一个分段
+ * 手动确认模式下记录落盘就算提交：ALWAYS 追加以后马上确认，INTERVAL 等下一次fsync以后一起确认，
+ * 这时确认只说明数据在本机磁盘上，写库还没完成；本机磁盘坏掉会丢掉已经确认的数据。
+ * NEVER 不保证落盘，不能和手动确认一起用，启动时拒绝
+ */
+@Component
+public class DeviceDataSpool {
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_SIZE = 8;
+    private static final int FIXED_BODY_SIZE = 26;
+    private static final int ENCODING_FLAG = 0x8000;
+    Logger logger = LoggerFactory.getLogger(DeviceDataSpool.class);
+
+    @Value("${ingest.spool.enabled:false}")
+    boolean enabled;
+    @Value("${ingest.spool.dir:./spool}")
+    String spoolDir;
+    @Value("${ingest.spool.segment-size:67108864}")
+    int segmentSize;
+    @Value("${ingest.spool.fsync:INTERVAL}")
+    SpoolFsyncPolicy fsyncPolicy;
+    @Value("${ingest.spool.fsync-interval:1000}")
+    long fsyncInterval;
+    @Value("${ingest.ack.manual:false}")
+    boolean manualAcks;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private File directory;
+    private RandomAccessFile checkpointFile;
+    private ScheduledExecutorService fsyncExecutor;
+
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private long readSegment;
+    private int readOffset;
+    private ByteBuffer readBuffer;
+    private long committedSegment;
+    private int committedOffset;
+
+    /**
+     * 启动时积压的数据的结束位置，用来统计重放速度
+     */
+    private long replayEndSegment;
+    private int replayEndOffset;
+    private volatile boolean replaying;
+    private long replayStartNanos;
+    private volatile long replayMillis;
+    private final AtomicLong replayedCount = new AtomicLong();
+    private final AtomicLong appendedCount = new AtomicLong();
+    private final AtomicLong committedCount = new AtomicLong();
+    /**
+     * 上次提交以后读出的条数
+     */
+    private long uncommittedReadCount;
+    /**
+     * INTERVAL策略下等待下一次fsync的MQTT确认
+     */
+    private List<Runnable> pendingAcks = new ArrayList<>();
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (manualAcks && fsyncPolicy == SpoolFsyncPolicy.NEVER) {
+            throw new IllegalStateException("ingest.ack.manual=true 时 ingest.spool.fsync 不能是 NEVER，确认以后数据可能还没落盘");
+        }
+        directory = new File(spoolDir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建预写日志目录:" + directory.getAbsolutePath());
+        }
+        TreeMap<Long, File> segments = listSegments();
+        checkpointFile = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw");
+        if (checkpointFile.length() >= 12) {
+            committedSegment = checkpointFile.readLong();
+            committedOffset = checkpointFile.readInt();
+        } else {
+            committedSegment = segments.isEmpty() ? 0 : segments.firstKey();
+            committedOffset = 0;
+        }
+        for (Long index : new ArrayList<>(segments.headMap(committedSegment).keySet())) {
+            deleteSegment(segments.remove(index));
+        }
+
+        if (segments.isEmpty()) {
+            committedOffset = 0;
+            writeSegment = committedSegment;
+            writeBuffer = mapSegment(writeSegment);
+        } else {
+            writeSegment = segments.lastKey();
+            writeBuffer = mapSegment(writeSegment);
+            writeBuffer.position(writeSegment == committedSegment ? committedOffset : 0);
+            while (readRecord(writeBuffer, null)) {
+                // 找到最后一条完整的记录，后面的是上次宕机时没写完的
+            }
+        }
+        readSegment = committedSegment;
+        readOffset = committedOffset;
+        replayEndSegment = writeSegment;
+        replayEndOffset = writeBuffer.position();
+        replaying = comparePosition(readSegment, readOffset, replayEndSegment, replayEndOffset) < 0;
+        replayStartNanos = System.nanoTime();
+        if (replaying) {
+            logger.info("预写日志存在未写库的数据,从分段[" + readSegment + "]偏移[" + readOffset + "]开始重放");
+        }
+
+        if (fsyncPolicy == SpoolFsyncPolicy.INTERVAL) {
+            fsyncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "device-data-spool-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            fsyncExecutor.scheduleWithFixedDelay(this::force, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (fsyncExecutor != null) {
+            fsyncExecutor.shutdown();
+        }
+        force();
+        checkpointFile.close();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 追加一条数据
+     *
+     * @param deviceData
+     * @throws IOException
+     */
+    public void append(DeviceData deviceData) throws IOException {
+        byte[] type = deviceData.getType() == null ? new byte[0] : deviceData.getType().getBytes(StandardCharsets.UTF_8);
+        byte[] encoding = deviceData.getEncoding() == null ? null : deviceData.getEncoding().getBytes(StandardCharsets.UTF_8);
+        byte[] data;
+        if (encoding != null) {
+            data = deviceData.getPayload();
+        } else if (deviceData.getRawData() != null) {
+            data = deviceData.getRawData();
+        } else {
+            data = deviceData.getData().getBytes(StandardCharsets.UTF_8);
+        }
+        int bodyLength = FIXED_BODY_SIZE + type.length + (encoding == null ? 0 : 2 + encoding.length) + data.length;
+        if (HEADER_SIZE + bodyLength + 4 > segmentSize) {
+            throw new IOException("单条数据超过预写日志分段大小:" + bodyLength);
+        }
+        CRC32 crc = new CRC32();
+        lock.lock();
+        try {
+            if (writeBuffer.remaining() < HEADER_SIZE + bodyLength + 4) {
+                rollSegment();
+            }
+            int start = writeBuffer.position();
+            writeBuffer.position(start + HEADER_SIZE);
+            writeBuffer.putLong(deviceData.getId());
+            writeBuffer.putLong(deviceData.getCreateTime().getTime());
+            writeBuffer.putLong(deviceData.getDevice().getId());
+            writeBuffer.putShort((short) (encoding == null ? type.length : type.length | ENCODING_FLAG));
+            writeBuffer.put(type);
+            if (encoding != null) {
+                writeBuffer.putShort((short) encoding.length);
+                writeBuffer.put(encoding);
+            }
+            writeBuffer.put(data);
+            ByteBuffer body = writeBuffer.duplicate();
+            body.position(start + HEADER_SIZE);
+            body.limit(start + HEADER_SIZE + bodyLength);
+            crc.update(body);
+            writeBuffer.putInt(start + 4, (int) crc.getValue());
+            //长度最后写，读取方看到长度就说明整条记录已经完整
+            writeBuffer.putInt(start, bodyLength);
+            if (fsyncPolicy == SpoolFsyncPolicy.ALWAYS) {
+                writeBuffer.force();
+            }
+            appendedCount.incrementAndGet();
+            notEmpty.signal();
+            if (deviceData.getAcknowledgement() != null && fsyncPolicy == SpoolFsyncPolicy.INTERVAL) {
+                pendingAcks.add(deviceData.getAcknowledgement());
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (deviceData.getAcknowledgement() != null) {
+            deviceData.getAcknowledgement().run();
+        }
+    }
+
+    /**
+     * 从读取位置开始读出最多max条数据，没有数据时最多等待waitMillis毫秒
+     *
+     * @param out
+     * @param max
+     * @param waitMillis
+     * @return 读出的条数
+     * @throws InterruptedException
+     */
+    public int read(List<DeviceData> out, int max, long waitMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            while (caughtUp()) {
+                if (waitNanos <= 0) {
+                    return 0;
+                }
+                waitNanos = notEmpty.awaitNanos(waitNanos);
+            }
+            int count = 0;
+            while (count < max && !caughtUp()) {
+                ByteBuffer buffer = readBuffer();
+                buffer.position(readOffset);
+                DeviceData[] holder = new DeviceData[1];
+                if (readRecord(buffer, holder)) {
+                    if (replaying && comparePosition(readSegment, readOffset, replayEndSegment, replayEndOffset) < 0) {
+                        //上次运行的时候可能已经写过库
+                        holder[0].setReplayed(true);
+                        replayedCount.incrementAndGet();
+                    }
+                    readOffset = buffer.position();
+                    out.add(holder[0]);
+                    uncommittedReadCount++;
+                    count++;
+                } else if (readSegment < writeSegment) {
+                    //分段写完了或者尾部损坏，切到下一个分段
+                    readSegment++;
+                    readOffset = 0;
+                    readBuffer = null;
+                } else {
+                    break;
+                }
+            }
+            return count;
+        } catch (IOException e) {
+            logger.error("读取预写日志失败:" + e.getMessage());
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 已读出的数据写库成功，推进检查点并删除已经写完的分段
+     * 检查点的fsync不占用追加用的锁，不会卡住生产者；只有写库线程调用
+     */
+    public void commit() {
+        long previousSegment;
+        long segment;
+        int offset;
+        lock.lock();
+        try {
+            previousSegment = committedSegment;
+            committedSegment = readSegment;
+            committedOffset = readOffset;
+            segment = committedSegment;
+            offset = committedOffset;
+            committedCount.addAndGet(uncommittedReadCount);
+            uncommittedReadCount = 0;
+            if (replaying && comparePosition(committedSegment, committedOffset, replayEndSegment, replayEndOffset) >= 0) {
+                replaying = false;
+                replayMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - replayStartNanos);
+                logger.info("预写日志重放完成,共[" + replayedCount.get() + "]条,耗时[" + replayMillis + "ms]");
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            checkpointFile.seek(0);
+            checkpointFile.writeLong(segment);
+            checkpointFile.writeInt(offset);
+            if (fsyncPolicy != SpoolFsyncPolicy.NEVER) {
+                checkpointFile.getFD().sync();
+            }
+        } catch (IOException e) {
+            logger.error("写预写日志检查点失败:" + e.getMessage());
+            return;
+        }
+        //检查点落盘以后再删分段，读写位置都已经在这些分段后面
+        for (long index = previousSegment; index < segment; index++) {
+            deleteSegment(segmentFile(index));
+        }
+    }
+
+    /**
+     * 写库失败，读取位置退回检查点，下次重新读
+     */
+    public void rewind() {
+        lock.lock();
+        try {
+            if (readSegment != committedSegment) {
+                readBuffer = null;
+            }
+            readSegment = committedSegment;
+            readOffset = committedOffset;
+            uncommittedReadCount = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("enabled", enabled);
+        if (!enabled) {
+            return data;
+        }
+        lock.lock();
+        try {
+            data.put("fsync", fsyncPolicy);
+            data.put("writeSegment", writeSegment);
+            data.put("committedSegment", committedSegment);
+            data.put("committedOffset", committedOffset);
+        } finally {
+            lock.unlock();
+        }
+        data.put("appended", appendedCount.get());
+        data.put("committed", committedCount.get());
+        long replayed = replayedCount.get();
+        long millis = replaying
+                ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - replayStartNanos)
+                : replayMillis;
+        data.put("replaying", replaying);
+        data.put("replayed", replayed);
+        data.put("replayMillis", millis);
+        data.put("replayPerSecond", millis == 0 ? 0 : replayed * 1000 / millis);
+        return data;
+    }
+
+    private boolean caughtUp() {
+        return readSegment == writeSegment && readOffset >= writeBuffer.position();
+    }
+
+    private ByteBuffer readBuffer() throws IOException {
+        if (readSegment == writeSegment) {
+            return writeBuffer.duplicate();
+        }
+        if (readBuffer == null) {
+            try (RandomAccessFile file = new RandomAccessFile(segmentFile(readSegment), "r")) {
+                readBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            }
+        }
+        return readBuffer.duplicate();
+    }
+
+    /**
+     * 读取一条记录并校验，成功时buffer位置移到下一条记录
+     *
+     * @param buffer
+     * @param holder 为null时只校验不解析
+     * @return 是否读到一条完整的记录
+     */
+    private boolean readRecord(ByteBuffer buffer, DeviceData[] holder) {
+        int start = buffer.position();
+        if (buffer.limit() - start < HEADER_SIZE) {
+            return false;
+        }
+        int bodyLength = buffer.getInt(start);
+        int checksum = buffer.getInt(start + 4);
+        if (bodyLength < FIXED_BODY_SIZE || bodyLength > buffer.limit() - start - HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER_SIZE);
+        body.limit(start + HEADER_SIZE + bodyLength);
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return false;
+        }
+        if (holder != null) {
+            DeviceData deviceData = new DeviceData();
+            deviceData.setId(body.getLong());
+            deviceData.setCreateTime(new Date(body.getLong()));
+            Device device = new Device();
+            device.setId(body.getLong());
+            deviceData.setDevice(device);
+            int typeField = body.getShort() & 0xffff;
+            byte[] type = new byte[typeField & ~ENCODING_FLAG];
+            body.get(type);
+            byte[] encoding = null;
+            if ((typeField & ENCODING_FLAG) != 0) {
+                encoding = new byte[body.getShort()];
+                body.get(encoding);
+            }
+            byte[] data = new byte[body.remaining()];
+            body.get(data);
+            deviceData.setType(type.length == 0 ? null : new String(type, StandardCharsets.UTF_8));
+            if (encoding != null) {
+                deviceData.setEncoding(new String(encoding, StandardCharsets.UTF_8));
+                deviceData.setPayload(data);
+            } else {
+                //读出来的数据保持字节形式，写库的时候不再解码
+                deviceData.setRawData(data);
+            }
+            holder[0] = deviceData;
+        }
+        buffer.position(start + HEADER_SIZE + bodyLength);
+        return true;
+    }
+
+    private void rollSegment() throws IOException {
+        if (writeBuffer.remaining() >= 4) {
+            writeBuffer.putInt(writeBuffer.position(), 0);
+        }
+        writeBuffer.force();
+        writeSegment++;
+        writeBuffer = mapSegment(writeSegment);
+    }
+
+    private void force() {
+        List<Runnable> acks;
+        lock.lock();
+        try {
+            if (writeBuffer != null) {
+                writeBuffer.force();
+            }
+            acks = pendingAcks;
+            pendingAcks = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        //同一次fsync覆盖的消息一起确认
+        for (Runnable ack : acks) {
+            ack.run();
+        }
+    }
+
+    private MappedByteBuffer mapSegment(long index) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(index), "rw")) {
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    private File segmentFile(long index) {
+        return new File(directory, String.format("%020d", index) + SEGMENT_SUFFIX);
+    }
+
+    private TreeMap<Long, File> listSegments() {
+        TreeMap<Long, File> segments = new TreeMap<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            }
+        }
+        return segments;
+    }
+
+    private void deleteSegment(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warn("删除预写日志分段失败:" + file.getName());
+        }
+    }
+
+    private static int comparePosition(long segmentA, int offsetA, long segmentB, int offsetB) {
+        if (segmentA != segmentB) {
+            return segmentA < segmentB ? -1 : 1;
+        }
+        return Integer.compare(offsetA, offsetB);
+    }
+}
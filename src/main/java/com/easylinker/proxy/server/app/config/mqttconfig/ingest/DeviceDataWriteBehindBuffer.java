@@ -0,0 +1,435 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.model.device.DeviceData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DeviceData 异步批量写入(write-behind)
+ * MQTT回调线程只负责入队，后台线程攒够 batchSize 条或者等满 flushInterval 毫秒以后
+ * 用一次JDBC batch + 一个事务写库，避免每条消息一个事务一次INSERT
+ * 开启预写日志(DeviceDataSpool)以后从预写日志读数据写库；写库顺序见 FairIngestQueue，写不进去的行见 DeviceDataDeadLetter
+ */
+@Component
+public class DeviceDataWriteBehindBuffer {
+    //重放的数据(DeviceData.isReplayed)可能已经写过，主键冲突(1062)的按重复跳过；新生成的ID冲突说明节点号重复，转死信
+    private static final String INSERT_SQL = "INSERT INTO device_data (id, is_delete, create_time, data, device_id, type, encoding, payload) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    Logger logger = LoggerFactory.getLogger(DeviceDataWriteBehindBuffer.class);
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+    @Autowired
+    DeviceDataSpool deviceDataSpool;
+    @Autowired
+    DeviceDataDeadLetter deviceDataDeadLetter;
+    @Autowired
+    IngestQuota ingestQuota;
+    @Autowired
+    IngestLatency ingestLatency;
+    @Autowired
+    DeviceRegistry deviceRegistry;
+    @Value("${ingest.batch.size:500}")
+    int batchSize;
+    @Value("${ingest.batch.interval:200}")
+    long flushInterval;
+    @Value("${ingest.batch.queue-capacity:100000}")
+    int queueCapacity;
+    @Value("${ingest.spool.retry-interval:1000}")
+    long retryInterval;
+    @Value("${ingest.spool.max-retries:10}")
+    int maxRetries;
+    @Value("${ingest.spool.fair-window:5000}")
+    int fairWindow;
+    @Value("${ingest.batch.fair-quantum:4096}")
+    int fairQuantum;
+    @Value("${ingest.priority.weights:}")
+    int[] priorityWeights;
+
+    private FairIngestQueue queue;
+    private TransactionTemplate transactionTemplate;
+    private Thread flushThread;
+    private volatile boolean running;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong flushedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong acknowledgedCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong idCollisionCount = new AtomicLong();
+    private final AtomicLong flushNanosTotal = new AtomicLong();
+    private volatile long lastFlushNanos;
+    private volatile long maxFlushNanos;
+
+    @PostConstruct
+    public void start() {
+        queue = new FairIngestQueue(queueCapacity, fairQuantum, ingestQuota::getWeight, priorityWeights);
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        running = true;
+        flushThread = new Thread(deviceDataSpool.isEnabled() ? this::spoolFlushLoop : this::flushLoop, "device-data-write-behind");
+        flushThread.setDaemon(true);
+        flushThread.start();
+        logger.info("DeviceData批量写入启动,batchSize=[" + batchSize + "] interval=[" + flushInterval + "ms]");
+    }
+
+    /**
+     * 停止前把队列里剩下的数据全部写完
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        flushThread.join(flushInterval + 30000);
+    }
+
+    /**
+     * 数据入队,队列满的时候阻塞调用线程,相当于把压力反馈给MQTT客户端
+     * 开启预写日志的时候直接追加到预写日志
+     *
+     * @param userId     设备拥有者，按用户公平调度
+     * @param deviceData
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public void offer(long userId, DeviceData deviceData) throws InterruptedException, IOException {
+        if (deviceDataSpool.isEnabled()) {
+            deviceDataSpool.append(deviceData);
+        } else {
+            queue.put(IngestClass.ofDeviceDataType(deviceData.getType()), userId, deviceData);
+        }
+        enqueuedCount.incrementAndGet();
+    }
+
+    private void flushLoop() {
+        List<DeviceData> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                if (queue.drainTo(batch, batchSize, flushInterval, TimeUnit.MILLISECONDS) == 0) {
+                    continue;
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || queue.drainTo(batch, batchSize - batch.size(), remaining, TimeUnit.NANOSECONDS) == 0) {
+                        break;
+                    }
+                }
+                flushAndAcknowledge(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (flush(batch)) {
+                    acknowledge(batch);
+                }
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 从预写日志按窗口读数据，经过内存队列按优先级和用户公平分批写库，整个窗口写完推进检查点
+     * 预写日志只有一个读取位置，优先级和用户公平只在一个窗口(fairWindow 条)之内生效，窗口之间按追加顺序；
+     * 积压很多的时候排在后面的指令回复要等前面的窗口写完，需要完整的优先级和公平调度就关掉预写日志
+     * 写库失败原地重试，停止的时候还没写完的窗口退回检查点，重启以后重放，已经写过的按主键重复跳过
+     */
+    private void spoolFlushLoop() {
+        //窗口不能超过内存队列的容量，否则放不进去
+        int windowSize = Math.max(batchSize, Math.min(fairWindow, queueCapacity));
+        List<DeviceData> window = new ArrayList<>(windowSize);
+        List<DeviceData> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                if (deviceDataSpool.read(window, windowSize, flushInterval) == 0) {
+                    if (!running) {
+                        return;
+                    }
+                    continue;
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                while (window.size() < batchSize) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0 || deviceDataSpool.read(window, batchSize - window.size(), remaining) == 0) {
+                        break;
+                    }
+                }
+                deviceDataSpool.read(window, windowSize - window.size(), 0);
+                for (DeviceData deviceData : window) {
+                    queue.offer(IngestClass.ofDeviceDataType(deviceData.getType()), ownerOf(deviceData), deviceData);
+                }
+                while (queue.drainTo(batch, batchSize, 0, TimeUnit.MILLISECONDS) > 0) {
+                    if (!flushWithRetry(batch)) {
+                        queue.clear();
+                        deviceDataSpool.rewind();
+                        return;
+                    }
+                    recordLatency(batch);
+                    batch.clear();
+                }
+                deviceDataSpool.commit();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queue.clear();
+                deviceDataSpool.rewind();
+                return;
+            } finally {
+                window.clear();
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 预写日志里没有保存用户，按设备的拥有者调度，设备已经删除的算在0号用户
+     */
+    private long ownerOf(DeviceData deviceData) {
+        long ownerId = deviceRegistry.findOwnerId(deviceData.getDevice().getId());
+        return ownerId == DeviceRegistry.ABSENT ? 0L : ownerId;
+    }
+
+    /**
+     * 失败的时候隔 retryInterval 重试，同一批连续失败 maxRetries 次以后逐条写，写不进去的转死信；
+     * 数据库不可用的时候一直重试，直到成功或者停止
+     *
+     * @return false表示停止的时候还没写完
+     */
+    private boolean flushWithRetry(List<DeviceData> batch) throws InterruptedException {
+        int failures = 0;
+        while (!flush(batch) && !(++failures >= maxRetries && writeOneByOne(batch, true))) {
+            if (!running) {
+                return false;
+            }
+            Thread.sleep(retryInterval);
+        }
+        return true;
+    }
+
+    /**
+     * 写库成功以后确认；批次里有等待确认的消息时失败重试，直到成功或者停止
+     */
+    private void flushAndAcknowledge(List<DeviceData> batch) throws InterruptedException {
+        int failures = 0;
+        while (!flush(batch) && !(++failures >= maxRetries && writeOneByOne(batch, true))) {
+            if (!running || !hasAcknowledgement(batch)) {
+                return;
+            }
+            Thread.sleep(retryInterval);
+        }
+        acknowledge(batch);
+        recordLatency(batch);
+    }
+
+    /**
+     * 记录从消息到达(createTime)到提交的延迟
+     */
+    private void recordLatency(List<DeviceData> batch) {
+        for (DeviceData deviceData : batch) {
+            ingestLatency.record(IngestClass.ofDeviceDataType(deviceData.getType()), deviceData.getCreateTime().getTime());
+        }
+    }
+
+    private static boolean hasAcknowledgement(List<DeviceData> batch) {
+        for (DeviceData deviceData : batch) {
+            if (deviceData.getAcknowledgement() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void acknowledge(List<DeviceData> batch) {
+        for (DeviceData deviceData : batch) {
+            if (deviceData.getAcknowledgement() != null) {
+                deviceData.getAcknowledgement().run();
+                acknowledgedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean flush(final List<DeviceData> batch) {
+        if (batch.isEmpty()) {
+            return true;
+        }
+        boolean success = true;
+        long begin = System.nanoTime();
+        try {
+            transactionTemplate.execute(status -> jdbcTemplate.batchUpdate(INSERT_SQL, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    DeviceDataWriteBehindBuffer.setValues(ps, batch.get(i));
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return batch.size();
+                }
+            }));
+            flushedCount.addAndGet(batch.size());
+        } catch (Exception e) {
+            boolean retryable = deviceDataSpool.isEnabled() || hasAcknowledgement(batch);
+            if (e instanceof DataIntegrityViolationException || !retryable) {
+                //某一行的问题(重放的重复数据、坏数据)或者没有地方重试，逐条写，一条坏数据不影响同一批的其他数据
+                logger.error("批量写入设备数据失败,改为逐条写入[" + batch.size() + "]条:" + e.getMessage());
+                success = writeOneByOne(batch, retryable);
+            } else if (deviceDataSpool.isEnabled()) {
+                success = false;
+                //提交的时候断开的话不知道有没有写进去，重试的时候主键冲突算重复
+                markReplayed(batch);
+                failedCount.addAndGet(batch.size());
+                logger.error("批量写入设备数据失败,[" + batch.size() + "]条保留在预写日志中稍后重试:" + e.getMessage());
+            } else {
+                success = false;
+                markReplayed(batch);
+                failedCount.addAndGet(batch.size());
+                logger.error("批量写入设备数据失败,[" + batch.size() + "]条未确认,稍后重试:" + e.getMessage());
+            }
+        }
+        long cost = System.nanoTime() - begin;
+        batchCount.incrementAndGet();
+        flushNanosTotal.addAndGet(cost);
+        lastFlushNanos = cost;
+        if (cost > maxFlushNanos) {
+            maxFlushNanos = cost;
+        }
+        return success;
+    }
+
+    /**
+     * 逐条写库，重放的数据主键重复的是已经写过的，跳过；写不进去的转入死信文件
+     * 中途停下来的时候整批标记为重放，已经写进去的在重试的时候按主键重复跳过
+     *
+     * @param batch
+     * @param stopWhenUnavailable 数据库不可用(连不上、超时、死锁)的时候停下来稍后重试，不转死信
+     * @return 是否全部处理完
+     */
+    private boolean writeOneByOne(List<DeviceData> batch, boolean stopWhenUnavailable) {
+        List<DeviceData> rejected = new ArrayList<>();
+        String reason = null;
+        boolean completed = true;
+        for (DeviceData deviceData : batch) {
+            try {
+                jdbcTemplate.update(INSERT_SQL, ps -> setValues(ps, deviceData));
+                flushedCount.incrementAndGet();
+            } catch (DuplicateKeyException e) {
+                if (deviceData.isReplayed()) {
+                    duplicateCount.incrementAndGet();
+                    continue;
+                }
+                //新生成的ID不会和已有数据重复，除非两个实例用了同一个节点号
+                idCollisionCount.incrementAndGet();
+                logger.error("设备数据ID[" + deviceData.getId() + "]主键冲突,检查各实例的 ingest.id.node 是否重复");
+                rejected.add(deviceData);
+                reason = e.getMessage();
+            } catch (Exception e) {
+                if (stopWhenUnavailable && isUnavailable(e)) {
+                    logger.error("逐条写入设备数据失败,数据库不可用,稍后重试:" + e.getMessage());
+                    markReplayed(batch);
+                    completed = false;
+                    break;
+                }
+                rejected.add(deviceData);
+                reason = e.getMessage();
+            }
+        }
+        failedCount.addAndGet(rejected.size());
+        deviceDataDeadLetter.write(rejected, reason);
+        return completed;
+    }
+
+    private static void markReplayed(List<DeviceData> batch) {
+        for (DeviceData deviceData : batch) {
+            deviceData.setReplayed(true);
+        }
+    }
+
+    /**
+     * 数据库本身的问题，和数据无关，换一条数据也一样失败
+     */
+    private static boolean isUnavailable(Exception e) {
+        return !(e instanceof DataAccessException)
+                || e instanceof DataAccessResourceFailureException
+                || e instanceof TransientDataAccessException
+                || e instanceof RecoverableDataAccessException;
+    }
+
+    private static void setValues(PreparedStatement ps, DeviceData deviceData) throws SQLException {
+        ps.setLong(1, deviceData.getId());
+        ps.setInt(2, deviceData.getIsDelete());
+        ps.setTimestamp(3, new Timestamp(deviceData.getCreateTime().getTime()));
+        if (deviceData.getEncoding() != null) {
+            ps.setNull(4, Types.LONGVARCHAR);
+        } else if (deviceData.getRawData() != null) {
+            ps.setBytes(4, deviceData.getRawData());
+        } else {
+            ps.setString(4, deviceData.getData());
+        }
+        ps.setLong(5, deviceData.getDevice().getId());
+        ps.setString(6, deviceData.getType());
+        ps.setString(7, deviceData.getEncoding());
+        ps.setBytes(8, deviceData.getPayload());
+    }
+
+    /**
+     * 当前队列深度
+     *
+     * @return
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * 写入统计
+     *
+     * @return
+     */
+    public JSONObject getStatistics() {
+        long batches = batchCount.get();
+        JSONObject data = new JSONObject();
+        data.put("queueDepth", queue.size());
+        data.put("queueCapacity", queueCapacity);
+        data.put("batchSize", batchSize);
+        data.put("flushInterval", flushInterval);
+        data.put("enqueued", enqueuedCount.get());
+        data.put("flushed", flushedCount.get());
+        data.put("failed", failedCount.get());
+        data.put("batches", batches);
+        data.put("acknowledged", acknowledgedCount.get());
+        data.put("duplicates", duplicateCount.get());
+        data.put("idCollisions", idCollisionCount.get());
+        data.put("lastFlushMillis", TimeUnit.NANOSECONDS.toMillis(lastFlushNanos));
+        data.put("maxFlushMillis", TimeUnit.NANOSECONDS.toMillis(maxFlushNanos));
+        data.put("avgFlushMillis", batches == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(flushNanosTotal.get() / batches));
+        data.put("spool", deviceDataSpool.getStatistics());
+        data.put("deadLetter", deviceDataDeadLetter.getStatistics());
+        data.put("queues", queue.getStatistics());
+        return data;
+    }
+}
@@ -0,0 +1,631 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.dao.DeviceRepository;
+import com.easylinker.proxy.server.app.model.base.BaseEntity;
+import com.easylinker.proxy.server.app.model.device.Device;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 入站消息热路径用的设备注册表
+ * 以设备ID(long)为键的开放寻址哈希表，每台设备只保存 拥有者ID、分组ID、allow/access、在线 这几个字段，
+ * 全部放在原始类型数组里，每个槽位25字节，1000万台设备大约400MB；
+ * 启动时多线程分段从数据库加载，DeviceService 保存、删除设备的时候同步更新；
+ * 表里查不到的设备(比如别的实例刚创建的)回查数据库，数据库里也没有的记一个短期的不存在标记，
+ * 避免不存在的设备ID每条消息都打到数据库；
+ * 别的实例修改、删除的设备每隔 refresh-interval 整表重新加载一次才能看到，重新加载期间新旧两张表同时占内存
+ * Topic不单独保存，按 IN/DEVICE/{拥有者}/{分组}/{设备} 规则生成
+ */
+@Component
+public class DeviceRegistry {
+    /**
+     * 设备不存在
+     */
+    public static final long ABSENT = -1L;
+    /**
+     * 设备存在但是没有绑定用户(默认分组)
+     */
+    public static final long UNBOUND = 0L;
+    private static final String LOAD_SQL = "SELECT id, app_user_id, device_group_id, allow, access, is_online FROM device WHERE id >= ? AND id <= ?";
+    private static final int FLAG_ALLOW = 1;
+    private static final int FLAG_ONLINE = 2;
+    private static final int ACCESS_SHIFT = 2;
+    private static final int LOAD_BUFFER_SIZE = 4096;
+    private static final int SLOT_BYTES = 8 + 8 + 8 + 1;
+    private static final int MIN_CAPACITY = 1024;
+
+    Logger logger = LoggerFactory.getLogger(DeviceRegistry.class);
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Autowired
+    DeviceRepository deviceRepository;
+    @Value("${ingest.registry.loader-threads:4}")
+    int loaderThreads;
+    @Value("${ingest.registry.negative-ttl-ms:30000}")
+    long negativeTtl;
+    @Value("${ingest.registry.negative-cache-size:100000}")
+    int negativeCacheSize;
+    @Value("${ingest.registry.refresh:true}")
+    boolean refreshEnabled;
+
+    private final StampedLock lock = new StampedLock();
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private volatile boolean loaded;
+    private volatile long loadMillis;
+    private volatile long lastRefreshTime;
+    private final AtomicBoolean loading = new AtomicBoolean();
+    /**
+     * 加载期间本地改过的设备ID，加载完以后按当前表覆盖到新表上，不在加载的时候为null；写锁保护
+     */
+    private Set<Long> modifiedDuringLoad;
+    /**
+     * 数据库里也不存在的设备ID -> 标记过期时间
+     */
+    private final ConcurrentHashMap<Long, Long> absent = new ConcurrentHashMap<>();
+
+    /**
+     * 后台加载，表里查不到的设备回退到数据库查询
+     */
+    @PostConstruct
+    public void start() {
+        Thread loader = new Thread(this::load, "device-registry-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * 整表重新加载，同步别的实例修改、删除的设备；启动时加载失败的也在这里重试
+     */
+    @Scheduled(fixedDelayString = "${ingest.registry.refresh-interval:300000}", initialDelayString = "${ingest.registry.refresh-interval:300000}")
+    public void refresh() {
+        if (refreshEnabled || !loaded) {
+            load();
+        }
+    }
+
+    /**
+     * 设备的拥有者ID
+     *
+     * @param deviceId
+     * @return ABSENT 表示设备不存在，UNBOUND 表示设备没有绑定用户
+     */
+    public long findOwnerId(long deviceId) {
+        long stamp = lock.tryOptimisticRead();
+        Table t = table;
+        int i = t.indexOf(deviceId);
+        long owner = i < 0 ? ABSENT : t.owners[i];
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                t = table;
+                i = t.indexOf(deviceId);
+                owner = i < 0 ? ABSENT : t.owners[i];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (owner == ABSENT) {
+            owner = loadOne(deviceId);
+        }
+        return owner;
+    }
+
+    public boolean contains(long deviceId) {
+        return findOwnerId(deviceId) != ABSENT;
+    }
+
+    /**
+     * 设备的分组ID，设备不存在或者没有分组返回0
+     *
+     * @param deviceId
+     * @return
+     */
+    public long findGroupId(long deviceId) {
+        long stamp = lock.readLock();
+        try {
+            Table t = table;
+            int i = t.indexOf(deviceId);
+            return i < 0 ? 0L : t.groups[i];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public boolean isAllowed(long deviceId) {
+        return (flagsOf(deviceId) & FLAG_ALLOW) != 0;
+    }
+
+    public boolean isOnline(long deviceId) {
+        return (flagsOf(deviceId) & FLAG_ONLINE) != 0;
+    }
+
+    /**
+     * 1: subscribe, 2: publish, 3: pubsub，设备不存在返回0
+     *
+     * @param deviceId
+     * @return
+     */
+    public int getAccess(long deviceId) {
+        return (flagsOf(deviceId) >>> ACCESS_SHIFT) & 3;
+    }
+
+    /**
+     * 按规则生成设备的Topic，设备不存在返回null
+     *
+     * @param deviceId
+     * @return
+     */
+    public String getTopic(long deviceId) {
+        long stamp = lock.readLock();
+        try {
+            Table t = table;
+            int i = t.indexOf(deviceId);
+            if (i < 0) {
+                return null;
+            }
+            if (t.owners[i] == UNBOUND) {
+                return "IN/DEVICE/DEFAULT_USER/DEFAULT_GROUP/" + deviceId;
+            }
+            return "IN/DEVICE/" + t.owners[i] + "/" + t.groups[i] + "/" + deviceId;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 只带ID的设备引用，用来挂到 DeviceData 上，写库只用到设备ID，不需要查出整个实体
+     *
+     * @param deviceId
+     * @return
+     */
+    public Device reference(long deviceId) {
+        Device device = new Device();
+        device.setId(deviceId);
+        return device;
+    }
+
+    /**
+     * 新增或者更新设备
+     *
+     * @param device
+     */
+    public void put(Device device) {
+        absent.remove(device.getId());
+        long stamp = lock.writeLock();
+        try {
+            table = table.put(device.getId(), idOf(device.getAppUser()), idOf(device.getDeviceGroup()),
+                    flagsOf(device.getAllow(), device.getAccess(), device.isOnline()));
+            modified(device.getId());
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void setOnline(long deviceId, boolean online) {
+        long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int i = t.indexOf(deviceId);
+            if (i >= 0) {
+                t.flags[i] = (byte) (online ? t.flags[i] | FLAG_ONLINE : t.flags[i] & ~FLAG_ONLINE);
+                modified(deviceId);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void remove(long deviceId) {
+        long stamp = lock.writeLock();
+        try {
+            table.remove(deviceId);
+            modified(deviceId);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 删除一个分组下的全部设备，分组删除的时候设备会被级联删除
+     * 扫描整张表只拿读锁，不挡热路径上的查询；删除的时候再确认一遍设备还在这个分组里
+     *
+     * @param groupId
+     */
+    public void removeGroup(long groupId) {
+        List<Long> deviceIds = new ArrayList<>();
+        long stamp = lock.readLock();
+        try {
+            Table t = table;
+            for (int i = 0; i < t.keys.length; i++) {
+                if (t.keys[i] != 0 && t.groups[i] == groupId) {
+                    deviceIds.add(t.keys[i]);
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        if (deviceIds.isEmpty()) {
+            return;
+        }
+        stamp = lock.writeLock();
+        try {
+            Table t = table;
+            for (Long deviceId : deviceIds) {
+                int i = t.indexOf(deviceId);
+                if (i >= 0 && t.groups[i] == groupId) {
+                    t.remove(deviceId);
+                    modified(deviceId);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return table.size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 注册表统计
+     *
+     * @return
+     */
+    public JSONObject getStatistics() {
+        long stamp = lock.readLock();
+        try {
+            JSONObject data = new JSONObject();
+            data.put("size", table.size);
+            data.put("capacity", table.keys.length);
+            data.put("memoryBytes", (long) table.keys.length * SLOT_BYTES);
+            data.put("loaded", loaded);
+            data.put("loadMillis", loadMillis);
+            data.put("lastRefreshTime", lastRefreshTime);
+            data.put("absent", absent.size());
+            return data;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private int flagsOf(long deviceId) {
+        long stamp = lock.readLock();
+        try {
+            Table t = table;
+            int i = t.indexOf(deviceId);
+            return i < 0 ? 0 : t.flags[i];
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 把整张 device 表加载到一张新表里再替换当前表，加载期间本地改过的设备以当前表为准
+     */
+    private void load() {
+        if (!loading.compareAndSet(false, true)) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        long stamp = lock.writeLock();
+        try {
+            modifiedDuringLoad = new HashSet<>();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        Table fresh = null;
+        try {
+            fresh = loadTable();
+        } catch (Exception e) {
+            logger.error("设备注册表加载失败,查询回退到数据库:" + e.getMessage());
+        }
+        stamp = lock.writeLock();
+        try {
+            if (fresh != null) {
+                Table current = table;
+                for (Long deviceId : modifiedDuringLoad) {
+                    int i = current.indexOf(deviceId);
+                    if (i < 0) {
+                        fresh.remove(deviceId);
+                    } else {
+                        fresh = fresh.put(deviceId, current.owners[i], current.groups[i], current.flags[i]);
+                    }
+                }
+                table = fresh;
+            }
+            modifiedDuringLoad = null;
+        } finally {
+            lock.unlockWrite(stamp);
+            loading.set(false);
+        }
+        if (fresh == null) {
+            return;
+        }
+        lastRefreshTime = System.currentTimeMillis();
+        if (!loaded) {
+            loadMillis = lastRefreshTime - begin;
+            loaded = true;
+            logger.info("设备注册表加载完成,设备数[" + size() + "] 耗时[" + loadMillis + "ms]");
+        }
+    }
+
+    private Table loadTable() throws Exception {
+        long[] range = jdbcTemplate.queryForObject("SELECT MIN(id), MAX(id), COUNT(*) FROM device",
+                (rs, rowNum) -> new long[]{rs.getLong(1), rs.getLong(2), rs.getLong(3)});
+        Table[] fresh = {new Table(Table.capacityFor((int) range[2]))};
+        if (range[2] == 0) {
+            return fresh[0];
+        }
+        int partitions = Math.max(1, loaderThreads) * 4;
+        long step = Math.max(1L, (range[1] - range[0]) / partitions + 1);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, loaderThreads));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (long low = range[0]; low <= range[1]; low += step) {
+                final long from = low;
+                final long to = Math.min(range[1], low + step - 1);
+                futures.add(executor.submit(() -> loadRange(from, to, fresh)));
+                if (to == range[1]) {
+                    break;
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return fresh[0];
+    }
+
+    private void loadRange(long from, long to, Table[] fresh) {
+        final long[] ids = new long[LOAD_BUFFER_SIZE];
+        final long[] owners = new long[LOAD_BUFFER_SIZE];
+        final long[] groups = new long[LOAD_BUFFER_SIZE];
+        final byte[] flags = new byte[LOAD_BUFFER_SIZE];
+        final int[] count = new int[1];
+        jdbcTemplate.query(LOAD_SQL, new Object[]{from, to}, (RowCallbackHandler) rs -> {
+            int n = count[0];
+            ids[n] = rs.getLong(1);
+            owners[n] = rs.getLong(2);
+            groups[n] = rs.getLong(3);
+            flags[n] = flagsOf((Integer) rs.getObject(4), (Integer) rs.getObject(5), rs.getBoolean(6));
+            count[0] = ++n;
+            if (n == LOAD_BUFFER_SIZE) {
+                putAll(fresh, ids, owners, groups, flags, n);
+                count[0] = 0;
+            }
+        });
+        putAll(fresh, ids, owners, groups, flags, count[0]);
+    }
+
+    /**
+     * 几个加载线程写同一张新表，新表还没有发布出去，不用注册表的锁
+     */
+    private static void putAll(Table[] fresh, long[] ids, long[] owners, long[] groups, byte[] flags, int n) {
+        synchronized (fresh) {
+            for (int i = 0; i < n; i++) {
+                fresh[0] = fresh[0].put(ids[i], owners[i], groups[i], flags[i]);
+            }
+        }
+    }
+
+    /**
+     * 写锁内调用
+     */
+    private void modified(long deviceId) {
+        if (modifiedDuringLoad != null) {
+            modifiedDuringLoad.add(deviceId);
+        }
+    }
+
+    /**
+     * 表里没有的设备回查数据库，查不到的在 negativeTtl 内不再查
+     */
+    private long loadOne(long deviceId) {
+        long now = System.currentTimeMillis();
+        Long expireAt = absent.get(deviceId);
+        if (expireAt != null) {
+            if (expireAt > now) {
+                return ABSENT;
+            }
+            absent.remove(deviceId, expireAt);
+        }
+        Device device = deviceRepository.findTopById(deviceId);
+        if (device == null) {
+            markAbsent(deviceId, now);
+            return ABSENT;
+        }
+        put(device);
+        return idOf(device.getAppUser());
+    }
+
+    /**
+     * 标记满了先清理过期的，还是满的话整个清空，大不了多查几次数据库
+     */
+    private void markAbsent(long deviceId, long now) {
+        if (negativeTtl <= 0) {
+            return;
+        }
+        if (absent.size() >= negativeCacheSize) {
+            absent.values().removeIf(expireAt -> expireAt <= now);
+            if (absent.size() >= negativeCacheSize) {
+                absent.clear();
+            }
+        }
+        absent.put(deviceId, now + negativeTtl);
+    }
+
+    private static byte flagsOf(Integer allow, Integer access, boolean online) {
+        int flags = 0;
+        if (allow == null || allow != 0) {
+            flags |= FLAG_ALLOW;
+        }
+        flags |= ((access == null ? 3 : access) & 3) << ACCESS_SHIFT;
+        if (online) {
+            flags |= FLAG_ONLINE;
+        }
+        return (byte) flags;
+    }
+
+    private static long idOf(BaseEntity entity) {
+        return entity == null || entity.getId() == null ? 0L : entity.getId();
+    }
+
+    /**
+     * 一组平行数组，扩容的时候整体替换，乐观读拿到的一定是同一张表
+     */
+    private static final class Table {
+        final long[] keys;
+        final long[] owners;
+        final long[] groups;
+        final byte[] flags;
+        final int threshold;
+        int size;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            owners = new long[capacity];
+            groups = new long[capacity];
+            flags = new byte[capacity];
+            threshold = capacity / 4 * 3;
+        }
+
+        static int capacityFor(int expected) {
+            int capacity = MIN_CAPACITY;
+            while (expected > capacity / 4 * 3) {
+                capacity <<= 1;
+            }
+            return capacity;
+        }
+
+        static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        /**
+         * 新增或者覆盖，装不下的时候扩容
+         *
+         * @return 扩容以后的新表，没有扩容返回自己
+         */
+        Table put(long id, long owner, long group, byte flag) {
+            int i = slotOf(id);
+            if (keys[i] == 0) {
+                if (size + 1 > threshold) {
+                    return resize(size + 1).put(id, owner, group, flag);
+                }
+                keys[i] = id;
+                size++;
+            }
+            owners[i] = owner;
+            groups[i] = group;
+            flags[i] = flag;
+            return this;
+        }
+
+        /**
+         * 线性探测表的删除：把后面同一探测链上的记录往前挪，不留墓碑
+         */
+        void remove(long id) {
+            int mask = keys.length - 1;
+            int i = slotOf(id);
+            if (keys[i] == 0) {
+                return;
+            }
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                long key = keys[j];
+                if (key == 0) {
+                    break;
+                }
+                int home = hash(key) & mask;
+                boolean stay = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stay) {
+                    keys[i] = key;
+                    owners[i] = owners[j];
+                    groups[i] = groups[j];
+                    flags[i] = flags[j];
+                    i = j;
+                }
+            }
+            keys[i] = 0;
+            owners[i] = 0;
+            groups[i] = 0;
+            flags[i] = 0;
+            size--;
+        }
+
+        private Table resize(int expected) {
+            Table resized = new Table(capacityFor(expected));
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    int slot = resized.slotOf(keys[i]);
+                    resized.keys[slot] = keys[i];
+                    resized.owners[slot] = owners[i];
+                    resized.groups[slot] = groups[i];
+                    resized.flags[slot] = flags[i];
+                }
+            }
+            resized.size = size;
+            return resized;
+        }
+
+        /**
+         * key所在的槽位，没有的话返回应该插入的空槽位
+         */
+        int slotOf(long key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        /**
+         * 乐观读的时候表可能正在被修改，最多探测一整圈
+         */
+        int indexOf(long key) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            for (int n = 0; n < keys.length; n++) {
+                long current = keys[i];
+                if (current == key) {
+                    return i;
+                }
+                if (current == 0) {
+                    return -1;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+    }
+}
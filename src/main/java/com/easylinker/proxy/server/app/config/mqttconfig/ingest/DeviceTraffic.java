@@ -0,0 +1,278 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.model.device.Device;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 每台设备的消息条数、字节数、最后一条消息的时间和类型
+ * 入站消息只在内存里累加(LongAdder，不加锁)，后台每隔 flush-interval 毫秒把增量批量写回 device 表，
+ * 不用每条消息写一次库；一段时间没有消息并且已经写回的设备从内存里移除
+ * 最后活跃时间只会往后更新，上下线事件先写进去的更晚的时间不会被这里覆盖
+ * device 表里的累计值只由这里更新，Device 实体上对应的字段不参与JPA的插入和更新
+ */
+@Component
+public class DeviceTraffic {
+    private static final String UPDATE_SQL = "UPDATE device SET message_count = COALESCE(message_count, 0) + ?, byte_count = COALESCE(byte_count, 0) + ?, "
+            + "last_active_date = GREATEST(COALESCE(last_active_date, ?), ?), last_message_type = ? WHERE id = ?";
+    Logger logger = LoggerFactory.getLogger(DeviceTraffic.class);
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Value("${ingest.traffic.idle-timeout:600000}")
+    long idleTimeout;
+
+    private final Map<Long, Counter> counters = new ConcurrentHashMap<>();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedRowCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private volatile long lastFlushMillis;
+
+    /**
+     * 记录一条入站消息
+     *
+     * @param deviceId
+     * @param type     ECHO/REPLY/LOCATION
+     * @param bytes    载荷字节数
+     */
+    public void record(long deviceId, String type, long bytes) {
+        while (true) {
+            Counter counter = counters.get(deviceId);
+            if (counter == null) {
+                counter = counters.computeIfAbsent(deviceId, k -> new Counter());
+            }
+            if (counter.record(type, bytes)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 把增量批量写回数据库
+     */
+    @Scheduled(fixedDelayString = "${ingest.traffic.flush-interval:5000}")
+    public void flush() {
+        long begin = System.currentTimeMillis();
+        final List<Long> ids = new ArrayList<>();
+        final List<Snapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<Long, Counter> entry : counters.entrySet()) {
+            Snapshot snapshot = entry.getValue().snapshot();
+            if (snapshot.messages > 0) {
+                ids.add(entry.getKey());
+                snapshots.add(snapshot);
+            }
+        }
+        if (!snapshots.isEmpty()) {
+            try {
+                jdbcTemplate.batchUpdate(UPDATE_SQL, new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement ps, int i) throws SQLException {
+                        Snapshot snapshot = snapshots.get(i);
+                        ps.setLong(1, snapshot.messages);
+                        ps.setLong(2, snapshot.bytes);
+                        Timestamp lastTime = new Timestamp(snapshot.lastTime);
+                        ps.setTimestamp(3, lastTime);
+                        ps.setTimestamp(4, lastTime);
+                        ps.setString(5, snapshot.lastType);
+                        ps.setLong(6, ids.get(i));
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return snapshots.size();
+                    }
+                });
+                for (Snapshot snapshot : snapshots) {
+                    snapshot.counter.flushed(snapshot);
+                }
+                flushedRowCount.addAndGet(snapshots.size());
+            } catch (Exception e) {
+                //增量留在内存里，下次一起写
+                failedCount.incrementAndGet();
+                logger.error("设备流量写回失败,[" + snapshots.size() + "]台设备稍后重试:" + e.getMessage());
+            }
+        }
+        evictIdle(begin);
+        flushCount.incrementAndGet();
+        lastFlushMillis = System.currentTimeMillis() - begin;
+    }
+
+    private void evictIdle(long now) {
+        for (Map.Entry<Long, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            if (now - counter.lastTime < idleTimeout || counter.messages.sum() != counter.flushedMessages) {
+                continue;
+            }
+            //只移除检查过的那个计数器，这期间被替换掉的不动
+            if (counters.remove(entry.getKey(), counter)) {
+                //移除的同时刚好进来的消息转到新的计数器上，下次写回
+                counter.retire();
+                long messages = counter.messages.sum() - counter.flushedMessages;
+                if (messages > 0) {
+                    Counter next = counters.computeIfAbsent(entry.getKey(), k -> new Counter());
+                    next.messages.add(messages);
+                    next.bytes.add(counter.bytes.sum() - counter.flushedBytes);
+                    next.lastType = counter.lastType;
+                    next.lastTime = Math.max(next.lastTime, counter.lastTime);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        flush();
+    }
+
+    /**
+     * 设备删除的时候同步
+     *
+     * @param deviceId
+     */
+    public void remove(long deviceId) {
+        counters.remove(deviceId);
+    }
+
+    /**
+     * 数据库里的累计值加上还没写回的增量
+     *
+     * @param device
+     * @return
+     */
+    public JSONObject getTraffic(Device device) {
+        long messages = device.getMessageCount() == null ? 0 : device.getMessageCount();
+        long bytes = device.getByteCount() == null ? 0 : device.getByteCount();
+        String lastType = device.getLastMessageType();
+        Counter counter = counters.get(device.getId());
+        if (counter != null) {
+            messages += counter.messages.sum() - counter.flushedMessages;
+            bytes += counter.bytes.sum() - counter.flushedBytes;
+            if (counter.lastType != null) {
+                lastType = counter.lastType;
+            }
+        }
+        JSONObject data = new JSONObject();
+        data.put("messageCount", messages);
+        data.put("byteCount", bytes);
+        data.put("lastMessageType", lastType);
+        return data;
+    }
+
+    /**
+     * 最后活跃时间，内存里有更新的就用内存里的
+     *
+     * @param device
+     * @return
+     */
+    public Date findLastActiveDate(Device device) {
+        Counter counter = counters.get(device.getId());
+        if (counter == null || counter.lastType == null
+                || device.getLastActiveDate() != null && device.getLastActiveDate().getTime() >= counter.lastTime) {
+            return device.getLastActiveDate();
+        }
+        return new Date(counter.lastTime);
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("trackedDevices", counters.size());
+        data.put("flushes", flushCount.get());
+        data.put("flushedRows", flushedRowCount.get());
+        data.put("failedFlushes", failedCount.get());
+        data.put("lastFlushMillis", lastFlushMillis);
+        return data;
+    }
+
+    private static class Counter {
+        final LongAdder messages = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        volatile long lastTime = System.currentTimeMillis();
+        volatile String lastType;
+        //只有写回线程修改
+        volatile long flushedMessages;
+        volatile long flushedBytes;
+        //正在累加的线程数，移除以后等它们加完再转移剩下的增量
+        final AtomicInteger writers = new AtomicInteger();
+        volatile boolean retired;
+
+        /**
+         * @return false表示计数器已经被移除，调用方换一个重新记录
+         */
+        boolean record(String type, long bytes) {
+            writers.incrementAndGet();
+            try {
+                if (retired) {
+                    return false;
+                }
+                //先写时间再加条数，写回的时候读到的条数里的消息时间都已经写好了
+                lastType = type;
+                lastTime = System.currentTimeMillis();
+                this.bytes.add(bytes);
+                messages.increment();
+                return true;
+            } finally {
+                writers.decrementAndGet();
+            }
+        }
+
+        /**
+         * 标记移除并等正在累加的线程结束，之后计数不会再变
+         */
+        void retire() {
+            retired = true;
+            while (writers.get() != 0) {
+                Thread.yield();
+            }
+        }
+
+        Snapshot snapshot() {
+            Snapshot snapshot = new Snapshot(this);
+            snapshot.totalMessages = messages.sum();
+            snapshot.totalBytes = bytes.sum();
+            snapshot.lastTime = lastTime;
+            snapshot.lastType = lastType;
+            snapshot.messages = snapshot.totalMessages - flushedMessages;
+            snapshot.bytes = snapshot.totalBytes - flushedBytes;
+            return snapshot;
+        }
+
+        void flushed(Snapshot snapshot) {
+            flushedMessages = snapshot.totalMessages;
+            flushedBytes = snapshot.totalBytes;
+        }
+    }
+
+    private static class Snapshot {
+        final Counter counter;
+        long messages;
+        long bytes;
+        long totalMessages;
+        long totalBytes;
+        long lastTime;
+        String lastType;
+
+        Snapshot(Counter counter) {
+            this.counter = counter;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.model.device.DeviceData;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongToIntFunction;
+
+/**
+ * 按优先级和用户公平调度的写库队列
+ * 先按 IngestClass 分类：没有配置类别权重的时候严格按优先级取，高优先级的取完才取低优先级的；
+ * 配置了权重的时候每个批次按权重把条数分给有数据的类别，剩下的名额再按优先级补齐
+ * 同一类别里每个用户一个FIFO子队列，按 Deficit Round Robin 轮流取：每轮给用户 权重 * quantum 字节的额度，
+ * 额度按每条数据的大小扣减，用不完的留到下一轮；一个用户突发大量数据只会排在自己的子队列里，
+ * 其他用户每轮照样能取到自己的份额。同一个用户的数据保持先后顺序
+ * 每个类别的容量单独计算，遥测数据把队列塞满不会挡住指令回复入队
+ * 子队列取空的用户保留一段时间的统计，空闲超过 tenantIdleNanos 的在取数据的时候顺便清理掉
+ * 开启预写日志的时候每次只放进一个窗口的数据，调度只在窗口之内生效
+ */
+class FairIngestQueue {
+    //一行 device_data 除载荷以外的大概字节数
+    private static final int ROW_OVERHEAD = 64;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private final int capacity;
+    private final int quantum;
+    private final LongToIntFunction weights;
+    private final int[] classWeights;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ClassQueue[] classes;
+    private int size;
+    private long lastSweepNanos = System.nanoTime();
+    /**
+     * 用户子队列空闲多久以后清理
+     */
+    long tenantIdleNanos = TimeUnit.SECONDS.toNanos(60);
+
+    /**
+     * @param capacity     每个类别最多排队的条数
+     * @param quantum      权重为1的用户每轮的字节额度
+     * @param weights      用户ID -> 权重
+     * @param classWeights 按 IngestClass 顺序的类别权重，空数组表示严格优先级
+     */
+    FairIngestQueue(int capacity, int quantum, LongToIntFunction weights, int[] classWeights) {
+        if (classWeights.length != 0 && classWeights.length != IngestClass.values().length) {
+            throw new IllegalArgumentException("类别权重的个数必须和IngestClass一致:" + IngestClass.values().length);
+        }
+        this.capacity = capacity;
+        this.quantum = quantum;
+        this.weights = weights;
+        this.classWeights = classWeights;
+        this.classes = new ClassQueue[IngestClass.values().length];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ClassQueue();
+        }
+    }
+
+    /**
+     * 入队，这一类排满的时候阻塞
+     */
+    void put(IngestClass ingestClass, long userId, DeviceData deviceData) throws InterruptedException {
+        ClassQueue queue = classes[ingestClass.ordinal()];
+        lock.lockInterruptibly();
+        try {
+            while (queue.size >= capacity) {
+                queue.notFull.await();
+            }
+            enqueue(queue, userId, deviceData);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 入队，这一类排满的时候直接返回false
+     */
+    boolean offer(IngestClass ingestClass, long userId, DeviceData deviceData) {
+        ClassQueue queue = classes[ingestClass.ordinal()];
+        lock.lock();
+        try {
+            if (queue.size >= capacity) {
+                return false;
+            }
+            enqueue(queue, userId, deviceData);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(ClassQueue queue, long userId, DeviceData deviceData) {
+        Tenant tenant = queue.tenants.get(userId);
+        if (tenant == null) {
+            tenant = new Tenant(userId);
+            queue.tenants.put(userId, tenant);
+        }
+        if (tenant.items.isEmpty()) {
+            queue.active.addLast(tenant);
+        }
+        tenant.items.addLast(new Entry(deviceData, costOf(deviceData), System.nanoTime()));
+        tenant.enqueued++;
+        queue.size++;
+        size++;
+        notEmpty.signal();
+    }
+
+    /**
+     * 按优先级和DRR取最多 max 条数据，队列为空的时候最多等 timeout
+     *
+     * @return 取到的条数
+     */
+    int drainTo(List<DeviceData> batch, int max, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return 0;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            long now = System.nanoTime();
+            int count = 0;
+            if (classWeights.length != 0) {
+                int totalWeight = 0;
+                for (int i = 0; i < classes.length; i++) {
+                    if (classes[i].size > 0) {
+                        totalWeight += Math.max(1, classWeights[i]);
+                    }
+                }
+                for (int i = 0; i < classes.length && count < max; i++) {
+                    if (classes[i].size > 0) {
+                        int share = Math.max(1, (int) ((long) max * Math.max(1, classWeights[i]) / totalWeight));
+                        count += drain(classes[i], batch, Math.min(share, max - count), now);
+                    }
+                }
+            }
+            for (int i = 0; i < classes.length && count < max; i++) {
+                count += drain(classes[i], batch, max - count, now);
+            }
+            if (now - lastSweepNanos >= SWEEP_INTERVAL_NANOS) {
+                lastSweepNanos = now;
+                evictIdleTenants(now);
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int drain(ClassQueue queue, List<DeviceData> batch, int max, long now) {
+        int count = 0;
+        while (count < max && !queue.active.isEmpty()) {
+            Tenant tenant = queue.active.peekFirst();
+            if (!tenant.inTurn) {
+                tenant.deficit += (long) quantum * Math.max(1, weights.applyAsInt(tenant.userId));
+                tenant.inTurn = true;
+            }
+            Entry entry;
+            while (count < max && (entry = tenant.items.peekFirst()) != null && entry.cost <= tenant.deficit) {
+                tenant.items.pollFirst();
+                tenant.deficit -= entry.cost;
+                tenant.served(now - entry.enqueuedNanos);
+                batch.add(entry.deviceData);
+                count++;
+            }
+            if (tenant.items.isEmpty()) {
+                //空闲的用户不累积额度
+                tenant.deficit = 0;
+                tenant.inTurn = false;
+                tenant.idleSince = now;
+                queue.active.pollFirst();
+            } else if (tenant.items.peekFirst().cost > tenant.deficit) {
+                tenant.inTurn = false;
+                queue.active.addLast(queue.active.pollFirst());
+            } else {
+                //批次满了，下次接着用这一轮剩下的额度
+                break;
+            }
+        }
+        if (count > 0) {
+            queue.size -= count;
+            size -= count;
+            queue.notFull.signalAll();
+        }
+        return count;
+    }
+
+    /**
+     * 清理空闲太久的用户，调用方持有锁
+     */
+    private void evictIdleTenants(long now) {
+        for (ClassQueue queue : classes) {
+            queue.tenants.values().removeIf(tenant -> tenant.items.isEmpty() && now - tenant.idleSince >= tenantIdleNanos);
+        }
+    }
+
+    /**
+     * 丢掉排队中的全部数据，预写日志退回检查点的时候用
+     */
+    void clear() {
+        lock.lock();
+        try {
+            for (ClassQueue queue : classes) {
+                queue.tenants.clear();
+                queue.active.clear();
+                queue.size = 0;
+                queue.notFull.signalAll();
+            }
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private static int costOf(DeviceData deviceData) {
+        if (deviceData.getPayload() != null) {
+            return ROW_OVERHEAD + deviceData.getPayload().length;
+        } else if (deviceData.getRawData() != null) {
+            return ROW_OVERHEAD + deviceData.getRawData().length;
+        } else if (deviceData.getData() != null) {
+            return ROW_OVERHEAD + deviceData.getData().length();
+        }
+        return ROW_OVERHEAD;
+    }
+
+    /**
+     * 每个类别、每个用户的排队情况: 当前排队条数、累计入队/出队条数、排队等待时间
+     *
+     * @return
+     */
+    JSONObject getStatistics() {
+        lock.lock();
+        try {
+            JSONObject data = new JSONObject(true);
+            for (IngestClass ingestClass : IngestClass.values()) {
+                ClassQueue queue = classes[ingestClass.ordinal()];
+                JSONObject classJson = new JSONObject();
+                classJson.put("queued", queue.size);
+                if (classWeights.length != 0) {
+                    classJson.put("weight", classWeights[ingestClass.ordinal()]);
+                }
+                JSONObject tenantsJson = new JSONObject();
+                for (Tenant tenant : queue.tenants.values()) {
+                    JSONObject tenantJson = new JSONObject();
+                    tenantJson.put("weight", Math.max(1, weights.applyAsInt(tenant.userId)));
+                    tenantJson.put("queued", tenant.items.size());
+                    tenantJson.put("enqueued", tenant.enqueued);
+                    tenantJson.put("served", tenant.served);
+                    tenantJson.put("avgWaitMillis", tenant.served == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(tenant.waitNanosTotal / tenant.served));
+                    tenantJson.put("maxWaitMillis", TimeUnit.NANOSECONDS.toMillis(tenant.maxWaitNanos));
+                    Entry head = tenant.items.peekFirst();
+                    tenantJson.put("headWaitMillis", head == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - head.enqueuedNanos));
+                    tenantsJson.put(String.valueOf(tenant.userId), tenantJson);
+                }
+                classJson.put("tenants", tenantsJson);
+                data.put(ingestClass.name(), classJson);
+            }
+            return data;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class ClassQueue {
+        final Map<Long, Tenant> tenants = new HashMap<>();
+        final ArrayDeque<Tenant> active = new ArrayDeque<>();
+        final Condition notFull = lock.newCondition();
+        int size;
+    }
+
+    private static class Entry {
+        final DeviceData deviceData;
+        final int cost;
+        final long enqueuedNanos;
+
+        Entry(DeviceData deviceData, int cost, long enqueuedNanos) {
+            this.deviceData = deviceData;
+            this.cost = cost;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private static class Tenant {
+        final long userId;
+        final ArrayDeque<Entry> items = new ArrayDeque<>();
+        long deficit;
+        boolean inTurn;
+        long enqueued;
+        long served;
+        long waitNanosTotal;
+        long maxWaitNanos;
+        long idleSince;
+
+        Tenant(long userId) {
+            this.userId = userId;
+        }
+
+        void served(long waitNanos) {
+            served++;
+            waitNanosTotal += waitNanos;
+            if (waitNanos > maxWaitNanos) {
+                maxWaitNanos = waitNanos;
+            }
+        }
+    }
+}
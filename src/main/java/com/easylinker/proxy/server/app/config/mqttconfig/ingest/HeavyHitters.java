@@ -0,0 +1,216 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 入站流量最大的设备、用户、Topic
+ * 时间窗口 window 毫秒分成 slots 个时间片，每个时间片再分成 stripes 个分片，记录的线程按线程ID落到一个分片上，
+ * 一条消息只拿一次这个分片的锁(分道线程各用各的分片，基本没有竞争)；每个分片里每个维度一个 Tracker，
+ * 按条数和字节数各一个 Space-Saving(找出最大的 capacity 个键) 和一个 Count-Min 草图(收紧 Space-Saving 偏大的计数)；
+ * 设备和用户直接按 long 计数和哈希，不转成字符串
+ * 查询的时候合并窗口内所有时间片、所有分片，过期的分片在下一次写入的时候清空重用
+ * 内存只和 slots、stripes、capacity、sketch-width 有关，和设备数量无关
+ */
+@Component
+public class HeavyHitters {
+    private static final int SKETCH_DEPTH = 4;
+
+    /**
+     * 统计维度
+     */
+    public enum Dimension {
+        DEVICE, USER, TOPIC
+    }
+
+    @Value("${ingest.heavy-hitters.window:60000}")
+    long window;
+    @Value("${ingest.heavy-hitters.slots:6}")
+    int slotCount;
+    @Value("${ingest.heavy-hitters.stripes:4}")
+    int stripeCount;
+    @Value("${ingest.heavy-hitters.capacity:100}")
+    int capacity;
+    @Value("${ingest.heavy-hitters.sketch-width:1024}")
+    int sketchWidth;
+
+    private long slotMillis;
+    private int stripeMask;
+    private Stripe[][] stripes;
+
+    @PostConstruct
+    public void start() {
+        slotMillis = Math.max(1, window / slotCount);
+        //分片数取2的幂，按线程ID取模
+        int count = Integer.highestOneBit(Math.max(1, stripeCount));
+        stripeMask = count - 1;
+        stripes = new Stripe[slotCount][count];
+        for (int i = 0; i < slotCount; i++) {
+            for (int j = 0; j < count; j++) {
+                stripes[i][j] = new Stripe(capacity, sketchWidth);
+            }
+        }
+    }
+
+    /**
+     * 记录一条入站消息
+     *
+     * @param userId   设备拥有者，没有绑定的设备不记录用户
+     * @param deviceId
+     * @param topic
+     * @param bytes    载荷字节数
+     */
+    public void record(long userId, long deviceId, String topic, long bytes) {
+        record(System.currentTimeMillis(), userId, deviceId, topic, bytes);
+    }
+
+    void record(long now, long userId, long deviceId, String topic, long bytes) {
+        long epoch = now / slotMillis;
+        Stripe stripe = stripes[(int) (epoch % slotCount)][(int) Thread.currentThread().getId() & stripeMask];
+        synchronized (stripe) {
+            if (stripe.epoch != epoch) {
+                //过期的分片清空重用
+                stripe.clear(epoch);
+            }
+            stripe.trackers[Dimension.DEVICE.ordinal()].add(deviceId, CountMinSketch.hash(deviceId), bytes);
+            if (userId > 0) {
+                stripe.trackers[Dimension.USER.ordinal()].add(userId, CountMinSketch.hash(userId), bytes);
+            }
+            if (topic != null) {
+                stripe.trackers[Dimension.TOPIC.ordinal()].add(topic, CountMinSketch.hash(topic), bytes);
+            }
+        }
+    }
+
+    /**
+     * 窗口内最大的 top 个键
+     *
+     * @param dimension
+     * @param byBytes   true按字节数排，false按条数排
+     * @param top
+     * @return [{key, count, error}]，count是上限，真实值不小于 count - error
+     */
+    public JSONArray getTop(Dimension dimension, boolean byBytes, int top) {
+        return getTop(System.currentTimeMillis(), dimension, byBytes, top);
+    }
+
+    JSONArray getTop(long now, Dimension dimension, boolean byBytes, int top) {
+        long current = now / slotMillis;
+        List<Map<Object, long[]>> snapshots = new ArrayList<>();
+        List<Long> minCounts = new ArrayList<>();
+        CountMinSketch sketch = new CountMinSketch(SKETCH_DEPTH, sketchWidth);
+        for (Stripe[] slot : stripes) {
+            for (Stripe stripe : slot) {
+                synchronized (stripe) {
+                    if (current - stripe.epoch < slotCount) {
+                        Tracker tracker = stripe.trackers[dimension.ordinal()];
+                        SpaceSaving<Object> summary = byBytes ? tracker.topBytes : tracker.topMessages;
+                        snapshots.add(summary.snapshot());
+                        minCounts.add(summary.getMinCount());
+                        //草图逐格相加就是合并后的数据流
+                        sketch.merge(byBytes ? tracker.bytes : tracker.messages);
+                    }
+                }
+            }
+        }
+        Map<Object, long[]> merged = SpaceSaving.merge(snapshots, minCounts);
+        List<Map.Entry<Object, long[]>> entries = new ArrayList<>(merged.entrySet());
+        for (Map.Entry<Object, long[]> entry : entries) {
+            //两种结构的计数都只会偏大，取小的那个
+            long[] value = entry.getValue();
+            long lowerBound = Math.max(0, value[0] - value[1]);
+            Object key = entry.getKey();
+            long hash = key instanceof Long ? CountMinSketch.hash((Long) key) : CountMinSketch.hash((String) key);
+            value[0] = Math.min(value[0], sketch.estimate(hash));
+            value[1] = value[0] - lowerBound;
+        }
+        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < entries.size() && i < top; i++) {
+            JSONObject entryJson = new JSONObject();
+            entryJson.put("key", String.valueOf(entries.get(i).getKey()));
+            entryJson.put("count", entries.get(i).getValue()[0]);
+            entryJson.put("error", entries.get(i).getValue()[1]);
+            array.add(entryJson);
+        }
+        return array;
+    }
+
+    /**
+     * 所有维度按条数和字节数的排行
+     *
+     * @param top
+     * @return
+     */
+    public JSONObject getStatistics(int top) {
+        JSONObject data = new JSONObject(true);
+        data.put("windowMillis", slotMillis * slotCount);
+        data.put("stripes", stripeMask + 1);
+        for (Dimension dimension : Dimension.values()) {
+            JSONObject dimensionJson = new JSONObject();
+            dimensionJson.put("messages", getTop(dimension, false, top));
+            dimensionJson.put("bytes", getTop(dimension, true, top));
+            data.put(dimension.name().toLowerCase(), dimensionJson);
+        }
+        return data;
+    }
+
+    /**
+     * 一个时间片里的一个分片，所有维度共用一把锁
+     */
+    private static class Stripe {
+        final Tracker[] trackers = new Tracker[Dimension.values().length];
+        long epoch = Long.MIN_VALUE / 2;
+
+        Stripe(int capacity, int sketchWidth) {
+            for (int i = 0; i < trackers.length; i++) {
+                trackers[i] = new Tracker(capacity, sketchWidth);
+            }
+        }
+
+        void clear(long epoch) {
+            for (Tracker tracker : trackers) {
+                tracker.clear();
+            }
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * 一个分片里一个维度的统计，由 Stripe 的锁保护
+     */
+    private static class Tracker {
+        final SpaceSaving<Object> topMessages;
+        final SpaceSaving<Object> topBytes;
+        final CountMinSketch messages;
+        final CountMinSketch bytes;
+
+        Tracker(int capacity, int sketchWidth) {
+            topMessages = new SpaceSaving<>(capacity);
+            topBytes = new SpaceSaving<>(capacity);
+            messages = new CountMinSketch(SKETCH_DEPTH, sketchWidth);
+            bytes = new CountMinSketch(SKETCH_DEPTH, sketchWidth);
+        }
+
+        void add(Object key, long hash, long weight) {
+            topMessages.add(key, 1);
+            topBytes.add(key, weight);
+            messages.add(hash, 1);
+            bytes.add(hash, weight);
+        }
+
+        void clear() {
+            topMessages.clear();
+            topBytes.clear();
+            messages.clear();
+            bytes.clear();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog 基数估计，2^precision 个一字节的寄存器，标准误差约 1.04/sqrt(2^precision)
+ * 同样精度的可以按寄存器取最大值合并，合并的结果等于对两个集合的并集做估计
+ * 写入不加锁：寄存器只会变大，并发写同一个寄存器偶尔丢一次更大的值，只会让估计略微偏小
+ */
+class HyperLogLog {
+    private final int precision;
+    private final byte[] registers;
+
+    HyperLogLog(int precision) {
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * @param hash 均匀分布的64位哈希
+     */
+    void add(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        //剩下的位里第一个1的位置，加一个哨兵位保证不会超过 64 - precision + 1
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+
+    void merge(HyperLogLog other) {
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709 : 0.7213 / (1 + 1.079 / m);
+        double estimate = alpha * m * m / sum;
+        //基数小的时候用线性计数
+        if (estimate <= 2.5 * m && zeros > 0) {
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    void clear() {
+        Arrays.fill(registers, (byte) 0);
+    }
+
+    /**
+     * 设备ID的64位哈希(SplitMix64)
+     */
+    static long hash(long value) {
+        long z = value + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
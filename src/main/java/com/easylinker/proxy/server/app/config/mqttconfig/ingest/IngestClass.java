@@ -0,0 +1,33 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+/**
+ * 入站消息的优先级分类，按声明顺序优先级从高到低
+ */
+public enum IngestClass {
+    /**
+     * $SYS 上下线事件
+     */
+    PRESENCE,
+    /**
+     * CMD/IN 指令回复
+     */
+    COMMAND,
+    /**
+     * IN/LOCATION 位置上报，目前没有adapter订阅这个Topic，只占一个优先级
+     */
+    LOCATION,
+    /**
+     * IN/ECHO 遥测数据
+     */
+    TELEMETRY;
+
+    /**
+     * 按 DeviceData 的 type 分类
+     *
+     * @param type
+     * @return
+     */
+    public static IngestClass ofDeviceDataType(String type) {
+        return "REPLY".equals(type) ? COMMAND : TELEMETRY;
+    }
+}
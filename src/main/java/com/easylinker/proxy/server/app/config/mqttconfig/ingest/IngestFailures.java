@@ -0,0 +1,143 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.adapter.MqttDeliveryAck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.TransactionException;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 入站处理失败的分类
+ * 数据库不可用、本地文件写失败这类基础设施故障和消息本身无关，不进隔离区：
+ * 间隔 retry-interval 毫秒(每次翻倍)重试 max-retries 次，重试的消息带上 ingest_retry 头，去重不会把它当成重发；
+ * 重试用完以后按Topic限速打错误日志并计数；消息没有存下来，手动确认模式下不确认(MqttDeliveryAck.fail)，断开重连等Broker重发
+ * 其他异常算消息本身的问题，进隔离区，消息照常确认
+ */
+@Component
+public class IngestFailures {
+    public static final String RETRY = "ingest_retry";
+    Logger logger = LoggerFactory.getLogger(IngestFailures.class);
+
+    @Value("${ingest.handler.max-retries:3}")
+    int maxRetries;
+    @Value("${ingest.handler.retry-interval:200}")
+    long retryInterval;
+    @Value("${ingest.quarantine.log-interval:60000}")
+    long logInterval;
+    @Autowired
+    QuarantineStore quarantineStore;
+
+    private RateLimitedLog rateLimitedLog;
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        rateLimitedLog = new RateLimitedLog(logger, logInterval, 10000);
+    }
+
+    /**
+     * 处理一条消息
+     *
+     * @param message
+     * @param action  处理逻辑，重试的时候传入带重试标记的消息
+     */
+    public void handle(Message<?> message, Action action) {
+        Message<?> attempt = message;
+        for (int retries = 0; ; retries++) {
+            try {
+                action.run(attempt);
+                return;
+            } catch (Exception e) {
+                if (!isInfrastructureFailure(e)) {
+                    quarantineStore.quarantine(attempt, e);
+                    return;
+                }
+                if (retries >= maxRetries || e instanceof InterruptedException || !sleep(retryInterval << retries)) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    failedCount.incrementAndGet();
+                    MqttDeliveryAck.fail(message);
+                    Object topic = message.getHeaders().get("mqtt_topic");
+                    rateLimitedLog.error(String.valueOf(topic), "消息处理失败[" + topic + "],重试[" + retries + "]次:"
+                            + e.getClass().getSimpleName() + ":" + e.getMessage());
+                    return;
+                }
+                retriedCount.incrementAndGet();
+                attempt = MessageBuilder.fromMessage(message).setHeader(RETRY, retries + 1).build();
+            }
+        }
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 数据库、事务、IO、中断算基础设施故障；违反约束的写入和消息内容有关，不算
+     *
+     * @param e
+     * @return
+     */
+    static boolean isInfrastructureFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DataIntegrityViolationException) {
+                return false;
+            }
+            if (cause instanceof DataAccessException || cause instanceof TransactionException
+                    || cause instanceof IOException || cause instanceof InterruptedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void evictIdleLogs() {
+        rateLimitedLog.evictIdle();
+    }
+
+    /**
+     * 是否是重试的消息
+     *
+     * @param message
+     * @return
+     */
+    public static boolean isRetry(Message<?> message) {
+        return message.getHeaders().get(RETRY) != null;
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("maxRetries", maxRetries);
+        data.put("retried", retriedCount.get());
+        data.put("failed", failedCount.get());
+        return data;
+    }
+
+    /**
+     * 消息处理逻辑
+     */
+    public interface Action {
+        void run(Message<?> message) throws Exception;
+    }
+}
@@ -0,0 +1,49 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import org.springframework.messaging.Message;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * 每类入站消息从MQTT到达到处理完成(写库类的是批次提交)的延迟
+ */
+@Component
+public class IngestLatency {
+    private final Map<IngestClass, LatencyHistogram> histograms = new EnumMap<>(IngestClass.class);
+
+    public IngestLatency() {
+        for (IngestClass ingestClass : IngestClass.values()) {
+            histograms.put(ingestClass, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * 消息到达的时间，取消息头的 timestamp(适配器收到消息时生成)
+     *
+     * @param message
+     * @return
+     */
+    public static long arrivedAt(Message<?> message) {
+        Long timestamp = message.getHeaders().getTimestamp();
+        return timestamp == null ? System.currentTimeMillis() : timestamp;
+    }
+
+    public void record(IngestClass ingestClass, long arrivedAt) {
+        histograms.get(ingestClass).record(System.currentTimeMillis() - arrivedAt);
+    }
+
+    public void record(Message<?> message, IngestClass ingestClass) {
+        record(ingestClass, arrivedAt(message));
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject(true);
+        for (Map.Entry<IngestClass, LatencyHistogram> entry : histograms.entrySet()) {
+            data.put(entry.getKey().name(), entry.getValue().getStatistics());
+        }
+        return data;
+    }
+}
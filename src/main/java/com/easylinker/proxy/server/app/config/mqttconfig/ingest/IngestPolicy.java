@@ -0,0 +1,99 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+
+/**
+ * 设备或者分组上配置的入库策略，JSON格式:
+ * {"onChange":true} 载荷和上一条入库的完全一样就不存
+ * {"deadband":{"temperature":0.5,"env.humidity":2}} 所有字段和上一条入库的相差都不超过死区就不存，字段名可以用.访问嵌套字段(最多4层)
+ * {"every":10} 每10条存1条
+ * {"interval":60000} 同一台设备最多每60秒存1条
+ * {"heartbeat":600000} 配合 onChange/deadband，值一直不变的时候最多隔这么久也存1条
+ * 可以组合使用，配了 deadband 的时候按字段判断，不再比较整个载荷
+ */
+public class IngestPolicy {
+    private final boolean onChange;
+    private final String[] deadbandFields;
+    private final double[] deadbands;
+    private final int every;
+    private final long interval;
+    private final long heartbeat;
+
+    private IngestPolicy(boolean onChange, String[] deadbandFields, double[] deadbands, int every, long interval, long heartbeat) {
+        this.onChange = onChange;
+        this.deadbandFields = deadbandFields;
+        this.deadbands = deadbands;
+        this.every = every;
+        this.interval = interval;
+        this.heartbeat = heartbeat;
+    }
+
+    /**
+     * @param json
+     * @return
+     * @throws IllegalArgumentException 格式不对
+     */
+    public static IngestPolicy parse(String json) {
+        JSONObject policyJson;
+        try {
+            policyJson = JSONObject.parseObject(json);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("入库策略不是合法的JSON:" + e.getMessage());
+        }
+        if (policyJson == null) {
+            throw new IllegalArgumentException("入库策略不能为空");
+        }
+        JSONObject deadbandJson = policyJson.getJSONObject("deadband");
+        String[] fields = new String[deadbandJson == null ? 0 : deadbandJson.size()];
+        double[] deadbands = new double[fields.length];
+        if (deadbandJson != null) {
+            int i = 0;
+            for (String key : deadbandJson.keySet()) {
+                fields[i] = key;
+                deadbands[i] = deadbandJson.getDoubleValue(key);
+                if (deadbands[i] < 0) {
+                    throw new IllegalArgumentException("死区不能为负数:" + key);
+                }
+                i++;
+            }
+        }
+        int every = policyJson.getIntValue("every");
+        long interval = policyJson.getLongValue("interval");
+        long heartbeat = policyJson.getLongValue("heartbeat");
+        if (every < 0 || interval < 0 || heartbeat < 0) {
+            throw new IllegalArgumentException("every/interval/heartbeat不能为负数");
+        }
+        return new IngestPolicy(policyJson.getBooleanValue("onChange"), fields, deadbands, every, interval, heartbeat);
+    }
+
+    public boolean isOnChange() {
+        return onChange;
+    }
+
+    public boolean hasDeadband() {
+        return deadbands.length > 0;
+    }
+
+    /**
+     * 嵌套字段用 . 连接，和 NumericFields 的字段名一致
+     */
+    String[] getDeadbandFields() {
+        return deadbandFields;
+    }
+
+    double[] getDeadbands() {
+        return deadbands;
+    }
+
+    public int getEvery() {
+        return every;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public long getHeartbeat() {
+        return heartbeat;
+    }
+}
@@ -0,0 +1,209 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 入站数据限流
+ * 每个用户、每台设备一个令牌桶，在写库之前检查，防止一个用户的设备把唯一的写库线程占满
+ * 速率(条/秒)的优先级: 用户的 ingestRate > ingest.quota.user.rate，分组的 deviceIngestRate > ingest.quota.device.rate，
+ * 小于等于0表示不限制；桶容量是 速率 * burst 秒
+ * 令牌桶按GCRA实现，每个桶只有一个 AtomicLong(理论到达时间)，检查就是一次CAS，不加锁
+ * 用户的 ingestWeight 是写库公平调度的权重，默认1
+ */
+@Component
+public class IngestQuota {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    Logger logger = LoggerFactory.getLogger(IngestQuota.class);
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Value("${ingest.quota.enabled:false}")
+    boolean enabled;
+    @Value("${ingest.quota.user.rate:2000}")
+    int defaultUserRate;
+    @Value("${ingest.quota.device.rate:20}")
+    int defaultDeviceRate;
+    @Value("${ingest.quota.burst:2}")
+    int burstSeconds;
+
+    private final Map<Long, Integer> userRates = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> groupDeviceRates = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> userWeights = new ConcurrentHashMap<>();
+    private final Map<Long, AtomicLong> userBuckets = new ConcurrentHashMap<>();
+    private final Map<Long, AtomicLong> deviceBuckets = new ConcurrentHashMap<>();
+    private final Map<Long, LongAdder> rejectedByUser = new ConcurrentHashMap<>();
+    private final LongAdder acceptedCount = new LongAdder();
+    private final LongAdder userRejectedCount = new LongAdder();
+    private final LongAdder deviceRejectedCount = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        //写库权重不受限流开关影响，都要加载
+        try {
+            jdbcTemplate.query("SELECT id, ingest_rate, ingest_weight FROM app_user WHERE ingest_rate IS NOT NULL OR ingest_weight IS NOT NULL",
+                    (RowCallbackHandler) rs -> setUser(rs.getLong(1), (Integer) rs.getObject(2), (Integer) rs.getObject(3)));
+            jdbcTemplate.query("SELECT id, device_ingest_rate FROM device_group WHERE device_ingest_rate IS NOT NULL",
+                    (RowCallbackHandler) rs -> setGroupDeviceRate(rs.getLong(1), rs.getInt(2)));
+        } catch (Exception e) {
+            logger.error("加载限流配置失败:" + e.getMessage());
+        }
+        if (!enabled) {
+            return;
+        }
+        logger.info("入站限流开启,用户[" + defaultUserRate + "/s] 设备[" + defaultDeviceRate + "/s] 单独配置的用户数["
+                + userRates.size() + "] 分组数[" + groupDeviceRates.size() + "]");
+    }
+
+    /**
+     * 检查一条入站数据是否在限额内，先扣设备的令牌再扣用户的令牌
+     *
+     * @param userId   设备拥有者
+     * @param groupId  设备所在分组
+     * @param deviceId
+     * @return false表示超限，调用方直接丢弃
+     */
+    public boolean tryAcquire(long userId, long groupId, long deviceId) {
+        return tryAcquire(userId, groupId, deviceId, System.nanoTime());
+    }
+
+    boolean tryAcquire(long userId, long groupId, long deviceId, long now) {
+        if (!enabled) {
+            return true;
+        }
+        Integer groupRate = groupDeviceRates.isEmpty() ? null : groupDeviceRates.get(groupId);
+        int deviceRate = groupRate == null ? defaultDeviceRate : groupRate;
+        if (deviceRate > 0 && !take(deviceBuckets, deviceId, deviceRate, now)) {
+            deviceRejectedCount.increment();
+            reject(userId);
+            return false;
+        }
+        Integer userRate = userRates.isEmpty() ? null : userRates.get(userId);
+        int rate = userRate == null ? defaultUserRate : userRate;
+        if (rate > 0 && !take(userBuckets, userId, rate, now)) {
+            userRejectedCount.increment();
+            reject(userId);
+            return false;
+        }
+        acceptedCount.increment();
+        return true;
+    }
+
+    private boolean take(Map<Long, AtomicLong> buckets, long key, int rate, long now) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        long interval = NANOS_PER_SECOND / rate;
+        long tolerance = interval * Math.max(1L, (long) rate * burstSeconds);
+        while (true) {
+            long tat = bucket.get();
+            long next = Math.max(tat, now) + interval;
+            if (next - now > tolerance) {
+                return false;
+            }
+            if (bucket.compareAndSet(tat, next)) {
+                return true;
+            }
+        }
+    }
+
+    private void reject(long userId) {
+        LongAdder rejected = rejectedByUser.get(userId);
+        if (rejected == null) {
+            rejected = rejectedByUser.computeIfAbsent(userId, k -> new LongAdder());
+        }
+        rejected.increment();
+    }
+
+    /**
+     * 回收已经回满的桶，重新创建的桶同样是满的，不影响限流
+     */
+    @Scheduled(fixedDelay = 60000)
+    public void evictIdleBuckets() {
+        evictIdleBuckets(System.nanoTime());
+    }
+
+    void evictIdleBuckets(long now) {
+        userBuckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+        deviceBuckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+
+    /**
+     * 用户保存的时候同步
+     *
+     * @param userId
+     * @param rate   为空表示使用默认值
+     * @param weight 写库公平调度的权重，为空表示1
+     */
+    public void setUser(long userId, Integer rate, Integer weight) {
+        if (rate == null) {
+            userRates.remove(userId);
+        } else {
+            userRates.put(userId, rate);
+        }
+        if (weight == null) {
+            userWeights.remove(userId);
+        } else {
+            userWeights.put(userId, weight);
+        }
+    }
+
+    /**
+     * 用户的写库权重
+     *
+     * @param userId
+     * @return
+     */
+    public int getWeight(long userId) {
+        Integer weight = userWeights.isEmpty() ? null : userWeights.get(userId);
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * 分组保存的时候同步
+     *
+     * @param groupId
+     * @param rate    组内每台设备的速率，为空表示使用默认值
+     */
+    public void setGroupDeviceRate(long groupId, Integer rate) {
+        if (rate == null) {
+            groupDeviceRates.remove(groupId);
+        } else {
+            groupDeviceRates.put(groupId, rate);
+        }
+    }
+
+    public void removeGroup(long groupId) {
+        groupDeviceRates.remove(groupId);
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("enabled", enabled);
+        data.put("accepted", acceptedCount.sum());
+        data.put("userRejected", userRejectedCount.sum());
+        data.put("deviceRejected", deviceRejectedCount.sum());
+        data.put("userBuckets", userBuckets.size());
+        data.put("deviceBuckets", deviceBuckets.size());
+        JSONObject rejectedJson = new JSONObject();
+        for (Map.Entry<Long, LongAdder> entry : rejectedByUser.entrySet()) {
+            rejectedJson.put(String.valueOf(entry.getKey()), entry.getValue().sum());
+        }
+        data.put("rejectedByUser", rejectedJson);
+        return data;
+    }
+}
@@ -0,0 +1,97 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 毫秒级延迟直方图
+ * 对数分桶，每个2的幂区间再分 SUB_BUCKETS 个线性小桶，相对误差不超过 1/SUB_BUCKETS；
+ * 记录是无锁的一次原子加，统计的时候按桶的上界估算分位数
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        counts.incrementAndGet(indexOf(millis));
+        total.increment();
+        sum.add(millis);
+        max.accumulate(millis);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * 桶的上界(包含)
+     */
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * 分位数
+     *
+     * @param quantile 0~1
+     * @return 毫秒，没有数据返回0
+     */
+    public long percentile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public JSONObject getStatistics() {
+        long count = total.sum();
+        JSONObject data = new JSONObject();
+        data.put("count", count);
+        data.put("avgMillis", count == 0 ? 0 : sum.sum() / count);
+        data.put("p50Millis", percentile(0.5));
+        data.put("p90Millis", percentile(0.9));
+        data.put("p99Millis", percentile(0.99));
+        data.put("p999Millis", percentile(0.999));
+        data.put("maxMillis", max.get());
+        return data;
+    }
+}
@@ -0,0 +1,322 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * 格式错误消息的隔离区
+ * Topic解析失败、载荷格式不对的消息连同 Topic、原始字节、失败原因 一起放进内存环形缓冲区，
+ * 缓冲区满了以后被挤出去的条目由后台线程每秒批量追加到本地文件(每行一个JSON，载荷Base64)，
+ * 文件按大小滚动，只保留最近 max-files 个；停止的时候缓冲区里剩下的也写到文件
+ * 错误日志按Topic(设备)限速，固件批量出错的时候不会每条消息打一行日志
+ */
+@Component
+public class QuarantineStore {
+    private static final String FILE_PREFIX = "quarantine-";
+    private static final String FILE_SUFFIX = ".jsonl";
+    private static final Pattern FILE_NAME = Pattern.compile("quarantine-\\d+\\.jsonl");
+    private static final int PREVIEW_CHARS = 256;
+    Logger logger = LoggerFactory.getLogger(QuarantineStore.class);
+
+    @Value("${ingest.quarantine.capacity:1000}")
+    int capacity;
+    @Value("${ingest.quarantine.dir:./quarantine}")
+    String dir;
+    @Value("${ingest.quarantine.max-payload-bytes:65536}")
+    int maxPayloadBytes;
+    @Value("${ingest.quarantine.max-file-size:16777216}")
+    long maxFileSize;
+    @Value("${ingest.quarantine.max-files:8}")
+    int maxFiles;
+    @Value("${ingest.quarantine.log-interval:60000}")
+    long logInterval;
+
+    private Entry[] ring;
+    private long nextId;
+    private final ArrayDeque<Entry> spillQueue = new ArrayDeque<>();
+    private RateLimitedLog rateLimitedLog;
+    private File directory;
+    private File currentFile;
+    private final Object fileLock = new Object();
+
+    private final AtomicLong quarantinedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    @PostConstruct
+    public void start() {
+        ring = new Entry[capacity];
+        rateLimitedLog = new RateLimitedLog(logger, logInterval, 10000);
+        directory = new File(dir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            logger.error("隔离区目录创建失败:" + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 停止的时候把内存里的条目全部写到文件
+     */
+    @PreDestroy
+    public void stop() {
+        synchronized (this) {
+            for (long id = Math.max(0, nextId - capacity); id < nextId; id++) {
+                Entry entry = ring[(int) (id % capacity)];
+                if (entry != null) {
+                    spillQueue.add(entry);
+                }
+            }
+        }
+        spill();
+    }
+
+    /**
+     * 隔离一条处理失败的消息
+     *
+     * @param message
+     * @param reason  失败原因
+     */
+    public void quarantine(Message<?> message, String reason) {
+        Object topicHeader = message.getHeaders().get("mqtt_topic");
+        String topic = topicHeader == null ? "" : topicHeader.toString();
+        byte[] payload = toBytes(message.getPayload());
+        boolean truncated = payload.length > maxPayloadBytes;
+        if (truncated) {
+            payload = Arrays.copyOf(payload, maxPayloadBytes);
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), topic, reason, payload, truncated);
+        synchronized (this) {
+            entry.id = nextId++;
+            int slot = (int) (entry.id % capacity);
+            Entry evicted = ring[slot];
+            ring[slot] = entry;
+            if (evicted != null) {
+                if (spillQueue.size() < capacity) {
+                    spillQueue.add(evicted);
+                } else {
+                    droppedCount.incrementAndGet();
+                }
+            }
+        }
+        quarantinedCount.incrementAndGet();
+        rateLimitedLog.error(topic, "消息已隔离[" + topic + "]:" + reason);
+    }
+
+    /**
+     * 用异常生成失败原因
+     *
+     * @param message
+     * @param e
+     */
+    public void quarantine(Message<?> message, Exception e) {
+        quarantine(message, e.getClass().getSimpleName() + ":" + e.getMessage());
+    }
+
+    private static byte[] toBytes(Object payload) {
+        if (payload instanceof byte[]) {
+            return (byte[]) payload;
+        }
+        return String.valueOf(payload).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 把挤出缓冲区的条目追加到文件
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void spill() {
+        rateLimitedLog.evictIdle();
+        List<Entry> entries;
+        synchronized (this) {
+            if (spillQueue.isEmpty()) {
+                return;
+            }
+            entries = new ArrayList<>(spillQueue);
+            spillQueue.clear();
+        }
+        synchronized (fileLock) {
+            writeFile(entries);
+        }
+    }
+
+    private void writeFile(List<Entry> entries) {
+        try {
+            if (currentFile == null || currentFile.length() >= maxFileSize) {
+                currentFile = new File(directory, FILE_PREFIX + System.currentTimeMillis() + FILE_SUFFIX);
+                deleteOldFiles();
+            }
+            try (OutputStream out = new FileOutputStream(currentFile, true)) {
+                StringBuilder lines = new StringBuilder();
+                for (Entry entry : entries) {
+                    lines.append(entry.toJson(false).toJSONString()).append('\n');
+                }
+                out.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            spilledCount.addAndGet(entries.size());
+        } catch (IOException e) {
+            droppedCount.addAndGet(entries.size());
+            logger.error("隔离区写文件失败,丢弃[" + entries.size() + "]条:" + e.getMessage());
+        }
+    }
+
+    private void deleteOldFiles() {
+        File[] files = listFiles();
+        for (int i = 0; i < files.length - maxFiles + 1; i++) {
+            if (!files[i].delete()) {
+                logger.error("隔离区文件删除失败:" + files[i].getName());
+            }
+        }
+    }
+
+    /**
+     * 按文件名(时间)从旧到新排列的隔离区文件
+     */
+    private File[] listFiles() {
+        File[] files = directory.listFiles((d, name) -> FILE_NAME.matcher(name).matches());
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, Comparator.comparingLong(QuarantineStore::timestampOf));
+        return files;
+    }
+
+    private static long timestampOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+    }
+
+    /**
+     * 内存里的条目，新的在前；page小于0按0，size限制在1到capacity之间
+     *
+     * @param page
+     * @param size
+     * @return
+     */
+    public synchronized JSONArray getEntries(int page, int size) {
+        page = Math.max(0, page);
+        size = Math.max(1, Math.min(size, capacity));
+        JSONArray array = new JSONArray();
+        long oldest = Math.max(0, nextId - capacity);
+        for (long id = nextId - 1 - (long) page * size; id >= oldest && array.size() < size; id--) {
+            array.add(ring[(int) (id % capacity)].toJson(true));
+        }
+        return array;
+    }
+
+    /**
+     * 隔离区文件列表，新的在前
+     *
+     * @return
+     */
+    public JSONArray getFiles() {
+        File[] files = listFiles();
+        JSONArray array = new JSONArray();
+        for (int i = files.length - 1; i >= 0; i--) {
+            JSONObject fileJson = new JSONObject();
+            fileJson.put("name", files[i].getName());
+            fileJson.put("size", files[i].length());
+            fileJson.put("lastModified", files[i].lastModified());
+            array.add(fileJson);
+        }
+        return array;
+    }
+
+    /**
+     * 读隔离区文件里的一段
+     *
+     * @param name   文件名
+     * @param offset 从第几行开始，小于0按0
+     * @param size   最多几行，限制在1到capacity之间
+     * @return 文件不存在返回null
+     * @throws IOException
+     */
+    public JSONArray getFileEntries(String name, int offset, int size) throws IOException {
+        if (!FILE_NAME.matcher(name).matches()) {
+            return null;
+        }
+        File file = new File(directory, name);
+        if (!file.isFile()) {
+            return null;
+        }
+        offset = Math.max(0, offset);
+        size = Math.max(1, Math.min(size, capacity));
+        JSONArray array = new JSONArray();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int index = 0;
+            while ((line = reader.readLine()) != null && array.size() < size) {
+                if (index++ >= offset && !line.isEmpty()) {
+                    array.add(JSONObject.parseObject(line));
+                }
+            }
+        }
+        return array;
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("quarantined", quarantinedCount.get());
+        data.put("inMemory", Math.min(quarantinedCount.get(), capacity));
+        data.put("spilled", spilledCount.get());
+        data.put("dropped", droppedCount.get());
+        data.put("suppressedLogs", rateLimitedLog == null ? 0 : rateLimitedLog.getSuppressedCount());
+        return data;
+    }
+
+    private static class Entry {
+        long id;
+        final long time;
+        final String topic;
+        final String reason;
+        final byte[] payload;
+        final boolean truncated;
+
+        Entry(long time, String topic, String reason, byte[] payload, boolean truncated) {
+            this.time = time;
+            this.topic = topic;
+            this.reason = reason;
+            this.payload = payload;
+            this.truncated = truncated;
+        }
+
+        /**
+         * @param preview 是否带上按UTF-8解码的文本预览
+         */
+        JSONObject toJson(boolean preview) {
+            JSONObject json = new JSONObject(true);
+            json.put("id", id);
+            json.put("time", time);
+            json.put("topic", topic);
+            json.put("reason", reason);
+            json.put("truncated", truncated);
+            json.put("payload", Base64.getEncoder().encodeToString(payload));
+            if (preview) {
+                String text = new String(payload, StandardCharsets.UTF_8);
+                json.put("preview", text.length() > PREVIEW_CHARS ? text.substring(0, PREVIEW_CHARS) : text);
+            }
+            return json;
+        }
+    }
+}
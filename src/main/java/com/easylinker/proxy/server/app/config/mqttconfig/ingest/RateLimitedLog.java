@@ -0,0 +1,75 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import org.slf4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按Key限速的错误日志
+ * 每个Key(设备)每 interval 毫秒最多打一条，期间被省略的条数附在下一条日志后面；
+ * Key的个数超过 maxKeys 以后新来的Key共用一个窗口，固件批量出错的时候日志量有上限
+ */
+public class RateLimitedLog {
+    private static final String OVERFLOW_KEY = "*";
+    private final Logger logger;
+    private final long interval;
+    private final int maxKeys;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+    private final LongAdder suppressedCount = new LongAdder();
+
+    public RateLimitedLog(Logger logger, long interval, int maxKeys) {
+        this.logger = logger;
+        this.interval = interval;
+        this.maxKeys = maxKeys;
+    }
+
+    public void error(String key, String message) {
+        long now = System.currentTimeMillis();
+        Window window = windows.get(key);
+        if (window == null) {
+            window = windows.computeIfAbsent(windows.size() >= maxKeys ? OVERFLOW_KEY : key, k -> new Window(now - interval));
+        }
+        long start = window.start.get();
+        if (now - start >= interval && window.start.compareAndSet(start, now)) {
+            long suppressed = window.suppressed.getAndSet(0);
+            logger.error(suppressed > 0 ? message + " (之前省略了[" + suppressed + "]条)" : message);
+        } else {
+            window.suppressed.incrementAndGet();
+            suppressedCount.increment();
+        }
+    }
+
+    /**
+     * 回收已经过期的窗口，还有省略条数的补打一条汇总
+     */
+    public void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+            Window window = entry.getValue();
+            if (now - window.start.get() < interval) {
+                continue;
+            }
+            long suppressed = window.suppressed.getAndSet(0);
+            if (suppressed > 0) {
+                logger.error("[" + entry.getKey() + "]省略了[" + suppressed + "]条错误日志");
+            }
+            windows.remove(entry.getKey(), window);
+        }
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount.sum();
+    }
+
+    private static class Window {
+        final AtomicLong start;
+        final AtomicLong suppressed = new AtomicLong();
+
+        Window(long start) {
+            this.start = new AtomicLong(start);
+        }
+    }
+}
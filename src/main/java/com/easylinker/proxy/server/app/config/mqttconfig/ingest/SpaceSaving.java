@@ -0,0 +1,154 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 带权重的 Space-Saving 计数，最多跟踪 capacity 个键
+ * 满了以后新的键顶替计数最小的键，继承它的计数并把它记为误差，所以计数只会偏大，偏大的部分不超过 error；
+ * 任何真实计数超过 总数/capacity 的键一定在里面
+ * 用最小堆找计数最小的键，一次更新 O(log capacity)，不是线程安全的
+ */
+class SpaceSaving<K> {
+    private final int capacity;
+    private final Map<K, Counter<K>> counters;
+    private final Counter<K>[] heap;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    SpaceSaving(int capacity) {
+        this.capacity = capacity;
+        this.counters = new HashMap<>(capacity * 2);
+        this.heap = new Counter[capacity];
+    }
+
+    void add(K key, long weight) {
+        Counter<K> counter = counters.get(key);
+        if (counter == null && size < capacity) {
+            counter = new Counter<>(key, size);
+            counter.count = weight;
+            counters.put(key, counter);
+            heap[size++] = counter;
+            siftUp(counter.index);
+            return;
+        }
+        if (counter == null) {
+            //顶替计数最小的键
+            counter = heap[0];
+            counters.remove(counter.key);
+            counter.key = key;
+            counter.error = counter.count;
+            counters.put(key, counter);
+        }
+        //计数只增不减，往下调整就够了
+        counter.count += weight;
+        siftDown(counter.index);
+    }
+
+    /**
+     * 没有跟踪的键的计数上限：满了是最小计数，没满是0
+     */
+    long getMinCount() {
+        return size < capacity ? 0 : heap[0].count;
+    }
+
+    /**
+     * 当前跟踪的键，每项是 {计数, 误差}
+     */
+    Map<K, long[]> snapshot() {
+        Map<K, long[]> snapshot = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            snapshot.put(heap[i].key, new long[]{heap[i].count, heap[i].error});
+        }
+        return snapshot;
+    }
+
+    void clear() {
+        counters.clear();
+        for (int i = 0; i < size; i++) {
+            heap[i] = null;
+        }
+        size = 0;
+    }
+
+    private void siftUp(int index) {
+        Counter<K> counter = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heap[index].index = index;
+            index = parent;
+        }
+        heap[index] = counter;
+        counter.index = index;
+    }
+
+    private void siftDown(int index) {
+        Counter<K> counter = heap[index];
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+                child++;
+            }
+            if (heap[child].count >= counter.count) {
+                break;
+            }
+            heap[index] = heap[child];
+            heap[index].index = index;
+            index = child;
+        }
+        heap[index] = counter;
+        counter.index = index;
+    }
+
+    /**
+     * 合并多个子数据流(时间片、分片)的结果：某个子数据流里没有的键按它的最小计数补上，计数和误差都加
+     *
+     * @param snapshots 各子数据流的 snapshot()
+     * @param minCounts 各子数据流的 getMinCount()
+     * @return 键 -> {计数, 误差}
+     */
+    static <K> Map<K, long[]> merge(List<Map<K, long[]>> snapshots, List<Long> minCounts) {
+        Map<K, long[]> merged = new HashMap<>();
+        for (Map<K, long[]> snapshot : snapshots) {
+            for (K key : snapshot.keySet()) {
+                merged.put(key, new long[2]);
+            }
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+            Map<K, long[]> snapshot = snapshots.get(i);
+            long minCount = minCounts.get(i);
+            for (Map.Entry<K, long[]> entry : merged.entrySet()) {
+                long[] value = snapshot.get(entry.getKey());
+                long[] total = entry.getValue();
+                if (value == null) {
+                    total[0] += minCount;
+                    total[1] += minCount;
+                } else {
+                    total[0] += value[0];
+                    total[1] += value[1];
+                }
+            }
+        }
+        return merged;
+    }
+
+    private static class Counter<K> {
+        K key;
+        long count;
+        long error;
+        int index;
+
+        Counter(K key, int index) {
+            this.key = key;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+/**
+ * 本地预写日志的刷盘策略
+ */
+public enum SpoolFsyncPolicy {
+    /**
+     * 每写一条记录都刷盘，最安全也最慢
+     */
+    ALWAYS,
+    /**
+     * 后台线程按固定间隔刷盘，宕机最多丢一个间隔的数据
+     */
+    INTERVAL,
+    /**
+     * 交给操作系统回写，进程崩溃不丢，机器掉电可能丢
+     */
+    NEVER
+}
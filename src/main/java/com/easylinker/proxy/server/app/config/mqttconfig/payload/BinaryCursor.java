@@ -0,0 +1,97 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * 二进制载荷的读取游标，CBOR/MessagePack/Protobuf共用
+ * 格式不对的时候抛 IllegalArgumentException
+ */
+class BinaryCursor {
+    static final int MAX_DEPTH = 256;
+    final byte[] bytes;
+    int position;
+
+    BinaryCursor(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    boolean hasRemaining() {
+        return position < bytes.length;
+    }
+
+    int remaining() {
+        return bytes.length - position;
+    }
+
+    void require(long length) {
+        if (length < 0 || length > bytes.length - position) {
+            throw new IllegalArgumentException("载荷长度不够");
+        }
+    }
+
+    int u8() {
+        require(1);
+        return bytes[position++] & 0xff;
+    }
+
+    /**
+     * 大端无符号整数，8字节的时候可能是负数，调用方按无符号处理
+     */
+    long bigEndian(int length) {
+        require(length);
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (bytes[position++] & 0xff);
+        }
+        return value;
+    }
+
+    long littleEndian(int length) {
+        require(length);
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value |= (long) (bytes[position++] & 0xff) << (8 * i);
+        }
+        return value;
+    }
+
+    /**
+     * 读UTF-8文本，build为false的时候只校验
+     */
+    String text(long length, boolean build) {
+        require(length);
+        int start = position;
+        position += (int) length;
+        if (!JsonScanner.isUtf8(bytes, start, position)) {
+            throw new IllegalArgumentException("文本不是合法的UTF-8");
+        }
+        return build ? new String(bytes, start, (int) length, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * 读一段字节，渲染成Base64，build为false的时候只跳过
+     */
+    String base64(long length, boolean build) {
+        require(length);
+        int start = position;
+        position += (int) length;
+        if (!build) {
+            return null;
+        }
+        byte[] data = new byte[(int) length];
+        System.arraycopy(bytes, start, data, 0, (int) length);
+        return Base64.getEncoder().encodeToString(data);
+    }
+
+    void skip(long length) {
+        require(length);
+        position += (int) length;
+    }
+
+    static void checkDepth(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("嵌套层数太多");
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * CBOR(RFC 7049)
+ * 标签(tag)只保留被标记的值；字节串渲染成Base64；map的key统一转成字符串
+ */
+public class CborCodec implements PayloadCodec {
+    public static final String NAME = "cbor";
+    private static final Object BREAK = new Object();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isWellFormed(byte[] payload) {
+        try {
+            BinaryCursor cursor = new BinaryCursor(payload);
+            read(cursor, false, 0, false);
+            return !cursor.hasRemaining();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Object toJson(byte[] payload) {
+        BinaryCursor cursor = new BinaryCursor(payload);
+        Object value = read(cursor, true, 0, false);
+        if (cursor.hasRemaining()) {
+            throw new IllegalArgumentException("CBOR数据后面有多余的字节");
+        }
+        return value;
+    }
+
+    private Object read(BinaryCursor cursor, boolean build, int depth, boolean allowBreak) {
+        BinaryCursor.checkDepth(depth);
+        int initial = cursor.u8();
+        if (initial == 0xff) {
+            if (allowBreak) {
+                return BREAK;
+            }
+            throw new IllegalArgumentException("CBOR break出现在不定长结构外面");
+        }
+        int major = initial >>> 5;
+        int info = initial & 0x1f;
+        switch (major) {
+            case 0: {
+                long value = argument(cursor, info);
+                return build ? unsigned(value) : null;
+            }
+            case 1: {
+                long value = argument(cursor, info);
+                return build ? negative(value) : null;
+            }
+            case 2:
+            case 3:
+                return string(cursor, major, info, build);
+            case 4:
+                return array(cursor, info, build, depth);
+            case 5:
+                return map(cursor, info, build, depth);
+            case 6:
+                argument(cursor, info);
+                return read(cursor, build, depth + 1, false);
+            default:
+                return simple(cursor, info, build);
+        }
+    }
+
+    private Object string(BinaryCursor cursor, int major, int info, boolean build) {
+        if (info != 31) {
+            long length = argument(cursor, info);
+            return major == 3 ? cursor.text(length, build) : cursor.base64(length, build);
+        }
+        //不定长字符串由若干个同类型的定长块组成
+        ByteArrayOutputStream chunks = build ? new ByteArrayOutputStream() : null;
+        while (true) {
+            int initial = cursor.u8();
+            if (initial == 0xff) {
+                break;
+            }
+            if ((initial >>> 5) != major || (initial & 0x1f) == 31) {
+                throw new IllegalArgumentException("CBOR不定长字符串的分块类型不对");
+            }
+            long length = argument(cursor, initial & 0x1f);
+            int start = cursor.position;
+            if (major == 3) {
+                cursor.text(length, false);
+            } else {
+                cursor.skip(length);
+            }
+            if (build) {
+                chunks.write(cursor.bytes, start, (int) length);
+            }
+        }
+        if (!build) {
+            return null;
+        }
+        byte[] data = chunks.toByteArray();
+        return major == 3 ? new String(data, StandardCharsets.UTF_8) : Base64.getEncoder().encodeToString(data);
+    }
+
+    private Object array(BinaryCursor cursor, int info, boolean build, int depth) {
+        JSONArray array = build ? new JSONArray() : null;
+        if (info == 31) {
+            while (true) {
+                Object item = read(cursor, build, depth + 1, true);
+                if (item == BREAK) {
+                    break;
+                }
+                if (build) {
+                    array.add(item);
+                }
+            }
+        } else {
+            long count = argument(cursor, info);
+            //每个元素至少一个字节，防止伪造的长度
+            cursor.require(count);
+            for (long i = 0; i < count; i++) {
+                Object item = read(cursor, build, depth + 1, false);
+                if (build) {
+                    array.add(item);
+                }
+            }
+        }
+        return array;
+    }
+
+    private Object map(BinaryCursor cursor, int info, boolean build, int depth) {
+        JSONObject object = build ? new JSONObject(true) : null;
+        long count = info == 31 ? Long.MAX_VALUE : argument(cursor, info);
+        if (info != 31) {
+            cursor.require(count * 2);
+        }
+        for (long i = 0; i < count; i++) {
+            Object key = read(cursor, build, depth + 1, info == 31);
+            if (key == BREAK) {
+                break;
+            }
+            Object value = read(cursor, build, depth + 1, false);
+            if (build) {
+                object.put(String.valueOf(key), value);
+            }
+        }
+        return object;
+    }
+
+    private Object simple(BinaryCursor cursor, int info, boolean build) {
+        switch (info) {
+            case 20:
+                return Boolean.FALSE;
+            case 21:
+                return Boolean.TRUE;
+            case 22:
+            case 23:
+                return null;
+            case 24:
+                cursor.u8();
+                return null;
+            case 25:
+                return half((int) cursor.bigEndian(2));
+            case 26:
+                return Float.intBitsToFloat((int) cursor.bigEndian(4));
+            case 27:
+                return Double.longBitsToDouble(cursor.bigEndian(8));
+            default:
+                if (info < 20) {
+                    return null;
+                }
+                throw new IllegalArgumentException("CBOR保留的简单值:" + info);
+        }
+    }
+
+    private static long argument(BinaryCursor cursor, int info) {
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+            case 24:
+                return cursor.u8();
+            case 25:
+                return cursor.bigEndian(2);
+            case 26:
+                return cursor.bigEndian(4);
+            case 27:
+                return cursor.bigEndian(8);
+            default:
+                throw new IllegalArgumentException("CBOR附加信息不合法:" + info);
+        }
+    }
+
+    static Object unsigned(long value) {
+        return value >= 0 ? (Object) value : new BigInteger(Long.toUnsignedString(value));
+    }
+
+    private static Object negative(long value) {
+        if (value >= 0) {
+            return -1L - value;
+        }
+        return BigInteger.ONE.negate().subtract(new BigInteger(Long.toUnsignedString(value)));
+    }
+
+    private static double half(int bits) {
+        int exponent = (bits >> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+        double value;
+        if (exponent == 0) {
+            value = mantissa * Math.pow(2, -24);
+        } else if (exponent != 31) {
+            value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+        } else {
+            value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+        }
+        return (bits & 0x8000) != 0 ? -value : value;
+    }
+}
@@ -0,0 +1,456 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * 流式JSON格式检查
+ * 直接在字节数组上扫描，只判断是不是合法的JSON(包括字符串里的UTF-8编码)，不建对象树，不产生垃圾
+ * 用在原始载荷直通模式下，代替 JSONObject.parseObject(...).toString() 两次完整的解析和序列化
+ * 严格按 RFC 8259 检查，比 fastjson 严：单引号、不带引号的键、多余的逗号、注释、非法UTF-8 这些
+ * fastjson 能接受的写法这里都判为不合法，调用方要回退到 fastjson 解析(见 Payloads.setJsonData)
+ * collectNumbers 在同一遍扫描里顺便取出数值字段，聚合和死区过滤不用为每条消息建一棵 fastjson 对象树
+ */
+public final class JsonScanner {
+    private static final int MAX_DEPTH = 256;
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+    private JsonScanner() {
+    }
+
+    /**
+     * 是否是合法的JSON
+     *
+     * @param bytes
+     * @return
+     */
+    public static boolean isWellFormed(byte[] bytes) {
+        return check(bytes, 0, bytes.length, false);
+    }
+
+    /**
+     * 是否是严格合法的JSON对象，返回true的 JSONObject.parseObject 一定能解析，反过来不一定
+     *
+     * @param bytes
+     * @return
+     */
+    public static boolean isWellFormedObject(byte[] bytes) {
+        return check(bytes, 0, bytes.length, true);
+    }
+
+    public static boolean check(byte[] bytes, int from, int to, boolean objectOnly) {
+        int i = skipWhitespace(bytes, from, to);
+        if (objectOnly && (i >= to || bytes[i] != '{')) {
+            return false;
+        }
+        i = value(bytes, i, to, 0);
+        return i >= 0 && skipWhitespace(bytes, i, to) == to;
+    }
+
+    /**
+     * 严格合法的JSON对象里的数值字段，规则和 NumericFields 一致：嵌套对象用 . 连接字段名，
+     * 最多 maxDepth 层；布尔值按 1/0，数组、字符串、null、无穷大、名字超过 maxNameLength 个字符的字段忽略
+     *
+     * @param bytes
+     * @param maxDepth
+     * @param maxNameLength
+     * @param values        结果放到这里，格式错误的时候里面可能已经有一部分字段
+     * @return false表示不是严格合法的JSON对象，调用方要回退到 fastjson 解析
+     */
+    public static boolean collectNumbers(byte[] bytes, int maxDepth, int maxNameLength, Map<String, Double> values) {
+        int i = skipWhitespace(bytes, 0, bytes.length);
+        if (i >= bytes.length || bytes[i] != '{') {
+            return false;
+        }
+        i = collect(bytes, i + 1, bytes.length, "", 0, maxDepth, maxNameLength, values);
+        return i >= 0 && skipWhitespace(bytes, i, bytes.length) == bytes.length;
+    }
+
+    /**
+     * 和 object 一样扫描一个对象，数值字段放进 values
+     */
+    private static int collect(byte[] b, int i, int to, String prefix, int depth, int maxDepth, int maxNameLength, Map<String, Double> values) {
+        i = skipWhitespace(b, i, to);
+        if (i < to && b[i] == '}') {
+            return i + 1;
+        }
+        while (i < to) {
+            if (b[i] != '"') {
+                return -1;
+            }
+            int keyStart = i + 1;
+            i = string(b, keyStart, to);
+            if (i < 0) {
+                return -1;
+            }
+            String name = prefix + decodeString(b, keyStart, i - 1);
+            i = skipWhitespace(b, i, to);
+            if (i >= to || b[i] != ':') {
+                return -1;
+            }
+            int valueStart = skipWhitespace(b, i + 1, to);
+            if (valueStart >= to) {
+                return -1;
+            }
+            switch (b[valueStart]) {
+                case '{':
+                    i = depth + 1 < maxDepth
+                            ? collect(b, valueStart + 1, to, name + ".", depth + 1, maxDepth, maxNameLength, values)
+                            : object(b, valueStart + 1, to, depth + 1);
+                    break;
+                case 't':
+                case 'f':
+                    i = value(b, valueStart, to, depth);
+                    if (i >= 0) {
+                        values.put(name, b[valueStart] == 't' ? 1.0 : 0.0);
+                    }
+                    break;
+                case '[':
+                case '"':
+                case 'n':
+                    i = value(b, valueStart, to, depth);
+                    break;
+                default:
+                    i = number(b, valueStart, to);
+                    if (i >= 0) {
+                        double d = Double.parseDouble(new String(b, valueStart, i - valueStart, StandardCharsets.US_ASCII));
+                        if (!Double.isInfinite(d) && name.length() <= maxNameLength) {
+                            values.put(name, d);
+                        }
+                    }
+            }
+            if (i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(b, i, to);
+            if (i >= to) {
+                return -1;
+            }
+            if (b[i] == '}') {
+                return i + 1;
+            }
+            if (b[i] != ',') {
+                return -1;
+            }
+            i = skipWhitespace(b, i + 1, to);
+        }
+        return -1;
+    }
+
+    /**
+     * [from, to) 是已经检查过的字符串内容(不含引号)
+     */
+    private static String decodeString(byte[] b, int from, int to) {
+        int escape = from;
+        while (escape < to && b[escape] != '\\') {
+            escape++;
+        }
+        if (escape == to) {
+            return new String(b, from, to - from, StandardCharsets.UTF_8);
+        }
+        StringBuilder text = new StringBuilder(new String(b, from, escape - from, StandardCharsets.UTF_8));
+        int i = escape;
+        while (i < to) {
+            if (b[i] != '\\') {
+                int start = i;
+                while (i < to && b[i] != '\\') {
+                    i++;
+                }
+                text.append(new String(b, start, i - start, StandardCharsets.UTF_8));
+                continue;
+            }
+            byte c = b[i + 1];
+            switch (c) {
+                case 'b':
+                    text.append('\b');
+                    break;
+                case 'f':
+                    text.append('\f');
+                    break;
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                case 't':
+                    text.append('\t');
+                    break;
+                case 'u':
+                    text.append((char) Integer.parseInt(new String(b, i + 2, 4, StandardCharsets.US_ASCII), 16));
+                    i += 4;
+                    break;
+                default:
+                    text.append((char) c);
+            }
+            i += 2;
+        }
+        return text.toString();
+    }
+
+    /**
+     * 以下方法返回扫描结束的位置，-1表示格式错误
+     */
+    private static int value(byte[] b, int i, int to, int depth) {
+        if (i >= to) {
+            return -1;
+        }
+        switch (b[i]) {
+            case '{':
+                return object(b, i + 1, to, depth + 1);
+            case '[':
+                return array(b, i + 1, to, depth + 1);
+            case '"':
+                return string(b, i + 1, to);
+            case 't':
+                return literal(b, i, to, TRUE);
+            case 'f':
+                return literal(b, i, to, FALSE);
+            case 'n':
+                return literal(b, i, to, NULL);
+            default:
+                return number(b, i, to);
+        }
+    }
+
+    private static int object(byte[] b, int i, int to, int depth) {
+        if (depth > MAX_DEPTH) {
+            return -1;
+        }
+        i = skipWhitespace(b, i, to);
+        if (i < to && b[i] == '}') {
+            return i + 1;
+        }
+        while (i < to) {
+            if (b[i] != '"') {
+                return -1;
+            }
+            i = string(b, i + 1, to);
+            if (i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(b, i, to);
+            if (i >= to || b[i] != ':') {
+                return -1;
+            }
+            i = value(b, skipWhitespace(b, i + 1, to), to, depth);
+            if (i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(b, i, to);
+            if (i >= to) {
+                return -1;
+            }
+            if (b[i] == '}') {
+                return i + 1;
+            }
+            if (b[i] != ',') {
+                return -1;
+            }
+            i = skipWhitespace(b, i + 1, to);
+        }
+        return -1;
+    }
+
+    private static int array(byte[] b, int i, int to, int depth) {
+        if (depth > MAX_DEPTH) {
+            return -1;
+        }
+        i = skipWhitespace(b, i, to);
+        if (i < to && b[i] == ']') {
+            return i + 1;
+        }
+        while (i < to) {
+            i = value(b, i, to, depth);
+            if (i < 0) {
+                return -1;
+            }
+            i = skipWhitespace(b, i, to);
+            if (i >= to) {
+                return -1;
+            }
+            if (b[i] == ']') {
+                return i + 1;
+            }
+            if (b[i] != ',') {
+                return -1;
+            }
+            i = skipWhitespace(b, i + 1, to);
+        }
+        return -1;
+    }
+
+    /**
+     * 从开头引号的下一个字节开始
+     */
+    private static int string(byte[] b, int i, int to) {
+        while (i < to) {
+            int c = b[i] & 0xff;
+            if (c == '"') {
+                return i + 1;
+            }
+            if (c == '\\') {
+                if (i + 1 >= to) {
+                    return -1;
+                }
+                switch (b[i + 1]) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                    case 'b':
+                    case 'f':
+                    case 'n':
+                    case 'r':
+                    case 't':
+                        i += 2;
+                        break;
+                    case 'u':
+                        if (i + 6 > to) {
+                            return -1;
+                        }
+                        for (int k = i + 2; k < i + 6; k++) {
+                            if (!isHex(b[k])) {
+                                return -1;
+                            }
+                        }
+                        i += 6;
+                        break;
+                    default:
+                        return -1;
+                }
+            } else if (c < 0x20) {
+                return -1;
+            } else if (c < 0x80) {
+                i++;
+            } else {
+                i = utf8(b, i, to, c);
+                if (i < 0) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * [from, to) 是否是合法的UTF-8，二进制编码里的文本也用这个检查
+     */
+    static boolean isUtf8(byte[] b, int from, int to) {
+        int i = from;
+        while (i < to) {
+            int c = b[i] & 0xff;
+            if (c < 0x80) {
+                i++;
+            } else {
+                i = utf8(b, i, to, c);
+                if (i < 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 检查一个多字节UTF-8字符，拒绝超长编码、代理区和超出U+10FFFF的码点
+     */
+    private static int utf8(byte[] b, int i, int to, int c) {
+        int length;
+        int min;
+        int max = 0xBF;
+        if (c >= 0xC2 && c <= 0xDF) {
+            length = 2;
+            min = 0x80;
+        } else if (c >= 0xE0 && c <= 0xEF) {
+            length = 3;
+            min = c == 0xE0 ? 0xA0 : 0x80;
+            max = c == 0xED ? 0x9F : 0xBF;
+        } else if (c >= 0xF0 && c <= 0xF4) {
+            length = 4;
+            min = c == 0xF0 ? 0x90 : 0x80;
+            max = c == 0xF4 ? 0x8F : 0xBF;
+        } else {
+            return -1;
+        }
+        if (i + length > to) {
+            return -1;
+        }
+        int second = b[i + 1] & 0xff;
+        if (second < min || second > max) {
+            return -1;
+        }
+        for (int k = i + 2; k < i + length; k++) {
+            if ((b[k] & 0xC0) != 0x80) {
+                return -1;
+            }
+        }
+        return i + length;
+    }
+
+    private static int number(byte[] b, int i, int to) {
+        if (i < to && b[i] == '-') {
+            i++;
+        }
+        if (i >= to) {
+            return -1;
+        }
+        if (b[i] == '0') {
+            i++;
+        } else if (b[i] >= '1' && b[i] <= '9') {
+            i = digits(b, i, to);
+        } else {
+            return -1;
+        }
+        if (i < to && b[i] == '.') {
+            int start = i + 1;
+            i = digits(b, start, to);
+            if (i == start) {
+                return -1;
+            }
+        }
+        if (i < to && (b[i] == 'e' || b[i] == 'E')) {
+            i++;
+            if (i < to && (b[i] == '+' || b[i] == '-')) {
+                i++;
+            }
+            int start = i;
+            i = digits(b, start, to);
+            if (i == start) {
+                return -1;
+            }
+        }
+        return i;
+    }
+
+    private static int digits(byte[] b, int i, int to) {
+        while (i < to && b[i] >= '0' && b[i] <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int literal(byte[] b, int i, int to, byte[] expected) {
+        if (i + expected.length > to) {
+            return -1;
+        }
+        for (int k = 0; k < expected.length; k++) {
+            if (b[i + k] != expected[k]) {
+                return -1;
+            }
+        }
+        return i + expected.length;
+    }
+
+    private static int skipWhitespace(byte[] b, int i, int to) {
+        while (i < to && (b[i] == ' ' || b[i] == '\t' || b[i] == '\n' || b[i] == '\r')) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isHex(byte c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+}
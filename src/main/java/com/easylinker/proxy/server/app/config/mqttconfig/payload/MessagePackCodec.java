@@ -0,0 +1,162 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+/**
+ * MessagePack
+ * bin渲染成Base64；ext渲染成 {"ext":类型,"data":Base64}；map的key统一转成字符串
+ */
+public class MessagePackCodec implements PayloadCodec {
+    public static final String NAME = "msgpack";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isWellFormed(byte[] payload) {
+        try {
+            BinaryCursor cursor = new BinaryCursor(payload);
+            read(cursor, false, 0);
+            return !cursor.hasRemaining();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Object toJson(byte[] payload) {
+        BinaryCursor cursor = new BinaryCursor(payload);
+        Object value = read(cursor, true, 0);
+        if (cursor.hasRemaining()) {
+            throw new IllegalArgumentException("MessagePack数据后面有多余的字节");
+        }
+        return value;
+    }
+
+    private Object read(BinaryCursor cursor, boolean build, int depth) {
+        BinaryCursor.checkDepth(depth);
+        int b = cursor.u8();
+        if (b <= 0x7f) {
+            return build ? (Object) (long) b : null;
+        }
+        if (b >= 0xe0) {
+            return build ? (Object) (long) (byte) b : null;
+        }
+        if (b <= 0x8f) {
+            return map(cursor, b & 0x0f, build, depth);
+        }
+        if (b <= 0x9f) {
+            return array(cursor, b & 0x0f, build, depth);
+        }
+        if (b <= 0xbf) {
+            return cursor.text(b & 0x1f, build);
+        }
+        switch (b) {
+            case 0xc0:
+                return null;
+            case 0xc2:
+                return Boolean.FALSE;
+            case 0xc3:
+                return Boolean.TRUE;
+            case 0xc4:
+                return cursor.base64(cursor.bigEndian(1), build);
+            case 0xc5:
+                return cursor.base64(cursor.bigEndian(2), build);
+            case 0xc6:
+                return cursor.base64(cursor.bigEndian(4), build);
+            case 0xc7:
+                return ext(cursor, cursor.bigEndian(1), build);
+            case 0xc8:
+                return ext(cursor, cursor.bigEndian(2), build);
+            case 0xc9:
+                return ext(cursor, cursor.bigEndian(4), build);
+            case 0xca:
+                return Float.intBitsToFloat((int) cursor.bigEndian(4));
+            case 0xcb:
+                return Double.longBitsToDouble(cursor.bigEndian(8));
+            case 0xcc:
+                return cursor.bigEndian(1);
+            case 0xcd:
+                return cursor.bigEndian(2);
+            case 0xce:
+                return cursor.bigEndian(4);
+            case 0xcf:
+                return CborCodec.unsigned(cursor.bigEndian(8));
+            case 0xd0:
+                return (long) (byte) cursor.bigEndian(1);
+            case 0xd1:
+                return (long) (short) cursor.bigEndian(2);
+            case 0xd2:
+                return (long) (int) cursor.bigEndian(4);
+            case 0xd3:
+                return cursor.bigEndian(8);
+            case 0xd4:
+                return ext(cursor, 1, build);
+            case 0xd5:
+                return ext(cursor, 2, build);
+            case 0xd6:
+                return ext(cursor, 4, build);
+            case 0xd7:
+                return ext(cursor, 8, build);
+            case 0xd8:
+                return ext(cursor, 16, build);
+            case 0xd9:
+                return cursor.text(cursor.bigEndian(1), build);
+            case 0xda:
+                return cursor.text(cursor.bigEndian(2), build);
+            case 0xdb:
+                return cursor.text(cursor.bigEndian(4), build);
+            case 0xdc:
+                return array(cursor, cursor.bigEndian(2), build, depth);
+            case 0xdd:
+                return array(cursor, cursor.bigEndian(4), build, depth);
+            case 0xde:
+                return map(cursor, cursor.bigEndian(2), build, depth);
+            case 0xdf:
+                return map(cursor, cursor.bigEndian(4), build, depth);
+            default:
+                throw new IllegalArgumentException("MessagePack类型字节不合法:" + b);
+        }
+    }
+
+    private Object array(BinaryCursor cursor, long count, boolean build, int depth) {
+        //每个元素至少一个字节，防止伪造的长度
+        cursor.require(count);
+        JSONArray array = build ? new JSONArray() : null;
+        for (long i = 0; i < count; i++) {
+            Object item = read(cursor, build, depth + 1);
+            if (build) {
+                array.add(item);
+            }
+        }
+        return array;
+    }
+
+    private Object map(BinaryCursor cursor, long count, boolean build, int depth) {
+        cursor.require(count * 2);
+        JSONObject object = build ? new JSONObject(true) : null;
+        for (long i = 0; i < count; i++) {
+            Object key = read(cursor, build, depth + 1);
+            Object value = read(cursor, build, depth + 1);
+            if (build) {
+                object.put(String.valueOf(key), value);
+            }
+        }
+        return object;
+    }
+
+    private Object ext(BinaryCursor cursor, long length, boolean build) {
+        int type = (byte) cursor.u8();
+        String data = cursor.base64(length, build);
+        if (!build) {
+            return null;
+        }
+        JSONObject ext = new JSONObject(true);
+        ext.put("ext", type);
+        ext.put("data", data);
+        return ext;
+    }
+}
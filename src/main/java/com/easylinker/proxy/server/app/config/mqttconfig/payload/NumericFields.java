@@ -0,0 +1,87 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import com.alibaba.fastjson.JSON;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 一条载荷里的数值字段
+ * 入库过滤(死区)和聚合都要用，第一次用到的时候解析一次载荷，之后共用解析结果；
+ * JSON载荷用 JsonScanner 流式取出数值字段，不建对象树，严格检查不通过的才回退到 fastjson
+ * 嵌套对象用 . 连接字段名，最多4层；布尔值按 1/0，NaN、无穷大、名字超过128个字符的字段忽略
+ * 只在处理这条消息的线程里用，不是线程安全的
+ */
+public final class NumericFields {
+    private static final int MAX_DEPTH = 4;
+    private static final int MAX_NAME_LENGTH = 128;
+
+    private final Object payload;
+    private final PayloadCodec codec;
+    private Map<String, Double> values;
+
+    private NumericFields(Object payload, PayloadCodec codec) {
+        this.payload = payload;
+        this.codec = codec;
+    }
+
+    /**
+     * @param payload 已经校验过格式的MQTT载荷
+     * @param codec   二进制编码，JSON为null
+     * @return
+     */
+    public static NumericFields of(Object payload, PayloadCodec codec) {
+        return new NumericFields(payload, codec);
+    }
+
+    /**
+     * @return 字段名 -> 值，按字段名排序；载荷不是对象或者解析失败的时候为空
+     */
+    public Map<String, Double> get() {
+        if (values == null) {
+            values = extract();
+        }
+        return values;
+    }
+
+    private Map<String, Double> extract() {
+        if (codec == null) {
+            byte[] bytes = payload instanceof byte[] ? (byte[]) payload : Payloads.asString(payload).getBytes(StandardCharsets.UTF_8);
+            Map<String, Double> values = new TreeMap<>();
+            if (JsonScanner.collectNumbers(bytes, MAX_DEPTH, MAX_NAME_LENGTH, values)) {
+                return values;
+            }
+        }
+        Object root;
+        try {
+            root = codec == null ? JSON.parse(Payloads.asString(payload)) : codec.toJson((byte[]) payload);
+        } catch (RuntimeException e) {
+            return Collections.emptyMap();
+        }
+        if (!(root instanceof Map)) {
+            return Collections.emptyMap();
+        }
+        Map<String, Double> values = new TreeMap<>();
+        collect("", (Map<?, ?>) root, values, 0);
+        return values;
+    }
+
+    private static void collect(String prefix, Map<?, ?> object, Map<String, Double> values, int depth) {
+        for (Map.Entry<?, ?> entry : object.entrySet()) {
+            String name = prefix + entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof Number) {
+                double d = ((Number) value).doubleValue();
+                if (!Double.isNaN(d) && !Double.isInfinite(d) && name.length() <= MAX_NAME_LENGTH) {
+                    values.put(name, d);
+                }
+            } else if (value instanceof Boolean) {
+                values.put(name, (Boolean) value ? 1.0 : 0.0);
+            } else if (value instanceof Map && depth + 1 < MAX_DEPTH) {
+                collect(name + ".", (Map<?, ?>) value, values, depth + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+/**
+ * 二进制载荷编码
+ * 入库的时候只做格式检查，原始字节原样保存在 device_data.payload 列；
+ * 只有REST接口读数据的时候才渲染成JSON
+ */
+public interface PayloadCodec {
+    /**
+     * 编码名，保存在 device_data.encoding 列
+     *
+     * @return
+     */
+    String getName();
+
+    /**
+     * 格式检查，不建对象树
+     *
+     * @param payload
+     * @return
+     */
+    boolean isWellFormed(byte[] payload);
+
+    /**
+     * 渲染成JSON值(JSONObject/JSONArray/基本类型)
+     *
+     * @param payload
+     * @return
+     * @throws IllegalArgumentException 格式不对
+     */
+    Object toJson(byte[] payload);
+}
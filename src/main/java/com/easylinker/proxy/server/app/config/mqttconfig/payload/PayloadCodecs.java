@@ -0,0 +1,168 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import com.alibaba.fastjson.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 载荷编码注册表
+ * 编码的选择顺序: Topic后缀(IN/ECHO/{user}/{group}/{device}/enc/cbor) > 设备分组的 payloadEncoding > JSON
+ * Protobuf 的 Topic 后缀写成 enc/protobuf/{schema}，分组上写成 protobuf:{schema}
+ * 设备ID后面只有 enc/{已注册的编码} 才算编码后缀，已有设备在后面加的其他层级照旧按分组编码或者JSON处理
+ */
+@Component
+public class PayloadCodecs {
+    public static final String JSON = "json";
+    /**
+     * Topic里编码后缀的保留层级
+     */
+    public static final String SUFFIX_PREFIX = "enc/";
+    Logger logger = LoggerFactory.getLogger(PayloadCodecs.class);
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Value("${ingest.codec.protobuf.schema-dir:./schemas}")
+    String schemaDir;
+
+    private final Map<String, PayloadCodec> codecs = new ConcurrentHashMap<>();
+    private final Map<String, ProtobufSchema> schemas = new ConcurrentHashMap<>();
+    private final Map<Long, PayloadCodec> groupCodecs = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void start() {
+        register(new CborCodec());
+        register(new MessagePackCodec());
+        loadSchemas();
+        try {
+            jdbcTemplate.query("SELECT id, payload_encoding FROM device_group WHERE payload_encoding IS NOT NULL",
+                    (RowCallbackHandler) rs -> setGroupEncoding(rs.getLong(1), rs.getString(2)));
+        } catch (Exception e) {
+            logger.error("加载分组载荷编码失败:" + e.getMessage());
+        }
+        logger.info("载荷编码:" + codecs.keySet() + " 使用非JSON编码的分组数[" + groupCodecs.size() + "]");
+    }
+
+    private void loadSchemas() {
+        File[] files = new File(schemaDir).listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName().substring(0, file.getName().length() - ".json".length());
+            try {
+                String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+                schemas.put(name, ProtobufSchema.parse(name, JSONObject.parseObject(content)));
+            } catch (Exception e) {
+                logger.error("Protobuf schema[" + file.getName() + "]加载失败:" + e.getMessage());
+            }
+        }
+        for (ProtobufSchema schema : schemas.values()) {
+            register(new ProtobufCodec(schema, schemas));
+        }
+    }
+
+    public void register(PayloadCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * 按名字查找编码，JSON和空返回null
+     *
+     * @param encoding
+     * @return
+     * @throws IllegalArgumentException 不支持的编码
+     */
+    public PayloadCodec find(String encoding) {
+        if (encoding == null || encoding.isEmpty() || encoding.equalsIgnoreCase(JSON)) {
+            return null;
+        }
+        PayloadCodec codec = codecs.get(encoding);
+        if (codec == null) {
+            throw new IllegalArgumentException("不支持的载荷编码:" + encoding);
+        }
+        return codec;
+    }
+
+    /**
+     * 选择一条消息的编码
+     *
+     * @param topicSuffix 设备ID后面的Topic层级，没有传空串
+     * @param groupId     设备所在分组
+     * @return null表示JSON
+     */
+    public PayloadCodec select(String topicSuffix, long groupId) {
+        if (topicSuffix.startsWith(SUFFIX_PREFIX)) {
+            String name = topicSuffix.substring(SUFFIX_PREFIX.length()).replace('/', ':');
+            if (name.equalsIgnoreCase(JSON)) {
+                return null;
+            }
+            PayloadCodec codec = codecs.get(name);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        return groupCodecs.isEmpty() ? null : groupCodecs.get(groupId);
+    }
+
+    /**
+     * 分组保存的时候同步
+     *
+     * @param groupId
+     * @param encoding 为空表示JSON
+     */
+    public void setGroupEncoding(long groupId, String encoding) {
+        PayloadCodec codec;
+        try {
+            codec = find(encoding);
+        } catch (IllegalArgumentException e) {
+            logger.error("分组[" + groupId + "]" + e.getMessage() + "，按JSON处理");
+            codec = null;
+        }
+        if (codec == null) {
+            groupCodecs.remove(groupId);
+        } else {
+            groupCodecs.put(groupId, codec);
+        }
+    }
+
+    public void removeGroup(long groupId) {
+        groupCodecs.remove(groupId);
+    }
+
+    public boolean isSupported(String encoding) {
+        try {
+            find(encoding);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 把保存的二进制载荷渲染成JSON，REST接口读数据的时候用
+     *
+     * @param encoding
+     * @param payload
+     * @return
+     */
+    public Object toJson(String encoding, byte[] payload) {
+        try {
+            return find(encoding).toJson(payload);
+        } catch (IllegalArgumentException e) {
+            logger.error("载荷渲染失败[" + encoding + "]:" + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.model.device.DeviceData;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 载荷工具
+ * 原始载荷直通模式下MQTT消息的载荷是 byte[]，其他模式是 String，需要文本的地方统一从这里转
+ */
+public final class Payloads {
+    private Payloads() {
+    }
+
+    public static String asString(Object payload) {
+        if (payload instanceof byte[]) {
+            return new String((byte[]) payload, StandardCharsets.UTF_8);
+        }
+        return payload.toString();
+    }
+
+    /**
+     * 载荷的字节数，String按UTF-8计算，不复制
+     *
+     * @param payload
+     * @return
+     */
+    public static long byteLength(Object payload) {
+        if (payload instanceof byte[]) {
+            return ((byte[]) payload).length;
+        }
+        String text = payload.toString();
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 把JSON载荷放进 DeviceData
+     * byte[] 先做严格的流式格式检查，通过的原样保存；不通过的和 String 一样交给 fastjson 解析以后再序列化，
+     * 接受的范围和原来一致，只是宽松写法的载荷走慢路径
+     *
+     * @param deviceData
+     * @param payload
+     * @throws IllegalArgumentException 载荷不是JSON对象
+     */
+    public static void setJsonData(DeviceData deviceData, Object payload) {
+        if (payload instanceof byte[] && JsonScanner.isWellFormedObject((byte[]) payload)) {
+            deviceData.setRawData((byte[]) payload);
+            return;
+        }
+        JSONObject data = JSONObject.parseObject(asString(payload));
+        if (data == null) {
+            throw new IllegalArgumentException("载荷不是合法的JSON对象");
+        }
+        deviceData.setData(data.toString());
+    }
+
+    /**
+     * 把二进制载荷放进 DeviceData，只做格式检查，原样保存
+     *
+     * @param deviceData
+     * @param codec
+     * @param payload
+     * @throws IllegalArgumentException 载荷不是 byte[] 或者格式不对
+     */
+    public static void setBinaryData(DeviceData deviceData, PayloadCodec codec, Object payload) {
+        if (!(payload instanceof byte[])) {
+            throw new IllegalArgumentException("二进制载荷需要开启 ingest.payload.raw");
+        }
+        byte[] raw = (byte[]) payload;
+        if (!codec.isWellFormed(raw)) {
+            throw new IllegalArgumentException("载荷不是合法的" + codec.getName());
+        }
+        deviceData.setEncoding(codec.getName());
+        deviceData.setPayload(raw);
+    }
+}
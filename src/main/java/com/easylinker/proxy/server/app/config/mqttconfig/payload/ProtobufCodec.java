@@ -0,0 +1,188 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+import java.util.Map;
+
+/**
+ * 按注册的 ProtobufSchema 解析的Protobuf
+ * 编码名是 protobuf:{schema名字}；schema里没有的字段按字段号渲染，嵌套消息引用的schema不存在的时候同样处理
+ */
+public class ProtobufCodec implements PayloadCodec {
+    public static final String PREFIX = "protobuf:";
+    private final ProtobufSchema schema;
+    private final Map<String, ProtobufSchema> schemas;
+
+    /**
+     * @param schema  顶层消息结构
+     * @param schemas 全部注册的结构，用来解析嵌套消息
+     */
+    public ProtobufCodec(ProtobufSchema schema, Map<String, ProtobufSchema> schemas) {
+        this.schema = schema;
+        this.schemas = schemas;
+    }
+
+    @Override
+    public String getName() {
+        return PREFIX + schema.getName();
+    }
+
+    @Override
+    public boolean isWellFormed(byte[] payload) {
+        try {
+            BinaryCursor cursor = new BinaryCursor(payload);
+            message(cursor, payload.length, schema, false, 0);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public Object toJson(byte[] payload) {
+        return message(new BinaryCursor(payload), payload.length, schema, true, 0);
+    }
+
+    private JSONObject message(BinaryCursor cursor, int end, ProtobufSchema schema, boolean build, int depth) {
+        BinaryCursor.checkDepth(depth);
+        JSONObject object = build ? new JSONObject(true) : null;
+        while (cursor.position < end) {
+            long key = varint(cursor);
+            int number = (int) (key >>> 3);
+            int wireType = (int) (key & 7);
+            if (number <= 0) {
+                throw new IllegalArgumentException("Protobuf字段号不合法:" + number);
+            }
+            ProtobufSchema.Field field = schema == null ? null : schema.getField(number);
+            if (field == null) {
+                Object value = unknown(cursor, wireType, build);
+                if (build) {
+                    object.put(String.valueOf(number), value);
+                }
+            } else if (wireType == 2 && field.isPackable()) {
+                //packed repeated
+                int packedEnd = length(cursor);
+                while (cursor.position < packedEnd) {
+                    add(object, field, scalar(cursor, field, build), build);
+                }
+                if (cursor.position != packedEnd) {
+                    throw new IllegalArgumentException("Protobuf packed字段长度不对:" + field.getName());
+                }
+            } else if (wireType != field.getWireType()) {
+                throw new IllegalArgumentException("Protobuf字段类型不匹配:" + field.getName());
+            } else if (wireType == 2) {
+                add(object, field, lengthDelimited(cursor, field, build, depth), build);
+            } else {
+                add(object, field, scalar(cursor, field, build), build);
+            }
+        }
+        if (cursor.position != end) {
+            throw new IllegalArgumentException("Protobuf消息长度不对");
+        }
+        return object;
+    }
+
+    private Object lengthDelimited(BinaryCursor cursor, ProtobufSchema.Field field, boolean build, int depth) {
+        int end = length(cursor);
+        int length = end - cursor.position;
+        switch (field.getType()) {
+            case "string":
+                return cursor.text(length, build);
+            case "bytes":
+                return cursor.base64(length, build);
+            default:
+                return message(cursor, end, schemas.get(field.getMessageType()), build, depth + 1);
+        }
+    }
+
+    private Object scalar(BinaryCursor cursor, ProtobufSchema.Field field, boolean build) {
+        switch (field.getType()) {
+            case "int32":
+            case "enum":
+                return (long) (int) varint(cursor);
+            case "int64":
+                return varint(cursor);
+            case "uint32":
+                return varint(cursor) & 0xffffffffL;
+            case "uint64":
+                return CborCodec.unsigned(varint(cursor));
+            case "sint32":
+            case "sint64": {
+                long value = varint(cursor);
+                return (value >>> 1) ^ -(value & 1);
+            }
+            case "bool":
+                return varint(cursor) != 0;
+            case "fixed64":
+                return CborCodec.unsigned(cursor.littleEndian(8));
+            case "sfixed64":
+                return cursor.littleEndian(8);
+            case "double":
+                return Double.longBitsToDouble(cursor.littleEndian(8));
+            case "fixed32":
+                return cursor.littleEndian(4);
+            case "sfixed32":
+                return (long) (int) cursor.littleEndian(4);
+            case "float":
+                return Float.intBitsToFloat((int) cursor.littleEndian(4));
+            default:
+                throw new IllegalArgumentException("不是数值类型:" + field.getType());
+        }
+    }
+
+    private Object unknown(BinaryCursor cursor, int wireType, boolean build) {
+        switch (wireType) {
+            case 0:
+                return varint(cursor);
+            case 1:
+                return cursor.littleEndian(8);
+            case 2: {
+                int end = length(cursor);
+                return cursor.base64(end - cursor.position, build);
+            }
+            case 5:
+                return cursor.littleEndian(4);
+            default:
+                throw new IllegalArgumentException("不支持的Protobuf wire type:" + wireType);
+        }
+    }
+
+    private static void add(JSONObject object, ProtobufSchema.Field field, Object value, boolean build) {
+        if (!build) {
+            return;
+        }
+        if (field.isRepeated()) {
+            JSONArray array = object.getJSONArray(field.getName());
+            if (array == null) {
+                array = new JSONArray();
+                object.put(field.getName(), array);
+            }
+            array.add(value);
+        } else {
+            //非repeated字段出现多次以最后一次为准
+            object.put(field.getName(), value);
+        }
+    }
+
+    /**
+     * 读长度前缀，返回这一段的结束位置
+     */
+    private static int length(BinaryCursor cursor) {
+        long length = varint(cursor);
+        cursor.require(length);
+        return cursor.position + (int) length;
+    }
+
+    private static long varint(BinaryCursor cursor) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = cursor.u8();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Protobuf varint太长");
+    }
+}
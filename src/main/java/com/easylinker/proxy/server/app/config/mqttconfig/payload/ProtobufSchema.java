@@ -0,0 +1,131 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import com.alibaba.fastjson.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 注册的Protobuf消息结构
+ * 从 schema 目录下的 {名字}.json 加载，格式是 字段号 -> 字段定义:
+ * {"1":{"name":"temperature","type":"double"},"2":{"name":"tags","type":"string","repeated":true},
+ * "3":{"name":"position","type":"message:position"}}
+ * type 支持 proto3 的全部标量类型、enum 和 message:{另一个schema的名字}
+ */
+public class ProtobufSchema {
+    private final String name;
+    private final Map<Integer, Field> fields;
+
+    public ProtobufSchema(String name, Map<Integer, Field> fields) {
+        this.name = name;
+        this.fields = Collections.unmodifiableMap(new HashMap<>(fields));
+    }
+
+    public static ProtobufSchema parse(String name, JSONObject json) {
+        Map<Integer, Field> fields = new HashMap<>();
+        for (String key : json.keySet()) {
+            int number = Integer.parseInt(key);
+            JSONObject fieldJson = json.getJSONObject(key);
+            Field field = new Field(number, fieldJson.getString("name"), fieldJson.getString("type"),
+                    fieldJson.getBooleanValue("repeated"));
+            fields.put(number, field);
+        }
+        return new ProtobufSchema(name, fields);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Field getField(int number) {
+        return fields.get(number);
+    }
+
+    public static class Field {
+        private final int number;
+        private final String name;
+        private final String type;
+        private final boolean repeated;
+        private final int wireType;
+
+        public Field(int number, String name, String type, boolean repeated) {
+            if (number <= 0 || name == null || type == null) {
+                throw new IllegalArgumentException("Protobuf字段定义不完整:" + number);
+            }
+            this.number = number;
+            this.name = name;
+            this.type = type;
+            this.repeated = repeated;
+            this.wireType = wireTypeOf(type);
+        }
+
+        private static int wireTypeOf(String type) {
+            switch (type) {
+                case "int32":
+                case "int64":
+                case "uint32":
+                case "uint64":
+                case "sint32":
+                case "sint64":
+                case "bool":
+                case "enum":
+                    return 0;
+                case "fixed64":
+                case "sfixed64":
+                case "double":
+                    return 1;
+                case "string":
+                case "bytes":
+                    return 2;
+                case "fixed32":
+                case "sfixed32":
+                case "float":
+                    return 5;
+                default:
+                    if (type.startsWith("message:")) {
+                        return 2;
+                    }
+                    throw new IllegalArgumentException("不支持的Protobuf字段类型:" + type);
+            }
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public boolean isRepeated() {
+            return repeated;
+        }
+
+        public int getWireType() {
+            return wireType;
+        }
+
+        /**
+         * 可以packed编码的数值类型
+         *
+         * @return
+         */
+        public boolean isPackable() {
+            return wireType != 2;
+        }
+
+        /**
+         * 嵌套消息的schema名字，不是消息类型返回null
+         *
+         * @return
+         */
+        public String getMessageType() {
+            return type.startsWith("message:") ? type.substring("message:".length()) : null;
+        }
+    }
+}
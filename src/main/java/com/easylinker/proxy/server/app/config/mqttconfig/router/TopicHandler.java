@@ -0,0 +1,16 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.router;
+
+import org.springframework.messaging.Message;
+
+/**
+ * Topic路由的处理方法
+ */
+@FunctionalInterface
+public interface TopicHandler {
+    /**
+     * @param match   通配符匹配到的层级，只在本次调用内有效，不要保存引用
+     * @param message
+     * @throws Exception
+     */
+    void handle(TopicMatch match, Message<?> message) throws Exception;
+}
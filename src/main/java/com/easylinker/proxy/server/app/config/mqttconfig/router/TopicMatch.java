@@ -0,0 +1,109 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.router;
+
+import java.util.Arrays;
+
+/**
+ * 一次Topic匹配的结果
+ * 只记录每个通配符层级在原Topic里的起止位置，不切分字符串，需要的时候再取值
+ * 比如 IN/ECHO/+/+/+/# 匹配 IN/ECHO/1/2/3 以后: get(0)=1 get(1)=2 getLong(2)=3
+ */
+public class TopicMatch {
+    private String topic;
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private int size;
+
+    void reset(String topic) {
+        this.topic = topic;
+        this.size = 0;
+    }
+
+    void push(int start, int end) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    void truncate(int size) {
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * 通配符匹配到的层级数目，#算一个
+     *
+     * @return
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * 第index个通配符匹配到的内容
+     *
+     * @param index
+     * @return
+     */
+    public String get(int index) {
+        check(index);
+        return topic.substring(starts[index], ends[index]);
+    }
+
+    /**
+     * 第index个通配符匹配到的内容按十进制long解析，不产生中间字符串
+     *
+     * @param index
+     * @return
+     * @throws NumberFormatException 不是数字的时候
+     */
+    public long getLong(int index) {
+        check(index);
+        int start = starts[index];
+        int end = ends[index];
+        if (start == end || end - start > 19) {
+            throw new NumberFormatException("Topic层级不是数字:" + topic);
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = topic.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Topic层级不是数字:" + topic);
+            }
+            value = value * 10 + (c - '0');
+            if (value < 0) {
+                throw new NumberFormatException("Topic层级超出范围:" + topic);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * 第index个通配符匹配到的内容是否等于value
+     *
+     * @param index
+     * @param value
+     * @return
+     */
+    public boolean matches(int index, String value) {
+        check(index);
+        int length = ends[index] - starts[index];
+        return length == value.length() && topic.regionMatches(starts[index], value, 0, length);
+    }
+
+    private void check(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("通配符层级不存在:" + index);
+        }
+    }
+}
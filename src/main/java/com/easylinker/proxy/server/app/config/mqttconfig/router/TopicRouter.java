@@ -0,0 +1,166 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.router;
+
+import org.springframework.messaging.Message;
+
+import java.util.Arrays;
+
+/**
+ * 编译好的Topic路由
+ * 把 IN/ECHO/+/+/+/#、$SYS/brokers/+/clients/+/connected 这样的过滤器编译成一棵前缀树，
+ * 匹配的时候直接在原Topic上逐层比较，不做split，通配符的位置记在 TopicMatch 里，
+ * 匹配成功以后交给注册的处理方法
+ * <p>
+ * 优先级: 精确层级 > + > #，符合MQTT规范: # 可以匹配父层级，$开头的Topic不匹配首层通配符
+ */
+public class TopicRouter {
+    private final Node root = new Node();
+    private final ThreadLocal<TopicMatch> matches = ThreadLocal.withInitial(TopicMatch::new);
+
+    /**
+     * 注册一个过滤器
+     *
+     * @param filter
+     * @param handler
+     * @return
+     */
+    public TopicRouter route(String filter, TopicHandler handler) {
+        if (filter == null || filter.isEmpty() || handler == null) {
+            throw new IllegalArgumentException("Topic过滤器和处理方法不能为空");
+        }
+        Node node = root;
+        int start = 0;
+        while (true) {
+            int end = filter.indexOf('/', start);
+            if (end < 0) {
+                end = filter.length();
+            }
+            String level = filter.substring(start, end);
+            if (level.equals("#")) {
+                if (end != filter.length()) {
+                    throw new IllegalArgumentException("#只能出现在过滤器最后一层:" + filter);
+                }
+                node.hashHandler = handler;
+                return this;
+            }
+            if (level.equals("+")) {
+                if (node.plus == null) {
+                    node.plus = new Node();
+                }
+                node = node.plus;
+            } else if (level.indexOf('+') >= 0 || level.indexOf('#') >= 0) {
+                throw new IllegalArgumentException("通配符必须单独占一层:" + filter);
+            } else {
+                node = node.literal(level);
+            }
+            if (end == filter.length()) {
+                node.handler = handler;
+                return this;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * 按消息头里的mqtt_topic分发
+     *
+     * @param message
+     * @return 是否有匹配的处理方法
+     * @throws Exception 处理方法抛出的异常
+     */
+    public boolean dispatch(Message<?> message) throws Exception {
+        String topic = message.getHeaders().get("mqtt_topic").toString();
+        TopicMatch match = matches.get();
+        TopicHandler handler = match(topic, match);
+        if (handler == null) {
+            return false;
+        }
+        handler.handle(match, message);
+        return true;
+    }
+
+    /**
+     * 只匹配不分发
+     *
+     * @param topic
+     * @param match 匹配结果写在这里
+     * @return 匹配到的处理方法，没有匹配返回null
+     */
+    public TopicHandler match(String topic, TopicMatch match) {
+        match.reset(topic);
+        return match(root, topic, 0, match);
+    }
+
+    private TopicHandler match(Node node, String topic, int start, TopicMatch match) {
+        int depth = match.size();
+        if (start > topic.length()) {
+            if (node.handler != null) {
+                return node.handler;
+            }
+            if (node.hashHandler != null) {
+                match.push(topic.length(), topic.length());
+                return node.hashHandler;
+            }
+            return null;
+        }
+        int end = topic.indexOf('/', start);
+        if (end < 0) {
+            end = topic.length();
+        }
+        Node child = node.find(topic, start, end);
+        if (child != null) {
+            TopicHandler handler = match(child, topic, end + 1, match);
+            if (handler != null) {
+                return handler;
+            }
+            match.truncate(depth);
+        }
+        if (start == 0 && topic.startsWith("$")) {
+            return null;
+        }
+        if (node.plus != null) {
+            match.push(start, end);
+            TopicHandler handler = match(node.plus, topic, end + 1, match);
+            if (handler != null) {
+                return handler;
+            }
+            match.truncate(depth);
+        }
+        if (node.hashHandler != null) {
+            match.push(start, topic.length());
+            return node.hashHandler;
+        }
+        return null;
+    }
+
+    private static class Node {
+        private String[] literals = new String[0];
+        private Node[] children = new Node[0];
+        private Node plus;
+        private TopicHandler handler;
+        private TopicHandler hashHandler;
+
+        Node literal(String level) {
+            for (int i = 0; i < literals.length; i++) {
+                if (literals[i].equals(level)) {
+                    return children[i];
+                }
+            }
+            literals = Arrays.copyOf(literals, literals.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            literals[literals.length - 1] = level;
+            children[children.length - 1] = new Node();
+            return children[children.length - 1];
+        }
+
+        Node find(String topic, int start, int end) {
+            int length = end - start;
+            for (int i = 0; i < literals.length; i++) {
+                String literal = literals[i];
+                if (literal.length() == length && topic.regionMatches(start, literal, 0, length)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -2,6 +2,19 @@ package com.easylinker.proxy.server.app.controller;
 
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.adapter.EMqttPahoMessageDrivenChannelAdapter;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.ActiveDevices;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceDataDeduplicator;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceDataFilter;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceDataWriteBehindBuffer;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceRegistry;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceTraffic;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.HeavyHitters;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestFailures;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestLatency;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestPolicy;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestQuota;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.QuarantineStore;
 import com.easylinker.proxy.server.app.model.daily.DailyLog;
 import com.easylinker.proxy.server.app.model.device.Device;
 import com.easylinker.proxy.server.app.model.device.DeviceData;
@@ -9,6 +22,10 @@ import com.easylinker.proxy.server.app.model.device.DeviceGroup;
 import com.easylinker.proxy.server.app.model.device.Location;
 import com.easylinker.proxy.server.app.model.user.AppUser;
 import com.easylinker.proxy.server.app.service.*;
+import com.easylinker.proxy.server.app.timeseries.DeviceDataCompactor;
+import com.easylinker.proxy.server.app.timeseries.DeviceDataDigests;
+import com.easylinker.proxy.server.app.timeseries.DeviceDataRollups;
+import com.easylinker.proxy.server.app.timeseries.TablePartitionManager;
 import com.easylinker.proxy.server.app.utils.Image2Base64Tool;
 import com.easylinker.proxy.server.app.utils.QRCodeGenerator;
 import com.easylinker.proxy.server.app.constants.result.ReturnResult;
@@ -23,7 +40,9 @@ import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
 import java.util.Date;
+import java.util.List;
 
 /**
  * 普通管理员业务逻辑控制器
@@ -45,6 +64,38 @@ public class AdminController {
     AppUserService appUserService;
     @Autowired
     DailyLogService dailyLogService;
+    @Autowired
+    DeviceDataWriteBehindBuffer deviceDataWriteBehindBuffer;
+    @Autowired
+    DeviceRegistry deviceRegistry;
+    @Autowired
+    DeviceDataDeduplicator deviceDataDeduplicator;
+    @Autowired
+    IngestQuota ingestQuota;
+    @Autowired
+    DeviceDataFilter deviceDataFilter;
+    @Autowired
+    DeviceTraffic deviceTraffic;
+    @Autowired
+    HeavyHitters heavyHitters;
+    @Autowired
+    ActiveDevices activeDevices;
+    @Autowired
+    IngestLatency ingestLatency;
+    @Autowired
+    QuarantineStore quarantineStore;
+    @Autowired
+    IngestFailures ingestFailures;
+    @Autowired
+    DeviceDataCompactor deviceDataCompactor;
+    @Autowired
+    TablePartitionManager tablePartitionManager;
+    @Autowired
+    DeviceDataRollups deviceDataRollups;
+    @Autowired
+    DeviceDataDigests deviceDataDigests;
+    @Autowired
+    List<EMqttPahoMessageDrivenChannelAdapter> mqttAdapters;
 
     /**
      * 管理员增加一个设备
@@ -320,9 +371,10 @@ public class AdminController {
     @RequestMapping(value = "/getRealTimeData", method = RequestMethod.GET)
     public JSONObject getRealTimeData() {
         JSONObject data = new JSONObject();
-        data.put("totalDevice", deviceService.findAllDevice().size());
+        data.put("totalDevice", deviceService.countDevice());
         data.put("online", deviceService.findAllOnlineDevice());
         data.put("userCount", appUserService.getAllUsers().size());
+        data.put("activeDevices", activeDevices.getStatistics());
         return ReturnResult.returnDataMessage(1, "查询成功!", data);
     }
 
@@ -337,6 +389,78 @@ public class AdminController {
             return ReturnResult.returnTipMessage(0, "该群组不存在!");
         }
     }
+    /**
+     * 修改入站数据限流
+     * {"userId":1,"ingestRate":500,"ingestWeight":2} 用户所有设备合计每秒条数，写库公平调度的权重
+     * {"groupId":2,"deviceIngestRate":5} 组内每台设备每秒条数
+     * 值为null恢复默认，小于等于0表示不限制
+     */
+    @RequestMapping(value = "/updateIngestQuota", method = RequestMethod.POST)
+    public JSONObject updateIngestQuota(@RequestBody JSONObject body) {
+        if (body.containsKey("userId")) {
+            AppUser appUser = appUserService.findAAppUser(body.getLong("userId"));
+            if (appUser == null) {
+                return ReturnResult.returnTipMessage(0, "用户不存在!");
+            }
+            if (body.containsKey("ingestRate")) {
+                appUser.setIngestRate(body.getInteger("ingestRate"));
+            }
+            if (body.containsKey("ingestWeight")) {
+                appUser.setIngestWeight(body.getInteger("ingestWeight"));
+            }
+            appUserService.save(appUser);
+            return ReturnResult.returnTipMessage(1, "修改成功!");
+        } else if (body.containsKey("groupId")) {
+            DeviceGroup deviceGroup = deviceGroupService.findADeviceGroupById(body.getLong("groupId"));
+            if (deviceGroup == null) {
+                return ReturnResult.returnTipMessage(0, "分组不存在!");
+            }
+            deviceGroup.setDeviceIngestRate(body.getInteger("deviceIngestRate"));
+            deviceGroupService.save(deviceGroup);
+            return ReturnResult.returnTipMessage(1, "修改成功!");
+        } else {
+            return ReturnResult.returnTipMessage(0, "参数不全!");
+        }
+    }
+
+    /**
+     * 修改入库策略，格式见 IngestPolicy
+     * {"deviceId":1,"ingestPolicy":{"deadband":{"temperature":0.5},"heartbeat":600000}} 设备上的策略优先
+     * {"groupId":2,"ingestPolicy":{"every":10}} 组内没有单独配置的设备
+     * ingestPolicy为null清除策略
+     */
+    @RequestMapping(value = "/updateIngestPolicy", method = RequestMethod.POST)
+    public JSONObject updateIngestPolicy(@RequestBody JSONObject body) {
+        JSONObject policyJson = body.getJSONObject("ingestPolicy");
+        String policy = policyJson == null ? null : policyJson.toJSONString();
+        if (policy != null) {
+            try {
+                IngestPolicy.parse(policy);
+            } catch (IllegalArgumentException e) {
+                return ReturnResult.returnTipMessage(0, e.getMessage());
+            }
+        }
+        if (body.containsKey("deviceId")) {
+            Device device = deviceService.findADevice(body.getLong("deviceId"));
+            if (device == null) {
+                return ReturnResult.returnTipMessage(0, "设备不存在!");
+            }
+            device.setIngestPolicy(policy);
+            deviceService.save(device);
+            return ReturnResult.returnTipMessage(1, "修改成功!");
+        } else if (body.containsKey("groupId")) {
+            DeviceGroup deviceGroup = deviceGroupService.findADeviceGroupById(body.getLong("groupId"));
+            if (deviceGroup == null) {
+                return ReturnResult.returnTipMessage(0, "分组不存在!");
+            }
+            deviceGroup.setIngestPolicy(policy);
+            deviceGroupService.save(deviceGroup);
+            return ReturnResult.returnTipMessage(1, "修改成功!");
+        } else {
+            return ReturnResult.returnTipMessage(0, "参数不全!");
+        }
+    }
+
     /**
      * 关键字搜索
      */
@@ -379,4 +503,140 @@ public class AdminController {
 
     }
 
+    /////////////////INGEST//////////////////
+
+    /**
+     * 查看MQTT数据写入状态
+     * 各个MQTT流的分道队列深度、过载丢弃数，批量写入的队列深度、耗时等
+     *
+     * @return
+     */
+    @RequestMapping(value = "/getIngestStatistics", method = RequestMethod.GET)
+    public JSONObject getIngestStatistics() {
+        JSONObject data = new JSONObject();
+        JSONObject dispatchJson = new JSONObject();
+        for (EMqttPahoMessageDrivenChannelAdapter adapter : mqttAdapters) {
+            dispatchJson.put(adapter.getClientId(), adapter.getDispatchStatistics());
+        }
+        data.put("dispatch", dispatchJson);
+        data.put("writeBehind", deviceDataWriteBehindBuffer.getStatistics());
+        data.put("registry", deviceRegistry.getStatistics());
+        data.put("dedup", deviceDataDeduplicator.getStatistics());
+        data.put("quota", ingestQuota.getStatistics());
+        data.put("filter", deviceDataFilter.getStatistics());
+        data.put("traffic", deviceTraffic.getStatistics());
+        data.put("latency", ingestLatency.getStatistics());
+        data.put("quarantine", quarantineStore.getStatistics());
+        data.put("failures", ingestFailures.getStatistics());
+        data.put("timeseries", deviceDataCompactor.getStatistics());
+        data.put("rollup", deviceDataRollups.getStatistics());
+        data.put("digest", deviceDataDigests.getStatistics());
+        return ReturnResult.returnDataMessage(1, "获取成功!", data);
+    }
+
+    /**
+     * 按时间分区的表的分区和维护统计
+     *
+     * @return
+     */
+    @RequestMapping(value = "/getPartitionStatistics", method = RequestMethod.GET)
+    public JSONObject getPartitionStatistics() {
+        return ReturnResult.returnDataMessage(1, "获取成功!", tablePartitionManager.getStatistics());
+    }
+
+    /**
+     * 最近一个时间窗口里按条数和字节数排的 设备、用户、Topic 排行
+     * count是估计的上限，真实值在 count - error 和 count 之间
+     *
+     * @param top 每个排行最多几项
+     * @return
+     */
+    @RequestMapping(value = "/getHeavyHitters/{top}", method = RequestMethod.GET)
+    public JSONObject getHeavyHitters(@PathVariable int top) {
+        return ReturnResult.returnDataMessage(1, "获取成功!", heavyHitters.getStatistics(top));
+    }
+
+    /**
+     * 最近 minutes 分钟内发过数据的设备数(HyperLogLog估计)
+     *
+     * @param minutes 最多 1440
+     * @return
+     */
+    @RequestMapping(value = "/getActiveDevices/{minutes}", method = RequestMethod.GET)
+    public JSONObject getActiveDevices(@PathVariable int minutes) {
+        if (minutes <= 0 || minutes > 1440) {
+            return ReturnResult.returnTipMessage(0, "时间范围是1到1440分钟!");
+        }
+        JSONObject data = new JSONObject();
+        data.put("minutes", minutes);
+        data.put("count", activeDevices.countGlobal(minutes));
+        return ReturnResult.returnDataMessage(1, "获取成功!", data);
+    }
+
+    @RequestMapping(value = "/getActiveDevicesByUser/{userId}/{minutes}", method = RequestMethod.GET)
+    public JSONObject getActiveDevicesByUser(@PathVariable Long userId, @PathVariable int minutes) {
+        if (minutes <= 0 || minutes > 1440) {
+            return ReturnResult.returnTipMessage(0, "时间范围是1到1440分钟!");
+        }
+        JSONObject data = new JSONObject();
+        data.put("minutes", minutes);
+        data.put("count", activeDevices.countByUser(userId, minutes));
+        return ReturnResult.returnDataMessage(1, "获取成功!", data);
+    }
+
+    @RequestMapping(value = "/getActiveDevicesByGroup/{groupId}/{minutes}", method = RequestMethod.GET)
+    public JSONObject getActiveDevicesByGroup(@PathVariable Long groupId, @PathVariable int minutes) {
+        if (minutes <= 0 || minutes > 1440) {
+            return ReturnResult.returnTipMessage(0, "时间范围是1到1440分钟!");
+        }
+        JSONObject data = new JSONObject();
+        data.put("minutes", minutes);
+        data.put("count", activeDevices.countByGroup(groupId, minutes));
+        return ReturnResult.returnDataMessage(1, "获取成功!", data);
+    }
+
+    /**
+     * 分页查看内存里被隔离的消息，新的在前
+     *
+     * @return
+     */
+    @RequestMapping(value = "/getQuarantine/{page}/{size}", method = RequestMethod.GET)
+    public JSONObject getQuarantine(@PathVariable int page, @PathVariable int size) {
+        if (page < 0 || size <= 0) {
+            return ReturnResult.returnTipMessage(0, "分页参数不合法!");
+        }
+        return ReturnResult.returnDataMessage(1, "获取成功!", quarantineStore.getEntries(page, size));
+    }
+
+    /**
+     * 隔离区写到本地的文件
+     *
+     * @return
+     */
+    @RequestMapping(value = "/getQuarantineFiles", method = RequestMethod.GET)
+    public JSONObject getQuarantineFiles() {
+        return ReturnResult.returnDataMessage(1, "获取成功!", quarantineStore.getFiles());
+    }
+
+    /**
+     * 读隔离区文件，offset是起始行
+     *
+     * @return
+     */
+    @RequestMapping(value = "/getQuarantineFile/{name}/{offset}/{size}", method = RequestMethod.GET)
+    public JSONObject getQuarantineFile(@PathVariable String name, @PathVariable int offset, @PathVariable int size) {
+        if (offset < 0 || size <= 0) {
+            return ReturnResult.returnTipMessage(0, "分页参数不合法!");
+        }
+        try {
+            JSONArray entries = quarantineStore.getFileEntries(name, offset, size);
+            if (entries == null) {
+                return ReturnResult.returnTipMessage(0, "文件不存在!");
+            }
+            return ReturnResult.returnDataMessage(1, "获取成功!", entries);
+        } catch (IOException e) {
+            return ReturnResult.returnTipMessage(0, "读取失败:" + e.getMessage());
+        }
+    }
+
 }
@@ -14,6 +14,9 @@ import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
 /**
  * 设备操作业务逻辑
  */
@@ -78,6 +81,123 @@ public class DeviceController {
     }
 
 
+    /**
+     * 获取设备一段时间的数据，从旧到新
+     *
+     * @param deviceId
+     * @param from     开始时间戳(毫秒，包含)
+     * @param to       结束时间戳(毫秒，不包含)，最多查一天
+     * @return
+     */
+    @RequestMapping(value = "/getDeviceDataBetween/{deviceId}/{from}/{to}", method = RequestMethod.GET)
+    public JSONObject getDeviceDataBetween(@PathVariable Long deviceId, @PathVariable Long from, @PathVariable Long to) {
+        AppUser appUser = (AppUser) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        Device device = deviceService.findADevice(deviceId);
+        if (device == null || device.getAppUser() == null || device.getAppUser().getId().longValue() != appUser.getId().longValue())
+            return ReturnResult.returnTipMessage(0, "设备不存在!");
+        if (from >= to || to - from > TimeUnit.DAYS.toMillis(1))
+            return ReturnResult.returnTipMessage(0, "时间范围不对,最多查询一天!");
+        return ReturnResult.returnDataMessage(1, "查询成功!", deviceDataService.getDeviceDataBetween(device, new Date(from), new Date(to)));
+    }
+
+    /**
+     * 游标分页获取设备数据，翻到很后面的页也不会变慢
+     * {
+     * "deviceId":设备ID,
+     * "size":每页条数(最多1000),
+     * "cursor":上一页返回的 nextCursor，第一页不传,
+     * "from":开始时间戳(毫秒，包含，可选),
+     * "to":结束时间戳(毫秒，不包含，可选),
+     * "direction":"DESC" 从新到旧(默认) 或者 "ASC" 从旧到新
+     * }
+     *
+     * @param body
+     * @return
+     */
+    @RequestMapping(value = "/getDeviceDataByCursor", method = RequestMethod.POST)
+    public JSONObject getDeviceDataByCursor(@RequestBody JSONObject body) {
+        AppUser appUser = (AppUser) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        Long deviceId = body.getLong("deviceId");
+        int size = body.getIntValue("size");
+        if (deviceId == null || size <= 0 || size > 1000)
+            return ReturnResult.returnTipMessage(0, "参数不全!");
+        String direction = body.getString("direction");
+        if (direction != null && !"ASC".equalsIgnoreCase(direction) && !"DESC".equalsIgnoreCase(direction))
+            return ReturnResult.returnTipMessage(0, "排序方向只能是ASC或者DESC!");
+        Device device = deviceService.findADevice(deviceId);
+        if (device == null || device.getAppUser() == null || device.getAppUser().getId().longValue() != appUser.getId().longValue())
+            return ReturnResult.returnTipMessage(0, "设备不存在!");
+        Long from = body.getLong("from");
+        Long to = body.getLong("to");
+        if (from != null && to != null && from >= to)
+            return ReturnResult.returnTipMessage(0, "时间范围不对!");
+        try {
+            return ReturnResult.returnDataMessage(1, "查询成功!", deviceDataService.getDeviceDataByCursor(device,
+                    from == null ? null : new Date(from), to == null ? null : new Date(to), body.getString("cursor"),
+                    "ASC".equalsIgnoreCase(direction), size));
+        } catch (IllegalArgumentException e) {
+            return ReturnResult.returnTipMessage(0, e.getMessage());
+        }
+    }
+
+    /**
+     * 获取设备所有数值字段的聚合曲线(条数、最小、最大、总和、平均、最后一个值)
+     * 按步长自动选分钟、小时或者天的聚合
+     *
+     * @param deviceId
+     * @param from     开始时间戳(毫秒，包含)
+     * @param to       结束时间戳(毫秒，不包含)
+     * @param step     每个点的时间跨度(毫秒)，最小1分钟
+     * @return
+     */
+    @RequestMapping(value = "/getDeviceDataSeries/{deviceId}/{from}/{to}/{step}", method = RequestMethod.GET)
+    public JSONObject getDeviceDataSeries(@PathVariable Long deviceId, @PathVariable Long from, @PathVariable Long to, @PathVariable Long step) {
+        return getDeviceDataSeries(deviceId, null, from, to, step);
+    }
+
+    /**
+     * 获取设备一个数值字段的聚合曲线，嵌套字段用 . 连接
+     */
+    @RequestMapping(value = "/getDeviceFieldSeries/{deviceId}/{field:.+}/{from}/{to}/{step}", method = RequestMethod.GET)
+    public JSONObject getDeviceFieldSeries(@PathVariable Long deviceId, @PathVariable String field, @PathVariable Long from, @PathVariable Long to, @PathVariable Long step) {
+        return getDeviceDataSeries(deviceId, field, from, to, step);
+    }
+
+    private JSONObject getDeviceDataSeries(Long deviceId, String field, Long from, Long to, Long step) {
+        AppUser appUser = (AppUser) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        Device device = deviceService.findADevice(deviceId);
+        if (device == null || device.getAppUser() == null || device.getAppUser().getId().longValue() != appUser.getId().longValue())
+            return ReturnResult.returnTipMessage(0, "设备不存在!");
+        try {
+            return ReturnResult.returnDataMessage(1, "查询成功!", deviceDataService.getDeviceDataSeries(device, field, new Date(from), new Date(to), step));
+        } catch (IllegalArgumentException e) {
+            return ReturnResult.returnTipMessage(0, e.getMessage());
+        }
+    }
+
+    /**
+     * 获取设备一个数值字段的分位数曲线(p50/p90/p95/p99)
+     *
+     * @param deviceId
+     * @param field    嵌套字段用 . 连接
+     * @param from     开始时间戳(毫秒，包含)
+     * @param to       结束时间戳(毫秒，不包含)
+     * @param step     每个点的时间跨度(毫秒)，小时的整数倍
+     * @return
+     */
+    @RequestMapping(value = "/getDeviceFieldQuantiles/{deviceId}/{field:.+}/{from}/{to}/{step}", method = RequestMethod.GET)
+    public JSONObject getDeviceFieldQuantiles(@PathVariable Long deviceId, @PathVariable String field, @PathVariable Long from, @PathVariable Long to, @PathVariable Long step) {
+        AppUser appUser = (AppUser) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        Device device = deviceService.findADevice(deviceId);
+        if (device == null || device.getAppUser() == null || device.getAppUser().getId().longValue() != appUser.getId().longValue())
+            return ReturnResult.returnTipMessage(0, "设备不存在!");
+        try {
+            return ReturnResult.returnDataMessage(1, "查询成功!", deviceDataService.getDeviceQuantiles(device, field, new Date(from), new Date(to), step));
+        } catch (IllegalArgumentException e) {
+            return ReturnResult.returnTipMessage(0, e.getMessage());
+        }
+    }
+
     /**
      * 分页获取设备日志
      */
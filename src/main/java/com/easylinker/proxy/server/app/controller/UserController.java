@@ -1,6 +1,7 @@
 package com.easylinker.proxy.server.app.controller;
 
 import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.PayloadCodecs;
 import com.easylinker.proxy.server.app.config.quartz.job.ScheduleSendMessageJob;
 import com.easylinker.proxy.server.app.constants.result.ReturnResult;
 import com.easylinker.proxy.server.app.model.device.Device;
@@ -46,6 +47,10 @@ public class UserController {
     @Autowired
     DeviceGroupService deviceGroupService;
     @Autowired
+    DeviceDataService deviceDataService;
+    @Autowired
+    PayloadCodecs payloadCodecs;
+    @Autowired
     LocationService locationService;
     @Autowired
     DeviceJobService deviceJobService;
@@ -266,6 +271,42 @@ public class UserController {
 
     }
 
+    /**
+     * 当前登陆用户一个分组里所有设备合在一起的一个数值字段的分位数曲线(p50/p90/p95/p99)
+     *
+     * @param groupId
+     * @param field   嵌套字段用 . 连接
+     * @param from    开始时间戳(毫秒，包含)
+     * @param to      结束时间戳(毫秒，不包含)
+     * @param step    每个点的时间跨度(毫秒)，小时的整数倍
+     * @return
+     */
+    @RequestMapping(value = "/getGroupFieldQuantiles/{groupId}/{field:.+}/{from}/{to}/{step}", method = RequestMethod.GET)
+    public JSONObject getGroupFieldQuantiles(@PathVariable Long groupId, @PathVariable String field, @PathVariable Long from, @PathVariable Long to, @PathVariable Long step) {
+        AppUser appUser = (AppUser) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        DeviceGroup deviceGroup = deviceGroupService.findADeviceGroupById(groupId);
+        if (deviceGroup == null || deviceGroup.getAppUser() == null || deviceGroup.getAppUser().getId().longValue() != appUser.getId().longValue())
+            return ReturnResult.returnTipMessage(0, "分组不存在!");
+        try {
+            return ReturnResult.returnDataMessage(1, "查询成功!", deviceDataService.getGroupQuantiles(deviceGroup, field, new Date(from), new Date(to), step));
+        } catch (IllegalArgumentException e) {
+            return ReturnResult.returnTipMessage(0, e.getMessage());
+        }
+    }
+
+    /**
+     * 当前登陆用户所有设备合在一起的一个数值字段的分位数曲线
+     */
+    @RequestMapping(value = "/getUserFieldQuantiles/{field:.+}/{from}/{to}/{step}", method = RequestMethod.GET)
+    public JSONObject getUserFieldQuantiles(@PathVariable String field, @PathVariable Long from, @PathVariable Long to, @PathVariable Long step) {
+        AppUser appUser = (AppUser) SecurityContextHolder.getContext().getAuthentication().getPrincipal();
+        try {
+            return ReturnResult.returnDataMessage(1, "查询成功!", deviceDataService.getUserQuantiles(appUser, field, new Date(from), new Date(to), step));
+        } catch (IllegalArgumentException e) {
+            return ReturnResult.returnTipMessage(0, e.getMessage());
+        }
+    }
+
     /**
      * 用户查看自己的设备状况
      * 1 设备量
@@ -295,6 +336,14 @@ public class UserController {
 
             DeviceGroup deviceGroup = deviceGroupService.findADeviceGroupById(groupId);
             if ((deviceGroup != null) && (deviceGroup.getAppUser().getId().longValue() == appUser.getId().longValue())) {
+                //可选:组内设备默认的载荷编码 json/cbor/msgpack/protobuf:{schema}
+                if (body.containsKey("payloadEncoding")) {
+                    String payloadEncoding = body.getString("payloadEncoding");
+                    if (!payloadCodecs.isSupported(payloadEncoding)) {
+                        return ReturnResult.returnTipMessage(0, "不支持的载荷编码!");
+                    }
+                    deviceGroup.setPayloadEncoding(payloadCodecs.find(payloadEncoding) == null ? null : payloadEncoding);
+                }
                 deviceGroup.setGroupName(groupName);
                 deviceGroup.setComment(comment);
                 deviceGroupService.save(deviceGroup);
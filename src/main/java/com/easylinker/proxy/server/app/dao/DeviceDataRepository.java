@@ -4,9 +4,35 @@ import com.easylinker.proxy.server.app.model.device.Device;
 import com.easylinker.proxy.server.app.model.device.DeviceData;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
+import java.util.Date;
 import java.util.List;
 
 public interface DeviceDataRepository extends JpaRepository<DeviceData, Long> {
     List<DeviceData> findAllByDevice(Device device, Pageable pageable);
+
+    long countByDevice(Device device);
+
+    List<DeviceData> findAllByDeviceAndCreateTimeGreaterThanEqualAndCreateTimeLessThanOrderByCreateTime(Device device, Date from, Date to);
+
+    /**
+     * 游标分页，(createTime, id) 小于游标的，从新到旧
+     * 走 (device_id, create_time, id) 索引，不管翻到第几页都只扫描一页的行
+     */
+    @Query("select deviceData from DeviceData deviceData where deviceData.device = :device and deviceData.createTime >= :from "
+            + "and deviceData.createTime <= :cursorTime and (deviceData.createTime < :cursorTime or deviceData.id < :cursorId) "
+            + "order by deviceData.createTime desc, deviceData.id desc")
+    List<DeviceData> findPageBefore(@Param(value = "device") Device device, @Param(value = "from") Date from,
+                                    @Param(value = "cursorTime") Date cursorTime, @Param(value = "cursorId") Long cursorId, Pageable pageable);
+
+    /**
+     * 游标分页，(createTime, id) 大于游标的，从旧到新
+     */
+    @Query("select deviceData from DeviceData deviceData where deviceData.device = :device and deviceData.createTime < :to "
+            + "and deviceData.createTime >= :cursorTime and (deviceData.createTime > :cursorTime or deviceData.id > :cursorId) "
+            + "order by deviceData.createTime asc, deviceData.id asc")
+    List<DeviceData> findPageAfter(@Param(value = "device") Device device, @Param(value = "to") Date to,
+                                   @Param(value = "cursorTime") Date cursorTime, @Param(value = "cursorId") Long cursorId, Pageable pageable);
 }
@@ -6,9 +6,12 @@ import com.easylinker.proxy.server.app.model.user.AppUser;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Date;
 import java.util.List;
 
 public interface DeviceRepository extends JpaRepository<Device, Long> {
@@ -29,6 +32,23 @@ public interface DeviceRepository extends JpaRepository<Device, Long> {
     @Query("select id from Device ")
     List<Long> findAllId();
 
+    /**
+     * 只更新在线状态，上下线消息不用查出整个设备
+     *
+     * @param id
+     * @param online
+     * @return
+     */
+    @Transactional
+    @Modifying
+    @Query("update Device device set device.isOnline = :online where device.id = :id")
+    int updateOnline(@Param(value = "id") Long id, @Param(value = "online") boolean online);
+
+    @Transactional
+    @Modifying
+    @Query("update Device device set device.isOnline = :online, device.lastActiveDate = :lastActiveDate where device.id = :id")
+    int updateOnline(@Param(value = "id") Long id, @Param(value = "online") boolean online, @Param(value = "lastActiveDate") Date lastActiveDate);
+
     /**
      * 条件查询
      *
@@ -14,6 +14,8 @@ public class DeviceOnAndOffLineLog extends BaseEntity {
     private String event;
     private Date date;
     @ManyToOne(targetEntity = Device.class, fetch = FetchType.LAZY)
+    //分区表不支持外键
+    @JoinColumn(foreignKey = @ForeignKey(ConstraintMode.NO_CONSTRAINT))
     @NotFound(action = NotFoundAction.IGNORE)
     private Device device;
 
@@ -48,6 +48,20 @@ public class Device extends BaseEntity {
 
 
     private Date lastActiveDate;
+    /**
+     * 入库策略(IngestPolicy的JSON)，为空表示使用分组的策略
+     */
+    @Column(length = 1024)
+    private String ingestPolicy;
+    /**
+     * 累计消息条数、字节数和最后一条消息的类型，只由 DeviceTraffic 批量更新
+     */
+    @Column(insertable = false, updatable = false)
+    private Long messageCount;
+    @Column(insertable = false, updatable = false)
+    private Long byteCount;
+    @Column(insertable = false, updatable = false)
+    private String lastMessageType;
 
     public Date getLastActiveDate() {
         return lastActiveDate;
@@ -161,4 +175,24 @@ public class Device extends BaseEntity {
         this.location = location;
     }
 
+    public String getIngestPolicy() {
+        return ingestPolicy;
+    }
+
+    public void setIngestPolicy(String ingestPolicy) {
+        this.ingestPolicy = ingestPolicy;
+    }
+
+    public Long getMessageCount() {
+        return messageCount;
+    }
+
+    public Long getByteCount() {
+        return byteCount;
+    }
+
+    public String getLastMessageType() {
+        return lastMessageType;
+    }
+
 }
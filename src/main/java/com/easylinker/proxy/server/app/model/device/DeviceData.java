@@ -6,15 +6,46 @@ import javax.persistence.*;
 
 /**
  * 设备数据
+ * 写入缓冲，早于 ingest.timeseries.compact-delay 的数据由 DeviceDataCompactor 压缩成 DeviceDataChunk 以后删除
+ * ddl-auto=update 不会修改已有的索引，游标分页用的 (device_id, create_time, id) 索引换了新名字；
+ * 升级的库里旧的 idx_device_data_device_time 是它的前缀，可以手工删除
  */
 @Entity
+@Table(indexes = @Index(name = "idx_device_data_device_time_id", columnList = "device_id, create_time, id"))
 public class DeviceData extends BaseEntity {
     @Lob
     @Column(columnDefinition = "TEXT")
     private String data;
     @ManyToOne(targetEntity = Device.class, fetch = FetchType.LAZY)
+    //分区表不支持外键
+    @JoinColumn(foreignKey = @ForeignKey(ConstraintMode.NO_CONSTRAINT))
     private Device device;
     private String type;
+    /**
+     * 二进制载荷的编码(cbor、msgpack、protobuf:{schema})，为空表示JSON，数据在 data 列
+     */
+    private String encoding;
+    /**
+     * 二进制载荷原样保存，读的时候再按 encoding 渲染成JSON
+     */
+    @Lob
+    @Column(columnDefinition = "MEDIUMBLOB")
+    private byte[] payload;
+    /**
+     * 手动确认模式下数据提交以后执行的MQTT确认
+     */
+    @Transient
+    private Runnable acknowledgement;
+    /**
+     * 原始载荷直通模式下的原始字节，写库的时候直接按字节写进 data 列，不经过String
+     */
+    @Transient
+    private byte[] rawData;
+    /**
+     * 可能已经写过库(预写日志启动时重放的、写库结果不确定以后重试的)，只有这种数据主键冲突的时候按重复跳过
+     */
+    @Transient
+    private boolean replayed;
 
     public String getData() {
         return data;
@@ -39,4 +70,44 @@ public class DeviceData extends BaseEntity {
     public void setType(String type) {
         this.type = type;
     }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public void setPayload(byte[] payload) {
+        this.payload = payload;
+    }
+
+    public Runnable getAcknowledgement() {
+        return acknowledgement;
+    }
+
+    public void setAcknowledgement(Runnable acknowledgement) {
+        this.acknowledgement = acknowledgement;
+    }
+
+    public byte[] getRawData() {
+        return rawData;
+    }
+
+    public void setRawData(byte[] rawData) {
+        this.rawData = rawData;
+    }
+
+    public boolean isReplayed() {
+        return replayed;
+    }
+
+    public void setReplayed(boolean replayed) {
+        this.replayed = replayed;
+    }
 }
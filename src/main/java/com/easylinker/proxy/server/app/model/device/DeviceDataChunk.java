@@ -0,0 +1,74 @@
+package com.easylinker.proxy.server.app.model.device;
+
+import com.easylinker.proxy.server.app.model.base.BaseEntity;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * 设备数据块
+ * 一台设备一个时间窗口(ingest.timeseries.chunk-duration)里的数据，由 DeviceDataCompactor 从 device_data 压缩生成，
+ * 格式见 DeviceDataChunkCodec
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"device_id", "start_time"}))
+public class DeviceDataChunk extends BaseEntity {
+    @ManyToOne(targetEntity = Device.class, fetch = FetchType.LAZY)
+    //分区表不支持外键
+    @JoinColumn(foreignKey = @ForeignKey(ConstraintMode.NO_CONSTRAINT))
+    private Device device;
+    /**
+     * 时间窗口的开始(包含)
+     */
+    @Temporal(value = TemporalType.TIMESTAMP)
+    private Date startTime;
+    /**
+     * 时间窗口的结束(不包含)
+     */
+    @Temporal(value = TemporalType.TIMESTAMP)
+    private Date endTime;
+    private Integer sampleCount;
+    @Lob
+    @Column(columnDefinition = "MEDIUMBLOB")
+    private byte[] chunk;
+
+    public Device getDevice() {
+        return device;
+    }
+
+    public void setDevice(Device device) {
+        this.device = device;
+    }
+
+    public Date getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(Date startTime) {
+        this.startTime = startTime;
+    }
+
+    public Date getEndTime() {
+        return endTime;
+    }
+
+    public void setEndTime(Date endTime) {
+        this.endTime = endTime;
+    }
+
+    public Integer getSampleCount() {
+        return sampleCount;
+    }
+
+    public void setSampleCount(Integer sampleCount) {
+        this.sampleCount = sampleCount;
+    }
+
+    public byte[] getChunk() {
+        return chunk;
+    }
+
+    public void setChunk(byte[] chunk) {
+        this.chunk = chunk;
+    }
+}
@@ -0,0 +1,119 @@
+package com.easylinker.proxy.server.app.model.device;
+
+import com.easylinker.proxy.server.app.model.base.BaseEntity;
+
+import javax.persistence.Column;
+import javax.persistence.Lob;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * 设备数值字段按时间聚合的结果(分钟/小时/天各一张表)
+ * 由 DeviceDataRollups 在入库的时候增量更新
+ */
+@MappedSuperclass
+public class DeviceDataRollup extends BaseEntity {
+    private Long deviceId;
+    /**
+     * 字段名，嵌套对象用 . 连接
+     */
+    @Column(length = 128)
+    private String fieldName;
+    @Temporal(value = TemporalType.TIMESTAMP)
+    private Date bucketStart;
+    private Long sampleCount;
+    private Double minValue;
+    private Double maxValue;
+    private Double sumValue;
+    private Double lastValue;
+    @Temporal(value = TemporalType.TIMESTAMP)
+    private Date lastTime;
+    /**
+     * 分位数草图(TDigest)，只有小时和天的聚合有
+     */
+    @Lob
+    @Column(columnDefinition = "BLOB")
+    private byte[] digest;
+
+    public Long getDeviceId() {
+        return deviceId;
+    }
+
+    public void setDeviceId(Long deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    public void setFieldName(String fieldName) {
+        this.fieldName = fieldName;
+    }
+
+    public Date getBucketStart() {
+        return bucketStart;
+    }
+
+    public void setBucketStart(Date bucketStart) {
+        this.bucketStart = bucketStart;
+    }
+
+    public Long getSampleCount() {
+        return sampleCount;
+    }
+
+    public void setSampleCount(Long sampleCount) {
+        this.sampleCount = sampleCount;
+    }
+
+    public Double getMinValue() {
+        return minValue;
+    }
+
+    public void setMinValue(Double minValue) {
+        this.minValue = minValue;
+    }
+
+    public Double getMaxValue() {
+        return maxValue;
+    }
+
+    public void setMaxValue(Double maxValue) {
+        this.maxValue = maxValue;
+    }
+
+    public Double getSumValue() {
+        return sumValue;
+    }
+
+    public void setSumValue(Double sumValue) {
+        this.sumValue = sumValue;
+    }
+
+    public Double getLastValue() {
+        return lastValue;
+    }
+
+    public void setLastValue(Double lastValue) {
+        this.lastValue = lastValue;
+    }
+
+    public Date getLastTime() {
+        return lastTime;
+    }
+
+    public void setLastTime(Date lastTime) {
+        this.lastTime = lastTime;
+    }
+
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    public void setDigest(byte[] digest) {
+        this.digest = digest;
+    }
+}
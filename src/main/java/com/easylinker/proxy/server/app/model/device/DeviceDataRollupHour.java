@@ -0,0 +1,13 @@
+package com.easylinker.proxy.server.app.model.device;
+
+import javax.persistence.Entity;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * 按小时聚合的设备数据
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"device_id", "field_name", "bucket_start"}))
+public class DeviceDataRollupHour extends DeviceDataRollup {
+}
@@ -35,6 +35,19 @@ public class DeviceGroup extends BaseEntity {
 
     private String groupName;
     private String comment;
+    /**
+     * 组内设备默认的载荷编码，为空表示JSON
+     */
+    private String payloadEncoding;
+    /**
+     * 组内每台设备的入站数据限流，每秒条数，为空表示使用默认值
+     */
+    private Integer deviceIngestRate;
+    /**
+     * 组内设备的入库策略(IngestPolicy的JSON)，为空表示不过滤
+     */
+    @Column(length = 1024)
+    private String ingestPolicy;
     @ManyToOne(targetEntity = AppUser.class, fetch = FetchType.LAZY)
     @NotFound(action = NotFoundAction.IGNORE)
     private AppUser appUser;
@@ -68,6 +81,30 @@ public class DeviceGroup extends BaseEntity {
         this.comment = comment;
     }
 
+    public String getPayloadEncoding() {
+        return payloadEncoding;
+    }
+
+    public void setPayloadEncoding(String payloadEncoding) {
+        this.payloadEncoding = payloadEncoding;
+    }
+
+    public Integer getDeviceIngestRate() {
+        return deviceIngestRate;
+    }
+
+    public void setDeviceIngestRate(Integer deviceIngestRate) {
+        this.deviceIngestRate = deviceIngestRate;
+    }
+
+    public String getIngestPolicy() {
+        return ingestPolicy;
+    }
+
+    public void setIngestPolicy(String ingestPolicy) {
+        this.ingestPolicy = ingestPolicy;
+    }
+
     public AppUser getAppUser() {
         return appUser;
     }
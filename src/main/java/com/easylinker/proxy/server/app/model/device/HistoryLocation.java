@@ -4,9 +4,7 @@ import com.easylinker.proxy.server.app.model.base.BaseEntity;
 import org.hibernate.annotations.NotFound;
 import org.hibernate.annotations.NotFoundAction;
 
-import javax.persistence.Entity;
-import javax.persistence.FetchType;
-import javax.persistence.ManyToOne;
+import javax.persistence.*;
 
 @Entity
 /**
@@ -19,6 +17,8 @@ public class HistoryLocation extends BaseEntity {
     private String locationDescribe;
 
     @ManyToOne(targetEntity = Device.class, fetch = FetchType.LAZY)
+    //分区表不支持外键
+    @JoinColumn(foreignKey = @ForeignKey(ConstraintMode.NO_CONSTRAINT))
     @NotFound(action = NotFoundAction.IGNORE)
     private Device device;
 
@@ -30,6 +30,14 @@ public class AppUser extends BaseEntity implements UserDetails {
     private boolean isAccountNonLocked = true;
     private boolean isCredentialsNonExpired = true;
     private boolean isEnabled = false;
+    /**
+     * 入站数据限流，每秒条数，为空表示使用默认值
+     */
+    private Integer ingestRate;
+    /**
+     * 写库公平调度的权重，为空表示1
+     */
+    private Integer ingestWeight;
 
     @NotFound(action= NotFoundAction.IGNORE)
     @OneToMany(targetEntity = DeviceGroup.class, fetch = FetchType.LAZY, cascade = CascadeType.ALL)
@@ -147,4 +155,20 @@ public class AppUser extends BaseEntity implements UserDetails {
     public void setRoleList(List<UserRole> roleList) {
         this.roleList = roleList;
     }
+
+    public Integer getIngestRate() {
+        return ingestRate;
+    }
+
+    public void setIngestRate(Integer ingestRate) {
+        this.ingestRate = ingestRate;
+    }
+
+    public Integer getIngestWeight() {
+        return ingestWeight;
+    }
+
+    public void setIngestWeight(Integer ingestWeight) {
+        this.ingestWeight = ingestWeight;
+    }
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ package com.easylinker.proxy.server.app.service;
 
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestQuota;
 import com.easylinker.proxy.server.app.dao.AppUserRepository;
 import com.easylinker.proxy.server.app.dao.UserRoleRepository;
 import com.easylinker.proxy.server.app.model.user.AppUser;
@@ -22,6 +23,8 @@ public class AppUserService {
 
     @Autowired
     UserRoleRepository userRoleRepository;
+    @Autowired
+    IngestQuota ingestQuota;
     /**
      * @param parameter 表示 UsernameOrEmailOrPhone，三种字段都可以登陆
      * @return 返回一个User Info
@@ -32,6 +35,7 @@ public class AppUserService {
 
     public void save(AppUser appUser) {
         appUserRepository.save(appUser);
+        ingestQuota.setUser(appUser.getId(), appUser.getIngestRate(), appUser.getIngestWeight());
     }
 
     public AppUser getAAppUserByUsername(String username) {
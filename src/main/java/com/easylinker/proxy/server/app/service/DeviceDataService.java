@@ -1,41 +1,256 @@
 package com.easylinker.proxy.server.app.service;
 
+import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.PayloadCodecs;
 import com.easylinker.proxy.server.app.model.device.Device;
 import com.easylinker.proxy.server.app.dao.DeviceDataRepository;
 import com.easylinker.proxy.server.app.model.device.DeviceData;
+import com.easylinker.proxy.server.app.model.device.DeviceGroup;
+import com.easylinker.proxy.server.app.model.user.AppUser;
+import com.easylinker.proxy.server.app.timeseries.ChunkSample;
+import com.easylinker.proxy.server.app.timeseries.DeviceDataChunkStore;
+import com.easylinker.proxy.server.app.timeseries.DeviceDataDigests;
+import com.easylinker.proxy.server.app.timeseries.DeviceDataRollups;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 @Service("DeviceDataService")
 public class DeviceDataService {
+    /**
+     * 不限结束时间的时候用的上界(9000-01-01)，DATETIME 列放得下
+     */
+    private static final long MAX_TIME = 221845392000000L;
     @Autowired
     DeviceDataRepository deviceDataRepository;
+    @Autowired
+    PayloadCodecs payloadCodecs;
+    @Autowired
+    DeviceDataChunkStore deviceDataChunkStore;
+    @Autowired
+    DeviceDataRollups deviceDataRollups;
+    @Autowired
+    DeviceDataDigests deviceDataDigests;
 
     public void save(DeviceData deviceData) {
         deviceDataRepository.save(deviceData);
     }
 
+    /**
+     * 分页查询设备数据，从新到旧
+     * 还没压缩的数据(device_data)在前，后面接着数据块里的数据
+     *
+     * @param device
+     * @param pageable 按 createTime 倒序
+     * @return
+     */
     public JSONArray getAllDeviceDataByDevice(Device device, Pageable pageable) {
         JSONArray data = new JSONArray();
-        List<DeviceData> dataList = deviceDataRepository.findAllByDevice(device,pageable);
-        for (DeviceData deviceData : dataList) {
-            JSONObject dataJson = new JSONObject();
-            dataJson.put("data", JSONObject.parse(deviceData.getData()));
-            dataJson.put("create_time", deviceData.getCreateTime());
-            dataJson.put("id", deviceData.getId());
-            data.add(dataJson);
+        long offset = pageable.getOffset();
+        long stagingCount = deviceDataRepository.countByDevice(device);
+        if (offset < stagingCount) {
+            for (DeviceData deviceData : deviceDataRepository.findAllByDevice(device, pageable)) {
+                data.add(toJson(deviceData));
+            }
+        }
+        int remaining = pageable.getPageSize() - data.size();
+        if (remaining > 0) {
+            long chunkOffset = Math.max(0, offset - stagingCount);
+            for (ChunkSample sample : deviceDataChunkStore.findLatestSamples(device.getId(), chunkOffset, remaining)) {
+                data.add(toJson(sample));
+            }
         }
         return data;
     }
 
     /**
-     * 分页查询设备传输信息
+     * 游标(keyset)分页查询设备数据
+     * 游标是上一页最后一条的 "createTime_id"，还没压缩的数据和数据块各取一页按 (createTime, id) 归并，
+     * 每一页的代价和翻到第几页无关
+     *
+     * @param device
+     * @param from      开始时间(包含)，为空表示不限
+     * @param to        结束时间(不包含)，为空表示不限
+     * @param cursor    为空表示第一页
+     * @param ascending true 从旧到新，false 从新到旧
+     * @param size
+     * @return {data, nextCursor}，没有下一页的时候 nextCursor 为空
+     * @throws IllegalArgumentException 游标格式不对
+     */
+    public JSONObject getDeviceDataByCursor(Device device, Date from, Date to, String cursor, boolean ascending, int size) {
+        long fromTime = from == null ? 0 : from.getTime();
+        long toTime = to == null ? MAX_TIME : to.getTime();
+        long cursorTime;
+        long cursorId;
+        if (cursor == null) {
+            cursorTime = ascending ? fromTime : toTime;
+            cursorId = Long.MIN_VALUE;
+        } else {
+            String[] parts = cursor.split("_");
+            try {
+                cursorTime = Long.parseLong(parts[0]);
+                cursorId = Long.parseLong(parts[1]);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("游标格式不对");
+            }
+        }
+
+        List<JSONObject> staging = new ArrayList<>(size);
+        List<DeviceData> rows = ascending
+                ? deviceDataRepository.findPageAfter(device, new Date(toTime), new Date(cursorTime), cursorId, PageRequest.of(0, size))
+                : deviceDataRepository.findPageBefore(device, new Date(fromTime), new Date(cursorTime), cursorId, PageRequest.of(0, size));
+        for (DeviceData deviceData : rows) {
+            staging.add(toJson(deviceData));
+        }
+        List<JSONObject> chunks = new ArrayList<>(size);
+        List<ChunkSample> samples = ascending
+                ? deviceDataChunkStore.findSamplesAfter(device.getId(), toTime, cursorTime, cursorId, size)
+                : deviceDataChunkStore.findSamplesBefore(device.getId(), fromTime, cursorTime, cursorId, size);
+        for (ChunkSample sample : samples) {
+            chunks.add(toJson(sample));
+        }
+
+        //两边都已经按 (createTime, id) 排好序，归并取前 size 条；
+        //压缩以后预写日志重放又写回 device_data 的行两边都有，(createTime, id) 相同的只取一条
+        JSONArray data = new JSONArray();
+        int i = 0;
+        int j = 0;
+        while (data.size() < size && (i < staging.size() || j < chunks.size())) {
+            if (i == staging.size()) {
+                data.add(chunks.get(j++));
+                continue;
+            }
+            if (j == chunks.size()) {
+                data.add(staging.get(i++));
+                continue;
+            }
+            int compared = compareCursor(staging.get(i), chunks.get(j));
+            if (compared == 0) {
+                data.add(staging.get(i++));
+                j++;
+            } else if (ascending == (compared < 0)) {
+                data.add(staging.get(i++));
+            } else {
+                data.add(chunks.get(j++));
+            }
+        }
+        JSONObject page = new JSONObject();
+        page.put("data", data);
+        if (data.size() == size) {
+            JSONObject last = data.getJSONObject(size - 1);
+            page.put("nextCursor", last.getDate("create_time").getTime() + "_" + last.getLongValue("id"));
+        } else {
+            page.put("nextCursor", null);
+        }
+        return page;
+    }
+
+    private static int compareCursor(JSONObject a, JSONObject b) {
+        int result = a.getDate("create_time").compareTo(b.getDate("create_time"));
+        return result != 0 ? result : Long.compare(a.getLongValue("id"), b.getLongValue("id"));
+    }
+
+    /**
+     * 查询一段时间的设备数据，从旧到新
+     *
+     * @param device
+     * @param from   包含
+     * @param to     不包含
+     * @return
+     */
+    public JSONArray getDeviceDataBetween(Device device, Date from, Date to) {
+        JSONArray data = new JSONArray();
+        for (ChunkSample sample : deviceDataChunkStore.findSamplesBetween(device.getId(), from.getTime(), to.getTime())) {
+            data.add(toJson(sample));
+        }
+        for (DeviceData deviceData : deviceDataRepository.findAllByDeviceAndCreateTimeGreaterThanEqualAndCreateTimeLessThanOrderByCreateTime(device, from, to)) {
+            data.add(toJson(deviceData));
+        }
+        return data;
+    }
+
+    /**
+     * 查询设备数值字段的聚合曲线，从聚合表读，不读原始数据
+     *
+     * @param device
+     * @param field  为空表示所有字段
+     * @param from   包含
+     * @param to     不包含
+     * @param step   每个点的时间跨度(毫秒)
+     * @return
+     * @throws IllegalArgumentException 参数不对
+     */
+    public JSONObject getDeviceDataSeries(Device device, String field, Date from, Date to, long step) {
+        return deviceDataRollups.getSeries(device.getId(), field, from.getTime(), to.getTime(), step);
+    }
+
+    /**
+     * 设备一个数值字段的分位数曲线(p50/p90/p95/p99)
+     *
+     * @param device
+     * @param field  嵌套字段用 . 连接
+     * @param from   包含
+     * @param to     不包含
+     * @param step   每个点的时间跨度(毫秒)，小时的整数倍
+     * @return
+     * @throws IllegalArgumentException 参数不对
+     */
+    public JSONObject getDeviceQuantiles(Device device, String field, Date from, Date to, long step) {
+        return deviceDataDigests.getQuantiles(DeviceDataDigests.Scope.DEVICE, device.getId(), field, from.getTime(), to.getTime(), step);
+    }
+
+    /**
+     * 分组里所有设备合在一起的分位数曲线
+     */
+    public JSONObject getGroupQuantiles(DeviceGroup deviceGroup, String field, Date from, Date to, long step) {
+        return deviceDataDigests.getQuantiles(DeviceDataDigests.Scope.GROUP, deviceGroup.getId(), field, from.getTime(), to.getTime(), step);
+    }
+
+    /**
+     * 用户所有设备合在一起的分位数曲线
+     */
+    public JSONObject getUserQuantiles(AppUser appUser, String field, Date from, Date to, long step) {
+        return deviceDataDigests.getQuantiles(DeviceDataDigests.Scope.USER, appUser.getId(), field, from.getTime(), to.getTime(), step);
+    }
+
+    private JSONObject toJson(DeviceData deviceData) {
+        JSONObject dataJson = new JSONObject();
+        if (deviceData.getEncoding() != null) {
+            dataJson.put("data", payloadCodecs.toJson(deviceData.getEncoding(), deviceData.getPayload()));
+            dataJson.put("encoding", deviceData.getEncoding());
+        } else {
+            dataJson.put("data", JSONObject.parse(deviceData.getData()));
+        }
+        dataJson.put("create_time", deviceData.getCreateTime());
+        dataJson.put("id", deviceData.getId());
+        return dataJson;
+    }
+
+    private JSONObject toJson(ChunkSample sample) {
+        JSONObject dataJson = new JSONObject();
+        if (sample.getEncoding() != null) {
+            dataJson.put("data", payloadCodecs.toJson(sample.getEncoding(), sample.getRaw()));
+            dataJson.put("encoding", sample.getEncoding());
+        } else {
+            //和没压缩的行一样从原文解析
+            dataJson.put("data", JSONObject.parse(new String(sample.getJsonText(), StandardCharsets.UTF_8)));
+        }
+        dataJson.put("create_time", new Date(sample.getTime()));
+        dataJson.put("id", sample.getId());
+        return dataJson;
+    }
+
+    /**
+     * 分页查询设备传输信息(只查还没压缩成数据块的数据)
      * @param pageable
      * @return
      */
@@ -45,7 +260,12 @@ public class DeviceDataService {
         for (DeviceData deviceData : dataPage.getContent()) {
             JSONObject jsonObject = new JSONObject();
             jsonObject.put("createTime", deviceData.getCreateTime());
-            jsonObject.put("data", deviceData.getData());
+            if (deviceData.getEncoding() != null) {
+                jsonObject.put("data", JSON.toJSONString(payloadCodecs.toJson(deviceData.getEncoding(), deviceData.getPayload())));
+                jsonObject.put("encoding", deviceData.getEncoding());
+            } else {
+                jsonObject.put("data", deviceData.getData());
+            }
             jsonObject.put("deviceId", deviceData.getDevice().getId());
             if (deviceData.getType()!=null)
                 jsonObject.put("type", deviceData.getType());
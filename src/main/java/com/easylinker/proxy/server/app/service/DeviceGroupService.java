@@ -2,6 +2,10 @@ package com.easylinker.proxy.server.app.service;
 
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceDataFilter;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceRegistry;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestQuota;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.PayloadCodecs;
 import com.easylinker.proxy.server.app.dao.DeviceGroupRepository;
 import com.easylinker.proxy.server.app.dao.DeviceRepository;
 import com.easylinker.proxy.server.app.model.device.Device;
@@ -26,9 +30,20 @@ public class DeviceGroupService {
 
     @Autowired
     DeviceRepository deviceRepository;
+    @Autowired
+    DeviceRegistry deviceRegistry;
+    @Autowired
+    PayloadCodecs payloadCodecs;
+    @Autowired
+    IngestQuota ingestQuota;
+    @Autowired
+    DeviceDataFilter deviceDataFilter;
 
     public void save(DeviceGroup deviceGroup) {
         deviceGroupRepository.save(deviceGroup);
+        payloadCodecs.setGroupEncoding(deviceGroup.getId(), deviceGroup.getPayloadEncoding());
+        ingestQuota.setGroupDeviceRate(deviceGroup.getId(), deviceGroup.getDeviceIngestRate());
+        deviceDataFilter.setGroupPolicy(deviceGroup.getId(), deviceGroup.getIngestPolicy());
     }
 
     public JSONObject getADeviceGroupByName(String name) {
@@ -62,6 +77,11 @@ public class DeviceGroupService {
 
     public void delete(DeviceGroup deviceGroup) {
         deviceGroupRepository.delete(deviceGroup);
+        //分组下的设备被级联删除
+        deviceRegistry.removeGroup(deviceGroup.getId());
+        payloadCodecs.removeGroup(deviceGroup.getId());
+        ingestQuota.removeGroup(deviceGroup.getId());
+        deviceDataFilter.removeGroup(deviceGroup.getId());
     }
 
 
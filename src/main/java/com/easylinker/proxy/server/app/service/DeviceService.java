@@ -2,6 +2,9 @@ package com.easylinker.proxy.server.app.service;
 
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceDataFilter;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceRegistry;
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.DeviceTraffic;
 import com.easylinker.proxy.server.app.constants.result.ReturnResult;
 import com.easylinker.proxy.server.app.dao.DeviceGroupRepository;
 import com.easylinker.proxy.server.app.dao.DeviceRepository;
@@ -17,6 +20,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.bind.annotation.PathVariable;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -29,15 +33,26 @@ public class DeviceService {
 
     @Autowired
     AliLiveUtil aliLiveUtil;
+    @Autowired
+    DeviceRegistry deviceRegistry;
+    @Autowired
+    DeviceDataFilter deviceDataFilter;
+    @Autowired
+    DeviceTraffic deviceTraffic;
 
 
     public void save(Device device) {
         deviceRepository.save(device);
+        deviceRegistry.put(device);
+        deviceDataFilter.setDevicePolicy(device.getId(), device.getIngestPolicy());
 
     }
 
     public void delete(Device device) {
         deviceRepository.delete(device);
+        deviceRegistry.remove(device.getId());
+        deviceDataFilter.removeDevice(device.getId());
+        deviceTraffic.remove(device.getId());
 
     }
 
@@ -45,6 +60,32 @@ public class DeviceService {
         return deviceRepository.findTopById(id);
     }
 
+    /**
+     * 只带ID的设备代理，用来给日志之类的实体挂外键，不查数据库
+     *
+     * @param id
+     * @return
+     */
+    public Device findADeviceReference(Long id) {
+        return deviceRepository.getOne(id);
+    }
+
+    /**
+     * 更新在线状态
+     *
+     * @param id
+     * @param online
+     * @param lastActiveDate 为null的时候不更新最后活跃时间
+     */
+    public void updateOnline(Long id, boolean online, Date lastActiveDate) {
+        if (lastActiveDate == null) {
+            deviceRepository.updateOnline(id, online);
+        } else {
+            deviceRepository.updateOnline(id, online, lastActiveDate);
+        }
+        deviceRegistry.setOnline(id, online);
+    }
+
     public JSONObject getAllDevicesByAppUser(AppUser appUser, Pageable pageable) {
         JSONArray data = new JSONArray();
         JSONObject pageJson = new JSONObject();
@@ -172,6 +213,15 @@ public class DeviceService {
         return deviceRepository.findAll();
     }
 
+    /**
+     * 设备总数，不加载设备
+     *
+     * @return
+     */
+    public long countDevice() {
+        return deviceRepository.count();
+    }
+
     /**
      * 获取当前用户的设备情况
      *
@@ -228,7 +278,9 @@ public class DeviceService {
             locationJson.put("longitude", device.getLocation().getLongitude());
             locationJson.put("describe", device.getLocation().getLocationDescribe());
             deviceJson.put("location", locationJson);
-            deviceJson.put("lastActiveDate", device.getLastActiveDate());
+            //还没写回数据库的消息也算上
+            deviceJson.put("lastActiveDate", deviceTraffic.findLastActiveDate(device));
+            deviceJson.put("traffic", deviceTraffic.getTraffic(device));
             return deviceJson;
         } else {
             return null;
@@ -0,0 +1,30 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+/**
+ * 按位读，高位在前
+ */
+class BitReader {
+    private final byte[] buffer;
+    private long position;
+
+    BitReader(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    long readBits(int bits) {
+        long value = 0;
+        for (int i = 0; i < bits; i++) {
+            int index = (int) (position >>> 3);
+            if (index >= buffer.length) {
+                throw new IllegalArgumentException("数据块已经读完");
+            }
+            value = (value << 1) | ((buffer[index] >>> (7 - (position & 7))) & 1);
+            position++;
+        }
+        return value;
+    }
+}
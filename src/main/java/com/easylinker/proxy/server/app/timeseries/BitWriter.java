@@ -0,0 +1,35 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import java.util.Arrays;
+
+/**
+ * 按位写，高位在前
+ */
+class BitWriter {
+    private byte[] buffer = new byte[256];
+    private long bitCount;
+
+    void writeBit(boolean bit) {
+        writeBits(bit ? 1 : 0, 1);
+    }
+
+    /**
+     * 写 value 的低 bits 位
+     */
+    void writeBits(long value, int bits) {
+        for (int i = bits - 1; i >= 0; i--) {
+            int index = (int) (bitCount >>> 3);
+            if (index == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            if (((value >>> i) & 1) != 0) {
+                buffer[index] |= (byte) (0x80 >>> (bitCount & 7));
+            }
+            bitCount++;
+        }
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, (int) ((bitCount + 7) >>> 3));
+    }
+}
@@ -0,0 +1,154 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import com.alibaba.fastjson.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * 数据块里的一条数据
+ * 只有数值字段的JSON对象按列保存(values)，其他的(嵌套对象、字符串、二进制编码)原样保存字节(raw)
+ * 按列保存是无损的：只有按 getJsonText 还原出来的文本和原文逐字节相同(字段顺序、数字写法、没有空白)才按列保存，
+ * 像 1.50、1E3、带空格的载荷都原样保存，压缩前后读到的数据完全一样
+ */
+public class ChunkSample {
+    private final long id;
+    private final long time;
+    private final String type;
+    private final String encoding;
+    private final JSONObject values;
+    private final byte[] raw;
+
+    ChunkSample(long id, long time, String type, String encoding, JSONObject values, byte[] raw) {
+        this.id = id;
+        this.time = time;
+        this.type = type;
+        this.encoding = encoding;
+        this.values = values;
+        this.raw = raw;
+    }
+
+    /**
+     * 从 device_data 的一行生成，能无损按列保存的就转成数值对象
+     *
+     * @param id
+     * @param time
+     * @param type
+     * @param encoding 为空表示 bytes 是JSON文本
+     * @param bytes    data 列的文本或者 payload 列的二进制
+     * @return
+     */
+    public static ChunkSample of(long id, long time, String type, String encoding, byte[] bytes) {
+        if (encoding == null) {
+            JSONObject values = numericObject(bytes);
+            if (values != null && Arrays.equals(render(values), bytes)) {
+                return new ChunkSample(id, time, type, null, values, null);
+            }
+        }
+        return new ChunkSample(id, time, type, encoding, null, bytes);
+    }
+
+    /**
+     * 解析 {"a":1,"b":2.5} 这种紧凑写法的、只有数值字段的JSON对象，整数按long，小数按double，
+     * 其他写法返回null；数字写法能不能还原由调用方比较 render 的结果判断
+     */
+    static JSONObject numericObject(byte[] bytes) {
+        if (bytes.length < 2 || bytes[0] != '{' || bytes[bytes.length - 1] != '}') {
+            return null;
+        }
+        JSONObject values = new JSONObject(true);
+        int i = 1;
+        if (bytes.length == 2) {
+            return values;
+        }
+        while (true) {
+            if (bytes[i] != '"') {
+                return null;
+            }
+            int keyStart = ++i;
+            //转义和控制字符不能原样还原，不按列保存
+            while (i < bytes.length && bytes[i] != '"') {
+                if (bytes[i] == '\\' || (bytes[i] & 0xff) < 0x20) {
+                    return null;
+                }
+                i++;
+            }
+            if (i + 2 >= bytes.length || bytes[i + 1] != ':') {
+                return null;
+            }
+            String key = new String(bytes, keyStart, i - keyStart, StandardCharsets.UTF_8);
+            int numberStart = i + 2;
+            i = numberStart;
+            while (bytes[i] != ',' && bytes[i] != '}') {
+                i++;
+            }
+            String number = new String(bytes, numberStart, i - numberStart, StandardCharsets.US_ASCII);
+            Object value;
+            try {
+                value = number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0
+                        ? (Object) Long.parseLong(number) : (Object) Double.parseDouble(number);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (values.put(key, value) != null) {
+                return null;
+            }
+            if (bytes[i] == '}') {
+                return i == bytes.length - 1 ? values : null;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * 数值对象按紧凑写法输出，long 用 Long.toString，double 用 Double.toString
+     */
+    static byte[] render(Map<String, Object> values) {
+        StringBuilder text = new StringBuilder(values.size() * 16 + 2).append('{');
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (text.length() > 1) {
+                text.append(',');
+            }
+            text.append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+        }
+        return text.append('}').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * 按列保存的数值对象，原样保存的返回null
+     */
+    public JSONObject getValues() {
+        return values;
+    }
+
+    /**
+     * 原样保存的字节，按列保存的返回null
+     */
+    public byte[] getRaw() {
+        return raw;
+    }
+
+    /**
+     * encoding 为空的时候是存进来的JSON原文
+     */
+    public byte[] getJsonText() {
+        return values == null ? raw : render(values);
+    }
+}
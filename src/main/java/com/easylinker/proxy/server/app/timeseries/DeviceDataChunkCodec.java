@@ -0,0 +1,510 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.utils.SnowflakeIdGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 一台设备一段时间的数据编码成一个数据块
+ * 时间戳: 第一条写64位，之后写 二阶差分(delta-of-delta)，间隔稳定的时候每条只要1位
+ * ID: 2位标记 + 偏移，BaseEntity 生成的旧ID写和时间戳的差值(18位)，snowflake ID写和这一毫秒最小ID的差值(一般22位)，
+ * 都放不下的写32位或者64位；版本1的数据块ID是1位标记 + 18位或者64位，还能读
+ * 数值字段按这一条原来的字段顺序还原，字段顺序和块里的列顺序对不上的按原文保存
+ * 数值字段: 每个 (字段名, long/double) 一列，和这一列上一个值按位异或(Gorilla)，值不变1位，变化小的只写有效位
+ * 字段集合和上一条一样的时候1位；不能按列保存的数据原样放在后面的Deflate压缩区
+ * <p>
+ * 格式: 版本 | 条数 | 类型表 | 编码表 | 字段表 | 位流 | 压缩区，长度和条数都是varint
+ */
+public final class DeviceDataChunkCodec {
+    private static final int VERSION = 2;
+    private static final int VERSION_1 = 1;
+    private static final int KIND_LONG = 0;
+    private static final int KIND_DOUBLE = 1;
+    private static final int ID_OFFSET_BITS = 18;
+    private static final int SNOWFLAKE_OFFSET_BITS = 22;
+
+    private DeviceDataChunkCodec() {
+    }
+
+    /**
+     * @param samples 任意顺序，编码的时候按时间排序
+     * @return
+     */
+    public static byte[] encode(List<ChunkSample> samples) {
+        List<ChunkSample> sorted = new ArrayList<>(samples);
+        sorted.sort(Comparator.comparingLong(ChunkSample::getTime).thenComparingLong(ChunkSample::getId));
+
+        Dictionary types = new Dictionary();
+        Dictionary encodings = new Dictionary();
+        encodings.indexOf(null);
+        Map<String, Integer> fieldIndexes = new LinkedHashMap<>();
+        List<String> fieldNames = new ArrayList<>();
+        List<Integer> fieldKinds = new ArrayList<>();
+        for (int n = 0; n < sorted.size(); n++) {
+            ChunkSample sample = sorted.get(n);
+            types.indexOf(sample.getType());
+            if (sample.getValues() != null && !inColumnOrder(sample.getValues(), fieldIndexes)) {
+                //解码的时候按列的顺序还原字段，顺序不一样的按原文保存
+                sample = new ChunkSample(sample.getId(), sample.getTime(), sample.getType(), null, null, sample.getJsonText());
+                sorted.set(n, sample);
+            }
+            if (sample.getValues() == null) {
+                encodings.indexOf(sample.getEncoding());
+            } else {
+                for (Map.Entry<String, Object> entry : sample.getValues().entrySet()) {
+                    String key = columnKey(entry);
+                    if (!fieldIndexes.containsKey(key)) {
+                        fieldIndexes.put(key, fieldNames.size());
+                        fieldNames.add(entry.getKey());
+                        fieldKinds.add(entry.getValue() instanceof Long ? KIND_LONG : KIND_DOUBLE);
+                    }
+                }
+            }
+        }
+
+        BitWriter bits = new BitWriter();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        int typeBits = bitsFor(types.size());
+        int encodingBits = bitsFor(encodings.size());
+        long previousTime = 0;
+        long previousDelta = 0;
+        boolean[] previousPresence = new boolean[fieldNames.size()];
+        Column[] columns = new Column[fieldNames.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new Column();
+        }
+        for (int n = 0; n < sorted.size(); n++) {
+            ChunkSample sample = sorted.get(n);
+            if (n == 0) {
+                bits.writeBits(sample.getTime(), 64);
+            } else {
+                long delta = sample.getTime() - previousTime;
+                writeDeltaOfDelta(bits, delta - previousDelta);
+                previousDelta = delta;
+            }
+            previousTime = sample.getTime();
+            writeId(bits, sample.getId(), sample.getTime());
+            bits.writeBits(types.indexOf(sample.getType()), typeBits);
+            if (sample.getValues() == null) {
+                bits.writeBit(false);
+                bits.writeBits(encodings.indexOf(sample.getEncoding()), encodingBits);
+                writeVarint(raw, sample.getRaw().length);
+                raw.write(sample.getRaw(), 0, sample.getRaw().length);
+                continue;
+            }
+            bits.writeBit(true);
+            boolean[] presence = new boolean[columns.length];
+            long[] values = new long[columns.length];
+            for (Map.Entry<String, Object> entry : sample.getValues().entrySet()) {
+                int index = fieldIndexes.get(columnKey(entry));
+                presence[index] = true;
+                values[index] = entry.getValue() instanceof Long
+                        ? (Long) entry.getValue() : Double.doubleToLongBits(((Number) entry.getValue()).doubleValue());
+            }
+            if (java.util.Arrays.equals(presence, previousPresence)) {
+                bits.writeBit(false);
+            } else {
+                bits.writeBit(true);
+                for (boolean present : presence) {
+                    bits.writeBit(present);
+                }
+                previousPresence = presence;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                if (presence[i]) {
+                    columns[i].write(bits, values[i]);
+                }
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(VERSION);
+        writeVarint(out, sorted.size());
+        types.writeTo(out);
+        encodings.writeTo(out);
+        writeVarint(out, fieldNames.size());
+        for (int i = 0; i < fieldNames.size(); i++) {
+            writeString(out, fieldNames.get(i));
+            out.write(fieldKinds.get(i));
+        }
+        byte[] bitBytes = bits.toByteArray();
+        writeVarint(out, bitBytes.length);
+        out.write(bitBytes, 0, bitBytes.length);
+        byte[] compressed = deflate(raw.toByteArray());
+        writeVarint(out, compressed.length);
+        out.write(compressed, 0, compressed.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * @param chunk
+     * @return 按时间从早到晚
+     * @throws IllegalArgumentException 数据块损坏或者版本不对
+     */
+    public static List<ChunkSample> decode(byte[] chunk) {
+        int[] position = {0};
+        int version = chunk.length == 0 ? 0 : chunk[position[0]++];
+        if (version != VERSION && version != VERSION_1) {
+            throw new IllegalArgumentException("不支持的数据块版本");
+        }
+        int count = (int) readVarint(chunk, position);
+        List<String> types = readStrings(chunk, position);
+        List<String> encodings = readStrings(chunk, position);
+        int fieldCount = (int) readVarint(chunk, position);
+        String[] fieldNames = new String[fieldCount];
+        int[] fieldKinds = new int[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            fieldNames[i] = readString(chunk, position);
+            fieldKinds[i] = chunk[position[0]++];
+        }
+        int bitLength = (int) readVarint(chunk, position);
+        byte[] bitBytes = java.util.Arrays.copyOfRange(chunk, position[0], position[0] + bitLength);
+        position[0] += bitLength;
+        int rawLength = (int) readVarint(chunk, position);
+        byte[] raw = inflate(java.util.Arrays.copyOfRange(chunk, position[0], position[0] + rawLength));
+        int[] rawPosition = {0};
+
+        BitReader bits = new BitReader(bitBytes);
+        int typeBits = bitsFor(types.size());
+        int encodingBits = bitsFor(encodings.size());
+        Column[] columns = new Column[fieldCount];
+        for (int i = 0; i < fieldCount; i++) {
+            columns[i] = new Column();
+        }
+        boolean[] presence = new boolean[fieldCount];
+        List<ChunkSample> samples = new ArrayList<>(count);
+        long time = 0;
+        long delta = 0;
+        for (int n = 0; n < count; n++) {
+            if (n == 0) {
+                time = bits.readBits(64);
+            } else {
+                delta += readDeltaOfDelta(bits);
+                time += delta;
+            }
+            long id = version == VERSION_1 ? readIdV1(bits, time) : readId(bits, time);
+            String type = types.get((int) bits.readBits(typeBits));
+            if (!bits.readBit()) {
+                String encoding = encodings.get((int) bits.readBits(encodingBits));
+                int length = (int) readVarint(raw, rawPosition);
+                byte[] bytes = java.util.Arrays.copyOfRange(raw, rawPosition[0], rawPosition[0] + length);
+                rawPosition[0] += length;
+                samples.add(new ChunkSample(id, time, type, encoding, null, bytes));
+                continue;
+            }
+            if (bits.readBit()) {
+                presence = new boolean[fieldCount];
+                for (int i = 0; i < fieldCount; i++) {
+                    presence[i] = bits.readBit();
+                }
+            }
+            JSONObject values = new JSONObject(true);
+            for (int i = 0; i < fieldCount; i++) {
+                if (presence[i]) {
+                    long value = columns[i].read(bits);
+                    values.put(fieldNames[i], fieldKinds[i] == KIND_LONG ? (Object) value : (Object) Double.longBitsToDouble(value));
+                }
+            }
+            samples.add(new ChunkSample(id, time, type, null, values, null));
+        }
+        return samples;
+    }
+
+    private static String columnKey(Map.Entry<String, Object> entry) {
+        return (entry.getValue() instanceof Long ? KIND_LONG : KIND_DOUBLE) + entry.getKey();
+    }
+
+    /**
+     * 字段在已有的列里是不是按列的顺序出现，新字段会排在已有的列后面
+     */
+    private static boolean inColumnOrder(Map<String, Object> values, Map<String, Integer> fieldIndexes) {
+        int previous = -1;
+        int next = fieldIndexes.size();
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            Integer index = fieldIndexes.get(columnKey(entry));
+            int current = index == null ? next++ : index;
+            if (current <= previous) {
+                return false;
+            }
+            previous = current;
+        }
+        return true;
+    }
+
+    /**
+     * 00: 和时间戳差值的zigzag(18位)，01/10: 和这一毫秒最小snowflake ID的差值(22/32位)，11: 原样64位
+     */
+    private static void writeId(BitWriter bits, long id, long time) {
+        long legacy = zigZag(id - time);
+        long offset = id - SnowflakeIdGenerator.baseOf(time);
+        if (legacy >>> ID_OFFSET_BITS == 0) {
+            bits.writeBits(0b00, 2);
+            bits.writeBits(legacy, ID_OFFSET_BITS);
+        } else if (offset >>> SNOWFLAKE_OFFSET_BITS == 0) {
+            bits.writeBits(0b01, 2);
+            bits.writeBits(offset, SNOWFLAKE_OFFSET_BITS);
+        } else if (offset >>> 32 == 0) {
+            bits.writeBits(0b10, 2);
+            bits.writeBits(offset, 32);
+        } else {
+            bits.writeBits(0b11, 2);
+            bits.writeBits(id, 64);
+        }
+    }
+
+    private static long readId(BitReader bits, long time) {
+        switch ((int) bits.readBits(2)) {
+            case 0b00:
+                return time + unZigZag(bits.readBits(ID_OFFSET_BITS));
+            case 0b01:
+                return SnowflakeIdGenerator.baseOf(time) + bits.readBits(SNOWFLAKE_OFFSET_BITS);
+            case 0b10:
+                return SnowflakeIdGenerator.baseOf(time) + bits.readBits(32);
+            default:
+                return bits.readBits(64);
+        }
+    }
+
+    private static long readIdV1(BitReader bits, long time) {
+        long idOffset = bits.readBit() ? bits.readBits(64) : bits.readBits(ID_OFFSET_BITS);
+        return time + unZigZag(idOffset);
+    }
+
+    /**
+     * 二阶差分按大小分4档，其他的写64位
+     */
+    private static void writeDeltaOfDelta(BitWriter bits, long deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            bits.writeBit(false);
+        } else if (fits(deltaOfDelta, 7)) {
+            bits.writeBits(0b10, 2);
+            bits.writeBits(deltaOfDelta, 7);
+        } else if (fits(deltaOfDelta, 9)) {
+            bits.writeBits(0b110, 3);
+            bits.writeBits(deltaOfDelta, 9);
+        } else if (fits(deltaOfDelta, 12)) {
+            bits.writeBits(0b1110, 4);
+            bits.writeBits(deltaOfDelta, 12);
+        } else {
+            bits.writeBits(0b1111, 4);
+            bits.writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    private static long readDeltaOfDelta(BitReader bits) {
+        if (!bits.readBit()) {
+            return 0;
+        }
+        if (!bits.readBit()) {
+            return signExtend(bits.readBits(7), 7);
+        }
+        if (!bits.readBit()) {
+            return signExtend(bits.readBits(9), 9);
+        }
+        if (!bits.readBit()) {
+            return signExtend(bits.readBits(12), 12);
+        }
+        return bits.readBits(64);
+    }
+
+    private static boolean fits(long value, int bits) {
+        return value >= -(1L << (bits - 1)) && value < (1L << (bits - 1));
+    }
+
+    private static long signExtend(long value, int bits) {
+        return (value << (64 - bits)) >> (64 - bits);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int bitsFor(int size) {
+        return size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] buffer, int[] position) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint格式不对");
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(byte[] buffer, int[] position) {
+        int length = (int) readVarint(buffer, position);
+        if (length == 0) {
+            return null;
+        }
+        String value = new String(buffer, position[0], length - 1, StandardCharsets.UTF_8);
+        position[0] += length - 1;
+        return value;
+    }
+
+    private static List<String> readStrings(byte[] buffer, int[] position) {
+        int count = (int) readVarint(buffer, position);
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(buffer, position));
+        }
+        return values;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        if (data.length == 0) {
+            return data;
+        }
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 16);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) {
+        if (data.length == 0) {
+            return data;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) {
+                    throw new IllegalArgumentException("压缩区不完整");
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("压缩区格式不对:" + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 一列数值的Gorilla异或编码状态
+     */
+    private static class Column {
+        long previous;
+        int leading = -1;
+        int trailing;
+
+        void write(BitWriter bits, long value) {
+            long xor = value ^ previous;
+            previous = value;
+            if (xor == 0) {
+                bits.writeBit(false);
+                return;
+            }
+            bits.writeBit(true);
+            int newLeading = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int newTrailing = Long.numberOfTrailingZeros(xor);
+            if (leading >= 0 && newLeading >= leading && newTrailing >= trailing) {
+                //有效位落在上一次的窗口里，沿用窗口
+                bits.writeBit(false);
+                bits.writeBits(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                leading = newLeading;
+                trailing = newTrailing;
+                int length = 64 - leading - trailing;
+                bits.writeBit(true);
+                bits.writeBits(leading, 5);
+                bits.writeBits(length - 1, 6);
+                bits.writeBits(xor >>> trailing, length);
+            }
+        }
+
+        long read(BitReader bits) {
+            if (!bits.readBit()) {
+                return previous;
+            }
+            if (bits.readBit()) {
+                leading = (int) bits.readBits(5);
+                int length = (int) bits.readBits(6) + 1;
+                trailing = 64 - leading - length;
+            }
+            long xor = bits.readBits(64 - leading - trailing) << trailing;
+            previous ^= xor;
+            return previous;
+        }
+    }
+
+    /**
+     * 字符串表，null也算一项
+     */
+    private static class Dictionary {
+        final Map<String, Integer> indexes = new HashMap<>();
+        final List<String> values = new ArrayList<>();
+
+        int indexOf(String value) {
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = values.size();
+                indexes.put(value, index);
+                values.add(value);
+            }
+            return index;
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        void writeTo(ByteArrayOutputStream out) {
+            writeVarint(out, values.size());
+            for (String value : values) {
+                writeString(out, value);
+            }
+        }
+    }
+}
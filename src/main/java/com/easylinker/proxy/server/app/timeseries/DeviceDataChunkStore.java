@@ -0,0 +1,195 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 读设备数据块
+ * 分页的时候先只查每个块的条数跳过前面的块，只取需要的块解码
+ */
+@Component
+public class DeviceDataChunkStore {
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Value("${ingest.timeseries.chunk-duration:3600000}")
+    long chunkDuration;
+
+    /**
+     * 一台设备所有数据块里的数据条数
+     *
+     * @param deviceId
+     * @return
+     */
+    public long countSamples(long deviceId) {
+        Long count = jdbcTemplate.queryForObject("SELECT COALESCE(SUM(sample_count), 0) FROM device_data_chunk WHERE device_id = ?",
+                Long.class, deviceId);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * 按时间从新到旧跳过 offset 条取 limit 条
+     *
+     * @param deviceId
+     * @param offset
+     * @param limit
+     * @return 从新到旧
+     */
+    public List<ChunkSample> findLatestSamples(long deviceId, long offset, int limit) {
+        List<long[]> chunks = jdbcTemplate.query("SELECT id, sample_count FROM device_data_chunk WHERE device_id = ? ORDER BY start_time DESC",
+                (rs, rowNum) -> new long[]{rs.getLong(1), rs.getLong(2)}, deviceId);
+        List<Long> ids = new ArrayList<>();
+        long skipInFirst = 0;
+        long remaining = offset + limit;
+        for (long[] chunk : chunks) {
+            if (remaining <= 0) {
+                break;
+            }
+            if (offset >= chunk[1]) {
+                offset -= chunk[1];
+                remaining -= chunk[1];
+                continue;
+            }
+            if (ids.isEmpty()) {
+                skipInFirst = offset;
+                offset = 0;
+            }
+            ids.add(chunk[0]);
+            remaining -= chunk[1];
+        }
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, byte[]> blobs = findChunks(ids);
+        List<ChunkSample> samples = new ArrayList<>(limit);
+        for (Long id : ids) {
+            List<ChunkSample> decoded = DeviceDataChunkCodec.decode(blobs.get(id));
+            for (int i = decoded.size() - 1; i >= 0 && samples.size() < limit; i--) {
+                if (skipInFirst > 0) {
+                    skipInFirst--;
+                    continue;
+                }
+                samples.add(decoded.get(i));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * 时间在 [from, to) 之间的数据
+     *
+     * @param deviceId
+     * @param from
+     * @param to
+     * @return 从旧到新
+     */
+    public List<ChunkSample> findSamplesBetween(long deviceId, long from, long to) {
+        //start_time 两边都有条件，只扫描需要的分区
+        List<byte[]> blobs = jdbcTemplate.query("SELECT chunk FROM device_data_chunk WHERE device_id = ? AND start_time > ? AND start_time < ? AND end_time > ? ORDER BY start_time",
+                (rs, rowNum) -> rs.getBytes(1), deviceId, new Timestamp(from - chunkDuration), new Timestamp(to), new Timestamp(from));
+        List<ChunkSample> samples = new ArrayList<>();
+        for (byte[] blob : blobs) {
+            for (ChunkSample sample : DeviceDataChunkCodec.decode(blob)) {
+                if (sample.getTime() >= from && sample.getTime() < to) {
+                    samples.add(sample);
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * 游标分页，(time, id) 小于游标并且时间不早于 from 的，从新到旧
+     * 从游标所在的数据块开始一个一个往前读，每次按 (device_id, start_time) 唯一索引定位，和翻到第几页无关
+     *
+     * @param deviceId
+     * @param from       包含
+     * @param cursorTime
+     * @param cursorId
+     * @param limit
+     * @return 从新到旧
+     */
+    public List<ChunkSample> findSamplesBefore(long deviceId, long from, long cursorTime, long cursorId, int limit) {
+        List<ChunkSample> samples = new ArrayList<>(limit);
+        Timestamp upper = new Timestamp(cursorTime);
+        String sql = "SELECT start_time, chunk FROM device_data_chunk WHERE device_id = ? AND start_time <= ? AND end_time > ? ORDER BY start_time DESC LIMIT 1";
+        while (samples.size() < limit) {
+            List<Object[]> chunk = jdbcTemplate.query(sql, (rs, rowNum) -> new Object[]{rs.getTimestamp(1), rs.getBytes(2)},
+                    deviceId, upper, new Timestamp(from));
+            if (chunk.isEmpty()) {
+                break;
+            }
+            List<ChunkSample> decoded = DeviceDataChunkCodec.decode((byte[]) chunk.get(0)[1]);
+            for (int i = decoded.size() - 1; i >= 0 && samples.size() < limit; i--) {
+                ChunkSample sample = decoded.get(i);
+                if (sample.getTime() >= from && compare(sample, cursorTime, cursorId) < 0) {
+                    samples.add(sample);
+                }
+            }
+            //下一个更早的数据块
+            upper = new Timestamp(((Timestamp) chunk.get(0)[0]).getTime() - 1);
+        }
+        return samples;
+    }
+
+    /**
+     * 游标分页，(time, id) 大于游标并且时间早于 to 的，从旧到新
+     *
+     * @param deviceId
+     * @param to         不包含
+     * @param cursorTime
+     * @param cursorId
+     * @param limit
+     * @return 从旧到新
+     */
+    public List<ChunkSample> findSamplesAfter(long deviceId, long to, long cursorTime, long cursorId, int limit) {
+        List<ChunkSample> samples = new ArrayList<>(limit);
+        //游标所在的数据块 start_time 在游标前一个 chunk-duration 以内，从它开始
+        Timestamp lower = new Timestamp(cursorTime - chunkDuration);
+        String sql = "SELECT start_time, chunk FROM device_data_chunk WHERE device_id = ? AND start_time >= ? AND start_time < ? AND end_time > ? ORDER BY start_time LIMIT 1";
+        while (samples.size() < limit) {
+            List<Object[]> chunk = jdbcTemplate.query(sql, (rs, rowNum) -> new Object[]{rs.getTimestamp(1), rs.getBytes(2)},
+                    deviceId, lower, new Timestamp(to), new Timestamp(cursorTime));
+            if (chunk.isEmpty()) {
+                break;
+            }
+            for (ChunkSample sample : DeviceDataChunkCodec.decode((byte[]) chunk.get(0)[1])) {
+                if (samples.size() == limit) {
+                    break;
+                }
+                if (sample.getTime() < to && compare(sample, cursorTime, cursorId) > 0) {
+                    samples.add(sample);
+                }
+            }
+            //下一个更晚的数据块
+            lower = new Timestamp(((Timestamp) chunk.get(0)[0]).getTime() + 1);
+        }
+        return samples;
+    }
+
+    private static int compare(ChunkSample sample, long time, long id) {
+        int result = Long.compare(sample.getTime(), time);
+        return result != 0 ? result : Long.compare(sample.getId(), id);
+    }
+
+    private Map<Long, byte[]> findChunks(List<Long> ids) {
+        StringBuilder sql = new StringBuilder("SELECT id, chunk FROM device_data_chunk WHERE id IN (");
+        for (int i = 0; i < ids.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+        Map<Long, byte[]> blobs = new HashMap<>();
+        jdbcTemplate.query(sql.toString(), rs -> {
+            blobs.put(rs.getLong(1), rs.getBytes(2));
+        }, ids.toArray());
+        return blobs;
+    }
+}
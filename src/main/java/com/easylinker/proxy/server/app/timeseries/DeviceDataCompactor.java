@@ -0,0 +1,206 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.utils.SnowflakeIdGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 把 device_data 里的旧数据压缩成数据块(device_data_chunk)
+ * device_data 只做写入缓冲：入库流程(预写日志、批量写入、MQTT确认)不变，
+ * 后台每隔 compact-interval 毫秒把早于 compact-delay 的完整时间窗口按设备读出来，编码成数据块，
+ * 和删除原始行在同一个事务里提交；已经有数据块的窗口(迟到的数据)解码合并以后重新编码，按ID去重
+ * 一轮所有设备都压缩成功以后水位线推进到这一轮的截止时间，TablePartitionManager 只删除水位线以前的 device_data 分区
+ * 多实例部署的时候用数据库锁(GET_LOCK)保证同一时间只有一个实例在压缩；拿不到锁的实例不压缩，
+ * 截止时间以前的 device_data 已经没有数据的时候把水位线推进到截止时间，这样维护分区的实例不管是不是压缩的实例都能删分区
+ */
+@Component
+public class DeviceDataCompactor {
+    private static final String SELECT_SQL = "SELECT id, create_time, type, encoding, data, payload FROM device_data "
+            + "WHERE device_id = ? AND create_time < ? ORDER BY create_time LIMIT ?";
+    private static final String INSERT_SQL = "INSERT INTO device_data_chunk (id, is_delete, create_time, device_id, start_time, end_time, sample_count, chunk) "
+            + "VALUES (?, 0, ?, ?, ?, ?, ?, ?)";
+    private static final String LOCK_NAME = "easylinker_device_data_compact";
+    Logger logger = LoggerFactory.getLogger(DeviceDataCompactor.class);
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+    @Autowired
+    SnowflakeIdGenerator snowflakeIdGenerator;
+    @Value("${ingest.timeseries.enabled:true}")
+    boolean enabled;
+    @Value("${ingest.timeseries.chunk-duration:3600000}")
+    long chunkDuration;
+    @Value("${ingest.timeseries.compact-delay:600000}")
+    long compactDelay;
+    @Value("${ingest.timeseries.batch-size:5000}")
+    int batchSize;
+
+    private TransactionTemplate transactionTemplate;
+    private final AtomicLong compactedCount = new AtomicLong();
+    private final AtomicLong chunkCount = new AtomicLong();
+    private final AtomicLong mergedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private volatile long lastCompactMillis;
+    private volatile long watermark;
+
+    @PostConstruct
+    public void start() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Scheduled(fixedDelayString = "${ingest.timeseries.compact-interval:60000}")
+    public void compact() {
+        if (!enabled) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        //只压缩已经结束的时间窗口
+        long cutoff = (begin - compactDelay) / chunkDuration * chunkDuration;
+        //GET_LOCK 属于连接，压缩期间一直占着这个连接，压缩本身用连接池里的其他连接
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            JdbcTemplate locked = new JdbcTemplate(new SingleConnectionDataSource(connection, true));
+            Integer acquired = locked.queryForObject("SELECT GET_LOCK(?, 0)", Integer.class, LOCK_NAME);
+            if (acquired == null || acquired != 1) {
+                skippedCount.incrementAndGet();
+                if (jdbcTemplate.queryForList("SELECT id FROM device_data WHERE create_time < ? LIMIT 1", Long.class, new Timestamp(cutoff)).isEmpty()) {
+                    watermark = cutoff;
+                }
+                return null;
+            }
+            try {
+                compact(cutoff);
+            } finally {
+                locked.queryForObject("SELECT RELEASE_LOCK(?)", Integer.class, LOCK_NAME);
+            }
+            return null;
+        });
+        lastCompactMillis = System.currentTimeMillis() - begin;
+    }
+
+    private void compact(long cutoff) {
+        //只查有待压缩数据的设备，没有数据要压缩的时候只有这一次查询
+        List<Long> deviceIds = jdbcTemplate.queryForList("SELECT DISTINCT device_id FROM device_data WHERE create_time < ?",
+                Long.class, new Timestamp(cutoff));
+        boolean complete = true;
+        for (Long deviceId : deviceIds) {
+            try {
+                while (compactDevice(deviceId, cutoff) == batchSize) {
+                    //一次最多 batchSize 条，剩下的接着压缩
+                }
+            } catch (Exception e) {
+                //原始行还在 device_data 里，下次重试
+                failedCount.incrementAndGet();
+                complete = false;
+                logger.error("设备[" + deviceId + "]数据压缩失败:" + e.getMessage());
+            }
+        }
+        if (complete) {
+            watermark = cutoff;
+        }
+    }
+
+    /**
+     * 这个时间以前的 device_data 都已经压缩成数据块，没有开启或者还没有完整压缩过一轮的时候返回0
+     *
+     * @return
+     */
+    public long getWatermark() {
+        return enabled ? watermark : 0;
+    }
+
+    /**
+     * @return 这次读到的行数
+     */
+    private int compactDevice(long deviceId, long cutoff) {
+        List<ChunkSample> rows = jdbcTemplate.query(SELECT_SQL, (rs, rowNum) -> {
+            String encoding = rs.getString(4);
+            byte[] bytes = encoding == null ? rs.getBytes(5) : rs.getBytes(6);
+            return ChunkSample.of(rs.getLong(1), rs.getTimestamp(2).getTime(), rs.getString(3), encoding,
+                    bytes == null ? new byte[0] : bytes);
+        }, deviceId, new Timestamp(cutoff), batchSize);
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        Map<Long, List<ChunkSample>> windows = new TreeMap<>();
+        for (ChunkSample row : rows) {
+            long start = Math.floorDiv(row.getTime(), chunkDuration) * chunkDuration;
+            windows.computeIfAbsent(start, k -> new ArrayList<>()).add(row);
+        }
+        transactionTemplate.execute(status -> {
+            for (Map.Entry<Long, List<ChunkSample>> window : windows.entrySet()) {
+                writeChunk(deviceId, window.getKey(), window.getValue());
+            }
+            List<Object[]> ids = new ArrayList<>(rows.size());
+            for (ChunkSample row : rows) {
+                ids.add(new Object[]{row.getId(), new Timestamp(row.getTime())});
+            }
+            //带上分区列，只在一个分区里删除
+            jdbcTemplate.batchUpdate("DELETE FROM device_data WHERE id = ? AND create_time = ?", ids);
+            return null;
+        });
+        compactedCount.addAndGet(rows.size());
+        return rows.size();
+    }
+
+    private void writeChunk(long deviceId, long start, List<ChunkSample> samples) {
+        Timestamp startTime = new Timestamp(start);
+        List<Object[]> existing = jdbcTemplate.query("SELECT id, chunk FROM device_data_chunk WHERE device_id = ? AND start_time = ? FOR UPDATE",
+                (rs, rowNum) -> new Object[]{rs.getLong(1), rs.getBytes(2)}, deviceId, startTime);
+        if (existing.isEmpty()) {
+            jdbcTemplate.update(INSERT_SQL, snowflakeIdGenerator.nextId(), new Timestamp(System.currentTimeMillis()), deviceId, startTime,
+                    new Timestamp(start + chunkDuration), samples.size(), DeviceDataChunkCodec.encode(samples));
+            chunkCount.incrementAndGet();
+            return;
+        }
+        List<ChunkSample> merged = DeviceDataChunkCodec.decode((byte[]) existing.get(0)[1]);
+        Set<Long> ids = new HashSet<>();
+        for (ChunkSample sample : merged) {
+            ids.add(sample.getId());
+        }
+        for (ChunkSample sample : samples) {
+            //预写日志重放可能把已经压缩过的行重新写回 device_data
+            if (ids.add(sample.getId())) {
+                merged.add(sample);
+            }
+        }
+        jdbcTemplate.update("UPDATE device_data_chunk SET sample_count = ?, chunk = ? WHERE id = ?",
+                merged.size(), DeviceDataChunkCodec.encode(merged), existing.get(0)[0]);
+        mergedCount.incrementAndGet();
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("enabled", enabled);
+        data.put("compacted", compactedCount.get());
+        data.put("chunks", chunkCount.get());
+        data.put("merged", mergedCount.get());
+        data.put("failed", failedCount.get());
+        data.put("skipped", skippedCount.get());
+        data.put("lastCompactMillis", lastCompactMillis);
+        data.put("watermark", getWatermark());
+        return data;
+    }
+}
@@ -0,0 +1,395 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.timeseries.DeviceDataRollups.Resolution;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 设备数值字段每小时、每天的分位数草图(TDigest)，存在小时和天聚合表的 digest 列
+ * 入库的时候在内存里按 (设备, 字段, 小时) 累加，后台每隔 digest-flush-interval 毫秒把增量合并进小时和天两行
+ * (读出来、合并、写回，同一个事务里加锁)；聚合行还没写出来的增量留到下一次
+ * 查询的时候把范围内所有设备的草图合并，成本只和 设备数 * 时间片数 有关，和原始数据条数无关
+ * 内存里的 (设备, 字段, 小时) 到了 digest-max-pending 个马上在后台提前写回一次(最多每秒一次)，写回期间新的键照常记录；
+ * 超过两倍的时候新的键不记录(计入 dropped)，已有的照常累加；查询结果里标出本实例丢过数据的点(dropped)
+ */
+@Component
+public class DeviceDataDigests {
+    private static final int MAX_POINTS = 10000;
+    private static final int FLUSH_CHUNK = 200;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.95, 0.99};
+    private static final long EARLY_FLUSH_INTERVAL = 1000;
+    /**
+     * 记录丢过数据的小时数，大约一年
+     */
+    private static final int MAX_DROPPED_HOURS = 24 * 400;
+    Logger logger = LoggerFactory.getLogger(DeviceDataDigests.class);
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Autowired
+    PlatformTransactionManager transactionManager;
+    @Autowired
+    TablePartitionManager tablePartitionManager;
+    @Value("${ingest.rollup.digest-compression:100}")
+    double compression;
+    @Value("${ingest.rollup.digest-max-pending:100000}")
+    int maxPending;
+
+    private TransactionTemplate transactionTemplate;
+    private final Map<Key, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicLong flushedRowCount = new AtomicLong();
+    private final AtomicLong deferredCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong earlyFlushCount = new AtomicLong();
+    /**
+     * 小时的开始 -> 这个小时没有记录的数据条数
+     */
+    private final ConcurrentSkipListMap<Long, LongAdder> droppedHours = new ConcurrentSkipListMap<>();
+    private final AtomicBoolean earlyFlushing = new AtomicBoolean();
+    private ExecutorService flushExecutor;
+    private volatile long lastEarlyFlush;
+    private volatile long lastFlushMillis;
+
+    /**
+     * 查询范围
+     */
+    public enum Scope {
+        DEVICE("device_id = ?"),
+        GROUP("device_id IN (SELECT id FROM device WHERE device_group_id = ?)"),
+        USER("device_id IN (SELECT id FROM device WHERE app_user_id = ?)");
+
+        private final String condition;
+
+        Scope(String condition) {
+            this.condition = condition;
+        }
+    }
+
+    @PostConstruct
+    public void start() {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        flushExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "device-data-digest-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 由 DeviceDataRollups 在解析出数值字段以后调用
+     */
+    void record(long deviceId, long time, Map<String, Double> values) {
+        long hour = Resolution.HOUR.floor(time);
+        for (Map.Entry<String, Double> value : values.entrySet()) {
+            add(new Key(deviceId, value.getKey(), hour), value.getValue(), null);
+        }
+    }
+
+    /**
+     * @param digest 不为空表示把写回时推迟的草图合并回来，不受数量限制
+     */
+    private void add(Key key, double value, TDigest digest) {
+        while (true) {
+            Pending entry = pending.get(key);
+            if (entry == null && digest == null) {
+                int size = pending.size();
+                if (size >= maxPending) {
+                    requestEarlyFlush();
+                }
+                if (size >= 2 * maxPending) {
+                    droppedCount.incrementAndGet();
+                    droppedHours.computeIfAbsent(key.bucketStart, k -> new LongAdder()).increment();
+                    if (droppedHours.size() > MAX_DROPPED_HOURS) {
+                        droppedHours.pollFirstEntry();
+                    }
+                    return;
+                }
+            }
+            if (entry == null) {
+                entry = pending.computeIfAbsent(key, k -> new Pending(new TDigest(compression)));
+            }
+            synchronized (entry) {
+                //已经被写回线程取走的换一个新的
+                if (!entry.closed) {
+                    if (digest == null) {
+                        entry.digest.add(value);
+                    } else {
+                        entry.digest.merge(digest);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private void requestEarlyFlush() {
+        if (System.currentTimeMillis() - lastEarlyFlush < EARLY_FLUSH_INTERVAL || !earlyFlushing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            flushExecutor.execute(() -> {
+                try {
+                    earlyFlushCount.incrementAndGet();
+                    flush();
+                } finally {
+                    lastEarlyFlush = System.currentTimeMillis();
+                    earlyFlushing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            //已经停止
+            earlyFlushing.set(false);
+        }
+    }
+
+    /**
+     * 把增量合并进小时和天的聚合行；定时写回和提前写回不同时进行，避免两个事务互相等对方锁住的天的行
+     */
+    @Scheduled(fixedDelayString = "${ingest.rollup.digest-flush-interval:60000}")
+    public synchronized void flush() {
+        long begin = System.currentTimeMillis();
+        //同一天的几个小时一起处理，天的那一行只读写一次
+        Map<Key, Map<Key, TDigest>> days = new LinkedHashMap<>();
+        for (Key key : new ArrayList<>(pending.keySet())) {
+            Pending entry = pending.remove(key);
+            if (entry == null) {
+                continue;
+            }
+            synchronized (entry) {
+                entry.closed = true;
+            }
+            Key day = new Key(key.deviceId, key.field, Resolution.DAY.floor(key.bucketStart));
+            days.computeIfAbsent(day, k -> new HashMap<>()).put(key, entry.digest);
+        }
+        List<Map.Entry<Key, Map<Key, TDigest>>> groups = new ArrayList<>(days.entrySet());
+        for (int i = 0; i < groups.size(); i += FLUSH_CHUNK) {
+            List<Map.Entry<Key, Map<Key, TDigest>>> chunk = groups.subList(i, Math.min(groups.size(), i + FLUSH_CHUNK));
+            try {
+                transactionTemplate.execute(status -> {
+                    flushChunk(chunk);
+                    return null;
+                });
+            } catch (Exception e) {
+                //草图是派生数据，写失败不重试
+                failedCount.incrementAndGet();
+                logger.error("分位数草图写回失败,丢弃[" + chunk.size() + "]组:" + e.getMessage());
+            }
+        }
+        lastFlushMillis = System.currentTimeMillis() - begin;
+    }
+
+    private void flushChunk(List<Map.Entry<Key, Map<Key, TDigest>>> chunk) {
+        List<Long> hourIds = new ArrayList<>();
+        List<Long> dayIds = new ArrayList<>();
+        for (Map.Entry<Key, Map<Key, TDigest>> day : chunk) {
+            dayIds.add(day.getKey().rowId());
+            for (Key hour : day.getValue().keySet()) {
+                hourIds.add(hour.rowId());
+            }
+        }
+        Map<Long, byte[]> hourRows = lockRows(Resolution.HOUR, hourIds);
+        Map<Long, byte[]> dayRows = lockRows(Resolution.DAY, dayIds);
+        List<Object[]> hourUpdates = new ArrayList<>();
+        List<Object[]> dayUpdates = new ArrayList<>();
+        for (Map.Entry<Key, Map<Key, TDigest>> day : chunk) {
+            boolean ready = dayRows.containsKey(day.getKey().rowId());
+            for (Key hour : day.getValue().keySet()) {
+                ready &= hourRows.containsKey(hour.rowId());
+            }
+            if (!ready) {
+                //聚合行还没写出来，下次再合并；太久还没有的(聚合写回失败)丢弃
+                if (System.currentTimeMillis() - day.getKey().bucketStart > 2 * Resolution.DAY.getMillis()) {
+                    continue;
+                }
+                for (Map.Entry<Key, TDigest> hour : day.getValue().entrySet()) {
+                    add(hour.getKey(), 0, hour.getValue());
+                }
+                deferredCount.incrementAndGet();
+                continue;
+            }
+            TDigest dayDigest = decode(dayRows.get(day.getKey().rowId()));
+            for (Map.Entry<Key, TDigest> hour : day.getValue().entrySet()) {
+                long id = hour.getKey().rowId();
+                TDigest hourDigest = decode(hourRows.get(id));
+                hourDigest.merge(hour.getValue());
+                dayDigest.merge(hour.getValue());
+                hourUpdates.add(new Object[]{hourDigest.toBytes(), id});
+            }
+            dayUpdates.add(new Object[]{dayDigest.toBytes(), day.getKey().rowId()});
+        }
+        jdbcTemplate.batchUpdate("UPDATE " + Resolution.HOUR.getTable() + " SET digest = ? WHERE id = ?", hourUpdates);
+        jdbcTemplate.batchUpdate("UPDATE " + Resolution.DAY.getTable() + " SET digest = ? WHERE id = ?", dayUpdates);
+        flushedRowCount.addAndGet(hourUpdates.size() + dayUpdates.size());
+    }
+
+    /**
+     * @return 存在的行的 id -> digest(可能为空)
+     */
+    private Map<Long, byte[]> lockRows(Resolution resolution, Collection<Long> ids) {
+        StringBuilder sql = new StringBuilder("SELECT id, digest FROM " + resolution.getTable() + " WHERE id IN (");
+        int i = 0;
+        for (Long ignored : ids) {
+            sql.append(i++ == 0 ? "?" : ", ?");
+        }
+        sql.append(") FOR UPDATE");
+        Map<Long, byte[]> rows = new HashMap<>();
+        jdbcTemplate.query(sql.toString(), rs -> {
+            rows.put(rs.getLong(1), rs.getBytes(2));
+        }, ids.toArray());
+        return rows;
+    }
+
+    private TDigest decode(byte[] bytes) {
+        return bytes == null ? new TDigest(compression) : TDigest.fromBytes(bytes);
+    }
+
+    @PreDestroy
+    public void stop() {
+        flushExecutor.shutdown();
+        flush();
+    }
+
+    /**
+     * 一个设备、分组或者用户的所有设备一个字段的分位数曲线
+     * 步长是一天的整数倍并且天的聚合还保留着的时候用天的草图，否则用小时的
+     *
+     * @param scope
+     * @param scopeId 设备/分组/用户ID
+     * @param field   嵌套字段用 . 连接
+     * @param from    包含
+     * @param to      不包含
+     * @param step    每个点的时间跨度，最小1小时，必须是小时的整数倍
+     * @return {resolution, step, truncated, points: [{time, count, min, max, p50, p90, p95, p99, dropped}]}，
+     * dropped 是本实例内存满了没有记进草图的条数，truncated 表示有点丢过数据
+     * @throws IllegalArgumentException 参数不对
+     */
+    public JSONObject getQuantiles(Scope scope, long scopeId, String field, long from, long to, long step) {
+        if (from >= to || step < Resolution.HOUR.getMillis() || step % Resolution.HOUR.getMillis() != 0) {
+            throw new IllegalArgumentException("时间范围不对或者步长不是小时的整数倍");
+        }
+        if ((to - from) / step > MAX_POINTS) {
+            throw new IllegalArgumentException("点数太多,最多" + MAX_POINTS + "个");
+        }
+        Resolution resolution = step % Resolution.DAY.getMillis() == 0
+                && from >= tablePartitionManager.findRetainedSince(Resolution.DAY.getTable()) ? Resolution.DAY : Resolution.HOUR;
+        String sql = "SELECT bucket_start, digest FROM " + resolution.getTable() + " WHERE " + scope.condition
+                + " AND field_name = ? AND bucket_start >= ? AND bucket_start < ? AND digest IS NOT NULL";
+        TreeMap<Long, TDigest> points = new TreeMap<>();
+        jdbcTemplate.query(sql, rs -> {
+            long bucketStart = rs.getTimestamp(1).getTime();
+            long point = from + Math.floorDiv(Math.max(bucketStart, from) - from, step) * step;
+            points.computeIfAbsent(point, k -> new TDigest(compression)).merge(TDigest.fromBytes(rs.getBytes(2)));
+        }, scopeId, field, new Timestamp(resolution.floor(from)), new Timestamp(to));
+
+        JSONArray array = new JSONArray();
+        for (Map.Entry<Long, TDigest> point : points.entrySet()) {
+            TDigest digest = point.getValue();
+            JSONObject json = new JSONObject(true);
+            json.put("time", point.getKey());
+            json.put("count", (long) digest.getCount());
+            json.put("min", digest.getMin());
+            json.put("max", digest.getMax());
+            for (double q : QUANTILES) {
+                json.put("p" + Math.round(q * 100), digest.quantile(q));
+            }
+            //第一个点还包括 from 所在的那个时间片
+            long since = point.getKey() == from ? resolution.floor(from) : point.getKey();
+            long dropped = 0;
+            for (LongAdder hour : droppedHours.subMap(since, Math.min(point.getKey() + step, to)).values()) {
+                dropped += hour.sum();
+            }
+            json.put("dropped", dropped);
+            array.add(json);
+        }
+        JSONObject data = new JSONObject(true);
+        data.put("resolution", resolution.name());
+        data.put("step", step);
+        //全部丢掉的点查不到草图，按整个范围判断
+        data.put("truncated", !droppedHours.subMap(resolution.floor(from), to).isEmpty());
+        data.put("points", array);
+        return data;
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("pending", pending.size());
+        data.put("flushedRows", flushedRowCount.get());
+        data.put("deferred", deferredCount.get());
+        data.put("failed", failedCount.get());
+        data.put("dropped", droppedCount.get());
+        data.put("earlyFlushes", earlyFlushCount.get());
+        data.put("lastFlushMillis", lastFlushMillis);
+        return data;
+    }
+
+    private static final class Key {
+        final long deviceId;
+        final String field;
+        /**
+         * 小时(或者天)的开始
+         */
+        final long bucketStart;
+
+        Key(long deviceId, String field, long bucketStart) {
+            this.deviceId = deviceId;
+            this.field = field;
+            this.bucketStart = bucketStart;
+        }
+
+        long rowId() {
+            return DeviceDataRollups.rowId(deviceId, field, bucketStart);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return deviceId == key.deviceId && bucketStart == key.bucketStart && field.equals(key.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(deviceId, field, bucketStart);
+        }
+    }
+
+    private static final class Pending {
+        final TDigest digest;
+        boolean closed;
+
+        Pending(TDigest digest) {
+            this.digest = digest;
+        }
+    }
+}
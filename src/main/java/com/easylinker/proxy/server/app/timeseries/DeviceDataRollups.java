@@ -0,0 +1,354 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.NumericFields;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 设备数值字段的分钟、小时、天聚合(条数、最小、最大、总和、最后一个值)
+ * 收到的每条数据(入库策略过滤之前，重发和被限流的除外)的数值字段(见 NumericFields)累加到内存里当前的时间片，
+ * 聚合描述的是设备上报的数据，不是按策略入库以后的数据；
+ * 后台每隔 flush-interval 毫秒用 INSERT ... ON DUPLICATE KEY UPDATE 把增量合并进三张聚合表；
+ * 查询的时候选能满足时间范围和步长的最粗的聚合表，一周、一个月的曲线只读几百行聚合结果，不读原始数据
+ * 小时和天的聚合另外有分位数草图，见 DeviceDataDigests
+ */
+@Component
+public class DeviceDataRollups {
+    private static final int MAX_POINTS = 10000;
+    Logger logger = LoggerFactory.getLogger(DeviceDataRollups.class);
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Autowired
+    TablePartitionManager tablePartitionManager;
+    @Autowired
+    DeviceDataDigests deviceDataDigests;
+    @Value("${ingest.rollup.enabled:true}")
+    boolean enabled;
+    @Value("${ingest.rollup.max-fields:32}")
+    int maxFields;
+
+    private final Map<Key, Aggregate> pending = new ConcurrentHashMap<>();
+    private final AtomicLong recordedCount = new AtomicLong();
+    private final AtomicLong flushedRowCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private volatile long lastFlushMillis;
+
+    /**
+     * 聚合粒度，从粗到细
+     */
+    public enum Resolution {
+        DAY("device_data_rollup_day", TimeUnit.DAYS.toMillis(1)),
+        HOUR("device_data_rollup_hour", TimeUnit.HOURS.toMillis(1)),
+        MINUTE("device_data_rollup_minute", TimeUnit.MINUTES.toMillis(1));
+
+        private final String table;
+        private final long millis;
+
+        Resolution(String table, long millis) {
+            this.table = table;
+            this.millis = millis;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        String getTable() {
+            return table;
+        }
+
+        /**
+         * 时间片的开始，天按本地时间的0点
+         */
+        long floor(long time) {
+            if (this == DAY) {
+                ZoneId zone = ZoneId.systemDefault();
+                return Instant.ofEpochMilli(time).atZone(zone).toLocalDate().atStartOfDay(zone).toInstant().toEpochMilli();
+            }
+            return Math.floorDiv(time, millis) * millis;
+        }
+    }
+
+    /**
+     * 记录一条数据
+     *
+     * @param deviceId
+     * @param time     数据时间(createTime)
+     * @param fields   载荷里的数值字段，按字段名取前 max-fields 个
+     */
+    public void record(long deviceId, long time, NumericFields fields) {
+        if (!enabled) {
+            return;
+        }
+        Map<String, Double> values = fields.get();
+        if (values.isEmpty()) {
+            return;
+        }
+        if (values.size() > maxFields) {
+            Map<String, Double> limited = new TreeMap<>();
+            for (Map.Entry<String, Double> value : values.entrySet()) {
+                if (limited.size() == maxFields) {
+                    break;
+                }
+                limited.put(value.getKey(), value.getValue());
+            }
+            values = limited;
+        }
+        for (Map.Entry<String, Double> value : values.entrySet()) {
+            for (Resolution resolution : Resolution.values()) {
+                add(new Key(resolution, deviceId, value.getKey(), resolution.floor(time)), time, value.getValue());
+            }
+        }
+        deviceDataDigests.record(deviceId, time, values);
+        recordedCount.incrementAndGet();
+    }
+
+    private void add(Key key, long time, double value) {
+        while (true) {
+            Aggregate aggregate = pending.computeIfAbsent(key, k -> new Aggregate());
+            synchronized (aggregate) {
+                //已经被写回线程取走的换一个新的
+                if (!aggregate.closed) {
+                    aggregate.add(time, value);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 把增量合并进聚合表
+     */
+    @Scheduled(fixedDelayString = "${ingest.rollup.flush-interval:5000}")
+    public void flush() {
+        long begin = System.currentTimeMillis();
+        Map<Resolution, List<Object[]>> rows = new TreeMap<>();
+        List<Key> keys = new ArrayList<>(pending.keySet());
+        for (Key key : keys) {
+            Aggregate aggregate = pending.remove(key);
+            if (aggregate == null) {
+                continue;
+            }
+            synchronized (aggregate) {
+                aggregate.closed = true;
+            }
+            rows.computeIfAbsent(key.resolution, k -> new ArrayList<>()).add(new Object[]{
+                    key.rowId(), new Timestamp(begin), key.deviceId, key.field, new Timestamp(key.bucketStart),
+                    aggregate.count, aggregate.min, aggregate.max, aggregate.sum, aggregate.last, new Timestamp(aggregate.lastTime)});
+        }
+        for (Map.Entry<Resolution, List<Object[]>> entry : rows.entrySet()) {
+            try {
+                jdbcTemplate.batchUpdate("INSERT INTO " + entry.getKey().table + " (id, is_delete, create_time, device_id, field_name, bucket_start, "
+                        + "sample_count, min_value, max_value, sum_value, last_value, last_time) VALUES (?, 0, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) "
+                        + "ON DUPLICATE KEY UPDATE sample_count = sample_count + VALUES(sample_count), "
+                        + "min_value = LEAST(min_value, VALUES(min_value)), max_value = GREATEST(max_value, VALUES(max_value)), "
+                        + "sum_value = sum_value + VALUES(sum_value), "
+                        //先比较再更新 last_time
+                        + "last_value = IF(VALUES(last_time) >= last_time, VALUES(last_value), last_value), "
+                        + "last_time = GREATEST(last_time, VALUES(last_time))", entry.getValue());
+                flushedRowCount.addAndGet(entry.getValue().size());
+            } catch (Exception e) {
+                //聚合是派生数据，写失败不重试，避免重复累加
+                failedCount.incrementAndGet();
+                logger.error("设备数据聚合写回失败,丢弃[" + entry.getValue().size() + "]行:" + e.getMessage());
+            }
+        }
+        lastFlushMillis = System.currentTimeMillis() - begin;
+    }
+
+    @PreDestroy
+    public void stop() {
+        flush();
+    }
+
+    /**
+     * 查询设备字段的聚合曲线
+     * 选步长的整数倍并且保留时间覆盖 from 的最粗的聚合表，没有覆盖的时候用步长允许的最粗的
+     *
+     * @param deviceId
+     * @param field    为空表示所有字段
+     * @param from     包含
+     * @param to       不包含
+     * @param step     每个点的时间跨度，最小1分钟
+     * @return {resolution, step, fields: {字段: [{time, count, min, max, sum, avg, last}]}}
+     * @throws IllegalArgumentException 参数不对
+     */
+    public JSONObject getSeries(long deviceId, String field, long from, long to, long step) {
+        if (from >= to || step < Resolution.MINUTE.millis) {
+            throw new IllegalArgumentException("时间范围不对或者步长小于1分钟");
+        }
+        if ((to - from) / step > MAX_POINTS) {
+            throw new IllegalArgumentException("点数太多,最多" + MAX_POINTS + "个");
+        }
+        Resolution resolution = selectResolution(from, step);
+        StringBuilder sql = new StringBuilder("SELECT field_name, bucket_start, sample_count, min_value, max_value, sum_value, last_value FROM ")
+                .append(resolution.table).append(" WHERE device_id = ? AND bucket_start >= ? AND bucket_start < ?");
+        List<Object> args = new ArrayList<>();
+        args.add(deviceId);
+        args.add(new Timestamp(resolution.floor(from)));
+        args.add(new Timestamp(to));
+        if (field != null) {
+            sql.append(" AND field_name = ?");
+            args.add(field);
+        }
+        sql.append(" ORDER BY field_name, bucket_start");
+
+        Map<String, TreeMap<Long, Aggregate>> series = new TreeMap<>();
+        jdbcTemplate.query(sql.toString(), rs -> {
+            long bucketStart = rs.getTimestamp(2).getTime();
+            long point = from + Math.floorDiv(Math.max(bucketStart, from) - from, step) * step;
+            Aggregate aggregate = series.computeIfAbsent(rs.getString(1), k -> new TreeMap<>()).computeIfAbsent(point, k -> new Aggregate());
+            //按 bucket_start 排序，后面的 last 覆盖前面的
+            aggregate.merge(rs.getLong(3), rs.getDouble(4), rs.getDouble(5), rs.getDouble(6), rs.getDouble(7), bucketStart);
+        }, args.toArray());
+
+        JSONObject fields = new JSONObject(true);
+        for (Map.Entry<String, TreeMap<Long, Aggregate>> entry : series.entrySet()) {
+            JSONArray points = new JSONArray();
+            for (Map.Entry<Long, Aggregate> point : entry.getValue().entrySet()) {
+                Aggregate aggregate = point.getValue();
+                JSONObject json = new JSONObject(true);
+                json.put("time", point.getKey());
+                json.put("count", aggregate.count);
+                json.put("min", aggregate.min);
+                json.put("max", aggregate.max);
+                json.put("sum", aggregate.sum);
+                json.put("avg", aggregate.sum / aggregate.count);
+                json.put("last", aggregate.last);
+                points.add(json);
+            }
+            fields.put(entry.getKey(), points);
+        }
+        JSONObject data = new JSONObject(true);
+        data.put("resolution", resolution.name());
+        data.put("step", step);
+        data.put("fields", fields);
+        return data;
+    }
+
+    private Resolution selectResolution(long from, long step) {
+        Resolution fallback = null;
+        for (Resolution resolution : Resolution.values()) {
+            if (resolution.millis > step || step % resolution.millis != 0) {
+                continue;
+            }
+            if (from >= tablePartitionManager.findRetainedSince(resolution.table)) {
+                return resolution;
+            }
+            if (fallback == null) {
+                fallback = resolution;
+            }
+        }
+        return fallback == null ? Resolution.MINUTE : fallback;
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("enabled", enabled);
+        data.put("recorded", recordedCount.get());
+        data.put("pending", pending.size());
+        data.put("flushedRows", flushedRowCount.get());
+        data.put("failed", failedCount.get());
+        data.put("lastFlushMillis", lastFlushMillis);
+        return data;
+    }
+
+    /**
+     * 聚合表的主键由 (设备, 字段, 时间片) 决定，同一个时间片总是落在同一行上，
+     * ON DUPLICATE KEY UPDATE 不会因为随机主键撞上别的行
+     */
+    static long rowId(long deviceId, String field, long bucketStart) {
+        long hash = mix(deviceId);
+        hash = mix(hash ^ field.hashCode());
+        hash = mix(hash ^ bucketStart);
+        return hash & Long.MAX_VALUE;
+    }
+
+    /**
+     * SplitMix64
+     */
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static final class Key {
+        final Resolution resolution;
+        final long deviceId;
+        final String field;
+        final long bucketStart;
+
+        Key(Resolution resolution, long deviceId, String field, long bucketStart) {
+            this.resolution = resolution;
+            this.deviceId = deviceId;
+            this.field = field;
+            this.bucketStart = bucketStart;
+        }
+
+        long rowId() {
+            return DeviceDataRollups.rowId(deviceId, field, bucketStart);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return resolution == key.resolution && deviceId == key.deviceId && bucketStart == key.bucketStart && field.equals(key.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(resolution, deviceId, field, bucketStart);
+        }
+    }
+
+    private static final class Aggregate {
+        long count;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum;
+        double last;
+        long lastTime = Long.MIN_VALUE;
+        boolean closed;
+
+        void add(long time, double value) {
+            merge(1, value, value, value, value, time);
+        }
+
+        void merge(long count, double min, double max, double sum, double last, long lastTime) {
+            this.count += count;
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+            this.sum += sum;
+            if (lastTime >= this.lastTime) {
+                this.last = last;
+                this.lastTime = lastTime;
+            }
+        }
+    }
+}
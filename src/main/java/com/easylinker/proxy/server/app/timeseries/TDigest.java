@@ -0,0 +1,217 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * t-digest 分位数草图
+ * 数据按值聚成若干质心(均值, 权重)，两头的质心小、中间的大，所以 p1/p99 这种尾部分位数也比较准；
+ * 两个草图的质心放在一起重新压缩就是合并，合并的结果和直接统计全部数据的精度一样
+ * 质心数不超过 compression，和数据条数无关；不是线程安全的
+ * 质心和缓冲区的数组从8个开始按需翻倍，缓冲区最多 2 * compression + 8 个，只有几条数据的草图只占几百字节
+ */
+public class TDigest {
+    private static final byte VERSION = 1;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final double compression;
+    private double[] means;
+    private double[] weights;
+    private int size;
+    private final int bufferCapacity;
+    private double[] bufferMeans;
+    private double[] bufferWeights;
+    private int buffered;
+    private double totalWeight;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param compression 越大越准、越占空间，一般 100
+     */
+    public TDigest(double compression) {
+        this.compression = compression;
+        this.bufferCapacity = (int) Math.ceil(compression * 2) + INITIAL_CAPACITY;
+        means = new double[0];
+        weights = new double[0];
+        bufferMeans = new double[INITIAL_CAPACITY];
+        bufferWeights = new double[INITIAL_CAPACITY];
+    }
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    public void add(double value, double weight) {
+        if (buffered == bufferMeans.length) {
+            if (buffered < bufferCapacity) {
+                int capacity = Math.min(bufferCapacity, buffered * 2);
+                bufferMeans = Arrays.copyOf(bufferMeans, capacity);
+                bufferWeights = Arrays.copyOf(bufferWeights, capacity);
+            } else {
+                compress();
+            }
+        }
+        bufferMeans[buffered] = value;
+        bufferWeights[buffered] = weight;
+        buffered++;
+        totalWeight += weight;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(TDigest other) {
+        other.compress();
+        for (int i = 0; i < other.size; i++) {
+            add(other.means[i], other.weights[i]);
+        }
+        if (other.size > 0) {
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+    }
+
+    /**
+     * 把缓冲区和已有的质心一起按值排序，从小到大合并相邻的质心，
+     * 一个质心覆盖的分位区间 [q1, q2] 满足 k(q2) - k(q1) <= 1，k(q) = compression / 2π * asin(2q - 1)，
+     * 两头的斜率大所以质心小，质心数不超过 compression
+     */
+    private void compress() {
+        if (buffered == 0) {
+            return;
+        }
+        int n = size + buffered;
+        double[] allMeans = Arrays.copyOf(means, n);
+        double[] allWeights = Arrays.copyOf(weights, n);
+        System.arraycopy(bufferMeans, 0, allMeans, size, buffered);
+        System.arraycopy(bufferWeights, 0, allWeights, size, buffered);
+        buffered = 0;
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(allMeans[a], allMeans[b]));
+
+        int merged = 0;
+        double weightSoFar = 0;
+        double mean = allMeans[order[0]];
+        double weight = allWeights[order[0]];
+        for (int i = 1; i < n; i++) {
+            double nextMean = allMeans[order[i]];
+            double nextWeight = allWeights[order[i]];
+            double proposed = weight + nextWeight;
+            if (scale((weightSoFar + proposed) / totalWeight) - scale(weightSoFar / totalWeight) <= 1) {
+                mean += (nextMean - mean) * nextWeight / proposed;
+                weight = proposed;
+            } else {
+                merged = append(merged, mean, weight);
+                weightSoFar += weight;
+                mean = nextMean;
+                weight = nextWeight;
+            }
+        }
+        size = append(merged, mean, weight);
+    }
+
+    private double scale(double q) {
+        return compression / (2 * Math.PI) * Math.asin(Math.max(-1, Math.min(1, 2 * q - 1)));
+    }
+
+    private int append(int index, double mean, double weight) {
+        if (index == means.length) {
+            means = Arrays.copyOf(means, Math.max(INITIAL_CAPACITY, index * 2));
+            weights = Arrays.copyOf(weights, Math.max(INITIAL_CAPACITY, index * 2));
+        }
+        means[index] = mean;
+        weights[index] = weight;
+        return index + 1;
+    }
+
+    /**
+     * @param q 0到1
+     * @return 没有数据的时候返回NaN
+     */
+    public double quantile(double q) {
+        compress();
+        if (size == 0) {
+            return Double.NaN;
+        }
+        if (q <= 0) {
+            return min;
+        }
+        if (q >= 1) {
+            return max;
+        }
+        double index = q * totalWeight;
+        //质心的中心在它覆盖的权重的中间，中心之间线性插值，第一个中心之前和最后一个中心之后跟 min/max 插值
+        double center = weights[0] / 2;
+        if (index < center) {
+            return min + (means[0] - min) * index / center;
+        }
+        for (int i = 0; i < size - 1; i++) {
+            double nextCenter = center + (weights[i] + weights[i + 1]) / 2;
+            if (index < nextCenter) {
+                return means[i] + (means[i + 1] - means[i]) * (index - center) / (nextCenter - center);
+            }
+            center = nextCenter;
+        }
+        double rest = totalWeight - center;
+        return rest <= 0 ? max : means[size - 1] + (max - means[size - 1]) * (index - center) / rest;
+    }
+
+    public double getCount() {
+        return totalWeight;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * 版本 | compression | min | max | 质心数 | (均值, 权重)...
+     */
+    public byte[] toBytes() {
+        compress();
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 * 3 + 4 + size * 16);
+        buffer.put(VERSION);
+        buffer.putDouble(compression);
+        buffer.putDouble(min);
+        buffer.putDouble(max);
+        buffer.putInt(size);
+        for (int i = 0; i < size; i++) {
+            buffer.putDouble(means[i]);
+            buffer.putDouble(weights[i]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param bytes
+     * @return
+     * @throws IllegalArgumentException 格式不对
+     */
+    public static TDigest fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < 29 || buffer.get() != VERSION) {
+            throw new IllegalArgumentException("不支持的分位数草图格式");
+        }
+        TDigest digest = new TDigest(buffer.getDouble());
+        double min = buffer.getDouble();
+        double max = buffer.getDouble();
+        int size = buffer.getInt();
+        if (size < 0 || buffer.remaining() != size * 16) {
+            throw new IllegalArgumentException("分位数草图长度不对");
+        }
+        for (int i = 0; i < size; i++) {
+            digest.size = digest.append(digest.size, buffer.getDouble(), buffer.getDouble());
+            digest.totalWeight += digest.weights[i];
+        }
+        digest.min = min;
+        digest.max = max;
+        return digest;
+    }
+}
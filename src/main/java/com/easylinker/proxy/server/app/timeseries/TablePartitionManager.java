@@ -0,0 +1,294 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按时间分区的表
+ * 按天或者按月 RANGE COLUMNS 分区，每个分区名是分区开始的日期(p20261018/p202610)，最后一个是 MAXVALUE 分区(pmax)，
+ * 后台定时把 pmax 拆出 ahead 个以后的分区，超过 retention 个分区的旧分区整个DROP，不用逐行DELETE；
+ * 带时间条件的查询只扫描需要的分区
+ * 默认关闭，只维护 partition.tables 里列出的表；还没分区的表第一次维护的时候转换(去掉外键，主键加上分区列，重建表)，
+ * 大表转换要放在维护窗口
+ * 多实例部署的时候用数据库锁(GET_LOCK)保证同一时间只有一个实例在改表结构，拿不到锁的实例跳过这一轮
+ * device_data 的分区还要等 DeviceDataCompactor 的水位线过了分区上界才删除，压缩关闭或者一直失败的时候不删除
+ * <p>
+ * 每个表的策略: partition.{table}.interval=DAY|MONTH, partition.{table}.retention=保留的分区数(默认0不删除),
+ * partition.{table}.ahead=提前创建的分区数
+ */
+@Component
+public class TablePartitionManager {
+    /**
+     * 表名 -> 分区列
+     */
+    private static final Map<String, String> TABLES = new LinkedHashMap<>();
+    private static final String MAX_PARTITION = "pmax";
+    private static final DateTimeFormatter BOUND_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String LOCK_NAME = "easylinker_partition_maintain";
+
+    static {
+        TABLES.put("device_data", "create_time");
+        TABLES.put("device_data_chunk", "start_time");
+        TABLES.put("device_on_and_off_line_log", "create_time");
+        TABLES.put("history_location", "create_time");
+        TABLES.put("access_log", "create_time");
+        TABLES.put("device_data_rollup_minute", "bucket_start");
+        TABLES.put("device_data_rollup_hour", "bucket_start");
+        TABLES.put("device_data_rollup_day", "bucket_start");
+    }
+
+    Logger logger = LoggerFactory.getLogger(TablePartitionManager.class);
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+    @Autowired
+    Environment environment;
+    @Autowired
+    DeviceDataCompactor deviceDataCompactor;
+    @Value("${partition.enabled:false}")
+    boolean enabled;
+    @Value("${partition.tables:}")
+    String[] tables;
+
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private volatile long lastMaintainMillis;
+
+    @PostConstruct
+    public void checkTables() {
+        for (String table : tables) {
+            if (!TABLES.containsKey(table)) {
+                throw new IllegalStateException("partition.tables 里的表[" + table + "]不支持分区，可选:" + TABLES.keySet());
+            }
+        }
+    }
+
+    /**
+     * 第一次在应用启动完成以后执行，这时候JPA已经建好表
+     */
+    @Scheduled(fixedDelayString = "${partition.maintain-interval:3600000}")
+    public void maintain() {
+        if (!enabled) {
+            return;
+        }
+        long begin = System.currentTimeMillis();
+        //GET_LOCK 属于连接，加锁、改表、解锁都要用同一个连接
+        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+            JdbcTemplate locked = new JdbcTemplate(new SingleConnectionDataSource(connection, true));
+            Integer acquired = locked.queryForObject("SELECT GET_LOCK(?, 0)", Integer.class, LOCK_NAME);
+            if (acquired == null || acquired != 1) {
+                skippedCount.incrementAndGet();
+                logger.info("其他实例正在维护分区,跳过这一轮");
+                return null;
+            }
+            try {
+                for (String table : tables) {
+                    try {
+                        maintain(locked, table, TABLES.get(table), findPolicy(table));
+                    } catch (Exception e) {
+                        failedCount.incrementAndGet();
+                        logger.error("表[" + table + "]分区维护失败:" + e.getMessage());
+                    }
+                }
+            } finally {
+                locked.queryForObject("SELECT RELEASE_LOCK(?)", Integer.class, LOCK_NAME);
+            }
+            return null;
+        });
+        lastMaintainMillis = System.currentTimeMillis() - begin;
+    }
+
+    private Policy findPolicy(String table) {
+        Policy policy = new Policy();
+        policy.unit = ChronoUnit.valueOf(environment.getProperty("partition." + table + ".interval", "DAY").toUpperCase() + "S");
+        if (policy.unit != ChronoUnit.DAYS && policy.unit != ChronoUnit.MONTHS) {
+            throw new IllegalArgumentException("分区间隔只支持DAY和MONTH");
+        }
+        policy.retention = environment.getProperty("partition." + table + ".retention", Integer.class, 0);
+        policy.ahead = Math.max(1, environment.getProperty("partition." + table + ".ahead", Integer.class, policy.unit == ChronoUnit.DAYS ? 7 : 2));
+        return policy;
+    }
+
+    /**
+     * 按保留策略表里还有数据的最早时间，retention=0、没有开启分区或者没有列在 partition.tables 里的时候返回0
+     *
+     * @param table
+     * @return
+     */
+    public long findRetainedSince(String table) {
+        if (!enabled || !Arrays.asList(tables).contains(table)) {
+            return 0;
+        }
+        Policy policy = findPolicy(table);
+        if (policy.retention <= 0) {
+            return 0;
+        }
+        LocalDate since = policy.plus(policy.floor(LocalDate.now()), -policy.retention + 1);
+        return since.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private void maintain(JdbcTemplate jdbcTemplate, String table, String column, Policy policy) {
+        List<Partition> partitions = findPartitions(jdbcTemplate, table);
+        LocalDate current = policy.floor(LocalDate.now());
+        if (partitions.isEmpty()) {
+            partition(jdbcTemplate, table, column, current, policy);
+            return;
+        }
+        //pmax 里还没有数据的时候拆分只改表定义
+        LocalDate last = partitions.get(partitions.size() - 1).bound;
+        LocalDate target = policy.plus(current, policy.ahead + 1);
+        if (last.isBefore(target)) {
+            StringBuilder sql = new StringBuilder("ALTER TABLE " + table + " REORGANIZE PARTITION " + MAX_PARTITION + " INTO (");
+            int added = 0;
+            for (LocalDate start = last; start.isBefore(target); start = policy.plus(start, 1)) {
+                sql.append(partitionDefinition(start, policy)).append(", ");
+                added++;
+            }
+            sql.append("PARTITION " + MAX_PARTITION + " VALUES LESS THAN (MAXVALUE))");
+            jdbcTemplate.execute(sql.toString());
+            createdCount.addAndGet(added);
+            logger.info("表[" + table + "]新建[" + added + "]个分区");
+        }
+        if (policy.retention > 0) {
+            LocalDate cutoff = policy.plus(current, -policy.retention + 1);
+            if ("device_data".equals(table)) {
+                //还没压缩成数据块的不能删
+                LocalDate compacted = Instant.ofEpochMilli(deviceDataCompactor.getWatermark()).atZone(ZoneId.systemDefault()).toLocalDate();
+                if (compacted.isBefore(cutoff)) {
+                    cutoff = compacted;
+                }
+            }
+            for (Partition partition : partitions) {
+                if (!partition.bound.isAfter(cutoff)) {
+                    jdbcTemplate.execute("ALTER TABLE " + table + " DROP PARTITION " + partition.name);
+                    droppedCount.incrementAndGet();
+                    logger.info("表[" + table + "]删除过期分区[" + partition.name + "]");
+                }
+            }
+        }
+    }
+
+    /**
+     * 把还没分区的表转换成分区表，已有的旧数据都放在第一个分区里
+     */
+    private void partition(JdbcTemplate jdbcTemplate, String table, String column, LocalDate current, Policy policy) {
+        logger.info("表[" + table + "]转换成分区表,数据多的时候需要一段时间");
+        List<String> foreignKeys = jdbcTemplate.queryForList("SELECT CONSTRAINT_NAME FROM information_schema.TABLE_CONSTRAINTS "
+                + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND CONSTRAINT_TYPE = 'FOREIGN KEY'", String.class, table);
+        for (String foreignKey : foreignKeys) {
+            jdbcTemplate.execute("ALTER TABLE " + table + " DROP FOREIGN KEY " + foreignKey);
+        }
+        //分区列必须在每个唯一键里
+        Integer keyColumns = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM information_schema.KEY_COLUMN_USAGE "
+                + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND CONSTRAINT_NAME = 'PRIMARY' AND COLUMN_NAME = ?", Integer.class, table, column);
+        if (keyColumns == null || keyColumns == 0) {
+            jdbcTemplate.execute("ALTER TABLE " + table + " MODIFY " + column + " DATETIME NOT NULL, DROP PRIMARY KEY, ADD PRIMARY KEY (id, " + column + ")");
+        }
+        StringBuilder sql = new StringBuilder("ALTER TABLE " + table + " PARTITION BY RANGE COLUMNS(" + column + ") (");
+        sql.append("PARTITION p0 VALUES LESS THAN ('").append(current.atStartOfDay().format(BOUND_FORMAT)).append("'), ");
+        LocalDate target = policy.plus(current, policy.ahead + 1);
+        for (LocalDate start = current; start.isBefore(target); start = policy.plus(start, 1)) {
+            sql.append(partitionDefinition(start, policy)).append(", ");
+        }
+        sql.append("PARTITION " + MAX_PARTITION + " VALUES LESS THAN (MAXVALUE))");
+        jdbcTemplate.execute(sql.toString());
+        createdCount.addAndGet(policy.ahead + 2);
+    }
+
+    private String partitionDefinition(LocalDate start, Policy policy) {
+        String name = policy.unit == ChronoUnit.DAYS ? start.format(DateTimeFormatter.BASIC_ISO_DATE) : start.format(DateTimeFormatter.ofPattern("yyyyMM"));
+        return "PARTITION p" + name + " VALUES LESS THAN ('" + policy.plus(start, 1).atStartOfDay().format(BOUND_FORMAT) + "')";
+    }
+
+    /**
+     * @return 除了 pmax 以外的分区，按上界从小到大；没有分区返回空
+     */
+    private List<Partition> findPartitions(JdbcTemplate jdbcTemplate, String table) {
+        List<Map<String, Object>> rows = jdbcTemplate.queryForList("SELECT PARTITION_NAME, PARTITION_DESCRIPTION FROM information_schema.PARTITIONS "
+                + "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL ORDER BY PARTITION_ORDINAL_POSITION", table);
+        List<Partition> partitions = new ArrayList<>();
+        for (Map<String, Object> row : rows) {
+            String name = (String) row.get("PARTITION_NAME");
+            if (MAX_PARTITION.equals(name)) {
+                continue;
+            }
+            Partition partition = new Partition();
+            partition.name = name;
+            partition.bound = LocalDateTime.parse(row.get("PARTITION_DESCRIPTION").toString().replace("'", ""), BOUND_FORMAT).toLocalDate();
+            partitions.add(partition);
+        }
+        return partitions;
+    }
+
+    public JSONObject getStatistics() {
+        JSONObject data = new JSONObject();
+        data.put("enabled", enabled);
+        data.put("created", createdCount.get());
+        data.put("dropped", droppedCount.get());
+        data.put("failed", failedCount.get());
+        data.put("skipped", skippedCount.get());
+        data.put("lastMaintainMillis", lastMaintainMillis);
+        JSONObject tables = new JSONObject();
+        for (String table : tables) {
+            JSONArray names = new JSONArray();
+            try {
+                for (Partition partition : findPartitions(jdbcTemplate, table)) {
+                    names.add(partition.name);
+                }
+            } catch (Exception e) {
+                //统计查询失败不影响其他表
+            }
+            tables.put(table, names);
+        }
+        data.put("partitions", tables);
+        return data;
+    }
+
+    private static class Policy {
+        ChronoUnit unit;
+        int retention;
+        int ahead;
+
+        LocalDate floor(LocalDate date) {
+            return unit == ChronoUnit.DAYS ? date : date.withDayOfMonth(1);
+        }
+
+        LocalDate plus(LocalDate date, long amount) {
+            return date.plus(amount, unit);
+        }
+    }
+
+    private static class Partition {
+        String name;
+        /**
+         * 上界(不包含)
+         */
+        LocalDate bound;
+    }
+}
@@ -0,0 +1,82 @@
+package com.easylinker.proxy.server.app.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+/**
+ * 不会重复的ID生成器(snowflake)
+ * 41位毫秒时间戳(从2018-01-01开始) | 10位节点号 | 12位同一毫秒内的序号，同一个节点上严格递增
+ * BaseEntity 默认的 当前毫秒+随机数 会重复，需要靠主键去重的地方(预写日志重放、数据块)用这个
+ * 多实例部署(配置了 emq.shared.group)的时候每个实例必须配置不同的 ingest.id.node，没有配置不能启动；
+ * 节点号重复的两个实例生成的ID会冲突，写库的时候按主键冲突转入死信，不会当成重放的重复数据丢掉
+ */
+@Component
+public class SnowflakeIdGenerator {
+    public static final long EPOCH = 1514764800000L;
+    public static final int NODE_BITS = 10;
+    public static final int SEQUENCE_BITS = 12;
+    public static final int TIME_SHIFT = NODE_BITS + SEQUENCE_BITS;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    Logger logger = LoggerFactory.getLogger(SnowflakeIdGenerator.class);
+
+    /**
+     * 0到1023，小于0表示没有配置，单实例的时候用0
+     */
+    @Value("${ingest.id.node:-1}")
+    int node;
+    @Value("${emq.shared.group:}")
+    String sharedSubscriptionGroup;
+
+    private long lastTime;
+    private long sequence;
+
+    @PostConstruct
+    public void init() {
+        if (node >= 1 << NODE_BITS) {
+            throw new IllegalStateException("ingest.id.node 超出范围(0-" + ((1 << NODE_BITS) - 1) + "):" + node);
+        }
+        if (node < 0) {
+            //按进程、主机名哈希出来的节点号在多个实例之间可能重复，重复的节点号会生成相同的ID
+            if (!sharedSubscriptionGroup.trim().isEmpty()) {
+                throw new IllegalStateException("配置了 emq.shared.group 的多实例部署必须给每个实例配置不同的 ingest.id.node");
+            }
+            node = 0;
+            logger.info("没有配置 ingest.id.node,单实例使用节点号[0]");
+        }
+    }
+
+    public long nextId() {
+        return nextId(System.currentTimeMillis());
+    }
+
+    /**
+     * 尽量用给定的时间生成ID，比上一个ID的时间早的时候沿用上一个ID的时间，保证不重复
+     *
+     * @param timeMillis
+     * @return
+     */
+    public synchronized long nextId(long timeMillis) {
+        if (timeMillis > lastTime) {
+            lastTime = timeMillis;
+            sequence = 0;
+        } else if (++sequence > MAX_SEQUENCE) {
+            //同一毫秒的序号用完了，借用下一毫秒
+            lastTime++;
+            sequence = 0;
+        }
+        return (lastTime - EPOCH) << TIME_SHIFT | (long) node << SEQUENCE_BITS | sequence;
+    }
+
+    /**
+     * 给定时间对应的最小ID
+     *
+     * @param timeMillis
+     * @return
+     */
+    public static long baseOf(long timeMillis) {
+        return (timeMillis - EPOCH) << TIME_SHIFT;
+    }
+}
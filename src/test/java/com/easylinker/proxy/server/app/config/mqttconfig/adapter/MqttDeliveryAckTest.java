@@ -0,0 +1,80 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.adapter;
+
+import com.easylinker.proxy.server.app.config.mqttconfig.ingest.IngestFailures;
+import org.eclipse.paho.client.mqttv3.IMqttClient;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 有意不存的消息处理完确认，没有存下来的不确认、断开重连等Broker重发
+ */
+public class MqttDeliveryAckTest {
+    private final List<Integer> acked = new ArrayList<>();
+    private final AtomicInteger redelivered = new AtomicInteger();
+
+    @Test
+    public void unclaimedMessageIsAckedOnRelease() {
+        Message<?> message = message(1);
+        MqttDeliveryAck.release(message);
+        MqttDeliveryAck.release(message);
+        assertEquals(1, acked.size());
+        assertEquals(0, redelivered.get());
+    }
+
+    @Test
+    public void claimedMessageWaitsForCommit() {
+        Message<?> message = message(2);
+        Runnable commit = MqttDeliveryAck.of(message);
+        MqttDeliveryAck.claim(message);
+        MqttDeliveryAck.release(message);
+        assertTrue(acked.isEmpty());
+        commit.run();
+        assertEquals(2, (int) acked.get(0));
+    }
+
+    @Test
+    public void failedMessageIsNotAcked() {
+        Message<?> message = message(3);
+        MqttDeliveryAck.fail(message);
+        MqttDeliveryAck.release(message);
+        assertTrue(acked.isEmpty());
+        assertEquals(1, redelivered.get());
+    }
+
+    @Test
+    public void exhaustedInfrastructureRetriesAreNotAcked() {
+        IngestFailures failures = new IngestFailures();
+        failures.start();
+        Message<?> message = message(4);
+        failures.handle(message, attempt -> {
+            throw new DataAccessResourceFailureException("Communications link failure");
+        });
+        MqttDeliveryAck.release(message);
+        assertTrue(acked.isEmpty());
+        assertEquals(1, redelivered.get());
+    }
+
+    private Message<?> message(int id) {
+        IMqttClient client = (IMqttClient) Proxy.newProxyInstance(IMqttClient.class.getClassLoader(), new Class<?>[]{IMqttClient.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("messageArrivedComplete")) {
+                        acked.add((Integer) args[0]);
+                    }
+                    return null;
+                });
+        return MessageBuilder.withPayload("{\"t\":1}")
+                .setHeader("mqtt_topic", "IN/ECHO/1/2/3")
+                .setHeader(MqttDeliveryAck.HEADER, new MqttDeliveryAck(client, id, 1, redelivered::incrementAndGet))
+                .build();
+    }
+}
@@ -0,0 +1,168 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.adapter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityLaneDispatcherTest {
+    private static final int[] STRICT = new int[0];
+
+    @Test
+    public void higherPriorityRunsFirst() throws Exception {
+        PriorityLaneDispatcher dispatcher = new PriorityLaneDispatcher("test", 1, 3, STRICT);
+        LaneDispatcher high = dispatcher.open(0, 100, OverloadPolicy.BLOCK, 1);
+        LaneDispatcher low = dispatcher.open(2, 100, OverloadPolicy.BLOCK, 1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch gate = block(low);
+        for (int i = 0; i < 3; i++) {
+            low.dispatch("k", record(order, "low" + i));
+        }
+        high.dispatch("k", record(order, "high0"));
+        high.dispatch("other", record(order, "high1"));
+        gate.countDown();
+        low.shutdown();
+        high.shutdown();
+        assertEquals("[high0, high1, low0, low1, low2]", order.toString());
+    }
+
+    @Test
+    public void weightsInterleaveLevels() throws Exception {
+        PriorityLaneDispatcher dispatcher = new PriorityLaneDispatcher("test", 1, 2, new int[]{2, 1});
+        LaneDispatcher high = dispatcher.open(0, 100, OverloadPolicy.BLOCK, 1);
+        LaneDispatcher low = dispatcher.open(1, 100, OverloadPolicy.BLOCK, 1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch gate = block(low);
+        for (int i = 0; i < 3; i++) {
+            low.dispatch("k", record(order, "L" + i));
+        }
+        for (int i = 0; i < 6; i++) {
+            high.dispatch("k", record(order, "H" + i));
+        }
+        gate.countDown();
+        high.shutdown();
+        low.shutdown();
+        //阻塞任务用掉了低优先级这一轮的额度
+        assertEquals("[H0, H1, H2, H3, L0, H4, H5, L1, L2]", order.toString());
+    }
+
+    @Test
+    public void sameKeyKeepsOrderAcrossLanes() throws Exception {
+        PriorityLaneDispatcher dispatcher = new PriorityLaneDispatcher("test", 4, 1, STRICT);
+        LaneDispatcher channel = dispatcher.open(0, 1000, OverloadPolicy.BLOCK, 1);
+        List<List<Integer>> seen = new ArrayList<>();
+        for (int k = 0; k < 8; k++) {
+            seen.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        for (int i = 0; i < 200; i++) {
+            for (int k = 0; k < 8; k++) {
+                List<Integer> list = seen.get(k);
+                int value = i;
+                channel.dispatch("device-" + k, () -> list.add(value));
+            }
+        }
+        channel.shutdown();
+        for (List<Integer> list : seen) {
+            assertEquals(200, list.size());
+            for (int i = 0; i < list.size(); i++) {
+                assertEquals(i, (int) list.get(i));
+            }
+        }
+        assertEquals(1600, channel.getAcceptedCount());
+    }
+
+    @Test
+    public void overloadPoliciesArePerLevel() throws Exception {
+        PriorityLaneDispatcher dispatcher = new PriorityLaneDispatcher("test", 1, 3, STRICT);
+        LaneDispatcher newest = dispatcher.open(0, 2, OverloadPolicy.DROP_NEWEST, 1);
+        LaneDispatcher oldest = dispatcher.open(1, 2, OverloadPolicy.DROP_OLDEST, 1);
+        LaneDispatcher gateChannel = dispatcher.open(2, 1, OverloadPolicy.BLOCK, 1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<String> shed = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch gate = block(gateChannel);
+        assertTrue(newest.dispatch("k", record(order, "n0")));
+        assertTrue(newest.dispatch("k", record(order, "n1")));
+        assertFalse(newest.dispatch("k", sheddable(order, shed, "n2")));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(oldest.dispatch("k", sheddable(order, shed, "o" + i)));
+        }
+        assertArrayEquals(new int[]{2}, newest.getQueueDepths());
+        assertArrayEquals(new int[]{2}, oldest.getQueueDepths());
+        gate.countDown();
+        newest.shutdown();
+        oldest.shutdown();
+        gateChannel.shutdown();
+        assertEquals("[n0, n1, o2, o3]", order.toString());
+        assertEquals("[n2, o0, o1]", shed.toString());
+        assertEquals(1, newest.getShedCount());
+        assertEquals(2, oldest.getShedCount());
+        assertEquals(4, oldest.getAcceptedCount());
+    }
+
+    @Test
+    public void reopensAfterAllLevelsClosed() throws Exception {
+        PriorityLaneDispatcher dispatcher = new PriorityLaneDispatcher("test", 2, 2, STRICT);
+        LaneDispatcher first = dispatcher.open(0, 10, OverloadPolicy.BLOCK, 1);
+        first.shutdown();
+        LaneDispatcher second = dispatcher.open(0, 10, OverloadPolicy.BLOCK, 1);
+        CountDownLatch done = new CountDownLatch(1);
+        second.dispatch("k", done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        second.shutdown();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void levelCanOnlyBeOpenedOnce() {
+        PriorityLaneDispatcher dispatcher = new PriorityLaneDispatcher("test", 1, 2, STRICT);
+        dispatcher.open(1, 10, OverloadPolicy.BLOCK, 1);
+        try {
+            dispatcher.open(1, 10, OverloadPolicy.BLOCK, 1);
+        } finally {
+            dispatcher.open(0, 10, OverloadPolicy.BLOCK, 1).shutdown();
+        }
+    }
+
+    /**
+     * 在道上放一个等待中的任务，返回放行用的latch
+     */
+    private static CountDownLatch block(LaneDispatcher channel) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate = new CountDownLatch(1);
+        channel.dispatch("k", () -> {
+            started.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        return gate;
+    }
+
+    private static Runnable record(List<String> order, String name) {
+        return () -> order.add(name);
+    }
+
+    private static Runnable sheddable(List<String> order, List<String> shed, String name) {
+        return new SheddableTask() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+
+            @Override
+            public void onShed() {
+                shed.add(name);
+            }
+        };
+    }
+}
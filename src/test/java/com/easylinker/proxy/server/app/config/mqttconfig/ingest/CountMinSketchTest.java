@@ -0,0 +1,72 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CountMinSketchTest {
+    @Test
+    public void neverUnderestimatesAndErrorStaysBounded() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        long[] exact = new long[5000];
+        Random random = new Random(11);
+        long total = 0;
+        for (int i = 0; i < 200000; i++) {
+            int key = random.nextInt(exact.length);
+            sketch.add(CountMinSketch.hash(key), 1);
+            exact[key]++;
+            total++;
+        }
+        int overBound = 0;
+        for (int key = 0; key < exact.length; key++) {
+            long estimate = sketch.estimate(CountMinSketch.hash(key));
+            assertTrue(estimate >= exact[key]);
+            //误差超过 e/width * 总数 的概率不超过 e^-depth
+            if (estimate - exact[key] > Math.E / 1024 * total) {
+                overBound++;
+            }
+        }
+        assertTrue("overBound=" + overBound, overBound < exact.length * 0.05);
+    }
+
+    @Test
+    public void mergeEqualsSketchOfCombinedStream() {
+        CountMinSketch first = new CountMinSketch(4, 64);
+        CountMinSketch second = new CountMinSketch(4, 64);
+        CountMinSketch combined = new CountMinSketch(4, 64);
+        for (long key = 0; key < 500; key++) {
+            CountMinSketch target = key % 2 == 0 ? first : second;
+            target.add(CountMinSketch.hash(key), key);
+            combined.add(CountMinSketch.hash(key), key);
+        }
+        first.merge(second);
+        for (long key = 0; key < 500; key++) {
+            assertEquals(combined.estimate(CountMinSketch.hash(key)), first.estimate(CountMinSketch.hash(key)));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeRejectsDifferentShape() {
+        new CountMinSketch(4, 64).merge(new CountMinSketch(4, 128));
+    }
+
+    @Test
+    public void copyAndClearAreIndependent() {
+        CountMinSketch sketch = new CountMinSketch(2, 16);
+        sketch.add(CountMinSketch.hash(1L), 5);
+        CountMinSketch copy = sketch.copy();
+        sketch.clear();
+        assertEquals(0, sketch.estimate(CountMinSketch.hash(1L)));
+        assertEquals(5, copy.estimate(CountMinSketch.hash(1L)));
+    }
+
+    @Test
+    public void longHashSpreadsSequentialKeys() {
+        assertNotEquals(CountMinSketch.hash(1L), CountMinSketch.hash(2L));
+        assertNotEquals(0L, CountMinSketch.hash(0L) >>> 32);
+    }
+}
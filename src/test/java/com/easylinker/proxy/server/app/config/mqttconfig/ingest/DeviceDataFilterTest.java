@@ -0,0 +1,167 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.easylinker.proxy.server.app.config.mqttconfig.payload.NumericFields;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按设备、分组策略过滤，时间由调用方传入
+ */
+public class DeviceDataFilterTest {
+    private static final long TIME = 1539820800000L;
+    private final Map<Long, String> devicePolicies = new TreeMap<>();
+    private final Map<Long, String> groupPolicies = new TreeMap<>();
+    private DeviceDataFilter filter;
+
+    @Before
+    public void setUp() {
+        filter = new DeviceDataFilter();
+        filter.jdbcTemplate = new FakePolicyTables();
+        filter.refreshEnabled = true;
+    }
+
+    @Test
+    public void devicesWithoutPolicyAreAlwaysStored() {
+        groupPolicies.put(2L, "{\"every\":2}");
+        filter.start();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(store(1, 3, "{\"t\":1}", TIME));
+        }
+    }
+
+    @Test
+    public void everyStoresOneInN() {
+        filter.setDevicePolicy(1, "{\"every\":3}");
+        int stored = 0;
+        for (int i = 0; i < 9; i++) {
+            stored += store(1, 0, "{\"t\":" + i + "}", TIME + i) ? 1 : 0;
+        }
+        assertEquals(3, stored);
+    }
+
+    @Test
+    public void intervalLimitsStoreRate() {
+        filter.setDevicePolicy(1, "{\"interval\":1000}");
+        assertTrue(store(1, 0, "{\"t\":1}", TIME));
+        assertFalse(store(1, 0, "{\"t\":2}", TIME + 999));
+        assertTrue(store(1, 0, "{\"t\":3}", TIME + 1000));
+    }
+
+    @Test
+    public void onChangeDropsIdenticalPayloads() {
+        filter.setDevicePolicy(1, "{\"onChange\":true}");
+        assertTrue(store(1, 0, "{\"t\":1}", TIME));
+        assertFalse(store(1, 0, "{\"t\":1}", TIME + 1));
+        assertTrue(store(1, 0, "{\"t\":2}", TIME + 2));
+        assertTrue(store(1, 0, "{\"t\":1}", TIME + 3));
+    }
+
+    @Test
+    public void deadbandComparesWithLastStoredValue() {
+        filter.setGroupPolicy(2, "{\"deadband\":{\"temperature\":0.5,\"env.humidity\":2}}");
+        assertTrue(store(1, 2, "{\"temperature\":20,\"env\":{\"humidity\":50}}", TIME));
+        assertFalse(store(1, 2, "{\"temperature\":20.4,\"env\":{\"humidity\":51}}", TIME + 1));
+        //和上一条入库的比，不是和上一条收到的比
+        assertTrue(store(1, 2, "{\"temperature\":20.6,\"env\":{\"humidity\":51}}", TIME + 2));
+        assertTrue(store(1, 2, "{\"temperature\":20.6,\"env\":{\"humidity\":53.5}}", TIME + 3));
+        //其他字段变化不算
+        assertFalse(store(1, 2, "{\"temperature\":20.6,\"env\":{\"humidity\":53.5},\"rssi\":-80}", TIME + 4));
+    }
+
+    @Test
+    public void missingDeadbandFieldIsNaN() {
+        filter.setDevicePolicy(1, "{\"deadband\":{\"temperature\":0.5}}");
+        assertTrue(store(1, 0, "{\"temperature\":20}", TIME));
+        //只有一次缺失算变化
+        assertTrue(store(1, 0, "{\"humidity\":50}", TIME + 1));
+        //两次都缺失算没变
+        assertFalse(store(1, 0, "{\"humidity\":60}", TIME + 2));
+        assertFalse(store(1, 0, "{\"temperature\":\"NaN\"}", TIME + 3));
+        assertTrue(store(1, 0, "{\"temperature\":20}", TIME + 4));
+    }
+
+    @Test
+    public void heartbeatStoresUnchangedValues() {
+        filter.setDevicePolicy(1, "{\"onChange\":true,\"heartbeat\":60000}");
+        assertTrue(store(1, 0, "{\"t\":1}", TIME));
+        assertFalse(store(1, 0, "{\"t\":1}", TIME + 59999));
+        assertTrue(store(1, 0, "{\"t\":1}", TIME + 60000));
+        assertFalse(store(1, 0, "{\"t\":1}", TIME + 60001));
+    }
+
+    @Test
+    public void devicePolicyOverridesGroupPolicy() {
+        filter.setGroupPolicy(2, "{\"onChange\":true}");
+        filter.setDevicePolicy(1, "{\"every\":1}");
+        assertTrue(store(1, 2, "{\"t\":1}", TIME));
+        assertTrue(store(1, 2, "{\"t\":1}", TIME + 1));
+        assertTrue(store(3, 2, "{\"t\":1}", TIME + 2));
+        assertFalse(store(3, 2, "{\"t\":1}", TIME + 3));
+    }
+
+    @Test
+    public void invalidPolicyDoesNotFilter() {
+        filter.setDevicePolicy(1, "{\"every\":-1}");
+        assertTrue(store(1, 0, "{\"t\":1}", TIME));
+        assertTrue(store(1, 0, "{\"t\":1}", TIME + 1));
+    }
+
+    @Test
+    public void refreshPicksUpPoliciesChangedByOtherInstances() {
+        devicePolicies.put(1L, "{\"onChange\":true}");
+        filter.start();
+        assertTrue(store(1, 0, "{\"t\":1}", TIME));
+        assertFalse(store(1, 0, "{\"t\":1}", TIME + 1));
+
+        devicePolicies.remove(1L);
+        groupPolicies.put(2L, "{\"every\":2}");
+        filter.refresh();
+        assertTrue(store(1, 0, "{\"t\":1}", TIME + 2));
+        assertTrue(store(1, 0, "{\"t\":1}", TIME + 3));
+        assertTrue(store(5, 2, "{\"t\":1}", TIME + 4));
+        assertFalse(store(5, 2, "{\"t\":1}", TIME + 5));
+        assertEquals(0, filter.getStatistics().get("devicePolicies"));
+        assertEquals(1, filter.getStatistics().get("groupPolicies"));
+    }
+
+    @Test
+    public void refreshUnchangedPolicyKeepsState() {
+        devicePolicies.put(1L, "{\"every\":2}");
+        filter.start();
+        assertTrue(store(1, 0, "{\"t\":1}", TIME));
+        filter.refresh();
+        assertFalse(store(1, 0, "{\"t\":1}", TIME + 1));
+    }
+
+    private boolean store(long deviceId, long groupId, String payload, long now) {
+        return filter.shouldStore(deviceId, groupId, payload, NumericFields.of(payload, null), now);
+    }
+
+    private final class FakePolicyTables extends JdbcTemplate {
+        @Override
+        public void query(String sql, RowCallbackHandler handler) {
+            Map<Long, String> rows = sql.contains("device_group") ? groupPolicies : devicePolicies;
+            for (Map.Entry<Long, String> row : rows.entrySet()) {
+                ResultSet rs = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                        (proxy, method, args) -> (Integer) args[0] == 1 ? (Object) row.getKey() : row.getValue());
+                try {
+                    handler.processRow(rs);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+}
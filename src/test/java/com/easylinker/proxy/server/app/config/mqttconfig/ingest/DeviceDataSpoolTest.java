@@ -0,0 +1,178 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.easylinker.proxy.server.app.model.device.Device;
+import com.easylinker.proxy.server.app.model.device.DeviceData;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 预写日志的重放: 进程没有关闭就"宕机"，用同一个目录新建一个实例模拟重启
+ */
+public class DeviceDataSpoolTest {
+
+    @Test
+    public void replayStartsFromLastCheckpoint() throws Exception {
+        File dir = Files.createTempDirectory("spool").toFile();
+        DeviceDataSpool spool = open(dir, 1 << 20);
+        for (int i = 0; i < 10; i++) {
+            spool.append(record(i));
+        }
+        List<DeviceData> batch = new ArrayList<>();
+        assertEquals(4, spool.read(batch, 4, 0));
+        spool.commit();
+        //读出来还没提交的批次，宕机以后要重放
+        assertEquals(3, spool.read(new ArrayList<>(), 3, 0));
+
+        DeviceDataSpool restarted = open(dir, 1 << 20);
+        List<DeviceData> replayed = new ArrayList<>();
+        assertEquals(6, restarted.read(replayed, 100, 0));
+        for (int i = 0; i < replayed.size(); i++) {
+            DeviceData deviceData = replayed.get(i);
+            assertEquals(i + 4, deviceData.getId().longValue());
+            assertEquals(1000 + i + 4, deviceData.getCreateTime().getTime());
+            assertEquals(7, deviceData.getDevice().getId().longValue());
+            assertEquals("ECHO", deviceData.getType());
+            assertArrayEquals(("{\"v\":" + (i + 4) + "}").getBytes(StandardCharsets.UTF_8), deviceData.getRawData());
+        }
+    }
+
+    @Test
+    public void tornRecordAtTailIsDiscarded() throws Exception {
+        File dir = Files.createTempDirectory("spool").toFile();
+        DeviceDataSpool spool = open(dir, 1 << 20);
+        spool.append(record(0));
+        spool.append(record(1));
+        //模拟写到一半宕机: 长度已经写了，内容和校验和对不上
+        File segment = dir.listFiles((d, name) -> name.endsWith(".seg"))[0];
+        long tail = tailOffset(spool);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(tail);
+            file.writeInt(40);
+            file.writeInt(12345);
+            file.writeLong(99);
+        }
+
+        DeviceDataSpool restarted = open(dir, 1 << 20);
+        List<DeviceData> replayed = new ArrayList<>();
+        assertEquals(2, restarted.read(replayed, 100, 0));
+        //新的记录覆盖掉损坏的尾部
+        restarted.append(record(2));
+        replayed.clear();
+        assertEquals(1, restarted.read(replayed, 100, 0));
+        assertEquals(2, replayed.get(0).getId().longValue());
+    }
+
+    @Test
+    public void committedSegmentsAreDeleted() throws Exception {
+        File dir = Files.createTempDirectory("spool").toFile();
+        DeviceDataSpool spool = open(dir, 256);
+        for (int i = 0; i < 20; i++) {
+            spool.append(record(i));
+        }
+        List<DeviceData> all = new ArrayList<>();
+        while (spool.read(all, 100, 0) > 0) {
+            //跨分段读完
+        }
+        assertEquals(20, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(i, all.get(i).getId().longValue());
+        }
+        spool.commit();
+        assertEquals(1, dir.listFiles((d, name) -> name.endsWith(".seg")).length);
+    }
+
+    /**
+     * 写库线程在写库之后、推进检查点之前宕机：重启以后只重放最后那一批没提交的，已经提交的一条也不会再读出来
+     */
+    @Test
+    public void crashBeforeCommitReplaysOnlyTheUncommittedBatch() throws Exception {
+        File dir = Files.createTempDirectory("spool").toFile();
+        DeviceDataSpool spool = open(dir, 4096);
+        for (int i = 0; i < 100; i++) {
+            spool.append(record(i));
+        }
+        List<DeviceData> batch = new ArrayList<>();
+        for (int round = 0; round < 3; round++) {
+            assertEquals(25, spool.read(batch, 25, 0));
+            batch.clear();
+            spool.commit();
+        }
+        assertEquals(25, spool.read(batch, 25, 0));
+
+        DeviceDataSpool restarted = open(dir, 4096);
+        List<DeviceData> replayed = new ArrayList<>();
+        while (restarted.read(replayed, 25, 0) > 0) {
+            restarted.commit();
+        }
+        assertEquals(25, replayed.size());
+        for (int i = 0; i < replayed.size(); i++) {
+            assertEquals(75 + i, replayed.get(i).getId().longValue());
+        }
+        assertEquals(25L, restarted.getStatistics().get("replayed"));
+
+        DeviceDataSpool again = open(dir, 4096);
+        assertEquals(0, again.read(new ArrayList<>(), 100, 0));
+    }
+
+    /**
+     * 手动确认在记录落盘以后发出，NEVER 不落盘，启动时拒绝
+     */
+    @Test(expected = IllegalStateException.class)
+    public void manualAcksRequireFsync() throws Exception {
+        DeviceDataSpool spool = new DeviceDataSpool();
+        spool.enabled = true;
+        spool.manualAcks = true;
+        spool.spoolDir = Files.createTempDirectory("spool").toFile().getAbsolutePath();
+        spool.fsyncPolicy = SpoolFsyncPolicy.NEVER;
+        spool.open();
+    }
+
+    private static long tailOffset(DeviceDataSpool spool) throws IOException {
+        List<DeviceData> all = new ArrayList<>();
+        long offset = 0;
+        try {
+            while (spool.read(all, 1, 0) > 0) {
+                DeviceData deviceData = all.get(all.size() - 1);
+                offset += 8 + 26 + deviceData.getType().length() + deviceData.getRawData().length;
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        spool.rewind();
+        return offset;
+    }
+
+    private static DeviceDataSpool open(File dir, int segmentSize) throws IOException {
+        DeviceDataSpool spool = new DeviceDataSpool();
+        spool.enabled = true;
+        spool.spoolDir = dir.getAbsolutePath();
+        spool.segmentSize = segmentSize;
+        spool.fsyncPolicy = SpoolFsyncPolicy.NEVER;
+        spool.fsyncInterval = 1000;
+        spool.open();
+        return spool;
+    }
+
+    private static DeviceData record(int i) {
+        DeviceData deviceData = new DeviceData();
+        deviceData.setId((long) i);
+        deviceData.setCreateTime(new Date(1000 + i));
+        Device device = new Device();
+        device.setId(7L);
+        deviceData.setDevice(device);
+        deviceData.setType("ECHO");
+        deviceData.setRawData(("{\"v\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+        return deviceData;
+    }
+}
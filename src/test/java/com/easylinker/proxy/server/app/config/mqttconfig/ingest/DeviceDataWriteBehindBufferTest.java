@@ -0,0 +1,306 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.model.device.Device;
+import com.easylinker.proxy.server.app.model.device.DeviceData;
+import com.easylinker.proxy.server.app.utils.SnowflakeIdGenerator;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 共享订阅的多个实例经过预写日志写同一张表：Broker把每条消息只分给一个实例，
+ * 写库结果不确定的重试、宕机以后的重放都不能多存一条，节点号重复导致的ID冲突不能当成重复丢掉
+ */
+public class DeviceDataWriteBehindBufferTest {
+    private static final long TIME = 1539820800000L;
+
+    @Test
+    public void sharedSubscriptionStoresEveryMessageExactlyOnce() throws Exception {
+        Map<Long, String> table = new ConcurrentHashMap<>();
+        //第一个实例前两批提交成功以后连接断开，不知道写没写进去
+        DeviceDataWriteBehindBuffer first = node(new FakeTable(table, 2));
+        DeviceDataWriteBehindBuffer second = node(new FakeTable(table, 0));
+        DeviceDataWriteBehindBuffer[] members = {first, second};
+        for (int k = 0; k < 2000; k++) {
+            int member = k % 2;
+            members[member].offer(1L, record(id(TIME + k / 2, member + 1, 0), k));
+        }
+        drain(first);
+        drain(second);
+
+        assertEquals(2000, table.size());
+        Map<String, Integer> stored = new HashMap<>();
+        for (String data : table.values()) {
+            stored.merge(data, 1, Integer::sum);
+        }
+        assertEquals(2000, stored.size());
+        assertTrue((Long) first.getStatistics().get("duplicates") > 0);
+        for (DeviceDataWriteBehindBuffer member : members) {
+            assertEquals(0L, member.getStatistics().get("idCollisions"));
+            assertEquals(0L, deadLetters(member));
+        }
+    }
+
+    @Test
+    public void crashAfterWriteReplaysWithoutDuplicateRows() throws Exception {
+        File spoolDir = Files.createTempDirectory("spool").toFile();
+        Map<Long, String> table = new ConcurrentHashMap<>();
+        DeviceDataSpool crashed = spool(spoolDir);
+        for (int k = 0; k < 100; k++) {
+            DeviceData deviceData = record(id(TIME, 1, k), k);
+            crashed.append(deviceData);
+            //前一半已经写库，推进检查点之前宕机
+            if (k < 50) {
+                table.put(deviceData.getId(), "{\"seq\":" + k + "}");
+            }
+        }
+
+        DeviceDataWriteBehindBuffer restarted = node(new FakeTable(table, 0), spool(spoolDir));
+        drain(restarted);
+
+        assertEquals(100, table.size());
+        assertEquals(50L, restarted.getStatistics().get("duplicates"));
+        assertEquals(0L, restarted.getStatistics().get("idCollisions"));
+    }
+
+    @Test
+    public void idCollisionIsDeadLetteredNotCountedAsDuplicate() throws Exception {
+        Map<Long, String> table = new ConcurrentHashMap<>();
+        //两个实例配置了同一个节点号，同一毫秒生成同样的ID
+        DeviceDataWriteBehindBuffer first = node(new FakeTable(table, 0));
+        DeviceDataWriteBehindBuffer second = node(new FakeTable(table, 0));
+        for (int k = 0; k < 100; k++) {
+            first.offer(1L, record(id(TIME, 1, k), k));
+            second.offer(1L, record(id(TIME, 1, k), 100 + k));
+        }
+        drain(first);
+        drain(second);
+
+        assertEquals(100, table.size());
+        long collisions = (Long) first.getStatistics().get("idCollisions") + (Long) second.getStatistics().get("idCollisions");
+        assertEquals(100L, collisions);
+        assertEquals(0L, (Long) first.getStatistics().get("duplicates") + (Long) second.getStatistics().get("duplicates"));
+        assertEquals(100L, deadLetters(first) + deadLetters(second));
+    }
+
+    @Test
+    public void spoolReordersByPriorityOnlyWithinAWindow() throws Exception {
+        File spoolDir = Files.createTempDirectory("spool").toFile();
+        Map<Long, String> table = Collections.synchronizedMap(new LinkedHashMap<>());
+        DeviceDataSpool spool = spool(spoolDir);
+        //第一个窗口(500条)里遥测在前、指令回复在后；第二个窗口开头是遥测，最后是指令回复
+        for (int k = 0; k < 1000; k++) {
+            spool.append(record(id(TIME, 1, k), k, k % 500 >= 490 ? "REPLY" : "ECHO"));
+        }
+        drain(node(new FakeTable(table, 0), spool));
+
+        List<Long> order = new ArrayList<>(table.keySet());
+        assertEquals(1000, order.size());
+        for (int window = 0; window < 2; window++) {
+            //窗口之内指令回复先写
+            for (int k = 0; k < 10; k++) {
+                assertEquals(id(TIME, 1, window * 500 + 490 + k), order.get(window * 500 + k).longValue());
+            }
+            //窗口之间按追加顺序，第二个窗口的指令回复排在第一个窗口的遥测后面
+            for (int k = 10; k < 500; k++) {
+                assertEquals(id(TIME, 1, window * 500 + k - 10), order.get(window * 500 + k).longValue());
+            }
+        }
+    }
+
+    /**
+     * 停止的时候还在重试的批次留在预写日志里等下次启动，先等预写日志全部提交再停
+     */
+    private static void drain(DeviceDataWriteBehindBuffer buffer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        JSONObject spool = buffer.deviceDataSpool.getStatistics();
+        while ((Long) spool.get("committed") < (Long) spool.get("appended") || (Boolean) spool.get("replaying")) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+            spool = buffer.deviceDataSpool.getStatistics();
+        }
+        buffer.stop();
+    }
+
+    private static long deadLetters(DeviceDataWriteBehindBuffer buffer) {
+        return (Long) buffer.deviceDataDeadLetter.getStatistics().get("written");
+    }
+
+    private static long id(long time, int node, int sequence) {
+        return SnowflakeIdGenerator.baseOf(time) | (long) node << SnowflakeIdGenerator.SEQUENCE_BITS | sequence;
+    }
+
+    private static DeviceDataWriteBehindBuffer node(FakeTable table) throws IOException {
+        return node(table, spool(Files.createTempDirectory("spool").toFile()));
+    }
+
+    private static DeviceDataWriteBehindBuffer node(FakeTable table, DeviceDataSpool spool) throws IOException {
+        DeviceDataDeadLetter deadLetter = new DeviceDataDeadLetter();
+        deadLetter.dir = Files.createTempDirectory("dead-letter").toFile().getAbsolutePath();
+        deadLetter.start();
+        DeviceDataWriteBehindBuffer buffer = new DeviceDataWriteBehindBuffer();
+        buffer.jdbcTemplate = table;
+        buffer.transactionManager = new NoTransactionManager();
+        buffer.deviceDataSpool = spool;
+        buffer.deviceDataDeadLetter = deadLetter;
+        buffer.ingestQuota = new IngestQuota();
+        buffer.ingestLatency = new IngestLatency();
+        buffer.deviceRegistry = new DeviceRegistry() {
+            @Override
+            public long findOwnerId(long deviceId) {
+                return 1L;
+            }
+        };
+        buffer.batchSize = 50;
+        buffer.flushInterval = 20;
+        buffer.queueCapacity = 10000;
+        buffer.retryInterval = 1;
+        buffer.maxRetries = 3;
+        buffer.fairWindow = 500;
+        buffer.fairQuantum = 4096;
+        buffer.priorityWeights = new int[0];
+        buffer.start();
+        return buffer;
+    }
+
+    private static DeviceDataSpool spool(File dir) throws IOException {
+        DeviceDataSpool spool = new DeviceDataSpool();
+        spool.enabled = true;
+        spool.spoolDir = dir.getAbsolutePath();
+        spool.segmentSize = 1 << 20;
+        spool.fsyncPolicy = SpoolFsyncPolicy.NEVER;
+        spool.fsyncInterval = 1000;
+        spool.open();
+        return spool;
+    }
+
+    private static DeviceData record(long id, int sequence) {
+        return record(id, sequence, "ECHO");
+    }
+
+    private static DeviceData record(long id, int sequence, String type) {
+        DeviceData deviceData = new DeviceData();
+        deviceData.setId(id);
+        deviceData.setCreateTime(new Date(TIME));
+        Device device = new Device();
+        device.setId((long) sequence % 10);
+        deviceData.setDevice(device);
+        deviceData.setType(type);
+        deviceData.setRawData(("{\"seq\":" + sequence + "}").getBytes(StandardCharsets.UTF_8));
+        return deviceData;
+    }
+
+    /**
+     * device_data 表：主键唯一，一批要么全部写进去要么全部不写；
+     * lostCommits 表示前几批写进去以后连接断开，调用方收到异常
+     */
+    private static final class FakeTable extends JdbcTemplate {
+        private final Map<Long, String> rows;
+        private final AtomicInteger lostCommits;
+
+        FakeTable(Map<Long, String> rows, int lostCommits) {
+            this.rows = rows;
+            this.lostCommits = new AtomicInteger(lostCommits);
+        }
+
+        @Override
+        public int[] batchUpdate(String sql, BatchPreparedStatementSetter setter) {
+            Map<Long, String> batch = new LinkedHashMap<>();
+            try {
+                for (int i = 0; i < setter.getBatchSize(); i++) {
+                    Map<Integer, Object> values = new HashMap<>();
+                    setter.setValues(statement(values), i);
+                    batch.put((Long) values.get(1), new String((byte[]) values.get(4), StandardCharsets.UTF_8));
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+            synchronized (rows) {
+                for (Long id : batch.keySet()) {
+                    if (rows.containsKey(id)) {
+                        throw new DuplicateKeyException("Duplicate entry '" + id + "' for key 'PRIMARY'");
+                    }
+                }
+                rows.putAll(batch);
+            }
+            if (lostCommits.getAndDecrement() > 0) {
+                throw new DataAccessResourceFailureException("Communications link failure");
+            }
+            return new int[batch.size()];
+        }
+
+        @Override
+        public int update(String sql, PreparedStatementSetter setter) {
+            Map<Integer, Object> values = new HashMap<>();
+            try {
+                setter.setValues(statement(values));
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+            synchronized (rows) {
+                Long id = (Long) values.get(1);
+                if (rows.containsKey(id)) {
+                    throw new DuplicateKeyException("Duplicate entry '" + id + "' for key 'PRIMARY'");
+                }
+                rows.put(id, new String((byte[]) values.get(4), StandardCharsets.UTF_8));
+            }
+            return 1;
+        }
+
+        /**
+         * 只记录 setXxx(序号, 值) 的参数
+         */
+        private static PreparedStatement statement(Map<Integer, Object> values) {
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                        if (method.getName().startsWith("set") && args != null && args.length == 2) {
+                            values.put((Integer) args[0], args[1]);
+                        }
+                        return null;
+                    });
+        }
+    }
+
+    private static final class NoTransactionManager implements PlatformTransactionManager {
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) {
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) {
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.easylinker.proxy.server.app.model.device.Device;
+import com.easylinker.proxy.server.app.model.device.DeviceGroup;
+import com.easylinker.proxy.server.app.model.user.AppUser;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 整表重新加载和按分组删除
+ * 数据库用一个 设备ID -> {拥有者, 分组} 的Map代替
+ */
+public class DeviceRegistryTest {
+    private final TreeMap<Long, long[]> database = new TreeMap<>();
+    private Runnable duringLoad = () -> {
+    };
+    private DeviceRegistry registry;
+
+    @Before
+    public void setUp() {
+        for (long id = 1; id <= 5000; id++) {
+            database.put(id, new long[]{id % 7, id % 3 + 1});
+        }
+        registry = new DeviceRegistry();
+        registry.jdbcTemplate = new FakeDeviceTable();
+        registry.loaderThreads = 4;
+        registry.refreshEnabled = true;
+        registry.refresh();
+    }
+
+    @Test
+    public void loadsEveryDevice() {
+        assertEquals(5000, registry.size());
+        assertEquals(42 % 7, registry.findOwnerId(42));
+        assertEquals(42 % 3 + 1, registry.findGroupId(42));
+    }
+
+    @Test
+    public void refreshPicksUpChangesMadeByOtherInstances() {
+        database.remove(10L);
+        database.put(11L, new long[]{99, 2});
+        database.put(6000L, new long[]{5, 1});
+        registry.refresh();
+
+        assertEquals(5000, registry.size());
+        assertEquals(0, registry.findGroupId(10));
+        assertEquals(99, registry.findOwnerId(11));
+        assertEquals(5, registry.findOwnerId(6000));
+    }
+
+    @Test
+    public void localChangesDuringRefreshWin() {
+        duringLoad = () -> {
+            registry.put(device(12, 77, 3));
+            registry.remove(13);
+            duringLoad = () -> {
+            };
+        };
+        registry.refresh();
+
+        assertEquals(77, registry.findOwnerId(12));
+        assertEquals(3, registry.findGroupId(12));
+        assertEquals(0, registry.findGroupId(13));
+        assertEquals(4999, registry.size());
+    }
+
+    @Test
+    public void removeGroupRemovesOnlyThatGroup() {
+        registry.removeGroup(2);
+
+        assertEquals(5000 - 1667, registry.size());
+        for (long id = 1; id <= 5000; id++) {
+            assertEquals(id % 3 == 1 ? 0 : id % 3 + 1, registry.findGroupId(id));
+        }
+        //删除以后的探测链还能找到其他设备
+        registry.put(device(4, 1, 2));
+        assertEquals(2, registry.findGroupId(4));
+    }
+
+    private static Device device(long id, long owner, long group) {
+        Device device = new Device();
+        device.setId(id);
+        AppUser appUser = new AppUser();
+        appUser.setId(owner);
+        device.setAppUser(appUser);
+        DeviceGroup deviceGroup = new DeviceGroup();
+        deviceGroup.setId(group);
+        device.setDeviceGroup(deviceGroup);
+        return device;
+    }
+
+    private final class FakeDeviceTable extends JdbcTemplate {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T queryForObject(String sql, RowMapper<T> rowMapper) {
+            long min = database.isEmpty() ? 0 : database.firstKey();
+            long max = database.isEmpty() ? 0 : database.lastKey();
+            return (T) new long[]{min, max, database.size()};
+        }
+
+        @Override
+        public void query(String sql, Object[] args, RowCallbackHandler handler) {
+            Map<Long, long[]> rows;
+            synchronized (database) {
+                duringLoad.run();
+                rows = new TreeMap<>(database.subMap((Long) args[0], true, (Long) args[1], true));
+            }
+            for (Map.Entry<Long, long[]> row : rows.entrySet()) {
+                try {
+                    handler.processRow(resultSet(row.getKey(), row.getValue()));
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+
+        /**
+         * id, app_user_id, device_group_id, allow, access, is_online
+         */
+        private ResultSet resultSet(long id, long[] row) {
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                    (proxy, method, args) -> {
+                        int column = (Integer) args[0];
+                        switch (method.getName()) {
+                            case "getLong":
+                                return column == 1 ? id : row[column - 2];
+                            case "getObject":
+                                return column == 4 ? 1 : 3;
+                            case "getBoolean":
+                                return false;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+
+public class DeviceTrafficTest {
+    private DeviceTraffic traffic;
+    private final Map<Long, Long> messages = new HashMap<>();
+    private final Map<Long, Long> bytes = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        traffic = new DeviceTraffic();
+        traffic.jdbcTemplate = new RecordingJdbcTemplate();
+    }
+
+    @Test
+    public void flushWritesIncrementsOnce() {
+        traffic.idleTimeout = 600000;
+        traffic.record(1L, "ECHO", 10);
+        traffic.record(1L, "REPLY", 5);
+        traffic.record(2L, "ECHO", 7);
+        traffic.flush();
+        traffic.flush();
+        assertEquals(2L, (long) messages.get(1L));
+        assertEquals(15L, (long) bytes.get(1L));
+        assertEquals(1L, (long) messages.get(2L));
+        traffic.record(1L, "ECHO", 1);
+        traffic.flush();
+        assertEquals(3L, (long) messages.get(1L));
+    }
+
+    /**
+     * 写回线程不停移除空闲计数器的同时并发记录，一条都不能丢
+     */
+    @Test
+    public void evictionDoesNotLoseConcurrentRecords() throws Exception {
+        traffic.idleTimeout = 0;
+        int threads = 4;
+        int perThread = 200000;
+        AtomicBoolean done = new AtomicBoolean();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    traffic.record(i % 3, "ECHO", 2);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        Thread flusher = new Thread(() -> {
+            while (!done.get()) {
+                traffic.flush();
+            }
+        });
+        flusher.start();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        done.set(true);
+        flusher.join();
+        traffic.flush();
+        long total = 0;
+        for (long count : messages.values()) {
+            total += count;
+        }
+        assertEquals((long) threads * perThread, total);
+        assertEquals(0, traffic.getStatistics().get("trackedDevices"));
+    }
+
+    private class RecordingJdbcTemplate extends JdbcTemplate {
+        @Override
+        public int[] batchUpdate(String sql, BatchPreparedStatementSetter setter) {
+            for (int i = 0; i < setter.getBatchSize(); i++) {
+                Object[] values = new Object[7];
+                PreparedStatement ps = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+                        new Class[]{PreparedStatement.class}, (proxy, method, args) -> {
+                            values[(Integer) args[0]] = args[1];
+                            return null;
+                        });
+                try {
+                    setter.setValues(ps, i);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+                long deviceId = (Long) values[6];
+                synchronized (DeviceTrafficTest.this) {
+                    messages.merge(deviceId, (Long) values[1], Long::sum);
+                    bytes.merge(deviceId, (Long) values[2], Long::sum);
+                }
+            }
+            return new int[setter.getBatchSize()];
+        }
+    }
+}
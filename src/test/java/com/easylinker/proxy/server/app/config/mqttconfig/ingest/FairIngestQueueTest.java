@@ -0,0 +1,144 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import com.easylinker.proxy.server.app.model.device.DeviceData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FairIngestQueueTest {
+    private static final int[] STRICT = new int[0];
+
+    @Test
+    public void burstyUserDoesNotStarveOthers() throws Exception {
+        //每条 64 + 36 = 100 字节，额度 100 每轮每个用户一条
+        FairIngestQueue queue = new FairIngestQueue(10000, 100, userId -> 1, STRICT);
+        for (int i = 0; i < 1000; i++) {
+            queue.put(IngestClass.TELEMETRY, 1L, row(1, i));
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.put(IngestClass.TELEMETRY, 2L, row(2, i));
+        }
+        List<DeviceData> batch = new ArrayList<>();
+        assertEquals(6, queue.drainTo(batch, 6, 0, TimeUnit.MILLISECONDS));
+        assertEquals(3, countOf(batch, 2));
+        //同一个用户保持先后顺序
+        assertEquals("[1:0, 2:0, 1:1, 2:1, 1:2, 2:2]", names(batch));
+    }
+
+    @Test
+    public void weightsSplitThroughput() throws Exception {
+        FairIngestQueue queue = new FairIngestQueue(10000, 100, userId -> userId == 1L ? 3 : 1, STRICT);
+        for (int i = 0; i < 100; i++) {
+            queue.put(IngestClass.TELEMETRY, 1L, row(1, i));
+            queue.put(IngestClass.TELEMETRY, 2L, row(2, i));
+        }
+        List<DeviceData> batch = new ArrayList<>();
+        queue.drainTo(batch, 40, 0, TimeUnit.MILLISECONDS);
+        assertEquals(30, countOf(batch, 1));
+        assertEquals(10, countOf(batch, 2));
+    }
+
+    @Test
+    public void strictPriorityServesCommandsFirst() throws Exception {
+        FairIngestQueue queue = new FairIngestQueue(10000, 100, userId -> 1, STRICT);
+        for (int i = 0; i < 10; i++) {
+            queue.put(IngestClass.TELEMETRY, 1L, row(1, i));
+        }
+        queue.put(IngestClass.COMMAND, 2L, reply(2, 0));
+        List<DeviceData> batch = new ArrayList<>();
+        queue.drainTo(batch, 3, 0, TimeUnit.MILLISECONDS);
+        assertEquals("[2:0, 1:0, 1:1]", names(batch));
+    }
+
+    @Test
+    public void classWeightsReserveShareForLowerClasses() throws Exception {
+        //PRESENCE,COMMAND,LOCATION,TELEMETRY
+        FairIngestQueue queue = new FairIngestQueue(10000, 1 << 20, userId -> 1, new int[]{1, 3, 1, 1});
+        for (int i = 0; i < 100; i++) {
+            queue.put(IngestClass.COMMAND, 1L, reply(1, i));
+            queue.put(IngestClass.TELEMETRY, 1L, row(1, i));
+        }
+        List<DeviceData> batch = new ArrayList<>();
+        queue.drainTo(batch, 40, 0, TimeUnit.MILLISECONDS);
+        int replies = 0;
+        for (DeviceData deviceData : batch) {
+            if ("REPLY".equals(deviceData.getType())) {
+                replies++;
+            }
+        }
+        assertEquals(30, replies);
+    }
+
+    @Test
+    public void offerRejectsWhenClassIsFull() throws Exception {
+        FairIngestQueue queue = new FairIngestQueue(2, 100, userId -> 1, STRICT);
+        assertTrue(queue.offer(IngestClass.TELEMETRY, 1L, row(1, 0)));
+        assertTrue(queue.offer(IngestClass.TELEMETRY, 1L, row(1, 1)));
+        assertFalse(queue.offer(IngestClass.TELEMETRY, 1L, row(1, 2)));
+        //每个类别单独计算容量
+        assertTrue(queue.offer(IngestClass.COMMAND, 1L, reply(1, 0)));
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertTrue(queue.offer(IngestClass.TELEMETRY, 1L, row(1, 3)));
+    }
+
+    @Test
+    public void idleTenantsAreEvicted() throws Exception {
+        FairIngestQueue queue = new FairIngestQueue(100, 100, userId -> 1, STRICT);
+        queue.tenantIdleNanos = 0;
+        for (long userId = 1; userId <= 50; userId++) {
+            queue.put(IngestClass.TELEMETRY, userId, row(userId, 0));
+        }
+        List<DeviceData> batch = new ArrayList<>();
+        assertEquals(50, queue.drainTo(batch, 100, 0, TimeUnit.MILLISECONDS));
+        assertEquals(50, tenants(queue));
+        //清理每秒最多一次
+        Thread.sleep(1100);
+        queue.put(IngestClass.TELEMETRY, 99L, row(99, 0));
+        queue.drainTo(batch, 100, 0, TimeUnit.MILLISECONDS);
+        assertEquals(0, tenants(queue));
+    }
+
+    private static int tenants(FairIngestQueue queue) {
+        return ((JSONObject) ((JSONObject) queue.getStatistics().get("TELEMETRY")).get("tenants")).size();
+    }
+
+    private static int countOf(List<DeviceData> batch, long userId) {
+        int count = 0;
+        for (DeviceData deviceData : batch) {
+            if (deviceData.getId() / 100000 == userId) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String names(List<DeviceData> batch) {
+        List<String> names = new ArrayList<>();
+        for (DeviceData deviceData : batch) {
+            names.add(deviceData.getId() / 100000 + ":" + deviceData.getId() % 100000);
+        }
+        return names.toString();
+    }
+
+    private static DeviceData row(long userId, int i) {
+        DeviceData deviceData = new DeviceData();
+        deviceData.setId(userId * 100000 + i);
+        deviceData.setType("ECHO");
+        deviceData.setRawData(new byte[36]);
+        return deviceData;
+    }
+
+    private static DeviceData reply(long userId, int i) {
+        DeviceData deviceData = row(userId, i);
+        deviceData.setType("REPLY");
+        return deviceData;
+    }
+}
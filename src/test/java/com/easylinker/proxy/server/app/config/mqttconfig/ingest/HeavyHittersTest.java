@@ -0,0 +1,92 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeavyHittersTest {
+    private static final long SLOT = 10000;
+    private HeavyHitters heavyHitters;
+
+    @Before
+    public void setUp() {
+        heavyHitters = new HeavyHitters();
+        heavyHitters.window = 6 * SLOT;
+        heavyHitters.slotCount = 6;
+        heavyHitters.stripeCount = 4;
+        heavyHitters.capacity = 10;
+        heavyHitters.sketchWidth = 256;
+        heavyHitters.start();
+    }
+
+    @Test
+    public void ranksByMessagesAndBytes() {
+        long now = 100 * SLOT;
+        for (int i = 0; i < 50; i++) {
+            heavyHitters.record(now, 7, 1, "IN/ECHO/7/1/1", 10);
+        }
+        for (int i = 0; i < 5; i++) {
+            heavyHitters.record(now, 8, 2, "IN/ECHO/8/1/2", 1000);
+        }
+        JSONArray byMessages = heavyHitters.getTop(now, HeavyHitters.Dimension.DEVICE, false, 10);
+        assertEquals("1", entry(byMessages, 0).get("key"));
+        assertEquals(50L, entry(byMessages, 0).get("count"));
+        JSONArray byBytes = heavyHitters.getTop(now, HeavyHitters.Dimension.USER, true, 1);
+        assertEquals(1, byBytes.size());
+        assertEquals("8", entry(byBytes, 0).get("key"));
+        assertEquals(5000L, entry(byBytes, 0).get("count"));
+        JSONArray topics = heavyHitters.getTop(now, HeavyHitters.Dimension.TOPIC, false, 10);
+        assertEquals("IN/ECHO/7/1/1", entry(topics, 0).get("key"));
+    }
+
+    @Test
+    public void oldSlotsLeaveTheWindow() {
+        long now = 100 * SLOT;
+        heavyHitters.record(now, 0, 1, null, 1);
+        assertEquals(1, heavyHitters.getTop(now + 5 * SLOT, HeavyHitters.Dimension.DEVICE, false, 10).size());
+        assertEquals(0, heavyHitters.getTop(now + 6 * SLOT, HeavyHitters.Dimension.DEVICE, false, 10).size());
+        //没有绑定用户、没有Topic的不记录
+        assertEquals(0, heavyHitters.getTop(now, HeavyHitters.Dimension.USER, false, 10).size());
+        assertEquals(0, heavyHitters.getTop(now, HeavyHitters.Dimension.TOPIC, false, 10).size());
+    }
+
+    /**
+     * 多个线程落在不同分片上，合并以后计数不丢
+     */
+    @Test
+    public void stripesMergeAcrossThreads() throws Exception {
+        long now = 100 * SLOT;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    heavyHitters.record(now, 1, i % 5, null, 2);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        JSONArray top = heavyHitters.getTop(now, HeavyHitters.Dimension.DEVICE, false, 10);
+        assertEquals(5, top.size());
+        for (int i = 0; i < top.size(); i++) {
+            assertEquals(16000L, entry(top, i).get("count"));
+            assertEquals(0L, entry(top, i).get("error"));
+        }
+        assertEquals(160000L, entry(heavyHitters.getTop(now, HeavyHitters.Dimension.USER, true, 1), 0).get("count"));
+        assertTrue(heavyHitters.getStatistics(3).containsKey("device"));
+    }
+
+    private static JSONObject entry(JSONArray array, int index) {
+        return (JSONObject) array.get(index);
+    }
+}
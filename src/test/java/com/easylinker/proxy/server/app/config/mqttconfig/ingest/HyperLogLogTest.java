@@ -0,0 +1,82 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HyperLogLogTest {
+    @Test
+    public void emptySketchEstimatesZero() {
+        assertEquals(0, new HyperLogLog(12).estimate());
+    }
+
+    @Test
+    public void smallCardinalitiesUseLinearCounting() {
+        HyperLogLog sketch = new HyperLogLog(12);
+        for (long id = 1; id <= 10; id++) {
+            sketch.add(HyperLogLog.hash(id));
+        }
+        assertEquals(10, sketch.estimate());
+    }
+
+    @Test
+    public void duplicatesDoNotCount() {
+        HyperLogLog sketch = new HyperLogLog(12);
+        for (int round = 0; round < 20; round++) {
+            for (long id = 0; id < 1000; id++) {
+                sketch.add(HyperLogLog.hash(id));
+            }
+        }
+        assertWithin(1000, sketch.estimate(), 0.05);
+    }
+
+    /**
+     * 精度12的标准误差约1.6%，按4倍标准误差检查
+     */
+    @Test
+    public void largeCardinalitiesStayWithinError() {
+        for (int cardinality : new int[]{20000, 100000, 1000000}) {
+            HyperLogLog sketch = new HyperLogLog(12);
+            for (long id = 0; id < cardinality; id++) {
+                sketch.add(HyperLogLog.hash(id * 7919 + 13));
+            }
+            assertWithin(cardinality, sketch.estimate(), 0.065);
+        }
+    }
+
+    @Test
+    public void mergeEstimatesTheUnion() {
+        HyperLogLog first = new HyperLogLog(10);
+        HyperLogLog second = new HyperLogLog(10);
+        HyperLogLog union = new HyperLogLog(10);
+        for (long id = 0; id < 30000; id++) {
+            //两个集合有一半重叠
+            if (id < 20000) {
+                first.add(HyperLogLog.hash(id));
+            }
+            if (id >= 10000) {
+                second.add(HyperLogLog.hash(id));
+            }
+            union.add(HyperLogLog.hash(id));
+        }
+        first.merge(second);
+        assertEquals(union.estimate(), first.estimate());
+        assertWithin(30000, first.estimate(), 0.13);
+    }
+
+    @Test
+    public void rankIsCappedBySentinel() {
+        HyperLogLog sketch = new HyperLogLog(4);
+        //索引位之后全是0
+        sketch.add(0L);
+        sketch.add(0x1000000000000000L);
+        assertTrue(sketch.estimate() > 0);
+        sketch.clear();
+        assertEquals(0, sketch.estimate());
+    }
+
+    private static void assertWithin(long expected, long actual, double tolerance) {
+        assertTrue("expected " + expected + " got " + actual, Math.abs(actual - expected) <= expected * tolerance);
+    }
+}
@@ -0,0 +1,102 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IngestFailuresTest {
+    private IngestFailures failures;
+    private QuarantineStore quarantineStore;
+    private final Message<?> message = MessageBuilder.withPayload("{\"t\":1}").setHeader("mqtt_topic", "IN/ECHO/1/2/3").build();
+
+    @Before
+    public void setUp() throws IOException {
+        File dir = Files.createTempDirectory("quarantine").toFile();
+        dir.deleteOnExit();
+        quarantineStore = new QuarantineStore();
+        quarantineStore.capacity = 10;
+        quarantineStore.dir = dir.getAbsolutePath();
+        quarantineStore.maxPayloadBytes = 1024;
+        quarantineStore.logInterval = 60000;
+        quarantineStore.start();
+        failures = new IngestFailures();
+        failures.maxRetries = 2;
+        failures.retryInterval = 1;
+        failures.logInterval = 60000;
+        failures.quarantineStore = quarantineStore;
+        failures.start();
+    }
+
+    @Test
+    public void malformedPayloadIsQuarantinedWithoutRetry() {
+        List<Message<?>> attempts = new ArrayList<>();
+        failures.handle(message, attempt -> {
+            attempts.add(attempt);
+            throw new IllegalArgumentException("载荷不是JSON对象");
+        });
+        assertEquals(1, attempts.size());
+        assertEquals(1L, quarantineStore.getStatistics().get("quarantined"));
+        assertEquals(0L, failures.getStatistics().get("retried"));
+    }
+
+    @Test
+    public void infrastructureFailureIsRetriedWithMarker() {
+        List<Message<?>> attempts = new ArrayList<>();
+        failures.handle(message, attempt -> {
+            attempts.add(attempt);
+            if (attempts.size() == 1) {
+                throw new DataAccessResourceFailureException("数据库连接失败");
+            }
+        });
+        assertEquals(2, attempts.size());
+        assertFalse(IngestFailures.isRetry(attempts.get(0)));
+        assertTrue(IngestFailures.isRetry(attempts.get(1)));
+        assertEquals("IN/ECHO/1/2/3", attempts.get(1).getHeaders().get("mqtt_topic"));
+        assertEquals(0L, quarantineStore.getStatistics().get("quarantined"));
+        assertEquals(1L, failures.getStatistics().get("retried"));
+        assertEquals(0L, failures.getStatistics().get("failed"));
+    }
+
+    @Test
+    public void exhaustedRetriesAreCountedNotQuarantined() {
+        List<Message<?>> attempts = new ArrayList<>();
+        failures.handle(message, attempt -> {
+            attempts.add(attempt);
+            throw new IOException("磁盘已满");
+        });
+        assertEquals(3, attempts.size());
+        assertEquals(0L, quarantineStore.getStatistics().get("quarantined"));
+        assertEquals(1L, failures.getStatistics().get("failed"));
+    }
+
+    @Test
+    public void classifiesByCauseChain() {
+        assertTrue(IngestFailures.isInfrastructureFailure(new IllegalStateException(new IOException("x"))));
+        assertTrue(IngestFailures.isInfrastructureFailure(new InterruptedException()));
+        assertFalse(IngestFailures.isInfrastructureFailure(new DataIntegrityViolationException("字段太长")));
+        assertFalse(IngestFailures.isInfrastructureFailure(new NumberFormatException("abc")));
+    }
+
+    @Test
+    public void quarantinePagingIsClamped() {
+        for (int i = 0; i < 3; i++) {
+            quarantineStore.quarantine(message, "bad");
+        }
+        assertEquals(3, quarantineStore.getEntries(-1, 100).size());
+        assertEquals(1, quarantineStore.getEntries(0, 0).size());
+        assertEquals(0, quarantineStore.getEntries(Integer.MAX_VALUE, 10).size());
+    }
+}
@@ -0,0 +1,54 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IngestPolicyTest {
+
+    @Test
+    public void parsesEveryOption() {
+        IngestPolicy policy = IngestPolicy.parse("{\"onChange\":true,\"deadband\":{\"temperature\":0.5,\"env.humidity\":2},"
+                + "\"every\":10,\"interval\":60000,\"heartbeat\":600000}");
+        assertTrue(policy.isOnChange());
+        assertTrue(policy.hasDeadband());
+        assertArrayEquals(new String[]{"temperature", "env.humidity"}, policy.getDeadbandFields());
+        assertArrayEquals(new double[]{0.5, 2}, policy.getDeadbands(), 0);
+        assertEquals(10, policy.getEvery());
+        assertEquals(60000, policy.getInterval());
+        assertEquals(600000, policy.getHeartbeat());
+    }
+
+    @Test
+    public void missingOptionsAreOff() {
+        IngestPolicy policy = IngestPolicy.parse("{}");
+        assertFalse(policy.isOnChange());
+        assertFalse(policy.hasDeadband());
+        assertEquals(0, policy.getEvery());
+        assertEquals(0, policy.getInterval());
+        assertEquals(0, policy.getHeartbeat());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidJson() {
+        IngestPolicy.parse("{every:");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyPolicy() {
+        IngestPolicy.parse("");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeDeadband() {
+        IngestPolicy.parse("{\"deadband\":{\"temperature\":-1}}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeInterval() {
+        IngestPolicy.parse("{\"interval\":-1}");
+    }
+}
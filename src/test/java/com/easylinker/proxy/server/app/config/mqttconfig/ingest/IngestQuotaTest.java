@@ -0,0 +1,160 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import com.alibaba.fastjson.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * GCRA令牌桶，时间由测试传入
+ */
+public class IngestQuotaTest {
+    private static final long MILLI = 1_000_000L;
+    private static final long SECOND = 1000 * MILLI;
+    private static final long USER = 1L;
+    private static final long GROUP = 2L;
+    private static final long DEVICE = 3L;
+
+    private IngestQuota quota;
+
+    @Before
+    public void setUp() {
+        quota = new IngestQuota();
+        quota.enabled = true;
+        quota.defaultUserRate = 0;
+        quota.defaultDeviceRate = 10;
+        quota.burstSeconds = 2;
+    }
+
+    @Test
+    public void newBucketAllowsFullBurst() {
+        long now = SECOND;
+        //速率10，突发2秒，桶容量20
+        assertEquals(20, acquire(DEVICE, now, 100));
+        assertFalse(quota.tryAcquire(USER, GROUP, DEVICE, now));
+        //别的设备不受影响
+        assertTrue(quota.tryAcquire(USER, GROUP, DEVICE + 1, now));
+    }
+
+    @Test
+    public void refillsOneTokenPerInterval() {
+        long now = SECOND;
+        acquire(DEVICE, now, 100);
+        assertFalse(quota.tryAcquire(USER, GROUP, DEVICE, now + 99 * MILLI));
+        assertTrue(quota.tryAcquire(USER, GROUP, DEVICE, now + 100 * MILLI));
+        assertFalse(quota.tryAcquire(USER, GROUP, DEVICE, now + 100 * MILLI));
+        assertEquals(5, acquire(DEVICE, now + 600 * MILLI, 100));
+    }
+
+    /**
+     * 持续超速发送的时候，长期接受的数量 = 突发容量 + 速率 * 时间
+     */
+    @Test
+    public void sustainedRateConvergesToConfiguredRate() {
+        long start = SECOND;
+        int accepted = 0;
+        for (long t = 0; t < 10 * SECOND; t += MILLI) {
+            if (quota.tryAcquire(USER, GROUP, DEVICE, start + t)) {
+                accepted++;
+            }
+        }
+        assertTrue("accepted=" + accepted, Math.abs(accepted - (20 + 10 * 10)) <= 1);
+    }
+
+    @Test
+    public void overridesTakePrecedenceOverDefaults() {
+        long now = SECOND;
+        quota.setGroupDeviceRate(GROUP, 1);
+        assertEquals(2, acquire(DEVICE, now, 100));
+        quota.removeGroup(GROUP);
+        assertEquals(20, acquire(DEVICE + 1, now, 100));
+
+        quota.defaultDeviceRate = 0;
+        quota.defaultUserRate = 1000;
+        quota.setUser(USER, 5, null);
+        assertEquals(10, acquire(DEVICE + 2, now, 100));
+        quota.setUser(USER, null, 3);
+        assertEquals(3, quota.getWeight(USER));
+        assertEquals(1, quota.getWeight(USER + 1));
+    }
+
+    @Test
+    public void nonPositiveRateMeansUnlimited() {
+        quota.defaultDeviceRate = 0;
+        assertEquals(10000, acquire(DEVICE, SECOND, 10000));
+        quota.enabled = false;
+        quota.defaultDeviceRate = 1;
+        assertEquals(10000, acquire(DEVICE + 1, SECOND, 10000));
+    }
+
+    @Test
+    public void deviceRejectionDoesNotSpendUserTokens() {
+        long now = SECOND;
+        //用户容量30，设备容量20
+        quota.defaultUserRate = 15;
+        assertEquals(20, acquire(DEVICE, now, 100));
+        //被设备限流拒绝的80次没有扣用户的令牌
+        assertEquals(10, acquire(DEVICE + 1, now, 100));
+        JSONObject statistics = quota.getStatistics();
+        assertEquals(160L, statistics.get("deviceRejected"));
+        assertEquals(10L, statistics.get("userRejected"));
+        assertEquals(30L, statistics.get("accepted"));
+    }
+
+    @Test
+    public void evictsOnlyRefilledBuckets() {
+        long now = SECOND;
+        acquire(DEVICE, now, 1);
+        acquire(DEVICE + 1, now, 20);
+        //一个令牌100ms后回满，20个令牌要2秒
+        quota.evictIdleBuckets(now + 100 * MILLI);
+        assertEquals(1, quota.getStatistics().get("deviceBuckets"));
+        quota.evictIdleBuckets(now + 2 * SECOND);
+        assertEquals(0, quota.getStatistics().get("deviceBuckets"));
+        //重新创建的桶是满的
+        assertEquals(20, acquire(DEVICE + 1, now + 2 * SECOND, 100));
+    }
+
+    @Test
+    public void concurrentCallersNeverExceedBurst() throws Exception {
+        long now = SECOND;
+        AtomicInteger accepted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                accepted.addAndGet(acquire(DEVICE, now, 1000));
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(20, accepted.get());
+    }
+
+    private int acquire(long deviceId, long now, int attempts) {
+        int accepted = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (quota.tryAcquire(USER, GROUP, deviceId, now)) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+}
@@ -0,0 +1,98 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.ingest;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpaceSavingTest {
+    @Test
+    public void exactWhileUnderCapacity() {
+        SpaceSaving<String> summary = new SpaceSaving<>(4);
+        summary.add("a", 3);
+        summary.add("b", 1);
+        summary.add("a", 2);
+        Map<String, long[]> snapshot = summary.snapshot();
+        assertEquals(2, snapshot.size());
+        assertEquals(5, snapshot.get("a")[0]);
+        assertEquals(0, snapshot.get("a")[1]);
+        assertEquals(0, summary.getMinCount());
+    }
+
+    @Test
+    public void newKeyReplacesSmallestAndInheritsItsCount() {
+        SpaceSaving<String> summary = new SpaceSaving<>(2);
+        summary.add("a", 5);
+        summary.add("b", 2);
+        summary.add("c", 1);
+        Map<String, long[]> snapshot = summary.snapshot();
+        assertEquals(2, snapshot.size());
+        assertTrue(snapshot.containsKey("a"));
+        //c 顶替了 b，计数 2 + 1，误差 2
+        assertEquals(3, snapshot.get("c")[0]);
+        assertEquals(2, snapshot.get("c")[1]);
+        assertEquals(3, summary.getMinCount());
+    }
+
+    /**
+     * 计数偏大但不超过误差，真实计数超过 总数/capacity 的键一定被跟踪
+     */
+    @Test
+    public void boundsHoldOnSkewedStream() {
+        SpaceSaving<Long> summary = new SpaceSaving<>(20);
+        Map<Long, Long> exact = new HashMap<>();
+        Random random = new Random(7);
+        long total = 0;
+        for (int i = 0; i < 100000; i++) {
+            //一半流量给 0..4，其余均匀分散到 1000 个键
+            long key = random.nextBoolean() ? random.nextInt(5) : 5 + random.nextInt(1000);
+            long weight = 1 + random.nextInt(3);
+            summary.add(key, weight);
+            exact.merge(key, weight, Long::sum);
+            total += weight;
+        }
+        Map<Long, long[]> snapshot = summary.snapshot();
+        for (Map.Entry<Long, long[]> entry : snapshot.entrySet()) {
+            long actual = exact.get(entry.getKey());
+            assertTrue(entry.getValue()[0] >= actual);
+            assertTrue(entry.getValue()[0] - entry.getValue()[1] <= actual);
+        }
+        for (Map.Entry<Long, Long> entry : exact.entrySet()) {
+            if (entry.getValue() > total / 20) {
+                assertTrue("missing " + entry.getKey(), snapshot.containsKey(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void mergeFillsMissingKeysWithMinCount() {
+        Map<String, long[]> first = new HashMap<>();
+        first.put("a", new long[]{10, 1});
+        Map<String, long[]> second = new HashMap<>();
+        second.put("b", new long[]{4, 0});
+        List<Map<String, long[]>> snapshots = new ArrayList<>(Arrays.asList(first, second));
+        Map<String, long[]> merged = SpaceSaving.merge(snapshots, Arrays.asList(3L, 2L));
+        assertEquals(12, merged.get("a")[0]);
+        assertEquals(3, merged.get("a")[1]);
+        assertEquals(7, merged.get("b")[0]);
+        assertEquals(3, merged.get("b")[1]);
+    }
+
+    @Test
+    public void clearResetsSummary() {
+        SpaceSaving<String> summary = new SpaceSaving<>(1);
+        summary.add("a", 1);
+        summary.add("b", 1);
+        summary.clear();
+        summary.add("c", 1);
+        assertEquals(1, summary.snapshot().get("c")[0]);
+        assertEquals(0, summary.snapshot().get("c")[1]);
+    }
+}
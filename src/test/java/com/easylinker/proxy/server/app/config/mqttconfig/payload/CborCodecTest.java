@@ -0,0 +1,218 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 固定向量取自 RFC 7049 附录A
+ */
+public class CborCodecTest {
+    private final CborCodec codec = new CborCodec();
+
+    @Test
+    public void decodesIntegers() {
+        assertEquals(0L, decode("00"));
+        assertEquals(23L, decode("17"));
+        assertEquals(24L, decode("1818"));
+        assertEquals(1000L, decode("1903e8"));
+        assertEquals(1000000000000L, decode("1b000000e8d4a51000"));
+        assertEquals(new BigInteger("18446744073709551615"), decode("1bffffffffffffffff"));
+        assertEquals(-1L, decode("20"));
+        assertEquals(-1000L, decode("3903e7"));
+        assertEquals(new BigInteger("-18446744073709551616"), decode("3bffffffffffffffff"));
+    }
+
+    @Test
+    public void decodesFloatsAndSimpleValues() {
+        assertEquals(0.0, decode("f90000"));
+        assertEquals(1.0, decode("f93c00"));
+        assertEquals(65504.0, decode("f97bff"));
+        assertEquals(5.960464477539063e-8, decode("f90001"));
+        assertEquals(Double.NEGATIVE_INFINITY, decode("f9fc00"));
+        assertEquals(100000.0f, decode("fa47c35000"));
+        assertEquals(1.1, decode("fb3ff199999999999a"));
+        assertEquals(Boolean.FALSE, decode("f4"));
+        assertEquals(Boolean.TRUE, decode("f5"));
+        assertNull(decode("f6"));
+        assertNull(decode("f7"));
+    }
+
+    @Test
+    public void decodesStringsAndContainers() {
+        assertEquals("IETF", decode("6449455446"));
+        assertEquals("水", decode("63e6b0b4"));
+        assertEquals("AQIDBA==", decode("4401020304"));
+        assertEquals("streaming", decode("7f657374726561646d696e67ff"));
+        assertEquals(list(1L, list(2L, 3L), list(4L, 5L)), decode("8301820203820405"));
+        assertEquals(list(1L, list(2L, 3L), list(4L, 5L)), decode("9f018202039f0405ffff"));
+        assertEquals(map("Fun", true, "Amt", -2L), decode("bf6346756ef563416d7421ff"));
+        //非字符串的key转成字符串
+        assertEquals(map("1", 2L, "3", 4L), decode("a201020304"));
+        //标签只保留被标记的值
+        assertEquals(1363896240L, decode("c11a514b67b0"));
+    }
+
+    @Test
+    public void roundTripsEncodedValues() {
+        Map<String, Object> value = map(
+                "temperature", 25.5,
+                "humidity", 61L,
+                "negative", -100000L,
+                "name", "传感器-1",
+                "on", true,
+                "none", null,
+                "tags", list("a", "b", list()),
+                "nested", map("x", 1L, "y", map()),
+                "raw", new byte[]{0, 1, (byte) 0xff});
+        byte[] payload = encode(value);
+        assertTrue(codec.isWellFormed(payload));
+        Map<String, Object> expected = map(
+                "temperature", 25.5,
+                "humidity", 61L,
+                "negative", -100000L,
+                "name", "传感器-1",
+                "on", true,
+                "none", null,
+                "tags", list("a", "b", list()),
+                "nested", map("x", 1L, "y", map()),
+                "raw", "AAH/");
+        assertEquals(expected, codec.toJson(payload));
+    }
+
+    @Test
+    public void rejectsMalformedPayloads() {
+        assertFalse(codec.isWellFormed(hex("")));
+        //长度不够
+        assertFalse(codec.isWellFormed(hex("1903")));
+        assertFalse(codec.isWellFormed(hex("6449")));
+        //break出现在不定长结构外面
+        assertFalse(codec.isWellFormed(hex("ff")));
+        //不定长数组没有break
+        assertFalse(codec.isWellFormed(hex("9f0102")));
+        //不定长字符串的分块类型不对
+        assertFalse(codec.isWellFormed(hex("7f4101ff")));
+        //保留的附加信息
+        assertFalse(codec.isWellFormed(hex("1c")));
+        //非法UTF-8
+        assertFalse(codec.isWellFormed(hex("62c080")));
+        //伪造的超大长度
+        assertFalse(codec.isWellFormed(hex("9b00000000ffffffff")));
+        assertFalse(codec.isWellFormed(hex("bb7fffffffffffffff")));
+        //多余的字节
+        assertFalse(codec.isWellFormed(hex("0000")));
+    }
+
+    @Test
+    public void limitsNestingDepth() {
+        byte[] deep = new byte[300];
+        Arrays.fill(deep, (byte) 0x81);
+        deep[deep.length - 1] = 0;
+        assertFalse(codec.isWellFormed(deep));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void toJsonRejectsTrailingBytes() {
+        codec.toJson(hex("0101"));
+    }
+
+    private Object decode(String hex) {
+        byte[] payload = hex(hex);
+        assertTrue(hex, codec.isWellFormed(payload));
+        return codec.toJson(payload);
+    }
+
+    static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    static JSONArray list(Object... items) {
+        JSONArray array = new JSONArray();
+        array.addAll(Arrays.asList(items));
+        return array;
+    }
+
+    static JSONObject map(Object... keyValues) {
+        JSONObject object = new JSONObject(true);
+        for (int i = 0; i < keyValues.length; i += 2) {
+            object.put((String) keyValues[i], keyValues[i + 1]);
+        }
+        return object;
+    }
+
+    /**
+     * 测试用的最小CBOR编码，整数、double、字符串、字节串、数组、map
+     */
+    private static byte[] encode(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, value);
+        return out.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write(0xf6);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? 0xf5 : 0xf4);
+        } else if (value instanceof Long) {
+            long v = (Long) value;
+            head(out, v >= 0 ? 0 : 1, v >= 0 ? v : -1 - v);
+        } else if (value instanceof Double) {
+            out.write(0xfb);
+            long bits = Double.doubleToLongBits((Double) value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+        } else if (value instanceof String) {
+            byte[] text = ((String) value).getBytes(StandardCharsets.UTF_8);
+            head(out, 3, text.length);
+            out.write(text, 0, text.length);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            head(out, 2, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else if (value instanceof List) {
+            List<Object> items = (List<Object>) value;
+            head(out, 4, items.size());
+            for (Object item : items) {
+                write(out, item);
+            }
+        } else {
+            Map<String, Object> entries = (Map<String, Object>) value;
+            head(out, 5, entries.size());
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                write(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        }
+    }
+
+    private static void head(ByteArrayOutputStream out, int major, long argument) {
+        if (argument < 24) {
+            out.write(major << 5 | (int) argument);
+            return;
+        }
+        int length = argument < 0x100 ? 1 : argument < 0x10000 ? 2 : argument < 0x100000000L ? 4 : 8;
+        out.write(major << 5 | (length == 1 ? 24 : length == 2 ? 25 : length == 4 ? 26 : 27));
+        for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (argument >>> shift));
+        }
+    }
+}
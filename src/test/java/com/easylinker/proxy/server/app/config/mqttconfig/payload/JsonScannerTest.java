@@ -0,0 +1,105 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonScannerTest {
+
+    @Test
+    public void acceptsWellFormedObjects() {
+        assertTrue(object("{}"));
+        assertTrue(object(" \t\r\n{ } \n"));
+        assertTrue(object("{\"a\":1,\"b\":-0.5e+3,\"c\":[true,false,null,\"x\"],\"d\":{\"e\":[]}}"));
+        assertTrue(object("{\"温度\":\"二十五度\",\"emoji\":\"\uD83D\uDE00\"}"));
+        assertTrue(object("{\"s\":\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00e9\"}"));
+    }
+
+    @Test
+    public void objectOnlyRejectsOtherTopLevelValues() {
+        assertFalse(object("[1,2]"));
+        assertFalse(object("\"text\""));
+        assertFalse(object("1"));
+        assertFalse(object(""));
+        assertTrue(JsonScanner.isWellFormed(bytes("[1,2]")));
+        assertTrue(JsonScanner.isWellFormed(bytes("null")));
+    }
+
+    @Test
+    public void rejectsStructuralErrors() {
+        assertFalse(object("{"));
+        assertFalse(object("{\"a\":1"));
+        assertFalse(object("{\"a\" 1}"));
+        assertFalse(object("{\"a\":}"));
+        assertFalse(object("{\"a\":[1,2}"));
+        assertFalse(object("{\"a\":1}}"));
+        assertFalse(object("{\"a\":1} x"));
+        assertFalse(object("{\"a\":tru}"));
+        assertFalse(object("{\"a\":\"unterminated}"));
+    }
+
+    @Test
+    public void rejectsNumbersOutsideTheGrammar() {
+        assertFalse(object("{\"a\":01}"));
+        assertFalse(object("{\"a\":1.}"));
+        assertFalse(object("{\"a\":.5}"));
+        assertFalse(object("{\"a\":1e}"));
+        assertFalse(object("{\"a\":+1}"));
+        assertFalse(object("{\"a\":-}"));
+        assertTrue(object("{\"a\":0,\"b\":-0,\"c\":1E-7}"));
+    }
+
+    /**
+     * fastjson 接受、扫描器拒绝的写法，Payloads.setJsonData 会回退到 fastjson
+     */
+    @Test
+    public void rejectsLenientSyntax() {
+        assertFalse(object("{'a':1}"));
+        assertFalse(object("{a:1}"));
+        assertFalse(object("{\"a\":1,}"));
+        assertFalse(object("{\"a\":[1,2,]}"));
+        assertFalse(object("{/*c*/\"a\":1}"));
+        assertFalse(object("{\"a\":\"\\x41\"}"));
+        assertFalse(object("{\"a\":\"tab\there\"}"));
+    }
+
+    @Test
+    public void rejectsInvalidUtf8InStrings() {
+        assertFalse(JsonScanner.isWellFormedObject(new byte[]{'{', '"', (byte) 0xC0, (byte) 0x80, '"', ':', '1', '}'}));
+        assertFalse(JsonScanner.isWellFormedObject(new byte[]{'{', '"', (byte) 0xED, (byte) 0xA0, (byte) 0x80, '"', ':', '1', '}'}));
+        assertFalse(JsonScanner.isWellFormedObject(new byte[]{'{', '"', (byte) 0xE4, (byte) 0xB8, '"', ':', '1', '}'}));
+        assertFalse(JsonScanner.isWellFormedObject(new byte[]{'{', '"', (byte) 0xF4, (byte) 0x90, (byte) 0x80, (byte) 0x80, '"', ':', '1', '}'}));
+        assertTrue(JsonScanner.isUtf8(bytes("中文"), 0, bytes("中文").length));
+    }
+
+    @Test
+    public void limitsNestingDepth() {
+        StringBuilder deep = new StringBuilder("{\"a\":");
+        for (int i = 0; i < 300; i++) {
+            deep.append('[');
+        }
+        for (int i = 0; i < 300; i++) {
+            deep.append(']');
+        }
+        deep.append('}');
+        assertFalse(object(deep.toString()));
+    }
+
+    @Test
+    public void checksOnlyTheGivenRange() {
+        byte[] framed = bytes("xx{\"a\":1}yy");
+        assertTrue(JsonScanner.check(framed, 2, framed.length - 2, true));
+        assertFalse(JsonScanner.check(framed, 0, framed.length, true));
+    }
+
+    private static boolean object(String text) {
+        return JsonScanner.isWellFormedObject(bytes(text));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,174 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.easylinker.proxy.server.app.config.mqttconfig.payload.CborCodecTest.hex;
+import static com.easylinker.proxy.server.app.config.mqttconfig.payload.CborCodecTest.list;
+import static com.easylinker.proxy.server.app.config.mqttconfig.payload.CborCodecTest.map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessagePackCodecTest {
+    private final MessagePackCodec codec = new MessagePackCodec();
+
+    @Test
+    public void decodesIntegers() {
+        assertEquals(0L, decode("00"));
+        assertEquals(127L, decode("7f"));
+        assertEquals(-1L, decode("ff"));
+        assertEquals(-32L, decode("e0"));
+        assertEquals(255L, decode("ccff"));
+        assertEquals(65535L, decode("cdffff"));
+        assertEquals(4294967295L, decode("ceffffffff"));
+        assertEquals(new BigInteger("18446744073709551615"), decode("cfffffffffffffffff"));
+        assertEquals(-128L, decode("d080"));
+        assertEquals(-32768L, decode("d18000"));
+        assertEquals((long) Integer.MIN_VALUE, decode("d280000000"));
+        assertEquals(Long.MIN_VALUE, decode("d38000000000000000"));
+    }
+
+    @Test
+    public void decodesOtherScalars() {
+        assertNull(decode("c0"));
+        assertEquals(Boolean.FALSE, decode("c2"));
+        assertEquals(Boolean.TRUE, decode("c3"));
+        assertEquals(1.5f, decode("ca3fc00000"));
+        assertEquals(1.1, decode("cb3ff199999999999a"));
+        assertEquals("abc", decode("a3616263"));
+        assertEquals("水", decode("d903e6b0b4"));
+        assertEquals("AQI=", decode("c4020102"));
+        assertEquals(map("ext", 5, "data", "/w=="), decode("d405ff"));
+        assertEquals(map("ext", -1, "data", "AQID"), decode("c703ff010203"));
+    }
+
+    @Test
+    public void decodesContainers() {
+        assertEquals(map("a", 1L, "b", list(true, null)), decode("82a16101a16292c3c0"));
+        assertEquals(list(1L, 2L), decode("dc00020102"));
+        assertEquals(map("1", "x"), decode("de000101a178"));
+    }
+
+    @Test
+    public void roundTripsEncodedValues() {
+        Map<String, Object> value = map(
+                "temperature", -12.25,
+                "small", 7L,
+                "negative", -33L,
+                "big", 5000000000L,
+                "name", "传感器-1",
+                "on", false,
+                "none", null,
+                "tags", list("a", list(), map()),
+                "raw", new byte[]{(byte) 0xfb, (byte) 0xff});
+        byte[] payload = encode(value);
+        assertTrue(codec.isWellFormed(payload));
+        Map<String, Object> expected = map(
+                "temperature", -12.25,
+                "small", 7L,
+                "negative", -33L,
+                "big", 5000000000L,
+                "name", "传感器-1",
+                "on", false,
+                "none", null,
+                "tags", list("a", list(), map()),
+                "raw", "+/8=");
+        assertEquals(expected, codec.toJson(payload));
+    }
+
+    @Test
+    public void rejectsMalformedPayloads() {
+        assertFalse(codec.isWellFormed(hex("")));
+        //0xc1 没有使用
+        assertFalse(codec.isWellFormed(hex("c1")));
+        assertFalse(codec.isWellFormed(hex("cd01")));
+        assertFalse(codec.isWellFormed(hex("a36162")));
+        assertFalse(codec.isWellFormed(hex("a2c080")));
+        //伪造的元素个数
+        assertFalse(codec.isWellFormed(hex("ddffffffff")));
+        assertFalse(codec.isWellFormed(hex("df7fffffff")));
+        assertFalse(codec.isWellFormed(hex("8101")));
+        assertFalse(codec.isWellFormed(hex("0101")));
+    }
+
+    @Test
+    public void limitsNestingDepth() {
+        byte[] deep = new byte[300];
+        Arrays.fill(deep, (byte) 0x91);
+        deep[deep.length - 1] = 0;
+        assertFalse(codec.isWellFormed(deep));
+    }
+
+    private Object decode(String hex) {
+        byte[] payload = hex(hex);
+        assertTrue(hex, codec.isWellFormed(payload));
+        return codec.toJson(payload);
+    }
+
+    /**
+     * 测试用的最小MessagePack编码
+     */
+    private static byte[] encode(Object value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, value);
+        return out.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write(0xc0);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? 0xc3 : 0xc2);
+        } else if (value instanceof Long) {
+            long v = (Long) value;
+            if (v >= -32 && v <= 127) {
+                out.write((int) v);
+            } else {
+                out.write(0xd3);
+                bigEndian(out, v, 8);
+            }
+        } else if (value instanceof Double) {
+            out.write(0xcb);
+            bigEndian(out, Double.doubleToLongBits((Double) value), 8);
+        } else if (value instanceof String) {
+            byte[] text = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.write(0xd9);
+            out.write(text.length);
+            out.write(text, 0, text.length);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.write(0xc4);
+            out.write(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else if (value instanceof List) {
+            List<Object> items = (List<Object>) value;
+            out.write(0xdc);
+            bigEndian(out, items.size(), 2);
+            for (Object item : items) {
+                write(out, item);
+            }
+        } else {
+            Map<String, Object> entries = (Map<String, Object>) value;
+            out.write(0x80 | entries.size());
+            for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                write(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        }
+    }
+
+    private static void bigEndian(ByteArrayOutputStream out, long value, int length) {
+        for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import com.alibaba.fastjson.JSONObject;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NumericFieldsTest {
+    @Test
+    public void flattensNestedNumbersAndBooleans() {
+        JSONObject env = new JSONObject();
+        env.put("humidity", 40);
+        env.put("ok", true);
+        env.put("name", "room");
+        JSONObject root = new JSONObject();
+        root.put("temperature", 21.5);
+        root.put("env", env);
+        root.put("nan", Double.NaN);
+        Map<String, Double> values = NumericFields.of(new byte[0], new FixedCodec(root)).get();
+        assertEquals("{env.humidity=40.0, env.ok=1.0, temperature=21.5}", values.toString());
+    }
+
+    @Test
+    public void stopsAtFourLevels() {
+        JSONObject level = new JSONObject();
+        level.put("v", 1);
+        for (int i = 0; i < 4; i++) {
+            JSONObject parent = new JSONObject();
+            parent.put("n" + i, level);
+            parent.put("v" + i, i);
+            level = parent;
+        }
+        Map<String, Double> values = NumericFields.of(new byte[0], new FixedCodec(level)).get();
+        assertEquals("{n3.n2.n1.v0=0.0, n3.n2.v1=1.0, n3.v2=2.0, v3=3.0}", values.toString());
+    }
+
+    @Test
+    public void parsesOnceAndToleratesBadPayloads() {
+        FixedCodec codec = new FixedCodec(null);
+        NumericFields fields = NumericFields.of(new byte[0], codec);
+        assertTrue(fields.get().isEmpty());
+        assertTrue(fields.get().isEmpty());
+        assertEquals(1, codec.calls);
+    }
+
+    @Test
+    public void scansJsonWithoutParsing() {
+        String json = "{\"temperature\":21.5,\"env\":{\"humidity\":40,\"ok\":true,\"name\":\"room\",\"tags\":[1,{\"x\":2}]},"
+                + "\"off\":false,\"none\":null,\"big\":1e400,\"t\\u00e9mp\":-3E2,\"a\":{\"b\":{\"c\":{\"d\":{\"e\":1},\"v\":4}}}}";
+        Map<String, Double> fromBytes = NumericFields.of(json.getBytes(StandardCharsets.UTF_8), null).get();
+        assertEquals("{a.b.c.v=4.0, env.humidity=40.0, env.ok=1.0, off=0.0, temperature=21.5, t\u00e9mp=-300.0}", fromBytes.toString());
+        assertEquals(fromBytes, NumericFields.of(json, null).get());
+    }
+
+    @Test
+    public void fallsBackForLenientJson() {
+        assertEquals("{v=1.0}", NumericFields.of("{'v':1}".getBytes(StandardCharsets.UTF_8), null).get().toString());
+        assertTrue(NumericFields.of("[1,2]", null).get().isEmpty());
+        assertTrue(NumericFields.of("{\"v\":1", null).get().isEmpty());
+    }
+
+    private static class FixedCodec implements PayloadCodec {
+        private final Object json;
+        int calls;
+
+        FixedCodec(Object json) {
+            this.json = json;
+        }
+
+        @Override
+        public String getName() {
+            return "fixed";
+        }
+
+        @Override
+        public boolean isWellFormed(byte[] payload) {
+            return true;
+        }
+
+        @Override
+        public Object toJson(byte[] payload) {
+            calls++;
+            if (json == null) {
+                throw new IllegalArgumentException("格式不对");
+            }
+            return json;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Topic后缀只认 enc/{已注册的编码}，其他层级按分组编码或者JSON处理
+ */
+public class PayloadCodecsTest {
+    private final PayloadCodecs codecs = new PayloadCodecs();
+    private final CborCodec cbor = new CborCodec();
+    private final MessagePackCodec msgpack = new MessagePackCodec();
+
+    @Before
+    public void setUp() {
+        codecs.register(cbor);
+        codecs.register(msgpack);
+        codecs.setGroupEncoding(2L, "msgpack");
+    }
+
+    @Test
+    public void reservedLevelSelectsCodec() {
+        assertSame(cbor, codecs.select("enc/cbor", 1L));
+        assertSame(cbor, codecs.select("enc/cbor", 2L));
+        assertNull(codecs.select("enc/json", 2L));
+    }
+
+    @Test
+    public void otherLevelsFallBackToGroupOrJson() {
+        assertNull(codecs.select("", 1L));
+        assertSame(msgpack, codecs.select("", 2L));
+        //已有设备在设备ID后面加的层级不是编码
+        assertNull(codecs.select("cbor", 1L));
+        assertNull(codecs.select("sensor/1", 1L));
+        assertSame(msgpack, codecs.select("sensor/1", 2L));
+        assertNull(codecs.select("enc/unknown", 1L));
+        assertSame(msgpack, codecs.select("enc/protobuf/missing", 2L));
+    }
+}
@@ -0,0 +1,182 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.payload;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.easylinker.proxy.server.app.config.mqttconfig.payload.CborCodecTest.list;
+import static com.easylinker.proxy.server.app.config.mqttconfig.payload.CborCodecTest.map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProtobufCodecTest {
+    private final Map<String, ProtobufSchema> schemas = new HashMap<>();
+    private final ProtobufCodec codec;
+
+    public ProtobufCodecTest() {
+        Map<Integer, ProtobufSchema.Field> position = new HashMap<>();
+        position.put(1, new ProtobufSchema.Field(1, "lat", "double", false));
+        position.put(2, new ProtobufSchema.Field(2, "lng", "double", false));
+        schemas.put("position", new ProtobufSchema("position", position));
+        Map<Integer, ProtobufSchema.Field> reading = new HashMap<>();
+        reading.put(1, new ProtobufSchema.Field(1, "temperature", "float", false));
+        reading.put(2, new ProtobufSchema.Field(2, "tags", "string", true));
+        reading.put(3, new ProtobufSchema.Field(3, "position", "message:position", false));
+        reading.put(4, new ProtobufSchema.Field(4, "offset", "sint32", false));
+        reading.put(5, new ProtobufSchema.Field(5, "samples", "int32", true));
+        reading.put(6, new ProtobufSchema.Field(6, "serial", "fixed64", false));
+        reading.put(7, new ProtobufSchema.Field(7, "raw", "bytes", false));
+        reading.put(8, new ProtobufSchema.Field(8, "ok", "bool", false));
+        reading.put(9, new ProtobufSchema.Field(9, "counter", "uint32", false));
+        schemas.put("reading", new ProtobufSchema("reading", reading));
+        codec = new ProtobufCodec(schemas.get("reading"), schemas);
+    }
+
+    @Test
+    public void nameCarriesSchema() {
+        assertEquals("protobuf:reading", codec.getName());
+    }
+
+    @Test
+    public void roundTripsEncodedMessage() {
+        Writer position = new Writer().fixed64(1, Double.doubleToLongBits(31.25)).fixed64(2, Double.doubleToLongBits(-121.5));
+        Writer samples = new Writer().varint(1).varint(-2L).varint(300);
+        byte[] payload = new Writer()
+                .fixed32(1, Float.floatToIntBits(21.5f))
+                .bytes(2, "a".getBytes(StandardCharsets.UTF_8))
+                .bytes(2, "温度".getBytes(StandardCharsets.UTF_8))
+                .bytes(3, position.toByteArray())
+                .tag(4, 0).varint(3)
+                .bytes(5, samples.toByteArray())
+                .fixed64(6, -1L)
+                .bytes(7, new byte[]{1, 2, 3})
+                .tag(8, 0).varint(1)
+                .tag(9, 0).varint(0xffffffffL)
+                .toByteArray();
+        assertTrue(codec.isWellFormed(payload));
+        assertEquals(map(
+                "temperature", 21.5f,
+                "tags", list("a", "温度"),
+                "position", map("lat", 31.25, "lng", -121.5),
+                "offset", -2L,
+                "samples", list(1L, -2L, 300L),
+                "serial", new BigInteger("18446744073709551615"),
+                "raw", "AQID",
+                "ok", true,
+                "counter", 4294967295L), codec.toJson(payload));
+    }
+
+    @Test
+    public void unpackedRepeatedAndLastValueWins() {
+        byte[] payload = new Writer()
+                .tag(5, 0).varint(7)
+                .tag(5, 0).varint(8)
+                .tag(8, 0).varint(1)
+                .tag(8, 0).varint(0)
+                .toByteArray();
+        assertEquals(map("samples", list(7L, 8L), "ok", false), codec.toJson(payload));
+    }
+
+    @Test
+    public void unknownFieldsRenderByNumber() {
+        byte[] payload = new Writer()
+                .tag(20, 0).varint(150)
+                .bytes(21, new byte[]{(byte) 0xff})
+                .fixed32(22, 1)
+                .toByteArray();
+        assertEquals(map("20", 150L, "21", "/w==", "22", 1L), codec.toJson(payload));
+        //schema里没有的嵌套消息类型同样按字段号渲染
+        Map<Integer, ProtobufSchema.Field> fields = new HashMap<>();
+        fields.put(1, new ProtobufSchema.Field(1, "child", "message:missing", false));
+        ProtobufCodec orphan = new ProtobufCodec(new ProtobufSchema("orphan", fields), schemas);
+        byte[] nested = new Writer().bytes(1, new Writer().tag(2, 0).varint(5).toByteArray()).toByteArray();
+        assertEquals(map("child", map("2", 5L)), orphan.toJson(nested));
+    }
+
+    @Test
+    public void emptyMessageIsEmptyObject() {
+        assertTrue(codec.isWellFormed(new byte[0]));
+        assertEquals(map(), codec.toJson(new byte[0]));
+    }
+
+    @Test
+    public void rejectsMalformedPayloads() {
+        //varint没有结束
+        assertFalse(codec.isWellFormed(new byte[]{0x08, (byte) 0x80}));
+        //字段号0
+        assertFalse(codec.isWellFormed(new byte[]{0x00, 0x01}));
+        //长度超出
+        assertFalse(codec.isWellFormed(new byte[]{0x12, 0x05, 'a'}));
+        //字段类型和schema不一致
+        assertFalse(codec.isWellFormed(new Writer().tag(1, 0).varint(1).toByteArray()));
+        //不支持的wire type
+        assertFalse(codec.isWellFormed(new byte[]{0x53}));
+        //字符串不是UTF-8
+        assertFalse(codec.isWellFormed(new Writer().bytes(2, new byte[]{(byte) 0xc0, (byte) 0x80}).toByteArray()));
+        //packed字段最后一个varint越过边界
+        assertFalse(codec.isWellFormed(new byte[]{0x2a, 0x01, (byte) 0x80, 0x01}));
+        byte[] longVarint = new byte[12];
+        longVarint[0] = 0x48;
+        for (int i = 1; i < longVarint.length; i++) {
+            longVarint[i] = (byte) 0x80;
+        }
+        assertFalse(codec.isWellFormed(longVarint));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void schemaRejectsUnknownType() {
+        new ProtobufSchema.Field(1, "x", "int128", false);
+    }
+
+    /**
+     * 测试用的Protobuf编码
+     */
+    private static class Writer {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Writer tag(int number, int wireType) {
+            return varint((long) number << 3 | wireType);
+        }
+
+        Writer varint(long value) {
+            while ((value & ~0x7fL) != 0) {
+                out.write((int) (value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write((int) value);
+            return this;
+        }
+
+        Writer fixed32(int number, int value) {
+            tag(number, 5);
+            for (int i = 0; i < 4; i++) {
+                out.write(value >>> (8 * i));
+            }
+            return this;
+        }
+
+        Writer fixed64(int number, long value) {
+            tag(number, 1);
+            for (int i = 0; i < 8; i++) {
+                out.write((int) (value >>> (8 * i)));
+            }
+            return this;
+        }
+
+        Writer bytes(int number, byte[] value) {
+            tag(number, 2);
+            varint(value.length);
+            out.write(value, 0, value.length);
+            return this;
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.router;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TopicRouter 和原来 startsWith/split/lastIndexOf 解析的对比
+ * 运行: mvn test-compile 以后用测试classpath执行 main，或者 -prof gc 看每条消息的分配
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicRouterBenchmark {
+    private final String[] topics = {
+            "IN/ECHO/1521508320001/1521508320002/1521508320898",
+            "IN/ECHO/1521508320001/1521508320002/1521508320898/cbor",
+            "CMD/IN/1521508320001/1521508320002/1521508320898",
+            "$SYS/brokers/emq@127.0.0.1/clients/1521508320898/connected",
+            "$SYS/brokers/emq@127.0.0.1/clients/1521508320898/disconnected"
+    };
+    private final TopicRouter router = new TopicRouter()
+            .route("IN/ECHO/+/+/+/#", (match, message) -> {
+            })
+            .route("CMD/IN/+/+/+/#", (match, message) -> {
+            })
+            .route("$SYS/brokers/+/clients/+/#", (match, message) -> {
+            });
+    private final TopicMatch match = new TopicMatch();
+    private int next;
+
+    @Benchmark
+    public void split(Blackhole blackhole) {
+        String topic = topics[next++ % topics.length];
+        if (topic.startsWith("IN/ECHO/") || topic.startsWith("CMD/IN/")) {
+            blackhole.consume(Long.parseLong(topic.split("/")[4]));
+        } else {
+            blackhole.consume(topic.substring(topic.lastIndexOf("/") + 1));
+            blackhole.consume(Long.parseLong(topic.split("/")[4]));
+        }
+    }
+
+    @Benchmark
+    public void router(Blackhole blackhole) {
+        String topic = topics[next++ % topics.length];
+        blackhole.consume(router.match(topic, match));
+        if (topic.charAt(0) == '$') {
+            blackhole.consume(match.matches(2, "connected"));
+            blackhole.consume(match.getLong(1));
+        } else {
+            blackhole.consume(match.getLong(2));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TopicRouterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
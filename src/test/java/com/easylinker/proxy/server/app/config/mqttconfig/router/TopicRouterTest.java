@@ -0,0 +1,141 @@
+package com.easylinker.proxy.server.app.config.mqttconfig.router;
+
+import org.junit.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TopicRouterTest {
+    private static final TopicHandler ECHO = (match, message) -> {
+    };
+    private static final TopicHandler CMD = (match, message) -> {
+    };
+    private static final TopicHandler PRESENCE = (match, message) -> {
+    };
+
+    private final TopicRouter router = new TopicRouter()
+            .route("IN/ECHO/+/+/+/#", ECHO)
+            .route("CMD/IN/#", CMD)
+            .route("$SYS/brokers/+/clients/+/#", PRESENCE);
+
+    @Test
+    public void extractsWildcardLevels() {
+        TopicMatch match = new TopicMatch();
+        assertSame(ECHO, router.match("IN/ECHO/12/34/1521508320898", match));
+        assertEquals(4, match.getSize());
+        assertEquals("12", match.get(0));
+        assertEquals("34", match.get(1));
+        assertEquals(1521508320898L, match.getLong(2));
+        //# 匹配父层级的时候是空串
+        assertTrue(match.matches(3, ""));
+    }
+
+    @Test
+    public void hashMatchesRemainingLevels() {
+        TopicMatch match = new TopicMatch();
+        assertSame(ECHO, router.match("IN/ECHO/1/2/3/cbor", match));
+        assertEquals("cbor", match.get(3));
+        assertSame(CMD, router.match("CMD/IN/1/2/3", match));
+        assertEquals("1/2/3", match.get(0));
+    }
+
+    @Test
+    public void unmatchedTopicsReturnNull() {
+        TopicMatch match = new TopicMatch();
+        assertNull(router.match("IN/ECHO/1/2", match));
+        assertNull(router.match("OUT/ECHO/1/2/3", match));
+        assertNull(router.match("IN/ECHOX/1/2/3", match));
+        assertNull(router.match("", match));
+    }
+
+    @Test
+    public void literalLevelWinsOverWildcards() throws Exception {
+        List<String> calls = new ArrayList<>();
+        TopicRouter router = new TopicRouter()
+                .route("a/#", (match, message) -> calls.add("hash"))
+                .route("a/+/c", (match, message) -> calls.add("plus"))
+                .route("a/b/c", (match, message) -> calls.add("literal"));
+        TopicMatch match = new TopicMatch();
+        router.match("a/b/c", match).handle(match, null);
+        router.match("a/x/c", match).handle(match, null);
+        router.match("a/x/d", match).handle(match, null);
+        assertEquals("[literal, plus, hash]", calls.toString());
+    }
+
+    @Test
+    public void backtracksWhenLiteralBranchFailsDeeper() {
+        TopicHandler plus = (match, message) -> {
+        };
+        TopicRouter router = new TopicRouter()
+                .route("a/b/c", (match, message) -> {
+                })
+                .route("a/+/d", plus);
+        TopicMatch match = new TopicMatch();
+        assertSame(plus, router.match("a/b/d", match));
+        assertEquals(1, match.getSize());
+        assertEquals("b", match.get(0));
+    }
+
+    @Test
+    public void systemTopicsDoNotMatchFirstLevelWildcards() {
+        TopicRouter router = new TopicRouter()
+                .route("#", ECHO)
+                .route("+/brokers/#", CMD);
+        TopicMatch match = new TopicMatch();
+        assertNull(router.match("$SYS/brokers/emq@127.0.0.1/clients/1/connected", match));
+        assertSame(PRESENCE, this.router.match("$SYS/brokers/emq@127.0.0.1/clients/1/connected", match));
+        assertEquals("emq@127.0.0.1", match.get(0));
+        assertEquals(1, match.getLong(1));
+        assertEquals("connected", match.get(2));
+    }
+
+    @Test
+    public void dispatchUsesTopicHeader() throws Exception {
+        List<String> devices = new ArrayList<>();
+        TopicRouter router = new TopicRouter()
+                .route("IN/ECHO/+/+/+/#", (match, message) -> devices.add(match.get(2) + ":" + message.getPayload()));
+        Message<String> message = MessageBuilder.withPayload("{}").setHeader("mqtt_topic", "IN/ECHO/1/2/3").build();
+        assertTrue(router.dispatch(message));
+        assertFalse(router.dispatch(MessageBuilder.withPayload("{}").setHeader("mqtt_topic", "IN/CMD/1/2/3").build()));
+        assertEquals("[3:{}]", devices.toString());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void getLongRejectsNonDigits() {
+        TopicMatch match = new TopicMatch();
+        router.match("IN/ECHO/1/2/3a", match);
+        match.getLong(2);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void getLongRejectsOverflow() {
+        TopicMatch match = new TopicMatch();
+        router.match("IN/ECHO/1/2/9999999999999999999", match);
+        match.getLong(2);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getRejectsMissingLevel() {
+        TopicMatch match = new TopicMatch();
+        router.match("IN/ECHO/1/2/3", match);
+        match.get(4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void hashMustBeLastLevel() {
+        new TopicRouter().route("a/#/b", ECHO);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wildcardMustOccupyWholeLevel() {
+        new TopicRouter().route("a/b+/c", ECHO);
+    }
+}
@@ -0,0 +1,56 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BitStreamTest {
+    @Test
+    public void writesMostSignificantBitFirst() {
+        BitWriter writer = new BitWriter();
+        writer.writeBit(true);
+        writer.writeBits(0b0101, 4);
+        assertArrayEquals(new byte[]{(byte) 0b10101000}, writer.toByteArray());
+    }
+
+    @Test
+    public void mixedWidthsRoundTrip() {
+        long[] values = {0, 1, 0x7f, 0x1ff, 0xABCDEL, -1L, Long.MIN_VALUE, 42};
+        int[] widths = {1, 1, 7, 9, 20, 64, 64, 13};
+        BitWriter writer = new BitWriter();
+        //超过初始缓冲区，触发扩容
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < values.length; i++) {
+                writer.writeBits(values[i], widths[i]);
+            }
+        }
+        byte[] bytes = writer.toByteArray();
+        assertEquals((200 * 179 + 7) / 8, bytes.length);
+        BitReader reader = new BitReader(bytes);
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < values.length; i++) {
+                long expected = widths[i] == 64 ? values[i] : values[i] & ((1L << widths[i]) - 1);
+                assertEquals(expected, reader.readBits(widths[i]));
+            }
+        }
+    }
+
+    @Test
+    public void readsSingleBits() {
+        BitReader reader = new BitReader(new byte[]{(byte) 0x81});
+        assertTrue(reader.readBit());
+        for (int i = 0; i < 6; i++) {
+            assertFalse(reader.readBit());
+        }
+        assertTrue(reader.readBit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void readingPastTheEndFails() {
+        BitReader reader = new BitReader(new byte[]{1});
+        reader.readBits(9);
+    }
+}
@@ -0,0 +1,173 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import com.easylinker.proxy.server.app.utils.SnowflakeIdGenerator;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceDataChunkCodecTest {
+    private static final long START = 1700000000000L;
+
+    @Test
+    public void regularNumericSamplesRoundTripCompactly() {
+        SnowflakeIdGenerator ids = new SnowflakeIdGenerator();
+        List<ChunkSample> samples = new ArrayList<>();
+        Random random = new Random(1);
+        int textBytes = 0;
+        for (int i = 0; i < 360; i++) {
+            long time = START + i * 10000L;
+            String text = "{\"temperature\":" + (20 + i / 30 * 0.5) + ",\"humidity\":" + (40 + random.nextInt(3)) + "}";
+            textBytes += text.length();
+            samples.add(sample(ids.nextId(time), time, text));
+        }
+        byte[] chunk = DeviceDataChunkCodec.encode(samples);
+        assertTrue("chunk " + chunk.length + " text " + textBytes, chunk.length * 4 < textBytes);
+        assertSameSamples(samples, DeviceDataChunkCodec.decode(chunk));
+    }
+
+    @Test
+    public void everyIdWidthRoundTrips() {
+        List<ChunkSample> samples = new ArrayList<>();
+        long time = START;
+        //旧ID、snowflake ID、序号很大的snowflake ID、和时间没关系的ID
+        samples.add(sample(time + 99999, time, "{\"a\":1}"));
+        samples.add(sample(time - 5, time + 1, "{\"a\":1}"));
+        samples.add(sample(SnowflakeIdGenerator.baseOf(time + 2) + (1023 << 12) + 7, time + 2, "{\"a\":1}"));
+        samples.add(sample(SnowflakeIdGenerator.baseOf(time + 3) + (500L << 22), time + 3, "{\"a\":1}"));
+        samples.add(sample(Long.MAX_VALUE, time + 4, "{\"a\":1}"));
+        samples.add(sample(-7, time + 5, "{\"a\":1}"));
+        assertSameSamples(samples, DeviceDataChunkCodec.decode(DeviceDataChunkCodec.encode(samples)));
+    }
+
+    @Test
+    public void numberTextIsPreserved() {
+        String[] texts = {
+                "{\"t\":21.5,\"h\":40}",
+                "{\"t\":1.50}",
+                "{\"t\":1E3}",
+                "{\"t\":-0}",
+                "{ \"t\": 1 }",
+                "{\"t\":12345678901234567890}",
+                "{\"t\":0.0001}",
+                "{\"t\":\"21.5\"}",
+                "{\"t\":{\"v\":1}}",
+                "{\"t\\u0041\":1}",
+                "{\"t\":1,\"t\":2}",
+                "{}"
+        };
+        List<ChunkSample> samples = new ArrayList<>();
+        for (int i = 0; i < texts.length; i++) {
+            samples.add(sample(START + i, START + i, texts[i]));
+        }
+        assertNotNull(samples.get(0).getValues());
+        assertNull(samples.get(1).getValues());
+        assertNull(samples.get(2).getValues());
+        assertNull(samples.get(3).getValues());
+        assertNull(samples.get(4).getValues());
+        assertNull(samples.get(6).getValues());
+        List<ChunkSample> decoded = DeviceDataChunkCodec.decode(DeviceDataChunkCodec.encode(samples));
+        for (int i = 0; i < texts.length; i++) {
+            assertEquals(texts[i], new String(decoded.get(i).getJsonText(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void fieldOrderIsPreservedPerSample() {
+        List<ChunkSample> samples = new ArrayList<>();
+        samples.add(sample(START, START, "{\"a\":1,\"b\":2}"));
+        samples.add(sample(START + 1, START + 1, "{\"b\":3,\"a\":4}"));
+        samples.add(sample(START + 2, START + 2, "{\"a\":5,\"c\":6,\"b\":7}"));
+        samples.add(sample(START + 3, START + 3, "{\"c\":8}"));
+        samples.add(sample(START + 4, START + 4, "{\"a\":9,\"b\":10}"));
+        List<ChunkSample> decoded = DeviceDataChunkCodec.decode(DeviceDataChunkCodec.encode(samples));
+        assertSameSamples(samples, decoded);
+        assertNull(decoded.get(1).getValues());
+        assertNotNull(decoded.get(4).getValues());
+    }
+
+    @Test
+    public void rawAndEncodedSamplesRoundTrip() {
+        List<ChunkSample> samples = new ArrayList<>();
+        samples.add(ChunkSample.of(START + 2, START + 2, "ECHO", "cbor", new byte[]{(byte) 0xa1, 0x61, 0x74, 0x01}));
+        samples.add(ChunkSample.of(START + 1, START + 1, "REPLY", null, "{\"msg\":\"ok\"}".getBytes(StandardCharsets.UTF_8)));
+        samples.add(ChunkSample.of(START, START, "ECHO", "msgpack", new byte[0]));
+        List<ChunkSample> decoded = DeviceDataChunkCodec.decode(DeviceDataChunkCodec.encode(samples));
+        Collections.reverse(samples);
+        assertSameSamples(samples, decoded);
+        assertEquals("cbor", decoded.get(2).getEncoding());
+        assertEquals("REPLY", decoded.get(1).getType());
+    }
+
+    @Test
+    public void irregularTimestampsRoundTrip() {
+        List<ChunkSample> samples = new ArrayList<>();
+        long[] offsets = {0, 1000, 2000, 2001, 2001, 70000, 70063, 71000, 3599999, 5000000000L};
+        for (int i = 0; i < offsets.length; i++) {
+            samples.add(sample(START + offsets[i] + i, START + offsets[i], "{\"v\":" + i * 0.25 + "}"));
+        }
+        assertSameSamples(samples, DeviceDataChunkCodec.decode(DeviceDataChunkCodec.encode(samples)));
+    }
+
+    /**
+     * 手工拼一个版本1的数据块：一条 {"t":5}，ID比时间戳大3
+     */
+    @Test
+    public void decodesVersionOneChunks() {
+        BitWriter bits = new BitWriter();
+        bits.writeBits(START, 64);
+        bits.writeBit(false);
+        bits.writeBits(6, 18);
+        bits.writeBit(true);
+        bits.writeBit(true);
+        bits.writeBit(true);
+        bits.writeBit(true);
+        bits.writeBit(true);
+        //前导0最多记31个，有效位33位
+        bits.writeBits(31, 5);
+        bits.writeBits(32, 6);
+        bits.writeBits(5, 33);
+        byte[] bitBytes = bits.toByteArray();
+        byte[] header = {1, 1, 1, 5, 'E', 'C', 'H', 'O', 1, 0, 1, 2, 't', 0, (byte) bitBytes.length};
+        byte[] chunk = new byte[header.length + bitBytes.length + 1];
+        System.arraycopy(header, 0, chunk, 0, header.length);
+        System.arraycopy(bitBytes, 0, chunk, header.length, bitBytes.length);
+        List<ChunkSample> decoded = DeviceDataChunkCodec.decode(chunk);
+        assertEquals(1, decoded.size());
+        assertEquals(START + 3, decoded.get(0).getId());
+        assertEquals(START, decoded.get(0).getTime());
+        assertEquals("ECHO", decoded.get(0).getType());
+        assertEquals("{\"t\":5}", new String(decoded.get(0).getJsonText(), StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVersionIsRejected() {
+        DeviceDataChunkCodec.decode(new byte[]{9, 0});
+    }
+
+    private static ChunkSample sample(long id, long time, String text) {
+        return ChunkSample.of(id, time, "ECHO", null, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertSameSamples(List<ChunkSample> expected, List<ChunkSample> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            ChunkSample e = expected.get(i);
+            ChunkSample a = actual.get(i);
+            assertEquals(e.getId(), a.getId());
+            assertEquals(e.getTime(), a.getTime());
+            assertEquals(e.getType(), a.getType());
+            assertEquals(e.getEncoding(), a.getEncoding());
+            assertArrayEquals(e.getEncoding() == null ? e.getJsonText() : e.getRaw(), a.getEncoding() == null ? a.getJsonText() : a.getRaw());
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 内存里的草图到了上限提前写回，超过两倍丢掉的在查询结果里标出来
+ * 聚合表用 行ID -> digest 的Map代替，聚合行都已经存在
+ */
+public class DeviceDataDigestsTest {
+    private static final long HOUR = 3600000L;
+    private static final long TIME = 1539820800000L;
+    private final Map<Long, byte[]> hourRows = new ConcurrentHashMap<>();
+    private final Map<Long, byte[]> dayRows = new ConcurrentHashMap<>();
+    /**
+     * 小时行ID -> 小时的开始
+     */
+    private final Map<Long, Long> hourOf = new HashMap<>();
+    private DeviceDataDigests digests;
+
+    @Before
+    public void setUp() {
+        digests = new DeviceDataDigests();
+        digests.jdbcTemplate = new FakeRollupTables();
+        digests.transactionManager = new NoTransactionManager();
+        digests.tablePartitionManager = new TablePartitionManager();
+        digests.compression = 100;
+        digests.maxPending = 10;
+        digests.start();
+        for (long device = 0; device < 25; device++) {
+            for (long hour = TIME; hour < TIME + 3 * HOUR; hour += HOUR) {
+                hourOf.put(DeviceDataRollups.rowId(device, "t", hour), hour);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        digests.stop();
+    }
+
+    @Test
+    public void fullPendingMapFlushesEarly() throws Exception {
+        //第11个键触发提前写回，不用等定时写回
+        for (int device = 0; device < 11; device++) {
+            digests.record(device, TIME, Collections.singletonMap("t", 1.0));
+        }
+        awaitEarlyFlush();
+        assertEquals(1L, digests.getStatistics().get("earlyFlushes"));
+        assertEquals(0L, digests.getStatistics().get("dropped"));
+    }
+
+    @Test
+    public void droppedSamplesAreReportedInQueries() throws Exception {
+        for (int device = 0; device < 11; device++) {
+            digests.record(device, TIME, Collections.singletonMap("t", 1.0));
+        }
+        awaitEarlyFlush();
+        //提前写回每秒最多一次，刚写回过的时候新的键超过两倍就丢
+        for (int device = 0; device < 25; device++) {
+            digests.record(device, TIME + 2 * HOUR, Collections.singletonMap("t", 1.0));
+        }
+        assertEquals(5L, digests.getStatistics().get("dropped"));
+        digests.flush();
+
+        JSONObject result = digests.getQuantiles(DeviceDataDigests.Scope.USER, 1, "t", TIME, TIME + 3 * HOUR, HOUR);
+        assertTrue((Boolean) result.get("truncated"));
+        JSONArray points = (JSONArray) result.get("points");
+        assertEquals(2, points.size());
+        assertEquals(11L, points.getJSONObject(0).get("count"));
+        assertEquals(0L, points.getJSONObject(0).get("dropped"));
+        assertEquals(20L, points.getJSONObject(1).get("count"));
+        assertEquals(5L, points.getJSONObject(1).get("dropped"));
+
+        assertFalse((Boolean) digests.getQuantiles(DeviceDataDigests.Scope.USER, 1, "t", TIME, TIME + 2 * HOUR, HOUR).get("truncated"));
+    }
+
+    /**
+     * 触发写回的那个键可能在提前写回取走以后才放进去，等写回结束以后同步写回一次
+     */
+    private void awaitEarlyFlush() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hourRows.size() < 10) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        digests.flush();
+        assertEquals(11, hourRows.size());
+        assertEquals(0, digests.getStatistics().get("pending"));
+    }
+
+    /**
+     * 小时和天的聚合行都已经存在；查询按小时表返回写过草图的行
+     */
+    private final class FakeRollupTables extends JdbcTemplate {
+        @Override
+        public void query(String sql, RowCallbackHandler handler, Object... args) {
+            Map<Long, byte[]> table = sql.contains(DeviceDataRollups.Resolution.HOUR.getTable()) ? hourRows : dayRows;
+            try {
+                if (sql.startsWith("SELECT id, digest")) {
+                    for (Object id : args) {
+                        handler.processRow(resultSet(id, table.get((Long) id)));
+                    }
+                } else {
+                    for (Map.Entry<Long, byte[]> row : hourRows.entrySet()) {
+                        handler.processRow(resultSet(new Timestamp(hourOf.get(row.getKey())), row.getValue()));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int[] batchUpdate(String sql, List<Object[]> args) {
+            Map<Long, byte[]> table = sql.contains(DeviceDataRollups.Resolution.HOUR.getTable()) ? hourRows : dayRows;
+            for (Object[] row : args) {
+                table.put((Long) row[1], (byte[]) row[0]);
+            }
+            return new int[args.size()];
+        }
+    }
+
+    private ResultSet resultSet(Object first, byte[] second) {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> (Integer) args[0] == 1 ? first : second);
+    }
+
+    private static final class NoTransactionManager implements PlatformTransactionManager {
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) {
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) {
+        }
+    }
+}
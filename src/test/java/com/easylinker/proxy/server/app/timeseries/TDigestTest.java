@@ -0,0 +1,111 @@
+package com.easylinker.proxy.server.app.timeseries;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TDigestTest {
+    @Test
+    public void emptyDigestHasNoQuantiles() {
+        TDigest digest = new TDigest(100);
+        assertTrue(Double.isNaN(digest.quantile(0.5)));
+        assertEquals(0, digest.getCount(), 0);
+    }
+
+    @Test
+    public void fewValuesAreExactAtTheEnds() {
+        TDigest digest = new TDigest(100);
+        for (double value : new double[]{3, 1, 2}) {
+            digest.add(value);
+        }
+        assertEquals(1, digest.quantile(0), 0);
+        assertEquals(3, digest.quantile(1), 0);
+        assertEquals(2, digest.quantile(0.5), 0.5);
+        assertEquals(3, digest.getCount(), 0);
+    }
+
+    /**
+     * compression=100 的时候中间的分位数误差在1%以内，尾部更准
+     */
+    @Test
+    public void quantilesStayWithinRankError() {
+        Random random = new Random(7);
+        double[] values = new double[100000];
+        TDigest digest = new TDigest(100);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextGaussian() * 10 + 50;
+            digest.add(values[i]);
+        }
+        Arrays.sort(values);
+        assertRankError(values, digest, 0.5, 0.01);
+        assertRankError(values, digest, 0.9, 0.005);
+        assertRankError(values, digest, 0.99, 0.002);
+        assertRankError(values, digest, 0.999, 0.0005);
+        assertEquals(values[0], digest.getMin(), 0);
+        assertEquals(values[values.length - 1], digest.getMax(), 0);
+    }
+
+    @Test
+    public void mergedDigestMatchesTheUnion() {
+        Random random = new Random(11);
+        double[] values = new double[60000];
+        TDigest merged = new TDigest(100);
+        //很多只有几条数据的小草图合并，和小时草图合成天草图一样
+        for (int part = 0; part < 600; part++) {
+            TDigest digest = new TDigest(100);
+            for (int i = 0; i < 100; i++) {
+                double value = random.nextDouble() * (part % 2 == 0 ? 1 : 1000);
+                values[part * 100 + i] = value;
+                digest.add(value);
+            }
+            merged.merge(digest);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, merged.getCount(), 0);
+        assertRankError(values, merged, 0.25, 0.01);
+        assertRankError(values, merged, 0.5, 0.01);
+        assertRankError(values, merged, 0.95, 0.005);
+    }
+
+    @Test
+    public void bytesRoundTrip() {
+        TDigest digest = new TDigest(50);
+        for (int i = 0; i < 5000; i++) {
+            digest.add(i % 97);
+        }
+        TDigest copy = TDigest.fromBytes(digest.toBytes());
+        assertEquals(digest.getCount(), copy.getCount(), 0);
+        assertEquals(digest.getMin(), copy.getMin(), 0);
+        assertEquals(digest.getMax(), copy.getMax(), 0);
+        for (double q = 0; q <= 1; q += 0.05) {
+            assertEquals(digest.quantile(q), copy.quantile(q), 1e-9);
+        }
+        copy.add(1000);
+        assertEquals(1000, copy.getMax(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedBytes() {
+        TDigest digest = new TDigest(100);
+        digest.add(1);
+        byte[] bytes = digest.toBytes();
+        TDigest.fromBytes(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    /**
+     * 估计值在排序后数据里的位置和 q 相差不超过 tolerance
+     */
+    private static void assertRankError(double[] sorted, TDigest digest, double q, double tolerance) {
+        double estimate = digest.quantile(q);
+        int rank = Arrays.binarySearch(sorted, estimate);
+        if (rank < 0) {
+            rank = -rank - 1;
+        }
+        double error = Math.abs((double) rank / sorted.length - q);
+        assertTrue("q=" + q + " rank error " + error, error <= tolerance);
+    }
+}